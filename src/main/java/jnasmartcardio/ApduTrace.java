@@ -0,0 +1,407 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring buffer of the most recent APDU exchanges, cheap enough to
+ * leave on in production.
+ *
+ * <p>
+ * Every {@link Smartcardio.JnaCardChannel} transmission is recorded in the
+ * {@link #getDefault() default trace}, if there is one. The records are kept
+ * off-heap in fixed-size slots; a writer claims a sequence number with one
+ * atomic increment and fills in the slot without locking, so recording never
+ * blocks and does not allocate. Each slot is guarded by a seqlock: its
+ * marker is odd while a writer is in it and even once the record is
+ * complete. A writer that finds its slot busy or already holding a newer
+ * record drops its record (see {@link #getDroppedCount()}), and a dump leaves
+ * out slots whose marker is odd or changed during the copy. Commands and
+ * responses longer than maxApduBytes are truncated (but their full length is
+ * recorded).
+ *
+ * <p>
+ * A default trace of {@value #DEFAULT_SLOTS} slots is created at startup, so
+ * that the exchanges that led up to a failure are there to be dumped. It
+ * only holds memory (about 150 KB, off-heap) and writes nothing unless
+ * dumped. The system property <code>jnasmartcardio.apduTrace.slots</code>
+ * changes the number of slots, or turns the trace off if 0; it can also be
+ * replaced with {@link #setDefault(ApduTrace)}. Note that the trace holds
+ * whatever the commands carry, e.g. PINs, until it wraps around.
+ *
+ * <p>
+ * The trace can be written with {@link #dump(File)}, either on demand or
+ * automatically whenever a transmission fails (see
+ * {@link #setDumpOnError(File, long)}, which writes from a background
+ * thread). The dump is big-endian and consists
+ * of:
+ * <ul>
+ * <li>header: magic "APDUTRC1" (8 bytes), int version, int slotCount, int
+ * slotSize, int maxApduBytes, long nextSequence, int readerCount, then for
+ * each reader a short length and UTF-8 name, then zero padding to a
+ * multiple of 8 bytes.
+ * <li>slotCount slots of slotSize bytes, so the file can be memory-mapped
+ * and each record read in place. See {@link #SLOT_HEADER_SIZE} for the slot
+ * layout.
+ * </ul>
+ * Decode it with {@link jnasmartcardio.tools.DecodeApduTrace}.
+ */
+public class ApduTrace {
+	public static final String MAGIC = "APDUTRC1";
+	public static final int VERSION = 1;
+	/**
+	 * Layout of a slot:
+	 * <ul>
+	 * <li>0: long marker: sequence number + 1, or 0 if the slot holds no
+	 * complete record. Only filled in by dumps; while recording, the markers
+	 * are kept apart (see the class comment).
+	 * <li>8: long wall clock time in milliseconds.
+	 * <li>16: long latency in nanoseconds.
+	 * <li>24: int reader index into the reader table.
+	 * <li>28: int logical channel.
+	 * <li>32: int full command length.
+	 * <li>36: int full response length.
+	 * <li>40: int PC/SC result code.
+	 * <li>44: int reserved.
+	 * <li>48: maxApduBytes command bytes, then maxApduBytes response bytes.
+	 * </ul>
+	 */
+	public static final int SLOT_HEADER_SIZE = 48;
+	/** Number of slots of the default trace unless set by system property. */
+	public static final int DEFAULT_SLOTS = 256;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static volatile ApduTrace defaultTrace = createDefault();
+
+	private final int slotCount;
+	private final int slotSize;
+	private final int maxApduBytes;
+	private final ByteBuffer slots;
+	/** Per slot: 2 * (sequence + 1) when complete, that minus 1 while being written, 0 if never written. */
+	private final AtomicLongArray markers;
+	private final AtomicLong nextSequence = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final ConcurrentMap<String, Integer> readerIndexes = new ConcurrentHashMap<String, Integer>();
+	private final List<String> readerNames = new CopyOnWriteArrayList<String>();
+	private volatile File dumpOnErrorDirectory;
+	private volatile long dumpOnErrorIntervalMillis;
+	private final AtomicLong lastErrorDump = new AtomicLong(Long.MIN_VALUE / 2);
+
+	/**
+	 * @param slotCount
+	 *            number of exchanges kept.
+	 * @param maxApduBytes
+	 *            number of command bytes and of response bytes kept per
+	 *            exchange.
+	 */
+	public ApduTrace(int slotCount, int maxApduBytes) {
+		if (slotCount <= 0)
+			throw new IllegalArgumentException("slotCount must be positive; got " + slotCount);
+		if (maxApduBytes < 0)
+			throw new IllegalArgumentException("Negative maxApduBytes " + maxApduBytes);
+		this.slotCount = slotCount;
+		this.maxApduBytes = maxApduBytes;
+		long slotSize = (SLOT_HEADER_SIZE + 2L * maxApduBytes + 7) & ~7L;
+		if (slotCount * slotSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(String.format("%d slots of %d bytes do not fit in a buffer", slotCount, slotSize));
+		this.slotSize = (int) slotSize;
+		this.slots = ByteBuffer.allocateDirect(slotCount * this.slotSize);
+		this.markers = new AtomicLongArray(slotCount);
+	}
+
+	static ApduTrace createDefault() {
+		int slots = Integer.getInteger("jnasmartcardio.apduTrace.slots", DEFAULT_SLOTS);
+		if (slots == 0)
+			return null;
+		return new ApduTrace(slots, Integer.getInteger("jnasmartcardio.apduTrace.maxApduBytes", 261));
+	}
+	/** The trace that every channel records to, or null. */
+	public static ApduTrace getDefault() {return defaultTrace;}
+	public static void setDefault(ApduTrace trace) {defaultTrace = trace;}
+
+	/**
+	 * Dump the trace to a new file in the given directory whenever a
+	 * transmission fails, at most once per minIntervalMillis. Pass null to
+	 * disable.
+	 */
+	public void setDumpOnError(File directory, long minIntervalMillis) {
+		this.dumpOnErrorIntervalMillis = minIntervalMillis;
+		this.dumpOnErrorDirectory = directory;
+	}
+
+	public int getSlotCount() {return slotCount;}
+	/** How many records were not kept because their slot was busy with another writer. */
+	public long getDroppedCount() {return dropped.get();}
+	public int getMaxApduBytes() {return maxApduBytes;}
+
+	private int readerIndex(String reader) {
+		if (reader == null)
+			return -1;
+		Integer index = readerIndexes.get(reader);
+		if (index != null)
+			return index;
+		synchronized (readerNames) {
+			index = readerIndexes.get(reader);
+			if (index == null) {
+				index = readerNames.size();
+				readerNames.add(reader);
+				readerIndexes.put(reader, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Record one exchange. The buffers are read with absolute gets, so their
+	 * positions are not modified.
+	 *
+	 * @param responseLength
+	 *            number of response bytes at responseOffset, or 0 if the
+	 *            transmission failed.
+	 * @param code
+	 *            the PC/SC result code.
+	 */
+	public void record(String reader, int channel, ByteBuffer command, int commandOffset, int commandLength, ByteBuffer response, int responseOffset, int responseLength, long latencyNanos, int code) {
+		long sequence = nextSequence.getAndIncrement();
+		int slot = (int) (sequence % slotCount);
+		long complete = 2 * (sequence + 1);
+		while (true) {
+			long marker = markers.get(slot);
+			// Busy with a writer that lapped us or that we lapped, or already newer.
+			if ((marker & 1) != 0 || marker >= complete) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (markers.compareAndSet(slot, marker, complete - 1))
+				break;
+		}
+		int base = slot * slotSize;
+		slots.putLong(base + 8, System.currentTimeMillis());
+		slots.putLong(base + 16, latencyNanos);
+		slots.putInt(base + 24, readerIndex(reader));
+		slots.putInt(base + 28, channel);
+		slots.putInt(base + 32, commandLength);
+		slots.putInt(base + 36, responseLength);
+		slots.putInt(base + 40, code);
+		int commandBase = base + SLOT_HEADER_SIZE;
+		for (int i = 0, n = Math.min(commandLength, maxApduBytes); i < n; i++)
+			slots.put(commandBase + i, command.get(commandOffset + i));
+		int responseBase = commandBase + maxApduBytes;
+		for (int i = 0, n = Math.min(responseLength, maxApduBytes); i < n; i++)
+			slots.put(responseBase + i, response.get(responseOffset + i));
+		markers.lazySet(slot, complete);
+		if (code != WinscardConstants.SCARD_S_SUCCESS && dumpOnErrorDirectory != null)
+			dumpOnError();
+	}
+
+	private void dumpOnError() {
+		final File directory = dumpOnErrorDirectory;
+		final long now = System.currentTimeMillis();
+		long last = lastErrorDump.get();
+		if (directory == null || now - last < dumpOnErrorIntervalMillis || !lastErrorDump.compareAndSet(last, now))
+			return;
+		// Copying and writing the whole ring is too slow for the transmitting thread.
+		DumpWriter.EXECUTOR.execute(new Runnable() {
+			@Override public void run() {
+				try {
+					dump(new File(directory, String.format("apdutrace-%d.bin", now)));
+				} catch (IOException e) {
+					// The trace is a debugging aid; nobody to report to.
+				}
+			}
+		});
+	}
+
+	/** Lazily-started daemon thread that writes the dumps on error. */
+	private static class DumpWriter {
+		static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jnasmartcardio apdu trace dump");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** Write the trace to the given file, replacing it. */
+	public void dump(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			dump(out.getChannel());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write the trace to the given channel. Records that are being written
+	 * concurrently are left out.
+	 */
+	public void dump(WritableByteChannel out) throws IOException {
+		ByteBuffer copy = ByteBuffer.allocate(slots.capacity());
+		ByteBuffer source = slots.duplicate();
+		for (int slot = 0; slot < slotCount; slot++) {
+			int base = slot * slotSize;
+			long marker = markers.get(slot);
+			if (marker == 0 || (marker & 1) != 0)
+				continue;  // never written, or being written
+			source.limit(base + slotSize).position(base);
+			copy.position(base);
+			copy.put(source);
+			// The CAS orders the copy before it, and fails if a writer came in.
+			if (markers.compareAndSet(slot, marker, marker))
+				copy.putLong(base, marker / 2);
+			else
+				copy.putLong(base, 0);
+		}
+		List<String> readers = new ArrayList<String>(readerNames);
+		int headerSize = MAGIC.length() + 4 + 4 + 4 + 4 + 8 + 4;
+		List<byte[]> encodedReaders = new ArrayList<byte[]>(readers.size());
+		for (String reader: readers) {
+			byte[] bytes = reader.getBytes(UTF8);
+			encodedReaders.add(bytes);
+			headerSize += 2 + bytes.length;
+		}
+		headerSize = (headerSize + 7) & ~7;
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		header.put(MAGIC.getBytes(UTF8));
+		header.putInt(VERSION);
+		header.putInt(slotCount);
+		header.putInt(slotSize);
+		header.putInt(maxApduBytes);
+		header.putLong(nextSequence.get());
+		header.putInt(readers.size());
+		for (byte[] bytes: encodedReaders) {
+			header.putShort((short) bytes.length);
+			header.put(bytes);
+		}
+		header.clear();
+		copy.clear();
+		while (header.hasRemaining())
+			out.write(header);
+		while (copy.hasRemaining())
+			out.write(copy);
+	}
+
+	/** One decoded exchange. */
+	public static class Entry {
+		public final long sequence;
+		public final long timeMillis;
+		public final long latencyNanos;
+		/** The reader name, or null if unknown. */
+		public final String reader;
+		public final int channel;
+		public final int commandLength;
+		public final int responseLength;
+		public final int code;
+		/** The recorded command bytes, possibly truncated. */
+		public final byte[] command;
+		/** The recorded response bytes, possibly truncated. */
+		public final byte[] response;
+		Entry(long sequence, long timeMillis, long latencyNanos, String reader, int channel, int commandLength, int responseLength, int code, byte[] command, byte[] response) {
+			this.sequence = sequence;
+			this.timeMillis = timeMillis;
+			this.latencyNanos = latencyNanos;
+			this.reader = reader;
+			this.channel = channel;
+			this.commandLength = commandLength;
+			this.responseLength = responseLength;
+			this.code = code;
+			this.command = command;
+			this.response = response;
+		}
+	}
+
+	/**
+	 * Decode a dump (e.g. a memory-mapped file written by
+	 * {@link #dump(File)}), returning the complete records in sequence
+	 * order.
+	 */
+	public static List<Entry> readDump(ByteBuffer dump) throws IOException {
+		ByteBuffer buf = dump.duplicate();
+		byte[] magic = new byte[MAGIC.length()];
+		if (buf.remaining() < magic.length)
+			throw new IOException("Not an APDU trace: too short");
+		buf.get(magic);
+		if (!MAGIC.equals(new String(magic, UTF8)))
+			throw new IOException("Not an APDU trace: bad magic");
+		int version = buf.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported APDU trace version " + version);
+		int slotCount = buf.getInt();
+		int slotSize = buf.getInt();
+		int maxApduBytes = buf.getInt();
+		buf.getLong();  // next sequence
+		int readerCount = buf.getInt();
+		String[] readers = new String[readerCount];
+		for (int i = 0; i < readerCount; i++) {
+			byte[] name = new byte[buf.getShort() & 0xffff];
+			buf.get(name);
+			readers[i] = new String(name, UTF8);
+		}
+		int slotsStart = dump.position() + ((buf.position() - dump.position() + 7) & ~7);
+		List<Entry> r = new ArrayList<Entry>();
+		for (int i = 0; i < slotCount; i++) {
+			int base = slotsStart + i * slotSize;
+			long marker = buf.getLong(base);
+			if (marker <= 0)
+				continue;
+			int readerIndex = buf.getInt(base + 24);
+			int commandLength = buf.getInt(base + 32);
+			int responseLength = buf.getInt(base + 36);
+			byte[] command = new byte[Math.min(commandLength, maxApduBytes)];
+			byte[] response = new byte[Math.min(responseLength, maxApduBytes)];
+			for (int j = 0; j < command.length; j++)
+				command[j] = buf.get(base + SLOT_HEADER_SIZE + j);
+			for (int j = 0; j < response.length; j++)
+				response[j] = buf.get(base + SLOT_HEADER_SIZE + maxApduBytes + j);
+			r.add(new Entry(marker - 1,
+					buf.getLong(base + 8),
+					buf.getLong(base + 16),
+					0 <= readerIndex && readerIndex < readers.length ? readers[readerIndex] : null,
+					buf.getInt(base + 28),
+					commandLength,
+					responseLength,
+					buf.getInt(base + 40),
+					command,
+					response));
+		}
+		Collections.sort(r, new Comparator<Entry>() {
+			@Override public int compare(Entry a, Entry b) {
+				return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+			}
+		});
+		return r;
+	}
+
+	/** Map the given dump file and decode it. */
+	public static List<Entry> readDump(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return readDump(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter, for retrying a daemon that is restarting.
+ * The n-th delay is a random time between half and all of
+ * initial&times;2<sup>n</sup>, capped at the maximum, so that many clients
+ * do not retry in lockstep. Not thread-safe.
+ */
+class Backoff {
+	private final long initialMillis;
+	private final long maxMillis;
+	private final Random random = new Random();
+	private int attempt;
+
+	Backoff(long initialMillis, long maxMillis) {
+		if (initialMillis <= 0 || maxMillis < initialMillis)
+			throw new IllegalArgumentException(String.format("Invalid backoff %d..%d ms", initialMillis, maxMillis));
+		this.initialMillis = initialMillis;
+		this.maxMillis = maxMillis;
+	}
+
+	/** The time to wait before the next attempt. */
+	long nextDelayMillis() {
+		long ceiling = maxMillis;
+		if (attempt < 62 && initialMillis <= maxMillis >> attempt)
+			ceiling = initialMillis << attempt;
+		attempt++;
+		long half = ceiling / 2;
+		return half + (long) (random.nextDouble() * (ceiling - half));
+	}
+	/** Start again from the initial delay, e.g. after a success. */
+	void reset() {
+		attempt = 0;
+	}
+}
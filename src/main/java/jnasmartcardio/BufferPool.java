@@ -0,0 +1,258 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Pool of direct buffers for SCardTransmit and SCardControl. JNA passes
+ * direct buffers to native code as they are, whereas heap buffers are copied
+ * to native memory and back on every call.
+ *
+ * <p>
+ * Buffers come in three size classes: {@link #SMALL} (a short APDU and
+ * response), {@link #MEDIUM} (8 KB, the default receive size) and
+ * {@link #LARGE} (an extended-length APDU or response). The pool is split
+ * into stripes, and a thread always uses the stripe of its thread id, so
+ * threads rarely contend.
+ *
+ * <p>
+ * In debug mode (system property {@code jnasmartcardio.bufferPool.debug=true}
+ * for the default pool), the stack trace of each acquisition is kept, and a
+ * buffer that is garbage collected without having been released is counted
+ * in {@link #getLeaks()} and handed with it to the
+ * {@link #setLeakHandler(LeakHandler) leak handler}, if any.
+ */
+public class BufferPool implements BufferPoolMBean {
+	public static final int SMALL = 512;
+	public static final int MEDIUM = 8192;
+	/** 65536 data bytes plus SW1 SW2, or an extended command with Lc and Le. */
+	public static final int LARGE = 65536 + 16;
+	private static final int[] SIZES = {SMALL, MEDIUM, LARGE};
+	/** Buffers kept per stripe for each size class. */
+	private static final int[] STRIPE_CAPACITY = {16, 8, 2};
+
+	private static final BufferPool DEFAULT = new BufferPool(Runtime.getRuntime().availableProcessors(), Boolean.getBoolean("jnasmartcardio.bufferPool.debug"));
+
+	/** The pool used by JnaCard and JnaCardChannel. */
+	public static BufferPool getDefault() {return DEFAULT;}
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	private final boolean debug;
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	/** In debug mode, the outstanding buffers, by identity hash code. */
+	private final ConcurrentMap<Integer, List<Acquisition>> outstanding;
+	private final ReferenceQueue<ByteBuffer> collected;
+
+	private volatile LeakHandler leakHandler;
+
+	/** Told about buffers that were never released, in debug mode. */
+	public interface LeakHandler {
+		/**
+		 * Called on a thread that acquires a buffer or calls
+		 * {@link BufferPool#getLeaks()}, so it should return quickly.
+		 *
+		 * @param site
+		 *            a Throwable whose stack trace is where the buffer was
+		 *            acquired.
+		 */
+		void leaked(Throwable site);
+	}
+
+	private static class Stripe {
+		/** The free buffers of each size class. */
+		final List<ArrayDeque<ByteBuffer>> free = new ArrayList<ArrayDeque<ByteBuffer>>(SIZES.length);
+		Stripe() {
+			for (int i = 0; i < SIZES.length; i++)
+				free.add(new ArrayDeque<ByteBuffer>(STRIPE_CAPACITY[i]));
+		}
+	}
+	/** Remembers where a buffer was acquired, for leak reports. */
+	private static class Acquisition extends WeakReference<ByteBuffer> {
+		final int hash;
+		final Throwable site;
+		Acquisition(ByteBuffer buffer, int hash, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			this.hash = hash;
+			this.site = new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here was never released");
+		}
+	}
+
+	/**
+	 * @param stripeCount
+	 *            rounded up to a power of 2; the number of processors is a
+	 *            good choice.
+	 */
+	public BufferPool(int stripeCount, boolean debug) {
+		int n = 1;
+		while (n < stripeCount)
+			n <<= 1;
+		this.stripes = new Stripe[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new Stripe();
+		this.stripeMask = n - 1;
+		this.debug = debug;
+		this.outstanding = debug ? new ConcurrentHashMap<Integer, List<Acquisition>>() : null;
+		this.collected = debug ? new ReferenceQueue<ByteBuffer>() : null;
+	}
+
+	private static int sizeClass(int minCapacity) {
+		for (int i = 0; i < SIZES.length; i++)
+			if (minCapacity <= SIZES[i])
+				return i;
+		return -1;
+	}
+	private Stripe stripe() {
+		return stripes[(int) Thread.currentThread().getId() & stripeMask];
+	}
+
+	/**
+	 * Get a cleared direct buffer with at least minCapacity bytes (limited
+	 * to minCapacity). Buffers larger than {@link #LARGE} are allocated and
+	 * not pooled.
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		acquired.incrementAndGet();
+		int sizeClass = sizeClass(minCapacity);
+		ByteBuffer b = null;
+		if (sizeClass >= 0) {
+			Stripe stripe = stripe();
+			synchronized (stripe) {
+				b = stripe.free.get(sizeClass).pollLast();
+			}
+			if (b != null)
+				pooledBytes.addAndGet(-b.capacity());
+		}
+		if (b == null) {
+			allocated.incrementAndGet();
+			b = ByteBuffer.allocateDirect(sizeClass >= 0 ? SIZES[sizeClass] : minCapacity);
+		}
+		b.clear();
+		b.limit(minCapacity);
+		if (debug)
+			track(b);
+		return b;
+	}
+	/**
+	 * Return a buffer from {@link #acquire(int)} to the pool. It must not be
+	 * used afterwards.
+	 */
+	public void release(ByteBuffer b) {
+		released.incrementAndGet();
+		if (debug)
+			untrack(b);
+		int sizeClass = sizeClass(b.capacity());
+		if (sizeClass < 0 || SIZES[sizeClass] != b.capacity() || !b.isDirect()) {
+			dropped.incrementAndGet();
+			return;
+		}
+		Stripe stripe = stripe();
+		boolean kept;
+		synchronized (stripe) {
+			ArrayDeque<ByteBuffer> free = stripe.free.get(sizeClass);
+			kept = free.size() < STRIPE_CAPACITY[sizeClass];
+			if (kept)
+				free.addLast(b);
+		}
+		if (kept)
+			pooledBytes.addAndGet(b.capacity());
+		else
+			dropped.incrementAndGet();
+	}
+
+	private void track(ByteBuffer b) {
+		reportCollected();
+		int hash = System.identityHashCode(b);
+		Acquisition a = new Acquisition(b, hash, collected);
+		List<Acquisition> list = outstanding.get(hash);
+		if (list == null) {
+			List<Acquisition> newList = new ArrayList<Acquisition>(1);
+			list = outstanding.putIfAbsent(hash, newList);
+			if (list == null)
+				list = newList;
+		}
+		synchronized (list) {
+			list.add(a);
+		}
+	}
+	private void untrack(ByteBuffer b) {
+		List<Acquisition> list = outstanding.get(System.identityHashCode(b));
+		if (list == null)
+			return;
+		synchronized (list) {
+			for (int i = 0; i < list.size(); i++) {
+				Acquisition a = list.get(i);
+				if (a.get() == b) {
+					list.remove(i);
+					a.clear();  // so that it is never reported
+					return;
+				}
+			}
+		}
+	}
+	/** Report buffers that were collected while still outstanding. */
+	private void reportCollected() {
+		Acquisition a;
+		while ((a = (Acquisition) collected.poll()) != null) {
+			List<Acquisition> list = outstanding.get(a.hash);
+			boolean wasOutstanding = false;
+			if (list != null) {
+				synchronized (list) {
+					wasOutstanding = list.remove(a);
+				}
+			}
+			if (wasOutstanding) {
+				leaks.incrementAndGet();
+				LeakHandler handler = leakHandler;
+				if (handler != null)
+					handler.leaked(a.site);
+			}
+		}
+	}
+
+	@Override public long getAcquired() {return acquired.get();}
+	@Override public long getAllocated() {return allocated.get();}
+	@Override public long getDropped() {return dropped.get();}
+	@Override public long getOutstanding() {return acquired.get() - released.get();}
+	@Override public long getPooledBytes() {return pooledBytes.get();}
+	@Override public long getLeaks() {
+		if (debug)
+			reportCollected();
+		return leaks.get();
+	}
+	@Override public boolean isDebug() {return debug;}
+	/** Set the handler for leaks found in debug mode, e.g. one that logs the site; null for none. */
+	public void setLeakHandler(LeakHandler leakHandler) {this.leakHandler = leakHandler;}
+
+	/** Register with the platform MBeanServer as jnasmartcardio:type=BufferPool,name=... */
+	public void registerMBean(String name) throws JMException {
+		registerMBean(ManagementFactory.getPlatformMBeanServer(), name);
+	}
+	public void registerMBean(MBeanServer server, String name) throws JMException {
+		server.registerMBean(this, new ObjectName(WinscardMetrics.DOMAIN + ":type=BufferPool,name=" + ObjectName.quote(name)));
+	}
+	@Override public String toString() {
+		return String.format("%s{acquired=%d, allocated=%d, outstanding=%d, pooledBytes=%d}", getClass().getSimpleName(), getAcquired(), getAllocated(), getOutstanding(), getPooledBytes());
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+/**
+ * JMX view of a {@link BufferPool}.
+ */
+public interface BufferPoolMBean {
+	/** Number of buffers handed out. */
+	long getAcquired();
+	/** Number of acquisitions that had to allocate a new buffer. */
+	long getAllocated();
+	/** Number of released buffers dropped because their stripe was full. */
+	long getDropped();
+	/** Buffers handed out and not yet released. */
+	long getOutstanding();
+	/** Bytes held by the pool, not counting outstanding buffers. */
+	long getPooledBytes();
+	/**
+	 * Buffers that were garbage collected without being released. Only
+	 * counted in debug mode.
+	 */
+	long getLeaks();
+	boolean isDebug();
+}
@@ -0,0 +1,342 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals.State;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminal;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+
+/**
+ * A pool of equivalent cards, e.g. identical signing cards holding the same
+ * key role, that spreads operations over them.
+ *
+ * <p>
+ * The pool holds one connection to each present card accepted by its
+ * {@link Matcher}. {@link #execute(Operation)} runs an operation on the
+ * member with the lowest expected wait: its queue depth (operations running
+ * or waiting on it, plus one) times its moving-average operation latency.
+ * Each card runs one operation at a time. So a slow card gets fewer
+ * operations instead of stalling a fixed share of them, as round robin
+ * would.
+ *
+ * <p>
+ * A member whose card is removed is dropped, and the operation is retried
+ * on another member. A member that fails {@link #FAILURES_BEFORE_COOLDOWN}
+ * times in a row is skipped for {@link #COOLDOWN_MILLIS} unless no other
+ * member is available. Call {@link #refresh()} to pick up inserted and
+ * removed cards, or {@link #start()} a thread that does so on every
+ * {@link JnaCardTerminals#waitForChange(long)}; that thread must then be
+ * the only user of waitForChange on these terminals.
+ */
+public class CardPool implements Closeable {
+	/** Decides which cards belong to the pool. */
+	public interface Matcher {
+		boolean matches(CardTerminal terminal, ATR atr);
+	}
+	/** Work done on one card of the pool. */
+	public interface Operation<T> {
+		T run(Card card) throws CardException;
+	}
+
+	static final int FAILURES_BEFORE_COOLDOWN = 3;
+	static final long COOLDOWN_MILLIS = 5000;
+	/** Weight of the newest latency sample in the moving average. */
+	private static final double LATENCY_ALPHA = 0.2;
+
+	/** One card of the pool. */
+	public static class Member {
+		private final CardTerminal terminal;
+		private final Card card;
+		private final AtomicInteger queueDepth = new AtomicInteger();
+		/** Exponential moving average; 0 until the first operation. Guarded by lock. */
+		private double averageLatencyNanos;
+		private int consecutiveFailures;
+		private long cooldownUntilNanos;
+		private volatile boolean removed;
+		private final Object lock = new Object();
+		/** Serializes operations on the card. */
+		private final Object cardLock = new Object();
+		Member(CardTerminal terminal, Card card) {
+			this.terminal = terminal;
+			this.card = card;
+		}
+		public CardTerminal getTerminal() {return terminal;}
+		public Card getCard() {return card;}
+		/** Operations running or waiting on this card. */
+		public int getQueueDepth() {return queueDepth.get();}
+		public double getAverageLatencyMillis() {
+			synchronized (lock) {
+				return averageLatencyNanos / 1e6;
+			}
+		}
+		public boolean isHealthy() {
+			synchronized (lock) {
+				return consecutiveFailures < FAILURES_BEFORE_COOLDOWN || System.nanoTime() - cooldownUntilNanos >= 0;
+			}
+		}
+		double expectedWaitNanos() {
+			synchronized (lock) {
+				// Before the first sample, still prefer shorter queues.
+				return (queueDepth.get() + 1) * Math.max(averageLatencyNanos, 1);
+			}
+		}
+		void succeeded(long latencyNanos) {
+			synchronized (lock) {
+				averageLatencyNanos = averageLatencyNanos == 0 ? latencyNanos : LATENCY_ALPHA * latencyNanos + (1 - LATENCY_ALPHA) * averageLatencyNanos;
+				consecutiveFailures = 0;
+			}
+		}
+		void failed() {
+			synchronized (lock) {
+				if (++consecutiveFailures >= FAILURES_BEFORE_COOLDOWN)
+					cooldownUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COOLDOWN_MILLIS);
+			}
+		}
+		@Override public String toString() {
+			return String.format("%s{terminal=%s, queueDepth=%d, averageLatencyMillis=%.1f, healthy=%s}", getClass().getSimpleName(), terminal.getName(), getQueueDepth(), getAverageLatencyMillis(), isHealthy());
+		}
+	}
+
+	private final JnaCardTerminals terminals;
+	private final Matcher matcher;
+	private final String protocol;
+	/** Copy-on-write list of members; guarded by this for writes. */
+	private volatile List<Member> members = Collections.emptyList();
+	/**
+	 * Terminals whose card did not match, with the card-session generation
+	 * at the time, so that the card is not connected again. Guarded by this.
+	 */
+	private final Map<CardTerminal, Long> rejected = new HashMap<CardTerminal, Long>();
+	/** Where the search for the best member starts, to spread ties. */
+	private final AtomicInteger nextStart = new AtomicInteger();
+	private final Thread thread;
+	private volatile boolean closed;
+
+	/**
+	 * @param protocol
+	 *            as for {@link CardTerminal#connect(String)}, e.g. "*".
+	 */
+	public CardPool(JnaCardTerminals terminals, Matcher matcher, String protocol) {
+		this.terminals = terminals;
+		this.matcher = matcher;
+		this.protocol = protocol;
+		this.thread = new Thread(new Runnable() {
+			@Override public void run() {watch();}
+		}, "jnasmartcardio-card-pool");
+		this.thread.setDaemon(true);
+	}
+
+	/** A matcher accepting cards whose ATR equals atr. */
+	public static Matcher atrMatcher(final ATR atr) {
+		return new Matcher() {
+			@Override public boolean matches(CardTerminal terminal, ATR cardAtr) {return atr.equals(cardAtr);}
+		};
+	}
+
+	/**
+	 * Connect to cards that were inserted and drop members whose card is no
+	 * longer present. Cards that fail to connect are skipped until the next
+	 * refresh.
+	 */
+	public synchronized void refresh() throws CardException {
+		if (closed)
+			return;
+		List<CardTerminal> present = terminals.list(State.CARD_PRESENT);
+		List<Member> newMembers = new ArrayList<Member>(present.size());
+		for (Member member: members) {
+			if (present.contains(member.terminal) && !member.removed)
+				newMembers.add(member);
+			else
+				drop(member);
+		}
+		rejected.keySet().retainAll(present);
+		for (CardTerminal terminal: present) {
+			if (indexOf(newMembers, terminal) >= 0)
+				continue;
+			Long rejectedGeneration = rejected.get(terminal);
+			if (rejectedGeneration != null && rejectedGeneration == ((JnaCardTerminal) terminal).getLastCardGeneration())
+				continue;
+			Card card;
+			try {
+				card = terminal.connect(protocol);
+			} catch (CardException e) {
+				continue;  // e.g. removed again already, or in exclusive use
+			}
+			if (matcher.matches(terminal, card.getATR())) {
+				newMembers.add(new Member(terminal, card));
+				rejected.remove(terminal);
+			} else {
+				rejected.put(terminal, ((JnaCardTerminal) terminal).getLastCardGeneration());
+				disconnect(card);
+			}
+		}
+		members = Collections.unmodifiableList(newMembers);
+	}
+	private static int indexOf(List<Member> members, CardTerminal terminal) {
+		for (int i = 0; i < members.size(); i++)
+			if (members.get(i).terminal.equals(terminal))
+				return i;
+		return -1;
+	}
+	private static void disconnect(Card card) {
+		try {
+			card.disconnect(false);
+		} catch (CardException e) {
+			// the card is usually gone
+		}
+	}
+	private void drop(Member member) {
+		member.removed = true;
+		disconnect(member.card);
+	}
+	/** Drop a member whose card was found to be removed. */
+	private synchronized void remove(Member member) {
+		if (!members.contains(member))
+			return;
+		List<Member> newMembers = new ArrayList<Member>(members);
+		newMembers.remove(member);
+		members = Collections.unmodifiableList(newMembers);
+		drop(member);
+	}
+
+	/** The current members. */
+	public List<Member> getMembers() {return members;}
+	public int size() {return members.size();}
+
+	/** The healthy member with the lowest expected wait, or null. */
+	Member choose(List<Member> candidates) {
+		int n = candidates.size();
+		if (n == 0)
+			return null;
+		int start = (nextStart.getAndIncrement() & Integer.MAX_VALUE) % n;
+		Member best = null;
+		double bestWait = 0;
+		boolean bestHealthy = false;
+		for (int i = 0; i < n; i++) {
+			Member member = candidates.get((start + i) % n);
+			boolean healthy = member.isHealthy();
+			double wait = member.expectedWaitNanos();
+			if (best == null || healthy && !bestHealthy || healthy == bestHealthy && wait < bestWait) {
+				best = member;
+				bestWait = wait;
+				bestHealthy = healthy;
+			}
+		}
+		return best;
+	}
+
+	private static boolean isCardRemoved(CardException e) {
+		if (e instanceof CardNotPresentException)
+			return true;
+		if (e instanceof JnaPCSCException) {
+			switch ((int) ((JnaPCSCException) e).code) {
+			case WinscardConstants.SCARD_W_REMOVED_CARD:
+			case WinscardConstants.SCARD_E_NO_SMARTCARD:
+			case WinscardConstants.SCARD_E_INVALID_HANDLE:
+			case WinscardConstants.SCARD_E_READER_UNAVAILABLE:
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Run the operation on the least-loaded member, waiting for the card if
+	 * it is busy. If the card turns out to be removed, the member is dropped
+	 * and the operation is retried on another one.
+	 *
+	 * @throws CardNotPresentException
+	 *             if the pool is empty.
+	 */
+	public <T> T execute(Operation<T> operation) throws CardException {
+		List<Member> tried = new ArrayList<Member>();
+		while (true) {
+			List<Member> candidates = new ArrayList<Member>(members);
+			candidates.removeAll(tried);
+			Member member = choose(candidates);
+			if (member == null)
+				throw new CardNotPresentException(tried.isEmpty() ? "No card in the pool" : "Every card of the pool was removed");
+			member.queueDepth.incrementAndGet();
+			try {
+				synchronized (member.cardLock) {
+					if (member.removed) {
+						tried.add(member);
+						continue;
+					}
+					long start = System.nanoTime();
+					T result = operation.run(member.card);
+					member.succeeded(System.nanoTime() - start);
+					return result;
+				}
+			} catch (CardException e) {
+				if (!isCardRemoved(e)) {
+					member.failed();
+					throw e;
+				}
+				remove(member);
+				tried.add(member);
+			} finally {
+				member.queueDepth.decrementAndGet();
+			}
+		}
+	}
+
+	/** Start a thread that calls {@link #refresh()} whenever the terminals change. */
+	public void start() {
+		thread.start();
+	}
+	private void watch() {
+		while (!closed) {
+			try {
+				refresh();
+				terminals.waitForChange(0);
+			} catch (CardException e) {
+				if (closed)
+					return;
+				// e.g. the daemon went away; retry after a while.
+				try {
+					Thread.sleep(COOLDOWN_MILLIS / 10);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	/** Stop the thread, if started, and disconnect every member. */
+	@Override public void close() {
+		synchronized (this) {
+			closed = true;
+			for (Member member: members)
+				drop(member);
+			members = Collections.emptyList();
+		}
+		if (thread.isAlive()) {
+			thread.interrupt();
+			try {
+				terminals.cancelWait();
+			} catch (JnaPCSCException e) {
+				// The thread also notices the interrupt on its next wakeup.
+			}
+		}
+	}
+	@Override public String toString() {return String.format("%s{members=%s}", getClass().getSimpleName(), members);}
+}
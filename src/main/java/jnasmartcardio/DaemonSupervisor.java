@@ -0,0 +1,150 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.Closeable;
+
+import javax.smartcardio.CardException;
+
+import jnasmartcardio.Smartcardio.EstablishContextException;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+/**
+ * Keeps a JnaCardTerminals alive across the daemon coming and going.
+ *
+ * <p>
+ * On Windows 8+ and recent pcsc-lite, the daemon exits when the last reader
+ * is unplugged; then engineTerminals() throws EstablishContextException and
+ * waitForChange throws {@link WinscardConstants#SCARD_E_SERVICE_STOPPED}.
+ * The supervisor's thread handles both: while the daemon is absent, it polls
+ * for it with exponential backoff and jitter; once a context is established,
+ * it blocks in {@link JnaCardTerminals#waitForChange(long)} and reports
+ * changes. Each transition between the two modes is reported to the
+ * {@link Listener} once.
+ *
+ * <p>
+ * Listener methods are called on the supervisor's thread, must not block
+ * for long, and must not throw.
+ */
+public class DaemonSupervisor implements Closeable {
+	public interface Listener {
+		/**
+		 * A context was established. The terminals are valid until the next
+		 * {@link #daemonUnavailable(JnaPCSCException)}.
+		 */
+		void daemonAvailable(JnaCardTerminals terminals);
+		/** waitForChange returned true: a reader or card changed. */
+		void terminalsChanged(JnaCardTerminals terminals);
+		/** The daemon is not running (or a context could not be established). */
+		void daemonUnavailable(JnaPCSCException cause);
+	}
+
+	private final JnaTerminalFactorySpi factory;
+	private final Listener listener;
+	private final Thread thread;
+	private volatile long initialBackoffMillis = 100;
+	private volatile long maxBackoffMillis = 2000;
+	private volatile boolean closed;
+	private volatile JnaCardTerminals terminals;
+
+	public DaemonSupervisor(JnaTerminalFactorySpi factory, Listener listener) {
+		this.factory = factory;
+		this.listener = listener;
+		this.thread = new Thread(new Runnable() {
+			@Override public void run() {supervise();}
+		}, "jnasmartcardio-daemon-supervisor");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Set the polling backoff used while the daemon is absent. The maximum is
+	 * the worst-case latency between the daemon starting and
+	 * {@link Listener#daemonAvailable(JnaCardTerminals)}.
+	 */
+	public void setBackoff(long initialMillis, long maxMillis) {
+		new Backoff(initialMillis, maxMillis);  // validate
+		this.initialBackoffMillis = initialMillis;
+		this.maxBackoffMillis = maxMillis;
+	}
+	public void start() {
+		thread.start();
+	}
+	/** The current terminals, or null while the daemon is unavailable. */
+	public JnaCardTerminals getTerminals() {
+		return terminals;
+	}
+	/** Stop the supervisor's thread and close the current terminals. */
+	@Override public void close() {
+		closed = true;
+		thread.interrupt();
+		JnaCardTerminals t = terminals;
+		if (t != null) {
+			try {
+				t.cancelWait();
+			} catch (JnaPCSCException e) {
+				// The thread also notices the interrupt on its next wakeup.
+			}
+		}
+	}
+	/** Wait for the supervisor's thread to exit after {@link #close()}. */
+	public void join(long millis) throws InterruptedException {
+		thread.join(millis);
+	}
+
+	private void supervise() {
+		Backoff backoff = new Backoff(initialBackoffMillis, maxBackoffMillis);
+		boolean reportedUnavailable = false;
+		while (!closed) {
+			JnaCardTerminals t;
+			try {
+				t = (JnaCardTerminals) factory.engineTerminals();
+			} catch (EstablishContextException e) {
+				if (!reportedUnavailable) {
+					reportedUnavailable = true;
+					listener.daemonUnavailable(e.getCause());
+				}
+				if (!sleep(backoff.nextDelayMillis()))
+					return;
+				continue;
+			}
+			backoff = new Backoff(initialBackoffMillis, maxBackoffMillis);
+			reportedUnavailable = false;
+			terminals = t;
+			listener.daemonAvailable(t);
+			try {
+				while (!closed) {
+					if (t.waitForChange(0))
+						listener.terminalsChanged(t);
+				}
+			} catch (CardException e) {
+				if (!closed) {
+					reportedUnavailable = true;
+					listener.daemonUnavailable(e instanceof JnaPCSCException ? (JnaPCSCException) e : new JnaPCSCException(e));
+				}
+			} finally {
+				terminals = null;
+				try {
+					t.close();
+				} catch (JnaPCSCException e) {
+					// the context is usually already dead
+				}
+			}
+			// Don't spin if the daemon keeps accepting and dropping contexts.
+			if (!closed && !sleep(backoff.nextDelayMillis()))
+				return;
+		}
+	}
+	/** @return false if interrupted. */
+	private static boolean sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,23 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import jnasmartcardio.Winscard.WinscardLibInfo;
+
+/**
+ * Binding of the PC/SC library using the Foreign Function &amp; Memory API.
+ *
+ * <p>
+ * This is the placeholder for Java versions before 22. The real
+ * implementation is in src/main/java22 and is packaged under
+ * META-INF/versions/22 of the multi-release jar, where it replaces this
+ * class.
+ */
+class FfmWinscard {
+	/** @return null, since the FFM API is not available. */
+	static WinscardLibInfo openLib() {
+		return null;
+	}
+}
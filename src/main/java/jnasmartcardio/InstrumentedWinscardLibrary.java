@@ -0,0 +1,146 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.DwordByReference;
+import jnasmartcardio.Winscard.SCardContext;
+import jnasmartcardio.Winscard.SCardContextByReference;
+import jnasmartcardio.Winscard.SCardHandle;
+import jnasmartcardio.Winscard.SCardHandleByReference;
+import jnasmartcardio.Winscard.SCardReaderState;
+import jnasmartcardio.Winscard.ScardIoRequest;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+import jnasmartcardio.Winscard.WinscardLibrary;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Decorator that records the latency and result of every PC/SC call in a
+ * {@link WinscardMetrics}.
+ *
+ * <p>
+ * Calls on a card handle are attributed to the reader it was connected to.
+ * SCardGetStatusChange is attributed to a reader only when it is about
+ * exactly one reader.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * WinscardMetrics metrics = new WinscardMetrics();
+ * metrics.registerMBeans();
+ * WinscardLibInfo libInfo = InstrumentedWinscardLibrary.wrap(Winscard.sharedLib(), metrics);
+ * TerminalFactory factory = TerminalFactory.getInstance("PC/SC", libInfo, new Smartcardio());
+ * </pre>
+ */
+public class InstrumentedWinscardLibrary implements WinscardLibrary {
+	private final WinscardLibrary delegate;
+	private final WinscardMetrics metrics;
+	private final ConcurrentMap<SCardHandle, String> handleReaders = new ConcurrentHashMap<SCardHandle, String>();
+
+	public InstrumentedWinscardLibrary(WinscardLibrary delegate, WinscardMetrics metrics) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+	}
+
+	/** Return a copy of libInfo whose library is instrumented. */
+	public static WinscardLibInfo wrap(WinscardLibInfo libInfo, WinscardMetrics metrics) {
+		return new WinscardLibInfo(new InstrumentedWinscardLibrary(libInfo.lib, metrics), libInfo.SCARD_PCI_T0, libInfo.SCARD_PCI_T1, libInfo.SCARD_PCI_RAW);
+	}
+
+	public WinscardMetrics getMetrics() {return metrics;}
+
+	private Dword record(int function, String reader, long start, Dword result) {
+		metrics.record(function, reader, System.nanoTime() - start, result.intValue());
+		return result;
+	}
+
+	@Override public Dword SCardEstablishContext(Dword dwScope, Pointer pvReserved1, Pointer pvReserved2, SCardContextByReference phContext) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.ESTABLISH_CONTEXT, null, start, delegate.SCardEstablishContext(dwScope, pvReserved1, pvReserved2, phContext));
+	}
+	@Override public Dword SCardReleaseContext(SCardContext hContext) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.RELEASE_CONTEXT, null, start, delegate.SCardReleaseContext(hContext));
+	}
+	@Override public Dword SCardConnect(SCardContext hContext, String szReader, Dword dwSharMode, Dword dwPreferredProtocols, SCardHandleByReference phCard, DwordByReference pdwActiveProtocol) {
+		long start = System.nanoTime();
+		Dword r = delegate.SCardConnect(hContext, szReader, dwSharMode, dwPreferredProtocols, phCard, pdwActiveProtocol);
+		record(WinscardMetrics.CONNECT, szReader, start, r);
+		if (r.intValue() == WinscardConstants.SCARD_S_SUCCESS)
+			handleReaders.put(phCard.getValue(), szReader);
+		return r;
+	}
+	@Override public Dword SCardReconnect(SCardHandle hCard, Dword dwShareMode, Dword dwPreferredProtocols, Dword dwInitialization, DwordByReference pdwActiveProtocol) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.RECONNECT, handleReaders.get(hCard), start, delegate.SCardReconnect(hCard, dwShareMode, dwPreferredProtocols, dwInitialization, pdwActiveProtocol));
+	}
+	@Override public Dword SCardDisconnect(SCardHandle hCard, Dword dwDisposition) {
+		long start = System.nanoTime();
+		Dword r = delegate.SCardDisconnect(hCard, dwDisposition);
+		record(WinscardMetrics.DISCONNECT, handleReaders.remove(hCard), start, r);
+		return r;
+	}
+	@Override public Dword SCardBeginTransaction(SCardHandle hCard) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.BEGIN_TRANSACTION, handleReaders.get(hCard), start, delegate.SCardBeginTransaction(hCard));
+	}
+	@Override public Dword SCardEndTransaction(SCardHandle hCard, Dword dwDisposition) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.END_TRANSACTION, handleReaders.get(hCard), start, delegate.SCardEndTransaction(hCard, dwDisposition));
+	}
+	@Override public Dword SCardStatus(SCardHandle hCard, ByteBuffer mszReaderName, DwordByReference pcchReaderLen, DwordByReference pdwState, DwordByReference pdwProtocol, ByteBuffer pbAtr, DwordByReference pcbAtrLen) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.STATUS, handleReaders.get(hCard), start, delegate.SCardStatus(hCard, mszReaderName, pcchReaderLen, pdwState, pdwProtocol, pbAtr, pcbAtrLen));
+	}
+	@Override public Dword SCardGetStatusChange(SCardContext hContext, Dword dwTimeout, SCardReaderState[] rgReaderStates, Dword cReaders) {
+		String reader = null;
+		if (cReaders.intValue() == 1 && rgReaderStates[0] != null && !WinscardConstants.PNP_READER_ID.equals(rgReaderStates[0].szReader))
+			reader = rgReaderStates[0].szReader;
+		long start = System.nanoTime();
+		return record(WinscardMetrics.GET_STATUS_CHANGE, reader, start, delegate.SCardGetStatusChange(hContext, dwTimeout, rgReaderStates, cReaders));
+	}
+	@Override public Dword SCardControl(SCardHandle hCard, Dword dwControlCode, ByteBuffer pbSendBuffer, Dword cbSendLength, ByteBuffer pbRecvBuffer, Dword cbRecvLength, DwordByReference lpBytesReturned) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.CONTROL, handleReaders.get(hCard), start, delegate.SCardControl(hCard, dwControlCode, pbSendBuffer, cbSendLength, pbRecvBuffer, cbRecvLength, lpBytesReturned));
+	}
+	@Override public Dword SCardGetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, DwordByReference pcbAttrLen) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.GET_ATTRIB, handleReaders.get(hCard), start, delegate.SCardGetAttrib(hCard, dwAttrId, pbAttr, pcbAttrLen));
+	}
+	@Override public Dword SCardSetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, Dword cbAttrLen) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.SET_ATTRIB, handleReaders.get(hCard), start, delegate.SCardSetAttrib(hCard, dwAttrId, pbAttr, cbAttrLen));
+	}
+	@Override public Dword SCardTransmit(SCardHandle hCard, ScardIoRequest pioSendPci, ByteBuffer pbSendBuffer, Dword cbSendLength, ScardIoRequest pioRecvPci, ByteBuffer pbRecvBuffer, DwordByReference pcbRecvLength) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.TRANSMIT, handleReaders.get(hCard), start, delegate.SCardTransmit(hCard, pioSendPci, pbSendBuffer, cbSendLength, pioRecvPci, pbRecvBuffer, pcbRecvLength));
+	}
+	@Override public Dword SCardListReaders(SCardContext hContext, ByteBuffer mszGroups, ByteBuffer mszReaders, DwordByReference pcchReaders) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.LIST_READERS, null, start, delegate.SCardListReaders(hContext, mszGroups, mszReaders, pcchReaders));
+	}
+	@Override public Dword SCardFreeMemory(SCardContext hContext, Pointer pvMem) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.FREE_MEMORY, null, start, delegate.SCardFreeMemory(hContext, pvMem));
+	}
+	@Override public Dword SCardListReaderGroups(SCardContext hContext, ByteBuffer mszGroups, DwordByReference pcchGroups) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.LIST_READER_GROUPS, null, start, delegate.SCardListReaderGroups(hContext, mszGroups, pcchGroups));
+	}
+	@Override public Dword SCardCancel(SCardContext hContext) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.CANCEL, null, start, delegate.SCardCancel(hContext));
+	}
+	@Override public Dword SCardIsValidContext(SCardContext hContext) {
+		long start = System.nanoTime();
+		return record(WinscardMetrics.IS_VALID_CONTEXT, null, start, delegate.SCardIsValidContext(hContext));
+	}
+}
@@ -0,0 +1,1018 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.DwordByReference;
+import jnasmartcardio.Winscard.SCardContext;
+import jnasmartcardio.Winscard.SCardContextByReference;
+import jnasmartcardio.Winscard.SCardHandle;
+import jnasmartcardio.Winscard.SCardHandleByReference;
+import jnasmartcardio.Winscard.SCardReaderState;
+import jnasmartcardio.Winscard.ScardIoRequest;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+import jnasmartcardio.Winscard.WinscardLibrary;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Talks to pcscd directly over its socket, speaking the message protocol of
+ * pcsc-lite (protocol version 4), instead of going through libpcsclite.
+ *
+ * <p>
+ * libpcsclite serializes all calls of a context behind one mutex, and pcscd
+ * serves each connection on one thread, one request at a time. Here, every
+ * card handle is connected through a connection of its own, with a hidden
+ * context on it (pcscd requires a handle to belong to a context of its
+ * connection), so a slow command to one card does not delay commands to
+ * another. Connections of disconnected cards are kept for reuse, up to
+ * {@link #MAX_IDLE_CARD_CONNECTIONS} per context. Requests on one connection
+ * are pipelined: a thread writes its request as soon as the previous request
+ * is written, and responses (which pcscd sends in request order) are matched
+ * to requests by order; this only saves the IPC gap between commands to the
+ * same card. SCardGetStatusChange uses another connection per context, so
+ * that waiting for events never delays commands.
+ *
+ * <p>
+ * The UNIX domain socket is opened with SocketChannel (Java 16+);
+ * {@link #tcp(InetSocketAddress)} is for stand-in servers and forwarded
+ * sockets. Usage:
+ *
+ * <pre>
+ * WinscardLibInfo libInfo = PcscLiteSocketLibrary.open();
+ * CardTerminals terminals = new JnaTerminalFactorySpi(libInfo).engineTerminals();
+ * </pre>
+ *
+ * <p>
+ * Not supported: SCARD_AUTOALLOCATE, SCardListReaderGroups (only the
+ * default group is returned) and SCardListReaders with a group filter.
+ */
+public class PcscLiteSocketLibrary implements WinscardLibrary {
+	/** Opens a connection to pcscd. */
+	public interface Connector {
+		SocketChannel connect() throws IOException;
+	}
+
+	public static final String DEFAULT_SOCKET_PATH = "/run/pcscd/pcscd.comm";
+	/** Environment variable that overrides the socket path, as in libpcsclite. */
+	public static final String SOCKET_PATH_ENV = "PCSCLITE_CSOCK_NAME";
+
+	static final int PROTOCOL_VERSION_MAJOR = 4;
+	static final int PROTOCOL_VERSION_MINOR = 4;
+
+	static final int SCARD_ESTABLISH_CONTEXT = 0x01;
+	static final int SCARD_RELEASE_CONTEXT = 0x02;
+	static final int SCARD_LIST_READERS = 0x03;
+	static final int SCARD_CONNECT = 0x04;
+	static final int SCARD_RECONNECT = 0x05;
+	static final int SCARD_DISCONNECT = 0x06;
+	static final int SCARD_BEGIN_TRANSACTION = 0x07;
+	static final int SCARD_END_TRANSACTION = 0x08;
+	static final int SCARD_TRANSMIT = 0x09;
+	static final int SCARD_CONTROL = 0x0A;
+	static final int SCARD_STATUS = 0x0B;
+	static final int SCARD_GET_STATUS_CHANGE = 0x0C;
+	static final int SCARD_CANCEL = 0x0D;
+	static final int SCARD_CANCEL_TRANSACTION = 0x0E;
+	static final int SCARD_GET_ATTRIB = 0x0F;
+	static final int SCARD_SET_ATTRIB = 0x10;
+	static final int CMD_VERSION = 0x11;
+	static final int CMD_GET_READERS_STATE = 0x12;
+	static final int CMD_WAIT_READER_STATE_CHANGE = 0x13;
+	static final int CMD_STOP_WAITING_READER_STATE_CHANGE = 0x14;
+
+	static final int MAX_READERNAME = 128;
+	static final int MAX_BUFFER_SIZE = 264;
+	static final int MAX_BUFFER_SIZE_EXTENDED = 4 + 3 + (1 << 16) + 3 + 2;
+	static final int PCSCLITE_MAX_READERS_CONTEXTS = 16;
+	/** sizeof(READER_STATE), pcsc-lite's public reader state. */
+	static final int READER_STATE_SIZE = 184;
+	static final int READER_STATE_EVENT_COUNTER = 128;
+	static final int READER_STATE_STATE = 132;
+	static final int READER_STATE_SHARING = 136;
+	static final int READER_STATE_ATR = 140;
+	static final int READER_STATE_ATR_LENGTH = 176;
+	static final int READER_STATE_PROTOCOL = 180;
+	/** readerState bits (pcsclite.h), not the SCARD_STATE_* bits. */
+	static final int SCARD_UNKNOWN = 0x01;
+	static final int SCARD_ABSENT = 0x02;
+	static final int SCARD_PRESENT = 0x04;
+	static final int SCARD_EXCLUSIVE_CONTEXT = -1;
+	/**
+	 * timeOut sent with CMD_STOP_WAITING_READER_STATE_CHANGE. pcscd echoes it
+	 * in the reply, which tells the reply apart from an event notification
+	 * (whose timeOut is 0) that crossed it on the wire.
+	 */
+	private static final int STOP_MARKER = 0x53544f50;
+	/** Card connections kept per context for the next SCardConnect. */
+	static final int MAX_IDLE_CARD_CONNECTIONS = 4;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Connector connector;
+	private final Map<Long, Context> contexts = new ConcurrentHashMap<Long, Context>();
+	private final Map<Long, Card> cards = new ConcurrentHashMap<Long, Card>();
+
+	public PcscLiteSocketLibrary(Connector connector) {
+		this.connector = connector;
+	}
+
+	/** Open pcscd's default socket (or $PCSCLITE_CSOCK_NAME). */
+	public static WinscardLibInfo open() {
+		String path = System.getenv(SOCKET_PATH_ENV);
+		return Winscard.libInfo(new PcscLiteSocketLibrary(unixSocket(path != null ? path : DEFAULT_SOCKET_PATH)));
+	}
+
+	/** Connect to a UNIX domain socket. Needs Java 16+. */
+	public static Connector unixSocket(final String path) {
+		return new Connector() {
+			@Override public SocketChannel connect() throws IOException {
+				SocketChannel channel;
+				SocketAddress address;
+				try {
+					Object unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+					channel = (SocketChannel) SocketChannel.class.getMethod("open", Class.forName("java.net.ProtocolFamily")).invoke(null, unix);
+					address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+				} catch (InvocationTargetException e) {
+					throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				} catch (Exception e) {
+					throw new IOException("UNIX domain sockets need Java 16+", e);
+				}
+				try {
+					channel.connect(address);
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				}
+				return channel;
+			}
+			@Override public String toString() {return path;}
+		};
+	}
+	/** Connect to a TCP socket, e.g. a stand-in server or a forwarded socket. */
+	public static Connector tcp(final InetSocketAddress address) {
+		return new Connector() {
+			@Override public SocketChannel connect() throws IOException {
+				SocketChannel channel = SocketChannel.open(address);
+				channel.socket().setTcpNoDelay(true);
+				return channel;
+			}
+			@Override public String toString() {return address.toString();}
+		};
+	}
+
+	/** Thrown inside this class when a connection fails; reported as SCARD_E_NO_SERVICE. */
+	private static class ConnectionFailedException extends Exception {
+		private static final long serialVersionUID = 1L;
+		ConnectionFailedException(IOException cause) {super(cause);}
+	}
+
+	/**
+	 * A connection to pcscd. Requests are written whole under writeLock, each
+	 * getting the next ticket; a thread then reads its response when its
+	 * ticket comes up, since responses arrive in request order.
+	 */
+	static class Connection {
+		final SocketChannel channel;
+		private final Object writeLock = new Object();
+		private final Object readLock = new Object();
+		private long nextTicket;
+		private long nextRead;
+		private volatile IOException failure;
+		private Selector selector;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+		static ByteBuffer allocate(int size) {
+			return ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+		}
+		/**
+		 * Negotiate the protocol version. If pcscd speaks another minor
+		 * version of the same major version, retry with pcscd's.
+		 */
+		static Connection open(Connector connector) throws ConnectionFailedException {
+			int minor = PROTOCOL_VERSION_MINOR;
+			for (int attempt = 0; attempt < 2; attempt++) {
+				Connection c;
+				try {
+					c = new Connection(connector.connect());
+				} catch (IOException e) {
+					throw new ConnectionFailedException(e);
+				}
+				ByteBuffer version = allocate(12);
+				version.putInt(PROTOCOL_VERSION_MAJOR).putInt(minor).putInt(0).flip();
+				ByteBuffer reply = c.call(CMD_VERSION, version, 12);
+				if (reply.getInt(8) == WinscardConstants.SCARD_S_SUCCESS)
+					return c;
+				c.close();
+				if (reply.getInt(0) != PROTOCOL_VERSION_MAJOR || reply.getInt(4) == minor)
+					break;
+				minor = reply.getInt(4);
+			}
+			throw new ConnectionFailedException(new IOException("Protocol version mismatch"));
+		}
+		/** Write the header and body and return the ticket of the response. */
+		long send(int command, ByteBuffer body) throws ConnectionFailedException {
+			ByteBuffer header = allocate(8);
+			header.putInt(body == null ? 0 : body.remaining()).putInt(command).flip();
+			synchronized (writeLock) {
+				check();
+				try {
+					writeFully(header);
+					if (body != null)
+						writeFully(body);
+				} catch (IOException e) {
+					throw fail(e);
+				}
+				return nextTicket++;
+			}
+		}
+		private void writeFully(ByteBuffer b) throws IOException {
+			while (b.hasRemaining()) {
+				if (channel.isBlocking()) {
+					channel.write(b);
+				} else {
+					// Only the event connection is non-blocking, and its writes are small.
+					if (channel.write(b) == 0)
+						Thread.yield();
+				}
+			}
+		}
+		/** Wait until it is this ticket's turn to read. */
+		void awaitTurn(long ticket) throws ConnectionFailedException {
+			boolean interrupted = false;
+			synchronized (readLock) {
+				while (ticket != nextRead && failure == null) {
+					try {
+						readLock.wait();
+					} catch (InterruptedException e) {
+						// Must not give up the turn, or the stream desynchronizes.
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			check();
+		}
+		/** Let the next ticket read. */
+		void finishTurn() {
+			synchronized (readLock) {
+				nextRead++;
+				readLock.notifyAll();
+			}
+		}
+		void readFully(ByteBuffer b) throws ConnectionFailedException {
+			try {
+				while (b.hasRemaining()) {
+					int n = channel.isBlocking() ? channel.read(b) : readSome(b, 0);
+					if (n < 0)
+						throw new EOFException("pcscd closed the connection");
+				}
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			b.flip();
+		}
+		/**
+		 * On a non-blocking connection, wait until bytes arrive or until the
+		 * timeout (0 = forever), and read them.
+		 *
+		 * @return the number of bytes read (0 on timeout or wakeup), or -1
+		 *         at end of stream.
+		 */
+		int readSome(ByteBuffer b, long timeoutMillis) throws IOException {
+			int n = channel.read(b);
+			if (n != 0)
+				return n;
+			selector.select(timeoutMillis);
+			selector.selectedKeys().clear();
+			return channel.read(b);
+		}
+		/** Make the connection non-blocking, for readSome. */
+		void registerSelector() throws IOException {
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+		void wakeup() {
+			Selector s = selector;
+			if (s != null)
+				s.wakeup();
+		}
+		/** A request with a fixed-size response. */
+		ByteBuffer call(int command, ByteBuffer body, int responseSize) throws ConnectionFailedException {
+			long ticket = send(command, body);
+			awaitTurn(ticket);
+			try {
+				ByteBuffer response = allocate(responseSize);
+				readFully(response);
+				return response;
+			} finally {
+				finishTurn();
+			}
+		}
+		private void check() throws ConnectionFailedException {
+			IOException e = failure;
+			if (e != null)
+				throw new ConnectionFailedException(e);
+		}
+		private ConnectionFailedException fail(IOException e) {
+			failure = e;
+			synchronized (readLock) {
+				readLock.notifyAll();
+			}
+			close();
+			return new ConnectionFailedException(e);
+		}
+		void close() {
+			try {
+				channel.close();
+				if (selector != null)
+					selector.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+	}
+
+	private static class Context {
+		final long id;
+		final int scope;
+		final Connection commands;
+		/** Connection for SCardGetStatusChange; written under eventLock. */
+		volatile Connection events;
+		final Object eventLock = new Object();
+		volatile boolean cancelled;
+		/** Card connections of disconnected cards; guarded by itself. */
+		final ArrayDeque<CardConnection> idle = new ArrayDeque<CardConnection>();
+		boolean released;
+		Context(long id, int scope, Connection commands) {
+			this.id = id;
+			this.scope = scope;
+			this.commands = commands;
+		}
+	}
+	/** A connection with a hidden context, used by one card handle at a time. */
+	private static class CardConnection {
+		final Connection connection;
+		final long contextId;
+		CardConnection(Connection connection, long contextId) {
+			this.connection = connection;
+			this.contextId = contextId;
+		}
+		/** Release the hidden context and close the connection. */
+		void close() {
+			ByteBuffer b = Connection.allocate(8);
+			b.putInt((int)contextId).putInt(0).flip();
+			try {
+				connection.call(SCARD_RELEASE_CONTEXT, b, 8);
+			} catch (ConnectionFailedException e) {
+				// pcscd releases it when the connection closes anyway
+			}
+			connection.close();
+		}
+	}
+	private static class Card {
+		final Context context;
+		final String reader;
+		final CardConnection cardConnection;
+		final Connection commands;
+		Card(Context context, String reader, CardConnection cardConnection) {
+			this.context = context;
+			this.reader = reader;
+			this.cardConnection = cardConnection;
+			this.commands = cardConnection.connection;
+		}
+	}
+
+	private static Dword result(long code) {
+		return new Dword(code);
+	}
+	private static Dword noService() {
+		return result(WinscardConstants.SCARD_E_NO_SERVICE);
+	}
+	private Context context(SCardContext hContext) {
+		return contexts.get(hContext.longValue());
+	}
+	private Card card(SCardHandle hCard) {
+		return cards.get(hCard.longValue());
+	}
+
+	/** Establish a context on c; the response holds the id at 4 and rv at 8. */
+	private static ByteBuffer establish(Connection c, int scope) throws ConnectionFailedException {
+		ByteBuffer b = Connection.allocate(12);
+		b.putInt(scope).putInt(0).putInt(0).flip();
+		return c.call(SCARD_ESTABLISH_CONTEXT, b, 12);
+	}
+	@Override public Dword SCardEstablishContext(Dword dwScope, Pointer pvReserved1, Pointer pvReserved2, SCardContextByReference phContext) {
+		Connection c;
+		try {
+			c = Connection.open(connector);
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+		try {
+			ByteBuffer r = establish(c, dwScope.intValue());
+			int rv = r.getInt(8);
+			if (rv != WinscardConstants.SCARD_S_SUCCESS) {
+				c.close();
+				return result(rv);
+			}
+			long id = 0xffffffffL & r.getInt(4);
+			contexts.put(id, new Context(id, dwScope.intValue(), c));
+			phContext.setValue(new SCardContext(id));
+			return result(rv);
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+	@Override public Dword SCardReleaseContext(SCardContext hContext) {
+		Context ctx = contexts.remove(hContext.longValue());
+		if (ctx == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		List<CardConnection> orphans = new ArrayList<CardConnection>();
+		synchronized (ctx.idle) {
+			ctx.released = true;
+			orphans.addAll(ctx.idle);
+			ctx.idle.clear();
+		}
+		for (Map.Entry<Long, Card> e: cards.entrySet())
+			if (e.getValue().context == ctx && cards.remove(e.getKey()) != null)
+				orphans.add(e.getValue().cardConnection);
+		for (CardConnection cc: orphans)
+			cc.close();
+		ByteBuffer b = Connection.allocate(8);
+		b.putInt((int)ctx.id).putInt(0).flip();
+		try {
+			return result(ctx.commands.call(SCARD_RELEASE_CONTEXT, b, 8).getInt(4));
+		} catch (ConnectionFailedException e) {
+			return noService();
+		} finally {
+			ctx.commands.close();
+			cancel(ctx);
+			synchronized (ctx.eventLock) {
+				if (ctx.events != null)
+					ctx.events.close();
+			}
+		}
+	}
+	@Override public Dword SCardIsValidContext(SCardContext hContext) {
+		return result(context(hContext) != null ? WinscardConstants.SCARD_S_SUCCESS : WinscardConstants.SCARD_E_INVALID_HANDLE);
+	}
+	@Override public Dword SCardConnect(SCardContext hContext, String szReader, Dword dwSharMode, Dword dwPreferredProtocols, SCardHandleByReference phCard, DwordByReference pdwActiveProtocol) {
+		Context ctx = context(hContext);
+		if (ctx == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		byte[] name = szReader.getBytes(UTF8);
+		if (name.length >= MAX_READERNAME)
+			return result(WinscardConstants.SCARD_E_INVALID_VALUE);
+		CardConnection cc;
+		synchronized (ctx.idle) {
+			cc = ctx.idle.poll();
+		}
+		if (cc == null) {
+			Connection c;
+			try {
+				c = Connection.open(connector);
+			} catch (ConnectionFailedException e) {
+				return noService();
+			}
+			try {
+				ByteBuffer r = establish(c, ctx.scope);
+				int rv = r.getInt(8);
+				if (rv != WinscardConstants.SCARD_S_SUCCESS) {
+					c.close();
+					return result(rv);
+				}
+				cc = new CardConnection(c, 0xffffffffL & r.getInt(4));
+			} catch (ConnectionFailedException e) {
+				return noService();
+			}
+		}
+		ByteBuffer b = Connection.allocate(4 + MAX_READERNAME + 20);
+		b.putInt((int)cc.contextId).put(name);
+		b.position(4 + MAX_READERNAME);
+		b.putInt(dwSharMode.intValue()).putInt(dwPreferredProtocols.intValue()).putInt(0).putInt(0).putInt(0).flip();
+		try {
+			ByteBuffer r = cc.connection.call(SCARD_CONNECT, b, b.capacity());
+			int rv = r.getInt(4 + MAX_READERNAME + 16);
+			if (rv != WinscardConstants.SCARD_S_SUCCESS) {
+				recycle(ctx, cc);
+				return result(rv);
+			}
+			long hCard = r.getInt(4 + MAX_READERNAME + 8);
+			cards.put(hCard, new Card(ctx, szReader, cc));
+			if (contexts.get(ctx.id) != ctx && cards.remove(hCard) != null) {
+				// SCardReleaseContext ran meanwhile and missed this card.
+				cc.close();
+				return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+			}
+			phCard.setValue(new SCardHandle(hCard));
+			pdwActiveProtocol.setValue(new Dword(r.getInt(4 + MAX_READERNAME + 12)));
+			return result(rv);
+		} catch (ConnectionFailedException e) {
+			cc.connection.close();
+			return noService();
+		}
+	}
+	/** Keep a card connection for the next SCardConnect, or close it. */
+	private static void recycle(Context ctx, CardConnection cc) {
+		synchronized (ctx.idle) {
+			if (!ctx.released && ctx.idle.size() < MAX_IDLE_CARD_CONNECTIONS) {
+				ctx.idle.add(cc);
+				return;
+			}
+		}
+		cc.close();
+	}
+	@Override public Dword SCardReconnect(SCardHandle hCard, Dword dwShareMode, Dword dwPreferredProtocols, Dword dwInitialization, DwordByReference pdwActiveProtocol) {
+		Card card = card(hCard);
+		if (card == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		ByteBuffer b = Connection.allocate(24);
+		b.putInt(hCard.intValue()).putInt(dwShareMode.intValue()).putInt(dwPreferredProtocols.intValue()).putInt(dwInitialization.intValue()).putInt(0).putInt(0).flip();
+		try {
+			ByteBuffer r = card.commands.call(SCARD_RECONNECT, b, 24);
+			int rv = r.getInt(20);
+			if (rv == WinscardConstants.SCARD_S_SUCCESS)
+				pdwActiveProtocol.setValue(new Dword(r.getInt(16)));
+			return result(rv);
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+	@Override public Dword SCardDisconnect(SCardHandle hCard, Dword dwDisposition) {
+		Card card = cards.remove(hCard.longValue());
+		if (card == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		Dword rv = simpleCall(card.commands, SCARD_DISCONNECT, hCard.intValue(), dwDisposition.intValue());
+		if (rv.intValue() == WinscardConstants.SCARD_S_SUCCESS)
+			recycle(card.context, card.cardConnection);
+		else
+			card.cardConnection.close();
+		return rv;
+	}
+	@Override public Dword SCardBeginTransaction(SCardHandle hCard) {
+		Card card = card(hCard);
+		if (card == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		ByteBuffer b = Connection.allocate(8);
+		b.putInt(hCard.intValue()).putInt(0).flip();
+		try {
+			return result(card.commands.call(SCARD_BEGIN_TRANSACTION, b, 8).getInt(4));
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+	@Override public Dword SCardEndTransaction(SCardHandle hCard, Dword dwDisposition) {
+		Card card = card(hCard);
+		if (card == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		return simpleCall(card.commands, SCARD_END_TRANSACTION, hCard.intValue(), dwDisposition.intValue());
+	}
+	/** A call whose struct is {handle, argument, rv}. */
+	private Dword simpleCall(Connection c, int command, int handle, int argument) {
+		ByteBuffer b = Connection.allocate(12);
+		b.putInt(handle).putInt(argument).putInt(0).flip();
+		try {
+			return result(c.call(command, b, 12).getInt(8));
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+
+	/** Fetch pcscd's reader states (CMD_GET_READERS_STATE). */
+	private static ByteBuffer readersState(Connection c) throws ConnectionFailedException {
+		return c.call(CMD_GET_READERS_STATE, null, PCSCLITE_MAX_READERS_CONTEXTS * READER_STATE_SIZE);
+	}
+	static String readerName(ByteBuffer states, int i) {
+		int offset = i * READER_STATE_SIZE;
+		int length = 0;
+		while (length < MAX_READERNAME && states.get(offset + length) != 0)
+			length++;
+		if (length == 0)
+			return null;
+		byte[] name = new byte[length];
+		for (int j = 0; j < length; j++)
+			name[j] = states.get(offset + j);
+		return new String(name, UTF8);
+	}
+	private static int findReader(ByteBuffer states, String name) {
+		for (int i = 0; i < PCSCLITE_MAX_READERS_CONTEXTS; i++)
+			if (name.equals(readerName(states, i)))
+				return i;
+		return -1;
+	}
+	/** Copy a result to the caller's buffer, or report the needed length. */
+	private static int copyOut(byte[] data, ByteBuffer buffer, DwordByReference length) {
+		int capacity = length == null ? Integer.MAX_VALUE : length.getValue().intValue();
+		if (length != null)
+			length.setValue(new Dword(data.length));
+		if (buffer == null)
+			return WinscardConstants.SCARD_S_SUCCESS;
+		if (data.length > Math.min(capacity, buffer.remaining()))
+			return WinscardConstants.SCARD_E_INSUFFICIENT_BUFFER;
+		buffer.duplicate().put(data);
+		return WinscardConstants.SCARD_S_SUCCESS;
+	}
+
+	@Override public Dword SCardStatus(SCardHandle hCard, ByteBuffer mszReaderName, DwordByReference pcchReaderLen, DwordByReference pdwState, DwordByReference pdwProtocol, ByteBuffer pbAtr, DwordByReference pcbAtrLen) {
+		Card card = card(hCard);
+		if (card == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		ByteBuffer b = Connection.allocate(8);
+		b.putInt(hCard.intValue()).putInt(0).flip();
+		try {
+			int rv = card.commands.call(SCARD_STATUS, b, 8).getInt(4);
+			if (rv != WinscardConstants.SCARD_S_SUCCESS)
+				return result(rv);
+			ByteBuffer states = readersState(card.commands);
+			int i = findReader(states, card.reader);
+			if (i < 0)
+				return result(WinscardConstants.SCARD_E_READER_UNAVAILABLE);
+			int offset = i * READER_STATE_SIZE;
+			pdwState.setValue(new Dword(states.getInt(offset + READER_STATE_STATE)));
+			pdwProtocol.setValue(new Dword(states.getInt(offset + READER_STATE_PROTOCOL)));
+			byte[] atr = new byte[Math.min(WinscardConstants.MAX_ATR_SIZE, states.getInt(offset + READER_STATE_ATR_LENGTH))];
+			for (int j = 0; j < atr.length; j++)
+				atr[j] = states.get(offset + READER_STATE_ATR + j);
+			byte[] name = (card.reader + "\0\0").getBytes(UTF8);
+			rv = copyOut(name, mszReaderName, pcchReaderLen);
+			int atrRv = copyOut(atr, pbAtr, pcbAtrLen);
+			return result(rv != WinscardConstants.SCARD_S_SUCCESS ? rv : atrRv);
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+
+	@Override public Dword SCardListReaders(SCardContext hContext, ByteBuffer mszGroups, ByteBuffer mszReaders, DwordByReference pcchReaders) {
+		Context ctx = context(hContext);
+		if (ctx == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		try {
+			ByteBuffer states = readersState(ctx.commands);
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < PCSCLITE_MAX_READERS_CONTEXTS; i++) {
+				String name = readerName(states, i);
+				if (name != null)
+					sb.append(name).append('\0');
+			}
+			if (sb.length() == 0)
+				return result(WinscardConstants.SCARD_E_NO_READERS_AVAILABLE);
+			sb.append('\0');
+			return result(copyOut(sb.toString().getBytes(UTF8), mszReaders, pcchReaders));
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+	@Override public Dword SCardListReaderGroups(SCardContext hContext, ByteBuffer mszGroups, DwordByReference pcchGroups) {
+		if (context(hContext) == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		return result(copyOut("SCard$DefaultReaders\0\0".getBytes(ASCII), mszGroups, pcchGroups));
+	}
+	@Override public Dword SCardFreeMemory(SCardContext hContext, Pointer pvMem) {
+		return result(WinscardConstants.SCARD_S_SUCCESS);  // nothing is auto-allocated
+	}
+
+	@Override public Dword SCardTransmit(SCardHandle hCard, ScardIoRequest pioSendPci, ByteBuffer pbSendBuffer, Dword cbSendLength, ScardIoRequest pioRecvPci, ByteBuffer pbRecvBuffer, DwordByReference pcbRecvLength) {
+		Card card = card(hCard);
+		if (card == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		int sendLength = cbSendLength.intValue();
+		if (sendLength < 0 || sendLength > MAX_BUFFER_SIZE_EXTENDED || pbSendBuffer == null || sendLength > pbSendBuffer.remaining())
+			return result(WinscardConstants.SCARD_E_INVALID_PARAMETER);
+		int recvLength = Math.min(pcbRecvLength.getValue().intValue(), MAX_BUFFER_SIZE_EXTENDED);
+		if (pbRecvBuffer != null)
+			recvLength = Math.min(recvLength, pbRecvBuffer.remaining());
+		ByteBuffer b = Connection.allocate(32 + sendLength);
+		b.putInt(hCard.intValue())
+			.putInt(pioSendPci.dwProtocol.intValue())
+			.putInt(pioSendPci.cbPciLength.intValue())
+			.putInt(sendLength)
+			.putInt(pioRecvPci != null ? pioRecvPci.dwProtocol.intValue() : Smartcardio.JnaCardTerminal.SCARD_PROTOCOL_ANY)
+			.putInt(pioRecvPci != null ? pioRecvPci.cbPciLength.intValue() : pioSendPci.cbPciLength.intValue())
+			.putInt(recvLength)
+			.putInt(0);
+		ByteBuffer data = pbSendBuffer.duplicate();
+		data.limit(data.position() + sendLength);
+		b.put(data).flip();
+		Connection c = card.commands;
+		try {
+			long ticket = c.send(SCARD_TRANSMIT, b);
+			c.awaitTurn(ticket);
+			try {
+				ByteBuffer r = Connection.allocate(32);
+				c.readFully(r);
+				int rv = r.getInt(28);
+				int received = r.getInt(24);
+				if (rv == WinscardConstants.SCARD_S_SUCCESS) {
+					ByteBuffer response = Connection.allocate(received);
+					c.readFully(response);
+					if (pbRecvBuffer == null || received > pbRecvBuffer.remaining())
+						return result(WinscardConstants.SCARD_E_INSUFFICIENT_BUFFER);
+					pbRecvBuffer.duplicate().put(response);
+					if (pioRecvPci != null)
+						pioRecvPci.dwProtocol = new Dword(r.getInt(16));
+				}
+				pcbRecvLength.setValue(new Dword(received));
+				return result(rv);
+			} finally {
+				c.finishTurn();
+			}
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+	@Override public Dword SCardControl(SCardHandle hCard, Dword dwControlCode, ByteBuffer pbSendBuffer, Dword cbSendLength, ByteBuffer pbRecvBuffer, Dword cbRecvLength, DwordByReference lpBytesReturned) {
+		Card card = card(hCard);
+		if (card == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		int sendLength = pbSendBuffer == null ? 0 : cbSendLength.intValue();
+		if (sendLength < 0 || sendLength > MAX_BUFFER_SIZE_EXTENDED || (pbSendBuffer != null && sendLength > pbSendBuffer.remaining()))
+			return result(WinscardConstants.SCARD_E_INVALID_PARAMETER);
+		int recvLength = cbRecvLength.intValue();
+		if (pbRecvBuffer != null)
+			recvLength = Math.min(recvLength, pbRecvBuffer.remaining());
+		ByteBuffer b = Connection.allocate(24 + sendLength);
+		b.putInt(hCard.intValue()).putInt(dwControlCode.intValue()).putInt(sendLength).putInt(recvLength).putInt(0).putInt(0);
+		if (sendLength > 0) {
+			ByteBuffer data = pbSendBuffer.duplicate();
+			data.limit(data.position() + sendLength);
+			b.put(data);
+		}
+		b.flip();
+		Connection c = card.commands;
+		try {
+			long ticket = c.send(SCARD_CONTROL, b);
+			c.awaitTurn(ticket);
+			try {
+				ByteBuffer r = Connection.allocate(24);
+				c.readFully(r);
+				int rv = r.getInt(20);
+				int returned = r.getInt(16);
+				if (rv == WinscardConstants.SCARD_S_SUCCESS) {
+					ByteBuffer response = Connection.allocate(returned);
+					c.readFully(response);
+					if (returned > 0) {
+						if (pbRecvBuffer == null || returned > pbRecvBuffer.remaining())
+							return result(WinscardConstants.SCARD_E_INSUFFICIENT_BUFFER);
+						pbRecvBuffer.duplicate().put(response);
+					}
+				}
+				if (lpBytesReturned != null)
+					lpBytesReturned.setValue(new Dword(returned));
+				return result(rv);
+			} finally {
+				c.finishTurn();
+			}
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+
+	@Override public Dword SCardGetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, DwordByReference pcbAttrLen) {
+		Card card = card(hCard);
+		if (card == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		int length = pbAttr == null ? MAX_BUFFER_SIZE : Math.min(MAX_BUFFER_SIZE, Math.min(pbAttr.remaining(), pcbAttrLen.getValue().intValue()));
+		ByteBuffer b = Connection.allocate(8 + MAX_BUFFER_SIZE + 8);
+		b.putInt(hCard.intValue()).putInt(dwAttrId.intValue());
+		b.position(8 + MAX_BUFFER_SIZE);
+		b.putInt(length).putInt(0).flip();
+		try {
+			ByteBuffer r = card.commands.call(SCARD_GET_ATTRIB, b, b.capacity());
+			int rv = r.getInt(8 + MAX_BUFFER_SIZE + 4);
+			if (rv != WinscardConstants.SCARD_S_SUCCESS)
+				return result(rv);
+			int returned = Math.min(MAX_BUFFER_SIZE, r.getInt(8 + MAX_BUFFER_SIZE));
+			byte[] attr = new byte[returned];
+			r.position(8);
+			r.get(attr);
+			return result(copyOut(attr, pbAttr, pcbAttrLen));
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+	@Override public Dword SCardSetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, Dword cbAttrLen) {
+		Card card = card(hCard);
+		if (card == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		int length = cbAttrLen.intValue();
+		if (length < 0 || length > MAX_BUFFER_SIZE || pbAttr == null || length > pbAttr.remaining())
+			return result(WinscardConstants.SCARD_E_INVALID_PARAMETER);
+		ByteBuffer b = Connection.allocate(8 + MAX_BUFFER_SIZE + 8);
+		b.putInt(hCard.intValue()).putInt(dwAttrId.intValue());
+		ByteBuffer data = pbAttr.duplicate();
+		data.limit(data.position() + length);
+		b.put(data);
+		b.position(8 + MAX_BUFFER_SIZE);
+		b.putInt(length).putInt(0).flip();
+		try {
+			return result(card.commands.call(SCARD_SET_ATTRIB, b, b.capacity()).getInt(8 + MAX_BUFFER_SIZE + 4));
+		} catch (ConnectionFailedException e) {
+			return noService();
+		}
+	}
+
+	/**
+	 * Wake a SCardGetStatusChange of this context. Handled on this side: the
+	 * waiting thread stops waiting and returns SCARD_E_CANCELLED.
+	 */
+	@Override public Dword SCardCancel(SCardContext hContext) {
+		Context ctx = context(hContext);
+		if (ctx == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		cancel(ctx);
+		return result(WinscardConstants.SCARD_S_SUCCESS);
+	}
+	private static void cancel(Context ctx) {
+		ctx.cancelled = true;
+		Connection events = ctx.events;
+		if (events != null)
+			events.wakeup();
+	}
+
+	@Override public Dword SCardGetStatusChange(SCardContext hContext, Dword dwTimeout, SCardReaderState[] rgReaderStates, Dword cReaders) {
+		Context ctx = context(hContext);
+		if (ctx == null)
+			return result(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		int count = cReaders.intValue();
+		boolean infinite = dwTimeout.intValue() == WinscardConstants.INFINITE;
+		long timeoutMillis = 0xffffffffL & dwTimeout.longValue();
+		long deadline = System.nanoTime() + timeoutMillis * 1000000;
+		synchronized (ctx.eventLock) {
+			try {
+				if (ctx.events == null)
+					ctx.events = openEventConnection();
+				Connection c = ctx.events;
+				ctx.cancelled = false;
+				while (true) {
+					c.send(CMD_WAIT_READER_STATE_CHANGE, waitStruct(0));
+					ByteBuffer states = Connection.allocate(PCSCLITE_MAX_READERS_CONTEXTS * READER_STATE_SIZE);
+					readEvent(c, states, 0, false);
+					if (updateReaderStates(states, rgReaderStates, count)) {
+						stopWaiting(c);
+						return result(WinscardConstants.SCARD_S_SUCCESS);
+					}
+					// Wait for pcscd's notification, the timeout, or SCardCancel.
+					ByteBuffer notification = Connection.allocate(8);
+					boolean notified = false;
+					while (!notified && !ctx.cancelled) {
+						long remainingNanos = deadline - System.nanoTime();
+						if (!infinite && remainingNanos <= 0)
+							break;
+						notified = readEvent(c, notification, infinite ? 0 : (remainingNanos + 999999) / 1000000, true);
+					}
+					if (notified)
+						continue;  // pcscd has already unregistered us
+					stopWaiting(c);
+					return result(ctx.cancelled ? WinscardConstants.SCARD_E_CANCELLED : WinscardConstants.SCARD_E_TIMEOUT);
+				}
+			} catch (ConnectionFailedException e) {
+				if (ctx.events != null)
+					ctx.events.close();
+				ctx.events = null;
+				return noService();
+			}
+		}
+	}
+	private Connection openEventConnection() throws ConnectionFailedException {
+		Connection c = Connection.open(connector);
+		try {
+			c.registerSelector();
+		} catch (IOException e) {
+			c.close();
+			throw new ConnectionFailedException(e);
+		}
+		return c;
+	}
+	private static ByteBuffer waitStruct(int timeOut) {
+		ByteBuffer b = Connection.allocate(8);
+		b.putInt(timeOut).putInt(0).flip();
+		return b;
+	}
+	/**
+	 * Read into b on the (non-blocking, single-reader) event connection. A
+	 * message that has started arriving is always read to its end.
+	 *
+	 * @param interruptible
+	 *            whether to give up on timeout or wakeup if nothing has
+	 *            arrived yet
+	 * @return true when b is full
+	 */
+	private static boolean readEvent(Connection c, ByteBuffer b, long timeoutMillis, boolean interruptible) throws ConnectionFailedException {
+		try {
+			while (b.hasRemaining()) {
+				int n = c.readSome(b, interruptible ? timeoutMillis : 0);
+				if (n < 0)
+					throw new EOFException("pcscd closed the connection");
+				if (n == 0 && interruptible && b.position() == 0)
+					return false;
+			}
+		} catch (IOException e) {
+			c.close();
+			throw new ConnectionFailedException(e);
+		}
+		b.flip();
+		return true;
+	}
+	/**
+	 * Unregister from events. A notification may cross our request, so read
+	 * until the reply, recognized by its echoed timeOut.
+	 */
+	private static void stopWaiting(Connection c) throws ConnectionFailedException {
+		c.send(CMD_STOP_WAITING_READER_STATE_CHANGE, waitStruct(STOP_MARKER));
+		while (true) {
+			ByteBuffer reply = Connection.allocate(8);
+			readEvent(c, reply, 0, false);
+			if (reply.getInt(0) == STOP_MARKER)
+				return;
+		}
+	}
+
+	/**
+	 * Compute each reader's dwEventState from pcscd's reader states, the way
+	 * libpcsclite does.
+	 *
+	 * @return true if any reader's state differs from its dwCurrentState.
+	 */
+	static boolean updateReaderStates(ByteBuffer states, SCardReaderState[] readers, int count) {
+		int readerCount = 0;
+		for (int i = 0; i < PCSCLITE_MAX_READERS_CONTEXTS; i++)
+			if (readerName(states, i) != null)
+				readerCount++;
+		boolean changed = false;
+		for (int r = 0; r < count; r++) {
+			SCardReaderState reader = readers[r];
+			if (reader == null)
+				continue;
+			int current = reader.dwCurrentState.intValue();
+			if (0 != (current & WinscardConstants.SCARD_STATE_IGNORE))
+				continue;
+			int event;
+			if (WinscardConstants.PNP_READER_ID.equals(reader.szReader)) {
+				event = readerCount << 16;
+				if (current == WinscardConstants.SCARD_STATE_UNAWARE || (current >>> 16) != readerCount)
+					event |= WinscardConstants.SCARD_STATE_CHANGED;
+			} else {
+				int i = findReader(states, reader.szReader);
+				if (i < 0) {
+					event = WinscardConstants.SCARD_STATE_UNKNOWN | WinscardConstants.SCARD_STATE_IGNORE;
+					if (0 == (current & WinscardConstants.SCARD_STATE_UNKNOWN))
+						event |= WinscardConstants.SCARD_STATE_CHANGED;
+				} else {
+					int offset = i * READER_STATE_SIZE;
+					int counter = states.getInt(offset + READER_STATE_EVENT_COUNTER) & 0xffff;
+					int readerState = states.getInt(offset + READER_STATE_STATE);
+					int sharing = states.getInt(offset + READER_STATE_SHARING);
+					int atrLength = Math.min(WinscardConstants.MAX_ATR_SIZE, states.getInt(offset + READER_STATE_ATR_LENGTH));
+					event = counter << 16;
+					if (0 != (readerState & SCARD_UNKNOWN))
+						event |= WinscardConstants.SCARD_STATE_UNAVAILABLE;
+					if (0 != (readerState & SCARD_PRESENT)) {
+						event |= WinscardConstants.SCARD_STATE_PRESENT;
+						if (atrLength == 0)
+							event |= WinscardConstants.SCARD_STATE_MUTE;
+						if (sharing == SCARD_EXCLUSIVE_CONTEXT)
+							event |= WinscardConstants.SCARD_STATE_EXCLUSIVE | WinscardConstants.SCARD_STATE_INUSE;
+						else if (sharing > 0)
+							event |= WinscardConstants.SCARD_STATE_INUSE;
+					} else if (0 != (readerState & SCARD_ABSENT)) {
+						event |= WinscardConstants.SCARD_STATE_EMPTY;
+					}
+					reader.cbAtr = new Dword(atrLength);
+					for (int j = 0; j < atrLength; j++)
+						reader.rgbAtr[j] = states.get(offset + READER_STATE_ATR + j);
+					int mask = ~(WinscardConstants.SCARD_STATE_CHANGED | WinscardConstants.SCARD_STATE_IGNORE | WinscardConstants.SCARD_STATE_ATRMATCH);
+					if (current == WinscardConstants.SCARD_STATE_UNAWARE || (current & mask) != (event & mask))
+						event |= WinscardConstants.SCARD_STATE_CHANGED;
+				}
+			}
+			reader.dwEventState = new Dword(0xffffffffL & event);
+			changed |= 0 != (event & WinscardConstants.SCARD_STATE_CHANGED);
+		}
+		return changed;
+	}
+}
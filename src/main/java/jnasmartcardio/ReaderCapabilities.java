@@ -0,0 +1,242 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.smartcardio.CardException;
+
+import jnasmartcardio.Smartcardio.JnaCard;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+
+import com.sun.jna.Platform;
+
+/**
+ * What a reader can do, as reported by SCardGetAttrib and the PC/SC Part 10
+ * GET_FEATURE_REQUEST and GET_TLV_PROPERTIES control commands.
+ *
+ * <p>
+ * Get one from {@link Smartcardio.JnaCardTerminal#getCapabilities()} or
+ * {@link Smartcardio.JnaCard#getReaderCapabilities()}. The reader is queried
+ * once; the result is cached by reader name in the
+ * {@link Smartcardio.JnaCardTerminals} until the reader is seen to be
+ * removed by {@link Smartcardio.JnaCardTerminals#list()} or
+ * {@link Smartcardio.JnaCardTerminals#waitForChange(long)}, or the context
+ * is re-established.
+ *
+ * <p>
+ * Anything the reader or driver does not support is simply absent: the
+ * getters return null and the feature map has no entry.
+ */
+public final class ReaderCapabilities {
+	// PC/SC Part 10 feature tags, from reader.h
+	public static final int FEATURE_VERIFY_PIN_START = 0x01;
+	public static final int FEATURE_VERIFY_PIN_FINISH = 0x02;
+	public static final int FEATURE_MODIFY_PIN_START = 0x03;
+	public static final int FEATURE_MODIFY_PIN_FINISH = 0x04;
+	public static final int FEATURE_GET_KEY_PRESSED = 0x05;
+	public static final int FEATURE_VERIFY_PIN_DIRECT = 0x06;
+	public static final int FEATURE_MODIFY_PIN_DIRECT = 0x07;
+	public static final int FEATURE_MCT_READER_DIRECT = 0x08;
+	public static final int FEATURE_MCT_UNIVERSAL = 0x09;
+	public static final int FEATURE_IFD_PIN_PROPERTIES = 0x0A;
+	public static final int FEATURE_ABORT = 0x0B;
+	public static final int FEATURE_SET_SPE_MESSAGE = 0x0C;
+	public static final int FEATURE_VERIFY_PIN_DIRECT_APP_ID = 0x0D;
+	public static final int FEATURE_MODIFY_PIN_DIRECT_APP_ID = 0x0E;
+	public static final int FEATURE_WRITE_DISPLAY = 0x0F;
+	public static final int FEATURE_GET_KEY = 0x10;
+	public static final int FEATURE_IFD_DISPLAY_PROPERTIES = 0x11;
+	public static final int FEATURE_GET_TLV_PROPERTIES = 0x12;
+	public static final int FEATURE_CCID_ESC_COMMAND = 0x13;
+	public static final int FEATURE_EXECUTE_PACE = 0x20;
+
+	// Tags of the GET_TLV_PROPERTIES response
+	public static final int PROPERTY_wLcdLayout = 0x01;
+	public static final int PROPERTY_bEntryValidationCondition = 0x02;
+	public static final int PROPERTY_bTimeOut2 = 0x03;
+	public static final int PROPERTY_wLcdMaxCharacters = 0x04;
+	public static final int PROPERTY_wLcdMaxLines = 0x05;
+	public static final int PROPERTY_bMinPINSize = 0x06;
+	public static final int PROPERTY_bMaxPINSize = 0x07;
+	public static final int PROPERTY_sFirmwareID = 0x08;
+	public static final int PROPERTY_bPPDUSupport = 0x09;
+	public static final int PROPERTY_dwMaxAPDUDataSize = 0x0A;
+	public static final int PROPERTY_wIdVendor = 0x0B;
+	public static final int PROPERTY_wIdProduct = 0x0C;
+
+	/** pcsc-lite refuses SCardGetAttrib buffers larger than its MAX_BUFFER_SIZE. */
+	static final int ATTRIB_BUFFER_SIZE = 264;
+
+	/**
+	 * The control code of the given function number, i.e. SCARD_CTL_CODE,
+	 * which differs between Windows and pcsc-lite.
+	 */
+	public static int controlCode(int function) {
+		if (Platform.isWindows())
+			return 0x00310000 | (function << 2);
+		return 0x42000000 + function;
+	}
+	/** CM_IOCTL_GET_FEATURE_REQUEST */
+	public static final int IOCTL_GET_FEATURE_REQUEST = controlCode(3400);
+
+	private final String readerName;
+	private final String vendorName;
+	private final Integer ifdVersion;
+	private final Integer maxIfsd;
+	private final Map<Integer, Integer> features;
+	private final Map<Integer, byte[]> tlvProperties;
+
+	private ReaderCapabilities(String readerName, String vendorName, Integer ifdVersion, Integer maxIfsd, Map<Integer, Integer> features, Map<Integer, byte[]> tlvProperties) {
+		this.readerName = readerName;
+		this.vendorName = vendorName;
+		this.ifdVersion = ifdVersion;
+		this.maxIfsd = maxIfsd;
+		this.features = Collections.unmodifiableMap(features);
+		this.tlvProperties = tlvProperties;
+	}
+
+	/** Query the reader of the card, which may be connected with DIRECT. */
+	static ReaderCapabilities query(String readerName, JnaCard card) throws CardException {
+		String vendorName = null;
+		byte[] b = getAttrib(card, WinscardConstants.SCARD_ATTR_VENDOR_NAME);
+		if (b != null)
+			vendorName = toString(b);
+		Integer ifdVersion = toInteger(getAttrib(card, WinscardConstants.SCARD_ATTR_VENDOR_IFD_VERSION), ByteOrder.nativeOrder());
+		Integer maxIfsd = toInteger(getAttrib(card, WinscardConstants.SCARD_ATTR_MAX_IFSD), ByteOrder.nativeOrder());
+
+		Map<Integer, Integer> features = new LinkedHashMap<Integer, Integer>();
+		b = control(card, IOCTL_GET_FEATURE_REQUEST);
+		if (b != null) {
+			for (Map.Entry<Integer, byte[]> e: parseTlv(b).entrySet()) {
+				Integer code = e.getValue().length == 4 ? toInteger(e.getValue(), ByteOrder.BIG_ENDIAN) : null;
+				if (code != null)
+					features.put(e.getKey(), code);
+			}
+		}
+		Map<Integer, byte[]> tlvProperties = Collections.emptyMap();
+		Integer propertiesCode = features.get(FEATURE_GET_TLV_PROPERTIES);
+		if (propertiesCode != null) {
+			b = control(card, propertiesCode);
+			if (b != null)
+				tlvProperties = parseTlv(b);
+		}
+		return new ReaderCapabilities(readerName, vendorName, ifdVersion, maxIfsd, features, tlvProperties);
+	}
+	/**
+	 * Errors that mean the reader or driver does not know the attribute or
+	 * control code, rather than that the call failed.
+	 */
+	private static boolean isUnsupported(long code) {
+		switch ((int) code) {
+		case WinscardConstants.SCARD_E_UNSUPPORTED_FEATURE:
+		case WinscardConstants.SCARD_E_NOT_TRANSACTED:
+		case WinscardConstants.SCARD_E_INVALID_PARAMETER:
+		case WinscardConstants.SCARD_E_INVALID_VALUE:
+		case 1:  // Windows ERROR_INVALID_FUNCTION
+		case 0x32:  // Windows ERROR_NOT_SUPPORTED
+			return true;
+		default:
+			return false;
+		}
+	}
+	private static byte[] getAttrib(JnaCard card, int attrId) throws CardException {
+		try {
+			return card.getAttrib(attrId);
+		} catch (JnaPCSCException e) {
+			if (isUnsupported(e.code))
+				return null;
+			throw e;
+		}
+	}
+	private static byte[] control(JnaCard card, int controlCode) throws CardException {
+		try {
+			return card.transmitControlCommand(controlCode, new byte[0]);
+		} catch (JnaPCSCException e) {
+			if (isUnsupported(e.code))
+				return null;
+			throw e;
+		}
+	}
+	/** Parse a sequence of one-byte tag, one-byte length, value. */
+	private static Map<Integer, byte[]> parseTlv(byte[] b) {
+		Map<Integer, byte[]> r = new LinkedHashMap<Integer, byte[]>();
+		int i = 0;
+		while (i + 2 <= b.length) {
+			int tag = b[i] & 0xff;
+			int length = b[i + 1] & 0xff;
+			if (i + 2 + length > b.length)
+				break;
+			byte[] value = new byte[length];
+			System.arraycopy(b, i + 2, value, 0, length);
+			r.put(tag, value);
+			i += 2 + length;
+		}
+		return r;
+	}
+	/** The low 32 bits of an unsigned number of 1 to 8 bytes. */
+	private static Integer toInteger(byte[] b, ByteOrder order) {
+		if (b == null || b.length == 0 || b.length > 8)
+			return null;
+		int r = 0;
+		for (int i = 0; i < Math.min(b.length, 4); i++) {
+			int index = order == ByteOrder.BIG_ENDIAN ? b.length - 1 - i : i;
+			r |= (b[index] & 0xff) << (8 * i);
+		}
+		return r;
+	}
+	private static String toString(byte[] b) {
+		int length = b.length;
+		while (length > 0 && b[length - 1] == 0)
+			length--;
+		return new String(b, 0, length, Charset.forName("ascii"));
+	}
+
+	public String getReaderName() {return readerName;}
+	/** SCARD_ATTR_VENDOR_NAME, or null. */
+	public String getVendorName() {return vendorName;}
+	/** SCARD_ATTR_VENDOR_IFD_VERSION (0xMMmmbbbb), or null. */
+	public Integer getIfdVersion() {return ifdVersion;}
+	/** SCARD_ATTR_MAX_IFSD, or null. */
+	public Integer getMaxIfsd() {return maxIfsd;}
+	/** Part 10 feature tags (FEATURE_*) mapped to their control codes. */
+	public Map<Integer, Integer> getFeatures() {return features;}
+	public boolean hasFeature(int featureTag) {return features.containsKey(featureTag);}
+	/**
+	 * The control code to pass to
+	 * {@link javax.smartcardio.Card#transmitControlCommand(int, byte[])} for
+	 * the feature, or null if the reader does not have it.
+	 */
+	public Integer getFeatureControlCode(int featureTag) {return features.get(featureTag);}
+	/** Whether the reader has a PIN pad that can verify a PIN. */
+	public boolean canVerifyPin() {
+		return hasFeature(FEATURE_VERIFY_PIN_DIRECT) || hasFeature(FEATURE_VERIFY_PIN_START);
+	}
+	/** Whether the reader has a PIN pad that can change a PIN. */
+	public boolean canModifyPin() {
+		return hasFeature(FEATURE_MODIFY_PIN_DIRECT) || hasFeature(FEATURE_MODIFY_PIN_START);
+	}
+	/** The raw value of a GET_TLV_PROPERTIES property (PROPERTY_*), or null. */
+	public byte[] getTlvProperty(int tag) {
+		byte[] value = tlvProperties.get(tag);
+		return value == null ? null : value.clone();
+	}
+	/** A numeric GET_TLV_PROPERTIES property (little-endian), or null. */
+	public Integer getTlvPropertyInt(int tag) {
+		return toInteger(tlvProperties.get(tag), ByteOrder.LITTLE_ENDIAN);
+	}
+	/** PROPERTY_sFirmwareID, or null. */
+	public String getFirmwareId() {
+		byte[] value = tlvProperties.get(PROPERTY_sFirmwareID);
+		return value == null ? null : toString(value);
+	}
+	@Override public String toString() {
+		return String.format("%s{readerName=%s, vendorName=%s, ifdVersion=%s, maxIfsd=%s, features=%s}", getClass().getSimpleName(), readerName, vendorName, ifdVersion == null ? null : Integer.toHexString(ifdVersion), maxIfsd, features.keySet());
+	}
+}
@@ -0,0 +1,539 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.TerminalFactory;
+
+import jnasmartcardio.Smartcardio.JnaCardNotPresentException;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+
+/**
+ * Serves a host's {@link CardTerminals} to other hosts, which use them
+ * through {@link RemoteSmartcardio.RemoteTerminalFactorySpi}.
+ *
+ * <p>
+ * The protocol is binary and pipelined. Each frame is
+ * {@code int length, int id, byte op, payload}, where length counts the
+ * bytes after itself. The client may send requests without waiting for
+ * responses; the response to a request has the request's id, and responses
+ * are sent as soon as they are ready, so they may come out of order.
+ * Requests about the same card are executed in the order they arrive;
+ * others run concurrently. {@link #OP_TRANSMIT_BATCH} sends several APDUs in
+ * one frame.
+ *
+ * <p>
+ * Each client gets {@link CardTerminals} of its own from the factory, so
+ * that waitForChange and the CARD_INSERTION/CARD_REMOVAL lists of one client
+ * are not affected by another's; a client's waitForChange and those lists
+ * run one at a time. All work runs on at most {@code maxThreads} threads,
+ * and a client may have at most {@link #MAX_WAITS_PER_SESSION} blocking waits
+ * outstanding; requests beyond that fail with an IllegalStateException.
+ *
+ * <p>
+ * There is no authentication or encryption; bind to a trusted network
+ * only, or tunnel the port.
+ */
+public class ReaderGateway implements Closeable {
+	static final int OP_LIST = 1;
+	static final int OP_WAIT_FOR_CHANGE = 2;
+	static final int OP_IS_CARD_PRESENT = 3;
+	static final int OP_WAIT_FOR_CARD_PRESENT = 4;
+	static final int OP_WAIT_FOR_CARD_ABSENT = 5;
+	static final int OP_CONNECT = 6;
+	static final int OP_DISCONNECT = 7;
+	static final int OP_TRANSMIT = 8;
+	static final int OP_TRANSMIT_BATCH = 9;
+	static final int OP_OPEN_LOGICAL_CHANNEL = 10;
+	static final int OP_CLOSE_CHANNEL = 11;
+	static final int OP_BEGIN_EXCLUSIVE = 12;
+	static final int OP_END_EXCLUSIVE = 13;
+	static final int OP_CONTROL = 14;
+
+	static final int STATUS_OK = 0;
+	/** Payload: long code, String message. */
+	static final int STATUS_CARD_EXCEPTION = 1;
+	static final int STATUS_CARD_NOT_PRESENT = 2;
+	static final int STATUS_ILLEGAL_ARGUMENT = 3;
+	static final int STATUS_ILLEGAL_STATE = 4;
+
+	/** Larger frames are a protocol error; an extended APDU batch fits easily. */
+	static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+	static final int DEFAULT_MAX_THREADS = 64;
+	/** Outstanding waitForChange/waitForCardPresent/waitForCardAbsent per client. */
+	static final int MAX_WAITS_PER_SESSION = 4;
+
+	private final TerminalFactory factory;
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor;
+	private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+	private volatile boolean closed;
+
+	/**
+	 * Listen on the given address. Use port 0 to pick a free port (see
+	 * {@link #getLocalAddress()}).
+	 *
+	 * @param factory
+	 *            gives each client its own {@link CardTerminals}.
+	 */
+	public ReaderGateway(TerminalFactory factory, SocketAddress bindAddress) throws IOException {
+		this(factory, bindAddress, DEFAULT_MAX_THREADS);
+	}
+	/**
+	 * @param maxThreads
+	 *            the number of threads serving all clients, including one
+	 *            per connected client and one accepting connections.
+	 */
+	public ReaderGateway(TerminalFactory factory, SocketAddress bindAddress, int maxThreads) throws IOException {
+		this.factory = factory;
+		this.serverSocket = new ServerSocket();
+		serverSocket.bind(bindAddress);
+		this.executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jnasmartcardio-gateway-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+	}
+	/** Accept connections in a background thread. */
+	public ReaderGateway start() {
+		executor.execute(new Runnable() {
+			@Override public void run() {
+				while (!closed) {
+					final Session session;
+					Socket socket = null;
+					try {
+						socket = serverSocket.accept();
+						socket.setTcpNoDelay(true);
+						session = new Session(socket);
+					} catch (IOException e) {
+						if (closed)
+							return;
+						continue;
+					} catch (RuntimeException e) {
+						// e.g. no context could be established for the client
+						try {
+							socket.close();
+						} catch (IOException ignored) {
+							// nothing more to do
+						}
+						continue;
+					}
+					sessions.add(session);
+					try {
+						executor.execute(new Runnable() {@Override public void run() {session.run();}});
+					} catch (RejectedExecutionException e) {
+						session.close();
+					}
+				}
+			}
+		});
+		return this;
+	}
+	/** Stop accepting, and close all connections (disconnecting their cards). */
+	@Override public void close() throws IOException {
+		closed = true;
+		serverSocket.close();
+		for (Session session: sessions)
+			session.close();
+		executor.shutdown();
+	}
+
+	static byte[] readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 5 || length > MAX_FRAME_LENGTH)
+			throw new IOException("Bad frame length " + length);
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		return frame;
+	}
+	static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new IOException("Bad length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Runs tasks one at a time, in submission order, on the shared executor.
+	 * When the executor has no thread to spare, the caller runs them, which
+	 * stops reading the client's requests meanwhile.
+	 */
+	private class SerialExecutor {
+		private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+		private boolean running;
+		void execute(Runnable task) {
+			synchronized (this) {
+				tasks.add(task);
+				if (running)
+					return;
+				running = true;
+			}
+			try {
+				executor.execute(new Runnable() {@Override public void run() {drain();}});
+			} catch (RejectedExecutionException e) {
+				drain();
+			}
+		}
+		private void drain() {
+			while (true) {
+				Runnable task;
+				synchronized (this) {
+					task = tasks.poll();
+					if (task == null) {
+						running = false;
+						return;
+					}
+				}
+				task.run();
+			}
+		}
+	}
+
+	private static class RemoteCard {
+		final Card card;
+		final Map<Integer, CardChannel> channels = new HashMap<Integer, CardChannel>();
+		RemoteCard(Card card) {
+			this.card = card;
+			channels.put(0, card.getBasicChannel());
+		}
+		CardChannel channel(int number) {
+			CardChannel channel = channels.get(number);
+			if (channel == null)
+				throw new IllegalStateException("Channel " + number + " is not open");
+			return channel;
+		}
+	}
+
+	/** One client connection. */
+	private class Session {
+		private final Socket socket;
+		private final CardTerminals terminals;
+		/** Runs waitForChange and list(CARD_INSERTION/CARD_REMOVAL). */
+		private final SerialExecutor changeExecutor = new SerialExecutor();
+		private final AtomicInteger waits = new AtomicInteger();
+		private final DataOutputStream out;
+		/** Responses ready to be written; the last writer flushes. */
+		private final AtomicInteger pendingWrites = new AtomicInteger();
+		private final Map<Integer, RemoteCard> cards = new HashMap<Integer, RemoteCard>();
+		private final Map<Integer, SerialExecutor> cardExecutors = new HashMap<Integer, SerialExecutor>();
+		private int nextCardId = 1;
+
+		Session(Socket socket) throws IOException {
+			this.socket = socket;
+			this.terminals = factory.terminals();
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+		}
+
+		void run() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+				while (true) {
+					byte[] frame = readFrame(in);
+					DataInputStream request = new DataInputStream(new ByteArrayInputStream(frame));
+					final int id = request.readInt();
+					final int op = request.readByte();
+					dispatch(id, op, request);
+				}
+			} catch (IOException e) {
+				// closed by the client, or a protocol error
+			} finally {
+				close();
+			}
+		}
+
+		private void dispatch(final int id, final int op, final DataInputStream request) throws IOException {
+			final boolean wait = op == OP_WAIT_FOR_CHANGE || op == OP_WAIT_FOR_CARD_PRESENT || op == OP_WAIT_FOR_CARD_ABSENT;
+			if (wait && waits.incrementAndGet() > MAX_WAITS_PER_SESSION) {
+				waits.decrementAndGet();
+				fail(id, new IllegalStateException("Too many outstanding waits"));
+				return;
+			}
+			Runnable task = new Runnable() {
+				@Override public void run() {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream response = new DataOutputStream(bytes);
+					int status;
+					try {
+						handle(op, request, response);
+						status = STATUS_OK;
+					} catch (Exception e) {
+						bytes.reset();
+						status = writeError(e, response);
+					} finally {
+						if (wait)
+							waits.decrementAndGet();
+					}
+					respond(id, status, bytes.toByteArray());
+				}
+			};
+			boolean changeOp = op == OP_WAIT_FOR_CHANGE;
+			if (op == OP_LIST) {
+				request.mark(1);
+				int state = request.readByte();
+				request.reset();
+				changeOp = state == CardTerminals.State.CARD_INSERTION.ordinal() || state == CardTerminals.State.CARD_REMOVAL.ordinal();
+			}
+			if (changeOp) {
+				changeExecutor.execute(task);
+			} else if (op == OP_LIST || op == OP_IS_CARD_PRESENT || op == OP_WAIT_FOR_CARD_PRESENT || op == OP_WAIT_FOR_CARD_ABSENT || op == OP_CONNECT) {
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					if (wait)
+						waits.decrementAndGet();
+					fail(id, new IllegalStateException("Gateway busy"));
+				}
+			} else {
+				// The card id comes first; keep this card's requests in order.
+				request.mark(4);
+				int cardId = request.readInt();
+				request.reset();
+				SerialExecutor serial;
+				synchronized (this) {
+					serial = cardExecutors.get(cardId);
+					if (serial == null)
+						cardExecutors.put(cardId, serial = new SerialExecutor());
+				}
+				serial.execute(task);
+			}
+		}
+
+		private void fail(int id, Exception e) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			int status = writeError(e, new DataOutputStream(bytes));
+			respond(id, status, bytes.toByteArray());
+		}
+		private int writeError(Exception e, DataOutputStream response) {
+			int status;
+			long code = 0;
+			if (e instanceof CardNotPresentException) {
+				status = STATUS_CARD_NOT_PRESENT;
+				if (e instanceof JnaCardNotPresentException)
+					code = ((JnaCardNotPresentException) e).code;
+			} else if (e instanceof CardException) {
+				status = STATUS_CARD_EXCEPTION;
+				if (e instanceof JnaPCSCException)
+					code = ((JnaPCSCException) e).code;
+			} else if (e instanceof IllegalArgumentException) {
+				status = STATUS_ILLEGAL_ARGUMENT;
+			} else {
+				status = STATUS_ILLEGAL_STATE;
+			}
+			try {
+				response.writeLong(code);
+				response.writeUTF(String.valueOf(e.getMessage()));
+			} catch (IOException impossible) {
+				throw new RuntimeException(impossible);
+			}
+			return status;
+		}
+
+		private void respond(int id, int status, byte[] payload) {
+			pendingWrites.incrementAndGet();
+			try {
+				synchronized (out) {
+					out.writeInt(4 + 1 + payload.length);
+					out.writeInt(id);
+					out.writeByte(status);
+					out.write(payload);
+					// Coalesce responses that are ready at the same time.
+					if (pendingWrites.decrementAndGet() == 0)
+						out.flush();
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private synchronized RemoteCard card(int cardId) {
+			RemoteCard card = cards.get(cardId);
+			if (card == null)
+				throw new IllegalStateException("Card " + cardId + " is not connected");
+			return card;
+		}
+
+		private void handle(int op, DataInputStream request, DataOutputStream response) throws IOException, CardException {
+			switch (op) {
+			case OP_LIST: {
+				CardTerminals.State state = CardTerminals.State.values()[request.readByte()];
+				List<CardTerminal> list = terminals.list(state);
+				response.writeInt(list.size());
+				for (CardTerminal terminal: list)
+					response.writeUTF(terminal.getName());
+				break;
+			}
+			case OP_WAIT_FOR_CHANGE:
+				response.writeBoolean(terminals.waitForChange(request.readLong()));
+				break;
+			case OP_IS_CARD_PRESENT:
+				response.writeBoolean(terminal(request.readUTF()).isCardPresent());
+				break;
+			case OP_WAIT_FOR_CARD_PRESENT: {
+				CardTerminal terminal = terminal(request.readUTF());
+				response.writeBoolean(terminal.waitForCardPresent(request.readLong()));
+				break;
+			}
+			case OP_WAIT_FOR_CARD_ABSENT: {
+				CardTerminal terminal = terminal(request.readUTF());
+				response.writeBoolean(terminal.waitForCardAbsent(request.readLong()));
+				break;
+			}
+			case OP_CONNECT: {
+				CardTerminal terminal = terminal(request.readUTF());
+				Card card = terminal.connect(request.readUTF());
+				int cardId;
+				synchronized (this) {
+					cardId = nextCardId++;
+					cards.put(cardId, new RemoteCard(card));
+				}
+				response.writeInt(cardId);
+				writeBytes(response, card.getATR().getBytes());
+				response.writeUTF(card.getProtocol());
+				break;
+			}
+			case OP_DISCONNECT: {
+				int cardId = request.readInt();
+				RemoteCard card = card(cardId);
+				synchronized (this) {
+					cards.remove(cardId);
+					cardExecutors.remove(cardId);
+				}
+				card.card.disconnect(request.readBoolean());
+				break;
+			}
+			case OP_TRANSMIT: {
+				RemoteCard card = card(request.readInt());
+				CardChannel channel = card.channel(request.readByte());
+				writeBytes(response, channel.transmit(new CommandAPDU(readBytes(request))).getBytes());
+				break;
+			}
+			case OP_TRANSMIT_BATCH: {
+				RemoteCard card = card(request.readInt());
+				CardChannel channel = card.channel(request.readByte());
+				int count = request.readInt();
+				List<byte[]> commands = new ArrayList<byte[]>(count);
+				for (int i = 0; i < count; i++)
+					commands.add(readBytes(request));
+				response.writeInt(count);
+				for (byte[] command: commands)
+					writeBytes(response, channel.transmit(new CommandAPDU(command)).getBytes());
+				break;
+			}
+			case OP_OPEN_LOGICAL_CHANNEL: {
+				RemoteCard card = card(request.readInt());
+				CardChannel channel = card.card.openLogicalChannel();
+				synchronized (this) {
+					card.channels.put(channel.getChannelNumber(), channel);
+				}
+				response.writeByte(channel.getChannelNumber());
+				break;
+			}
+			case OP_CLOSE_CHANNEL: {
+				RemoteCard card = card(request.readInt());
+				int number = request.readByte();
+				card.channel(number).close();
+				synchronized (this) {
+					card.channels.remove(number);
+				}
+				break;
+			}
+			case OP_BEGIN_EXCLUSIVE:
+				card(request.readInt()).card.beginExclusive();
+				break;
+			case OP_END_EXCLUSIVE:
+				card(request.readInt()).card.endExclusive();
+				break;
+			case OP_CONTROL: {
+				RemoteCard card = card(request.readInt());
+				int code = request.readInt();
+				writeBytes(response, card.card.transmitControlCommand(code, readBytes(request)));
+				break;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown op " + op);
+			}
+		}
+		private CardTerminal terminal(String name) {
+			CardTerminal terminal = terminals.getTerminal(name);
+			if (terminal == null)
+				throw new IllegalArgumentException("No such reader: " + name);
+			return terminal;
+		}
+
+		void close() {
+			List<RemoteCard> toDisconnect;
+			synchronized (this) {
+				toDisconnect = new ArrayList<RemoteCard>(cards.values());
+				cards.clear();
+			}
+			sessions.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+			for (RemoteCard card: toDisconnect) {
+				try {
+					card.card.disconnect(false);
+				} catch (CardException e) {
+					// the card is gone anyway
+				}
+			}
+			if (terminals instanceof JnaCardTerminals) {
+				try {
+					// Also ends the client's waits still in progress.
+					((JnaCardTerminals) terminals).close();
+				} catch (CardException e) {
+					// nothing more to do
+				}
+			}
+		}
+	}
+}
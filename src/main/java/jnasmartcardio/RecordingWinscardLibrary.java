@@ -0,0 +1,308 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.DwordByReference;
+import jnasmartcardio.Winscard.SCardContext;
+import jnasmartcardio.Winscard.SCardContextByReference;
+import jnasmartcardio.Winscard.SCardHandle;
+import jnasmartcardio.Winscard.SCardHandleByReference;
+import jnasmartcardio.Winscard.SCardReaderState;
+import jnasmartcardio.Winscard.ScardIoRequest;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+import jnasmartcardio.Winscard.WinscardLibrary;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Decorator that writes every PC/SC call, its arguments, its results and
+ * its duration to a file, so that the session can be played back later by
+ * {@link ReplayWinscardLibrary} without a reader or a daemon.
+ *
+ * <p>
+ * The file starts with the magic {@value #MAGIC} and a version int. Each call
+ * is then written (with {@link DataOutputStream}) as: the function name,
+ * the start time in nanoseconds since the recording started, the duration
+ * in nanoseconds, the function-specific arguments and results, and finally
+ * the result code. Calls are written in the order in which they return.
+ */
+public class RecordingWinscardLibrary implements WinscardLibrary, Closeable {
+	public static final String MAGIC = "PCSCREC1";
+	public static final int VERSION = 1;
+	private final WinscardLibrary delegate;
+	private final DataOutputStream out;
+	private final long startNanos = System.nanoTime();
+	private IOException error;
+
+	public RecordingWinscardLibrary(WinscardLibrary delegate, OutputStream out) throws IOException {
+		this.delegate = delegate;
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.out.writeBytes(MAGIC);
+		this.out.writeInt(VERSION);
+	}
+
+	/** Return a copy of libInfo whose library records to the given file. */
+	public static WinscardLibInfo wrap(WinscardLibInfo libInfo, File file) throws IOException {
+		return new WinscardLibInfo(new RecordingWinscardLibrary(libInfo.lib, new FileOutputStream(file)), libInfo.SCARD_PCI_T0, libInfo.SCARD_PCI_T1, libInfo.SCARD_PCI_RAW);
+	}
+
+	/**
+	 * Flush the recording. Recording never makes a PC/SC call fail; if
+	 * writing failed, the error is thrown here instead.
+	 */
+	public synchronized void flush() throws IOException {
+		if (error != null)
+			throw error;
+		out.flush();
+	}
+	@Override public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Callback that writes the function-specific part of a call. */
+	private interface Body {
+		void write(DataOutputStream out) throws IOException;
+	}
+	private synchronized Dword record(String function, long start, Body body, Dword result) {
+		long end = System.nanoTime();
+		if (error != null)
+			return result;
+		try {
+			out.writeUTF(function);
+			out.writeLong(start - startNanos);
+			out.writeLong(end - start);
+			body.write(out);
+			out.writeInt(result.intValue());
+		} catch (IOException e) {
+			error = e;
+		}
+		return result;
+	}
+
+	static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+	/** The length bytes at the buffer's position, or null if there is no buffer. */
+	static byte[] peek(ByteBuffer buffer, int length) {
+		if (buffer == null)
+			return null;
+		byte[] r = new byte[Math.max(0, Math.min(length, buffer.remaining()))];
+		buffer.duplicate().get(r);
+		return r;
+	}
+	static int capacity(ByteBuffer buffer) {
+		return buffer == null ? -1 : buffer.remaining();
+	}
+
+	@Override public Dword SCardEstablishContext(final Dword dwScope, Pointer pvReserved1, Pointer pvReserved2, final SCardContextByReference phContext) {
+		long start = System.nanoTime();
+		final Dword r = delegate.SCardEstablishContext(dwScope, pvReserved1, pvReserved2, phContext);
+		return record("SCardEstablishContext", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(dwScope.longValue());
+			out.writeLong(phContext.getValue().longValue());
+		}}, r);
+	}
+	@Override public Dword SCardReleaseContext(final SCardContext hContext) {
+		long start = System.nanoTime();
+		return record("SCardReleaseContext", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hContext.longValue());
+		}}, delegate.SCardReleaseContext(hContext));
+	}
+	@Override public Dword SCardConnect(final SCardContext hContext, final String szReader, final Dword dwSharMode, final Dword dwPreferredProtocols, final SCardHandleByReference phCard, final DwordByReference pdwActiveProtocol) {
+		long start = System.nanoTime();
+		return record("SCardConnect", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hContext.longValue());
+			writeString(out, szReader);
+			out.writeLong(dwSharMode.longValue());
+			out.writeLong(dwPreferredProtocols.longValue());
+			out.writeLong(phCard.getValue().longValue());
+			out.writeLong(pdwActiveProtocol.getValue().longValue());
+		}}, delegate.SCardConnect(hContext, szReader, dwSharMode, dwPreferredProtocols, phCard, pdwActiveProtocol));
+	}
+	@Override public Dword SCardReconnect(final SCardHandle hCard, final Dword dwShareMode, final Dword dwPreferredProtocols, final Dword dwInitialization, final DwordByReference pdwActiveProtocol) {
+		long start = System.nanoTime();
+		return record("SCardReconnect", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hCard.longValue());
+			out.writeLong(dwShareMode.longValue());
+			out.writeLong(dwPreferredProtocols.longValue());
+			out.writeLong(dwInitialization.longValue());
+			out.writeLong(pdwActiveProtocol.getValue().longValue());
+		}}, delegate.SCardReconnect(hCard, dwShareMode, dwPreferredProtocols, dwInitialization, pdwActiveProtocol));
+	}
+	@Override public Dword SCardDisconnect(final SCardHandle hCard, final Dword dwDisposition) {
+		long start = System.nanoTime();
+		return record("SCardDisconnect", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hCard.longValue());
+			out.writeLong(dwDisposition.longValue());
+		}}, delegate.SCardDisconnect(hCard, dwDisposition));
+	}
+	@Override public Dword SCardBeginTransaction(final SCardHandle hCard) {
+		long start = System.nanoTime();
+		return record("SCardBeginTransaction", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hCard.longValue());
+		}}, delegate.SCardBeginTransaction(hCard));
+	}
+	@Override public Dword SCardEndTransaction(final SCardHandle hCard, final Dword dwDisposition) {
+		long start = System.nanoTime();
+		return record("SCardEndTransaction", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hCard.longValue());
+			out.writeLong(dwDisposition.longValue());
+		}}, delegate.SCardEndTransaction(hCard, dwDisposition));
+	}
+	@Override public Dword SCardStatus(final SCardHandle hCard, final ByteBuffer mszReaderName, final DwordByReference pcchReaderLen, final DwordByReference pdwState, final DwordByReference pdwProtocol, final ByteBuffer pbAtr, final DwordByReference pcbAtrLen) {
+		long start = System.nanoTime();
+		final int readerNameCapacity = capacity(mszReaderName), atrCapacity = capacity(pbAtr);
+		final Dword r = delegate.SCardStatus(hCard, mszReaderName, pcchReaderLen, pdwState, pdwProtocol, pbAtr, pcbAtrLen);
+		return record("SCardStatus", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hCard.longValue());
+			out.writeInt(readerNameCapacity);
+			out.writeInt(atrCapacity);
+			out.writeLong(pcchReaderLen.getValue().longValue());
+			out.writeLong(pdwState.getValue().longValue());
+			out.writeLong(pdwProtocol.getValue().longValue());
+			out.writeLong(pcbAtrLen.getValue().longValue());
+			boolean ok = r.intValue() == WinscardConstants.SCARD_S_SUCCESS;
+			writeBytes(out, ok ? peek(mszReaderName, pcchReaderLen.getValue().intValue()) : null);
+			writeBytes(out, ok ? peek(pbAtr, pcbAtrLen.getValue().intValue()) : null);
+		}}, r);
+	}
+	@Override public Dword SCardGetStatusChange(final SCardContext hContext, final Dword dwTimeout, final SCardReaderState[] rgReaderStates, final Dword cReaders) {
+		final int count = cReaders.intValue();
+		final String[] names = new String[count];
+		final long[] currentStates = new long[count];
+		for (int i = 0; i < count; i++) {
+			if (rgReaderStates[i] == null)
+				continue;
+			names[i] = rgReaderStates[i].szReader;
+			currentStates[i] = rgReaderStates[i].dwCurrentState.longValue();
+		}
+		long start = System.nanoTime();
+		return record("SCardGetStatusChange", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hContext.longValue());
+			out.writeLong(dwTimeout.longValue());
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				SCardReaderState state = rgReaderStates[i];
+				writeString(out, names[i]);
+				out.writeLong(currentStates[i]);
+				out.writeLong(state == null ? 0 : state.dwEventState.longValue());
+				out.writeLong(state == null ? 0 : state.cbAtr.longValue());
+				writeBytes(out, state == null ? null : state.rgbAtr);
+			}
+		}}, delegate.SCardGetStatusChange(hContext, dwTimeout, rgReaderStates, cReaders));
+	}
+	@Override public Dword SCardControl(final SCardHandle hCard, final Dword dwControlCode, final ByteBuffer pbSendBuffer, final Dword cbSendLength, final ByteBuffer pbRecvBuffer, final Dword cbRecvLength, final DwordByReference lpBytesReturned) {
+		final byte[] send = peek(pbSendBuffer, cbSendLength.intValue());
+		long start = System.nanoTime();
+		final Dword r = delegate.SCardControl(hCard, dwControlCode, pbSendBuffer, cbSendLength, pbRecvBuffer, cbRecvLength, lpBytesReturned);
+		return record("SCardControl", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hCard.longValue());
+			out.writeLong(dwControlCode.longValue());
+			writeBytes(out, send);
+			out.writeLong(cbRecvLength.longValue());
+			out.writeLong(lpBytesReturned.getValue().longValue());
+			writeBytes(out, r.intValue() == WinscardConstants.SCARD_S_SUCCESS ? peek(pbRecvBuffer, lpBytesReturned.getValue().intValue()) : null);
+		}}, r);
+	}
+	@Override public Dword SCardGetAttrib(final SCardHandle hCard, final Dword dwAttrId, final ByteBuffer pbAttr, final DwordByReference pcbAttrLen) {
+		final int attrCapacity = capacity(pbAttr);
+		long start = System.nanoTime();
+		final Dword r = delegate.SCardGetAttrib(hCard, dwAttrId, pbAttr, pcbAttrLen);
+		return record("SCardGetAttrib", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hCard.longValue());
+			out.writeLong(dwAttrId.longValue());
+			out.writeInt(attrCapacity);
+			out.writeLong(pcbAttrLen.getValue().longValue());
+			writeBytes(out, r.intValue() == WinscardConstants.SCARD_S_SUCCESS ? peek(pbAttr, pcbAttrLen.getValue().intValue()) : null);
+		}}, r);
+	}
+	@Override public Dword SCardSetAttrib(final SCardHandle hCard, final Dword dwAttrId, final ByteBuffer pbAttr, final Dword cbAttrLen) {
+		final byte[] attr = peek(pbAttr, cbAttrLen.intValue());
+		long start = System.nanoTime();
+		return record("SCardSetAttrib", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hCard.longValue());
+			out.writeLong(dwAttrId.longValue());
+			writeBytes(out, attr);
+		}}, delegate.SCardSetAttrib(hCard, dwAttrId, pbAttr, cbAttrLen));
+	}
+	@Override public Dword SCardTransmit(final SCardHandle hCard, final ScardIoRequest pioSendPci, final ByteBuffer pbSendBuffer, final Dword cbSendLength, ScardIoRequest pioRecvPci, final ByteBuffer pbRecvBuffer, final DwordByReference pcbRecvLength) {
+		final byte[] send = peek(pbSendBuffer, cbSendLength.intValue());
+		final int recvCapacity = pcbRecvLength.getValue().intValue();
+		long start = System.nanoTime();
+		final Dword r = delegate.SCardTransmit(hCard, pioSendPci, pbSendBuffer, cbSendLength, pioRecvPci, pbRecvBuffer, pcbRecvLength);
+		return record("SCardTransmit", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hCard.longValue());
+			out.writeLong(pioSendPci.dwProtocol.longValue());
+			writeBytes(out, send);
+			out.writeInt(recvCapacity);
+			out.writeLong(pcbRecvLength.getValue().longValue());
+			writeBytes(out, r.intValue() == WinscardConstants.SCARD_S_SUCCESS ? peek(pbRecvBuffer, pcbRecvLength.getValue().intValue()) : null);
+		}}, r);
+	}
+	@Override public Dword SCardListReaders(final SCardContext hContext, ByteBuffer mszGroups, final ByteBuffer mszReaders, final DwordByReference pcchReaders) {
+		final int readersCapacity = capacity(mszReaders);
+		long start = System.nanoTime();
+		final Dword r = delegate.SCardListReaders(hContext, mszGroups, mszReaders, pcchReaders);
+		return record("SCardListReaders", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hContext.longValue());
+			out.writeInt(readersCapacity);
+			out.writeLong(pcchReaders.getValue().longValue());
+			writeBytes(out, r.intValue() == WinscardConstants.SCARD_S_SUCCESS ? peek(mszReaders, pcchReaders.getValue().intValue()) : null);
+		}}, r);
+	}
+	@Override public Dword SCardFreeMemory(final SCardContext hContext, Pointer pvMem) {
+		long start = System.nanoTime();
+		return record("SCardFreeMemory", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hContext.longValue());
+		}}, delegate.SCardFreeMemory(hContext, pvMem));
+	}
+	@Override public Dword SCardListReaderGroups(final SCardContext hContext, final ByteBuffer mszGroups, final DwordByReference pcchGroups) {
+		final int groupsCapacity = capacity(mszGroups);
+		long start = System.nanoTime();
+		final Dword r = delegate.SCardListReaderGroups(hContext, mszGroups, pcchGroups);
+		return record("SCardListReaderGroups", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hContext.longValue());
+			out.writeInt(groupsCapacity);
+			out.writeLong(pcchGroups.getValue().longValue());
+			writeBytes(out, r.intValue() == WinscardConstants.SCARD_S_SUCCESS ? peek(mszGroups, pcchGroups.getValue().intValue()) : null);
+		}}, r);
+	}
+	@Override public Dword SCardCancel(final SCardContext hContext) {
+		long start = System.nanoTime();
+		return record("SCardCancel", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hContext.longValue());
+		}}, delegate.SCardCancel(hContext));
+	}
+	@Override public Dword SCardIsValidContext(final SCardContext hContext) {
+		long start = System.nanoTime();
+		return record("SCardIsValidContext", start, new Body() {public void write(DataOutputStream out) throws IOException {
+			out.writeLong(hContext.longValue());
+		}}, delegate.SCardIsValidContext(hContext));
+	}
+}
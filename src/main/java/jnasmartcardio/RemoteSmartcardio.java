@@ -0,0 +1,521 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactorySpi;
+
+import jnasmartcardio.Smartcardio.EstablishContextException;
+import jnasmartcardio.Smartcardio.JnaCardNotPresentException;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+
+/**
+ * Client of a {@link ReaderGateway}: the readers of another host, through
+ * the javax.smartcardio API.
+ *
+ * <pre>
+ * TerminalFactory factory = TerminalFactory.getInstance("Remote", "rack1:4100", new Smartcardio());
+ * </pre>
+ *
+ * <p>
+ * All terminals, cards and channels from one
+ * {@link RemoteTerminalFactorySpi#engineTerminals()}
+ * share one TCP connection. Calls from different threads are pipelined on
+ * it. {@link RemoteCardChannel#transmitAsync(CommandAPDU)} and
+ * {@link RemoteCardChannel#transmitBatch(List)} avoid a round trip per APDU
+ * within one thread.
+ *
+ * <p>
+ * If the connection is lost, calls throw JnaPCSCException(
+ * {@link WinscardConstants#SCARD_E_NO_SERVICE}); get new terminals to
+ * reconnect.
+ */
+public class RemoteSmartcardio {
+	private RemoteSmartcardio() {}
+
+	public static class RemoteTerminalFactorySpi extends TerminalFactorySpi {
+		private final InetSocketAddress address;
+		/**
+		 * @param parameter
+		 *            the gateway's address, as an InetSocketAddress or a
+		 *            "host:port" String.
+		 */
+		public RemoteTerminalFactorySpi(Object parameter) {
+			if (parameter instanceof InetSocketAddress) {
+				this.address = (InetSocketAddress) parameter;
+			} else if (parameter instanceof String && ((String) parameter).lastIndexOf(':') > 0) {
+				String s = (String) parameter;
+				int colon = s.lastIndexOf(':');
+				this.address = new InetSocketAddress(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1)));
+			} else {
+				throw new IllegalArgumentException("Expected InetSocketAddress or \"host:port\", got " + parameter);
+			}
+		}
+		/**
+		 * Connect to the gateway.
+		 *
+		 * @throws EstablishContextException
+		 *             JnaPCSCException({@link WinscardConstants#SCARD_E_NO_SERVICE})
+		 *             if the gateway cannot be reached.
+		 */
+		@Override public RemoteCardTerminals engineTerminals() throws EstablishContextException {
+			try {
+				return new RemoteCardTerminals(new Connection(address));
+			} catch (IOException e) {
+				throw new EstablishContextException(new JnaPCSCException(WinscardConstants.SCARD_E_NO_SERVICE, "Could not connect to " + address, e));
+			}
+		}
+	}
+
+	/** A request payload under construction. */
+	static class Request {
+		final int op;
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream data = new DataOutputStream(bytes);
+		Request(int op) {this.op = op;}
+		byte[] toByteArray() {return bytes.toByteArray();}
+	}
+
+	/** A response that has not necessarily arrived yet. */
+	static class Pending {
+		private byte[] frame;
+		private IOException failure;
+		synchronized void complete(byte[] frame) {
+			this.frame = frame;
+			notifyAll();
+		}
+		synchronized void fail(IOException e) {
+			if (frame == null)
+				failure = e;
+			notifyAll();
+		}
+		synchronized boolean isDone() {
+			return frame != null || failure != null;
+		}
+		/** Wait for the response, and return its payload or throw its error. */
+		DataInputStream await(long timeoutMillis) throws CardException, TimeoutException {
+			byte[] frame;
+			synchronized (this) {
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+				while (this.frame == null && failure == null) {
+					long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (timeoutMillis != 0 && remaining <= 0)
+						throw new TimeoutException();
+					try {
+						wait(timeoutMillis == 0 ? 0 : remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new JnaPCSCException(WinscardConstants.SCARD_E_CANCELLED, "Interrupted while waiting for the gateway", e);
+					}
+				}
+				if (failure != null)
+					throw new JnaPCSCException(WinscardConstants.SCARD_E_NO_SERVICE, "Connection to the gateway lost", failure);
+				frame = this.frame;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 5, frame.length - 5));
+			int status = frame[4];
+			if (status == ReaderGateway.STATUS_OK)
+				return in;
+			try {
+				long code = in.readLong();
+				String message = in.readUTF();
+				switch (status) {
+				case ReaderGateway.STATUS_CARD_EXCEPTION: throw new JnaPCSCException(code, message);
+				case ReaderGateway.STATUS_CARD_NOT_PRESENT: throw new JnaCardNotPresentException(code, message);
+				case ReaderGateway.STATUS_ILLEGAL_ARGUMENT: throw new IllegalArgumentException(message);
+				default: throw new IllegalStateException(message);
+				}
+			} catch (IOException e) {
+				throw new JnaPCSCException(WinscardConstants.SCARD_F_INTERNAL_ERROR, "Bad response from the gateway", e);
+			}
+		}
+		DataInputStream await() throws CardException {
+			try {
+				return await(0);
+			} catch (TimeoutException impossible) {
+				throw new IllegalStateException(impossible);
+			}
+		}
+	}
+
+	/**
+	 * The connection to a gateway. Requests are written as they come, each
+	 * with a new id; a reader thread matches responses to requests by id.
+	 */
+	static class Connection {
+		private final Socket socket;
+		private final DataOutputStream out;
+		private final AtomicInteger nextId = new AtomicInteger();
+		private final Map<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+		/** Requests ready to be written; the last writer flushes. */
+		private final AtomicInteger pendingWrites = new AtomicInteger();
+		private volatile IOException failure;
+
+		Connection(InetSocketAddress address) throws IOException {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(address);
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			Thread reader = new Thread(new Runnable() {
+				@Override public void run() {readLoop(in);}
+			}, "jnasmartcardio-gateway-client");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		private void readLoop(DataInputStream in) {
+			try {
+				while (true) {
+					byte[] frame = ReaderGateway.readFrame(in);
+					int id = ((frame[0] & 0xff) << 24) | ((frame[1] & 0xff) << 16) | ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+					Pending p = pending.remove(id);
+					if (p != null)
+						p.complete(frame);
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+		private void fail(IOException e) {
+			if (failure == null)
+				failure = e;
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+				// nothing more to do
+			}
+			for (Pending p: pending.values())
+				p.fail(failure);
+			pending.clear();
+		}
+
+		Pending send(Request request) {
+			Pending p = new Pending();
+			int id = nextId.incrementAndGet();
+			pending.put(id, p);
+			byte[] payload = request.toByteArray();
+			pendingWrites.incrementAndGet();
+			synchronized (out) {
+				try {
+					if (failure == null) {
+						out.writeInt(4 + 1 + payload.length);
+						out.writeInt(id);
+						out.writeByte(request.op);
+						out.write(payload);
+					}
+					// Coalesce requests that are sent at the same time.
+					if (pendingWrites.decrementAndGet() == 0 && failure == null)
+						out.flush();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+			if (failure != null)
+				p.fail(failure);
+			return p;
+		}
+		DataInputStream call(Request request) throws CardException {
+			return send(request).await();
+		}
+		void close() {
+			fail(new IOException("Closed"));
+		}
+	}
+
+	public static class RemoteCardTerminals extends CardTerminals {
+		final Connection connection;
+		private final Map<String, RemoteCardTerminal> terminals = new ConcurrentHashMap<String, RemoteCardTerminal>();
+		RemoteCardTerminals(Connection connection) {
+			this.connection = connection;
+		}
+		private RemoteCardTerminal terminal(String name) {
+			RemoteCardTerminal terminal = terminals.get(name);
+			if (terminal == null)
+				terminals.put(name, terminal = new RemoteCardTerminal(this, name));
+			return terminal;
+		}
+		@Override public List<CardTerminal> list(State state) throws CardException {
+			Request request = new Request(ReaderGateway.OP_LIST);
+			try {
+				request.data.writeByte(state.ordinal());
+				DataInputStream in = connection.call(request);
+				int count = in.readInt();
+				List<CardTerminal> r = new ArrayList<CardTerminal>(count);
+				for (int i = 0; i < count; i++)
+					r.add(terminal(in.readUTF()));
+				return r;
+			} catch (IOException e) {
+				throw badResponse(e);
+			}
+		}
+		@Override public boolean waitForChange(long timeoutMs) throws CardException {
+			if (timeoutMs < 0)
+				throw new IllegalArgumentException("Negative timeout " + timeoutMs);
+			Request request = new Request(ReaderGateway.OP_WAIT_FOR_CHANGE);
+			try {
+				request.data.writeLong(timeoutMs);
+				return connection.call(request).readBoolean();
+			} catch (IOException e) {
+				throw badResponse(e);
+			}
+		}
+		/** Close the connection; cards on the gateway are disconnected. */
+		public void close() {
+			connection.close();
+		}
+		@Override public String toString() {return String.format("%s{%s}", getClass().getSimpleName(), connection.socket.getRemoteSocketAddress());}
+	}
+
+	static JnaPCSCException badResponse(IOException e) {
+		return new JnaPCSCException(WinscardConstants.SCARD_F_INTERNAL_ERROR, "Bad response from the gateway", e);
+	}
+
+	public static class RemoteCardTerminal extends CardTerminal {
+		private final RemoteCardTerminals terminals;
+		private final String name;
+		RemoteCardTerminal(RemoteCardTerminals terminals, String name) {
+			this.terminals = terminals;
+			this.name = name;
+		}
+		@Override public String getName() {return name;}
+		@Override public RemoteCard connect(String protocol) throws CardException {
+			Request request = new Request(ReaderGateway.OP_CONNECT);
+			try {
+				request.data.writeUTF(name);
+				request.data.writeUTF(protocol);
+				DataInputStream in = terminals.connection.call(request);
+				int cardId = in.readInt();
+				ATR atr = new ATR(ReaderGateway.readBytes(in));
+				return new RemoteCard(terminals.connection, this, cardId, atr, in.readUTF());
+			} catch (IOException e) {
+				throw badResponse(e);
+			}
+		}
+		@Override public boolean isCardPresent() throws CardException {
+			Request request = new Request(ReaderGateway.OP_IS_CARD_PRESENT);
+			try {
+				request.data.writeUTF(name);
+				return terminals.connection.call(request).readBoolean();
+			} catch (IOException e) {
+				throw badResponse(e);
+			}
+		}
+		@Override public boolean waitForCardPresent(long timeout) throws CardException {
+			return waitForCard(ReaderGateway.OP_WAIT_FOR_CARD_PRESENT, timeout);
+		}
+		@Override public boolean waitForCardAbsent(long timeout) throws CardException {
+			return waitForCard(ReaderGateway.OP_WAIT_FOR_CARD_ABSENT, timeout);
+		}
+		private boolean waitForCard(int op, long timeout) throws CardException {
+			if (timeout < 0)
+				throw new IllegalArgumentException("Negative timeout " + timeout);
+			Request request = new Request(op);
+			try {
+				request.data.writeUTF(name);
+				request.data.writeLong(timeout);
+				return terminals.connection.call(request).readBoolean();
+			} catch (IOException e) {
+				throw badResponse(e);
+			}
+		}
+		@Override public String toString() {return String.format("%s{%s}", getClass().getSimpleName(), name);}
+	}
+
+	public static class RemoteCard extends Card {
+		private final Connection connection;
+		private final RemoteCardTerminal terminal;
+		final int cardId;
+		private final ATR atr;
+		private final String protocol;
+		private final RemoteCardChannel basicChannel;
+		RemoteCard(Connection connection, RemoteCardTerminal terminal, int cardId, ATR atr, String protocol) {
+			this.connection = connection;
+			this.terminal = terminal;
+			this.cardId = cardId;
+			this.atr = atr;
+			this.protocol = protocol;
+			this.basicChannel = new RemoteCardChannel(this, 0);
+		}
+		Request request(int op) {
+			Request request = new Request(op);
+			try {
+				request.data.writeInt(cardId);
+			} catch (IOException impossible) {
+				throw new IllegalStateException(impossible);
+			}
+			return request;
+		}
+		DataInputStream call(Request request) throws CardException {
+			return connection.call(request);
+		}
+		Pending send(Request request) {
+			return connection.send(request);
+		}
+		public RemoteCardTerminal getTerminal() {return terminal;}
+		@Override public ATR getATR() {return atr;}
+		@Override public String getProtocol() {return protocol;}
+		@Override public RemoteCardChannel getBasicChannel() {return basicChannel;}
+		@Override public RemoteCardChannel openLogicalChannel() throws CardException {
+			try {
+				return new RemoteCardChannel(this, call(request(ReaderGateway.OP_OPEN_LOGICAL_CHANNEL)).readByte());
+			} catch (IOException e) {
+				throw badResponse(e);
+			}
+		}
+		@Override public void beginExclusive() throws CardException {
+			call(request(ReaderGateway.OP_BEGIN_EXCLUSIVE));
+		}
+		@Override public void endExclusive() throws CardException {
+			call(request(ReaderGateway.OP_END_EXCLUSIVE));
+		}
+		@Override public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+			Request request = request(ReaderGateway.OP_CONTROL);
+			try {
+				request.data.writeInt(controlCode);
+				ReaderGateway.writeBytes(request.data, command);
+				return ReaderGateway.readBytes(call(request));
+			} catch (IOException e) {
+				throw badResponse(e);
+			}
+		}
+		@Override public void disconnect(boolean reset) throws CardException {
+			Request request = request(ReaderGateway.OP_DISCONNECT);
+			try {
+				request.data.writeBoolean(reset);
+			} catch (IOException impossible) {
+				throw new IllegalStateException(impossible);
+			}
+			call(request);
+		}
+		@Override public String toString() {return String.format("%s{%s, card %d}", getClass().getSimpleName(), terminal.getName(), cardId);}
+	}
+
+	public static class RemoteCardChannel extends CardChannel {
+		private final RemoteCard card;
+		private final int channel;
+		RemoteCardChannel(RemoteCard card, int channel) {
+			this.card = card;
+			this.channel = channel;
+		}
+		@Override public RemoteCard getCard() {return card;}
+		@Override public int getChannelNumber() {return channel;}
+		private Request transmitRequest(CommandAPDU command) {
+			Request request = card.request(ReaderGateway.OP_TRANSMIT);
+			try {
+				request.data.writeByte(channel);
+				ReaderGateway.writeBytes(request.data, command.getBytes());
+			} catch (IOException impossible) {
+				throw new IllegalStateException(impossible);
+			}
+			return request;
+		}
+		@Override public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			try {
+				return new ResponseAPDU(ReaderGateway.readBytes(card.call(transmitRequest(command))));
+			} catch (IOException e) {
+				throw badResponse(e);
+			}
+		}
+		@Override public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			byte[] commandBytes = new byte[command.remaining()];
+			command.get(commandBytes);
+			byte[] responseBytes = transmit(new CommandAPDU(commandBytes)).getBytes();
+			response.put(responseBytes);
+			return responseBytes.length;
+		}
+		/**
+		 * Send the command without waiting for the response. Commands to one
+		 * card are executed in the order they are sent.
+		 */
+		public Future<ResponseAPDU> transmitAsync(CommandAPDU command) {
+			final Pending p = card.send(transmitRequest(command));
+			return new Future<ResponseAPDU>() {
+				@Override public boolean cancel(boolean mayInterruptIfRunning) {return false;}
+				@Override public boolean isCancelled() {return false;}
+				@Override public boolean isDone() {return p.isDone();}
+				@Override public ResponseAPDU get() throws ExecutionException {
+					try {
+						return new ResponseAPDU(ReaderGateway.readBytes(p.await()));
+					} catch (CardException e) {
+						throw new ExecutionException(e);
+					} catch (IOException e) {
+						throw new ExecutionException(badResponse(e));
+					}
+				}
+				@Override public ResponseAPDU get(long timeout, TimeUnit unit) throws ExecutionException, TimeoutException {
+					try {
+						return new ResponseAPDU(ReaderGateway.readBytes(p.await(Math.max(1, unit.toMillis(timeout)))));
+					} catch (CardException e) {
+						throw new ExecutionException(e);
+					} catch (IOException e) {
+						throw new ExecutionException(badResponse(e));
+					}
+				}
+			};
+		}
+		/**
+		 * Send several commands in one request; the gateway transmits them in
+		 * order and returns all responses at once. If one transmit fails,
+		 * the rest are not sent and this throws its exception.
+		 */
+		public List<ResponseAPDU> transmitBatch(List<CommandAPDU> commands) throws CardException {
+			Request request = card.request(ReaderGateway.OP_TRANSMIT_BATCH);
+			try {
+				request.data.writeByte(channel);
+				request.data.writeInt(commands.size());
+				for (CommandAPDU command: commands)
+					ReaderGateway.writeBytes(request.data, command.getBytes());
+				DataInputStream in = card.call(request);
+				int count = in.readInt();
+				List<ResponseAPDU> r = new ArrayList<ResponseAPDU>(count);
+				for (int i = 0; i < count; i++)
+					r.add(new ResponseAPDU(ReaderGateway.readBytes(in)));
+				return r;
+			} catch (IOException e) {
+				throw badResponse(e);
+			}
+		}
+		@Override public void close() throws CardException {
+			if (channel == 0)
+				throw new IllegalStateException("Cannot close basic channel");
+			Request request = card.request(ReaderGateway.OP_CLOSE_CHANNEL);
+			try {
+				request.data.writeByte(channel);
+			} catch (IOException impossible) {
+				throw new IllegalStateException(impossible);
+			}
+			card.call(request);
+		}
+		@Override public String toString() {return String.format("%s{%s, channel %d}", getClass().getSimpleName(), card, channel);}
+	}
+}
@@ -0,0 +1,352 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.DwordByReference;
+import jnasmartcardio.Winscard.SCardContext;
+import jnasmartcardio.Winscard.SCardContextByReference;
+import jnasmartcardio.Winscard.SCardHandle;
+import jnasmartcardio.Winscard.SCardHandleByReference;
+import jnasmartcardio.Winscard.SCardReaderState;
+import jnasmartcardio.Winscard.ScardIoRequest;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+import jnasmartcardio.Winscard.WinscardLibrary;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Plays back a session recorded by {@link RecordingWinscardLibrary}.
+ *
+ * <p>
+ * Each call consumes the next recorded call, fills in the recorded results
+ * and returns the recorded result code. The calls must be made in the
+ * recorded order; if the function does not match, the replay has diverged
+ * and {@link ReplayDivergedException} is thrown.
+ *
+ * <p>
+ * With {@link #setSpeed(double) speed} 1, each call takes as long as it did
+ * when it was recorded; with speed 10, a tenth of that; with speed 0 (the
+ * default), calls return immediately, which is useful to measure the
+ * overhead of the Java side alone.
+ *
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * ReplayWinscardLibrary replay = ReplayWinscardLibrary.open(file);
+ * CardTerminals terminals = new JnaTerminalFactorySpi(replay.libInfo()).engineTerminals();
+ * </pre>
+ */
+public class ReplayWinscardLibrary implements WinscardLibrary, Closeable {
+	/** Thrown when the calls made differ from the calls recorded. */
+	public static class ReplayDivergedException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+		public ReplayDivergedException(String message) {super(message);}
+		public ReplayDivergedException(String message, Throwable cause) {super(message, cause);}
+	}
+
+	private final DataInputStream in;
+	private volatile double speed;
+	private long callCount;
+
+	public ReplayWinscardLibrary(InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		byte[] magic = new byte[RecordingWinscardLibrary.MAGIC.length()];
+		this.in.readFully(magic);
+		if (!RecordingWinscardLibrary.MAGIC.equals(new String(magic, "US-ASCII")))
+			throw new IOException("Not a PC/SC recording");
+		int version = this.in.readInt();
+		if (version != RecordingWinscardLibrary.VERSION)
+			throw new IOException("Unsupported recording version " + version);
+	}
+	public static ReplayWinscardLibrary open(File file) throws IOException {
+		return new ReplayWinscardLibrary(new FileInputStream(file));
+	}
+
+	/** A WinscardLibInfo for this library, for JnaTerminalFactorySpi. */
+	public WinscardLibInfo libInfo() {
+		return Winscard.libInfo(this);
+	}
+
+	/**
+	 * @param speed
+	 *            how much faster than recorded to play back; 0 means as fast
+	 *            as possible.
+	 */
+	public void setSpeed(double speed) {
+		if (speed < 0)
+			throw new IllegalArgumentException("Negative speed " + speed);
+		this.speed = speed;
+	}
+	/** Number of calls played back so far. */
+	public synchronized long getCallCount() {return callCount;}
+	/** True if every recorded call has been played back. */
+	public synchronized boolean isFinished() throws IOException {
+		in.mark(1);
+		int b = in.read();
+		in.reset();
+		return b == -1;
+	}
+	@Override public synchronized void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Read the header of the next call, checking that it is for the given
+	 * function, and return its recorded duration.
+	 */
+	private long next(String function) {
+		String recorded;
+		long durationNanos;
+		try {
+			recorded = in.readUTF();
+			in.readLong();  // start time
+			durationNanos = in.readLong();
+		} catch (EOFException e) {
+			throw new ReplayDivergedException(String.format("Call %d: %s called after the end of the recording", callCount, function), e);
+		} catch (IOException e) {
+			throw new ReplayDivergedException("Could not read recording", e);
+		}
+		if (!function.equals(recorded))
+			throw new ReplayDivergedException(String.format("Call %d: %s called, but %s was recorded", callCount, function, recorded));
+		callCount++;
+		return durationNanos;
+	}
+	private Dword finish(long durationNanos) throws IOException {
+		int result = in.readInt();
+		double speed = this.speed;
+		if (speed > 0) {
+			long sleepNanos = (long) (durationNanos / speed);
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return new Dword(result);
+	}
+	private static ReplayDivergedException diverged(IOException e) {
+		return new ReplayDivergedException("Could not read recording", e);
+	}
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] r = new byte[length];
+		in.readFully(r);
+		return r;
+	}
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+	/** Copy the recorded bytes to the buffer's position, like native code would. */
+	private static void fill(ByteBuffer buffer, byte[] bytes) {
+		if (buffer != null && bytes != null)
+			buffer.duplicate().put(bytes, 0, Math.min(bytes.length, buffer.remaining()));
+	}
+
+	@Override public synchronized Dword SCardEstablishContext(Dword dwScope, Pointer pvReserved1, Pointer pvReserved2, SCardContextByReference phContext) {
+		long duration = next("SCardEstablishContext");
+		try {
+			in.readLong();
+			phContext.setValue(new SCardContext(in.readLong()));
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardReleaseContext(SCardContext hContext) {
+		long duration = next("SCardReleaseContext");
+		try {
+			in.readLong();
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardConnect(SCardContext hContext, String szReader, Dword dwSharMode, Dword dwPreferredProtocols, SCardHandleByReference phCard, DwordByReference pdwActiveProtocol) {
+		long duration = next("SCardConnect");
+		try {
+			in.readLong();
+			String recordedReader = readString(in);
+			if (recordedReader != null && !recordedReader.equals(szReader))
+				throw new ReplayDivergedException(String.format("Call %d: SCardConnect to %s, but %s was recorded", callCount, szReader, recordedReader));
+			in.readLong();
+			in.readLong();
+			phCard.setValue(new SCardHandle(in.readLong()));
+			pdwActiveProtocol.setValue(new Dword(in.readLong()));
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardReconnect(SCardHandle hCard, Dword dwShareMode, Dword dwPreferredProtocols, Dword dwInitialization, DwordByReference pdwActiveProtocol) {
+		long duration = next("SCardReconnect");
+		try {
+			in.readLong();
+			in.readLong();
+			in.readLong();
+			in.readLong();
+			pdwActiveProtocol.setValue(new Dword(in.readLong()));
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardDisconnect(SCardHandle hCard, Dword dwDisposition) {
+		long duration = next("SCardDisconnect");
+		try {
+			in.readLong();
+			in.readLong();
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardBeginTransaction(SCardHandle hCard) {
+		long duration = next("SCardBeginTransaction");
+		try {
+			in.readLong();
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardEndTransaction(SCardHandle hCard, Dword dwDisposition) {
+		long duration = next("SCardEndTransaction");
+		try {
+			in.readLong();
+			in.readLong();
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardStatus(SCardHandle hCard, ByteBuffer mszReaderName, DwordByReference pcchReaderLen, DwordByReference pdwState, DwordByReference pdwProtocol, ByteBuffer pbAtr, DwordByReference pcbAtrLen) {
+		long duration = next("SCardStatus");
+		try {
+			in.readLong();
+			in.readInt();
+			in.readInt();
+			pcchReaderLen.setValue(new Dword(in.readLong()));
+			pdwState.setValue(new Dword(in.readLong()));
+			pdwProtocol.setValue(new Dword(in.readLong()));
+			pcbAtrLen.setValue(new Dword(in.readLong()));
+			fill(mszReaderName, readBytes(in));
+			fill(pbAtr, readBytes(in));
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardGetStatusChange(SCardContext hContext, Dword dwTimeout, SCardReaderState[] rgReaderStates, Dword cReaders) {
+		long duration = next("SCardGetStatusChange");
+		try {
+			in.readLong();
+			in.readLong();
+			int count = in.readInt();
+			if (count != cReaders.intValue())
+				throw new ReplayDivergedException(String.format("Call %d: SCardGetStatusChange with %d readers, but %d were recorded", callCount, cReaders.intValue(), count));
+			for (int i = 0; i < count; i++) {
+				SCardReaderState state = rgReaderStates[i];
+				String name = readString(in);
+				String reader = state == null ? null : state.szReader;
+				if (name != null ? !name.equals(reader) : reader != null)
+					throw new ReplayDivergedException(String.format("Call %d: SCardGetStatusChange for %s, but %s was recorded", callCount, reader, name));
+				in.readLong();
+				long eventState = in.readLong();
+				long cbAtr = in.readLong();
+				byte[] atr = readBytes(in);
+				if (state == null)
+					continue;
+				state.dwEventState = new Dword(eventState);
+				state.cbAtr = new Dword(cbAtr);
+				System.arraycopy(atr, 0, state.rgbAtr, 0, Math.min(atr.length, state.rgbAtr.length));
+			}
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardControl(SCardHandle hCard, Dword dwControlCode, ByteBuffer pbSendBuffer, Dword cbSendLength, ByteBuffer pbRecvBuffer, Dword cbRecvLength, DwordByReference lpBytesReturned) {
+		long duration = next("SCardControl");
+		try {
+			in.readLong();
+			in.readLong();
+			readBytes(in);
+			in.readLong();
+			lpBytesReturned.setValue(new Dword(in.readLong()));
+			fill(pbRecvBuffer, readBytes(in));
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardGetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, DwordByReference pcbAttrLen) {
+		long duration = next("SCardGetAttrib");
+		try {
+			in.readLong();
+			in.readLong();
+			in.readInt();
+			pcbAttrLen.setValue(new Dword(in.readLong()));
+			fill(pbAttr, readBytes(in));
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardSetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, Dword cbAttrLen) {
+		long duration = next("SCardSetAttrib");
+		try {
+			in.readLong();
+			in.readLong();
+			readBytes(in);
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardTransmit(SCardHandle hCard, ScardIoRequest pioSendPci, ByteBuffer pbSendBuffer, Dword cbSendLength, ScardIoRequest pioRecvPci, ByteBuffer pbRecvBuffer, DwordByReference pcbRecvLength) {
+		long duration = next("SCardTransmit");
+		try {
+			in.readLong();
+			in.readLong();
+			readBytes(in);
+			in.readInt();
+			pcbRecvLength.setValue(new Dword(in.readLong()));
+			fill(pbRecvBuffer, readBytes(in));
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardListReaders(SCardContext hContext, ByteBuffer mszGroups, ByteBuffer mszReaders, DwordByReference pcchReaders) {
+		long duration = next("SCardListReaders");
+		try {
+			in.readLong();
+			in.readInt();
+			pcchReaders.setValue(new Dword(in.readLong()));
+			fill(mszReaders, readBytes(in));
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardFreeMemory(SCardContext hContext, Pointer pvMem) {
+		long duration = next("SCardFreeMemory");
+		try {
+			in.readLong();
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardListReaderGroups(SCardContext hContext, ByteBuffer mszGroups, DwordByReference pcchGroups) {
+		long duration = next("SCardListReaderGroups");
+		try {
+			in.readLong();
+			in.readInt();
+			pcchGroups.setValue(new Dword(in.readLong()));
+			fill(mszGroups, readBytes(in));
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardCancel(SCardContext hContext) {
+		long duration = next("SCardCancel");
+		try {
+			in.readLong();
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+	@Override public synchronized Dword SCardIsValidContext(SCardContext hContext) {
+		long duration = next("SCardIsValidContext");
+		try {
+			in.readLong();
+			return finish(duration);
+		} catch (IOException e) {throw diverged(e);}
+	}
+}
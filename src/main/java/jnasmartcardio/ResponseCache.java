@@ -0,0 +1,258 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import jnasmartcardio.Smartcardio.JnaCard;
+
+/**
+ * Size-bounded LRU cache of responses to commands whose result never
+ * changes for a given card, such as READ BINARY of a read-only EF holding a
+ * certificate, or GET DATA of a static tag.
+ *
+ * <p>
+ * Nothing is cached unless the application asks for it: wrap a channel with
+ * {@link #wrap(CardChannel, byte[])} and send the idempotent commands with
+ * {@link CachingCardChannel#transmitCached(CommandAPDU)}. Entries are keyed
+ * by the card identity (see {@link #cardIdentity(ATR, byte[])}) and the
+ * command bytes; only responses with SW 9000 are kept.
+ *
+ * <p>
+ * By default, an entry is only used while the card it was read from is
+ * still in the reader: an entry from a {@link JnaCard} is dropped once a
+ * card removal or reset is observed on its reader (see
+ * {@link JnaCard#getCardGeneration()}). With
+ * {@link #setInvalidateOnRemoval(boolean) setInvalidateOnRemoval(false)},
+ * entries outlive the card session, so the identity must really identify
+ * the card, e.g. include its serial number.
+ *
+ * <p>
+ * With offHeap, response bytes are kept in direct buffers so that a large
+ * cache does not add to the Java heap.
+ *
+ * <p>
+ * Thread-safe.
+ */
+public class ResponseCache {
+	private final long maxBytes;
+	private final boolean offHeap;
+	/** Guarded by itself, like the counters below. */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long sizeBytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private volatile boolean invalidateOnRemoval = true;
+
+	private static class Key {
+		final byte[] identity;
+		final byte[] command;
+		final int hash;
+		Key(byte[] identity, byte[] command) {
+			this.identity = identity;
+			this.command = command;
+			this.hash = 31 * Arrays.hashCode(identity) + Arrays.hashCode(command);
+		}
+		@Override public int hashCode() {return hash;}
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return Arrays.equals(identity, other.identity) && Arrays.equals(command, other.command);
+		}
+	}
+	private static class Entry {
+		/** Either a byte[] or a direct ByteBuffer. */
+		final Object response;
+		final int length;
+		/** Terminal and card-session generation the response was read in, or null. */
+		final Object terminal;
+		final long generation;
+		Entry(Object response, int length, Object terminal, long generation) {
+			this.response = response;
+			this.length = length;
+			this.terminal = terminal;
+			this.generation = generation;
+		}
+		byte[] bytes() {
+			if (response instanceof byte[])
+				return ((byte[]) response).clone();
+			byte[] r = new byte[length];
+			((ByteBuffer) response).duplicate().get(r);
+			return r;
+		}
+	}
+
+	/**
+	 * @param maxBytes
+	 *            maximum total size of the cached responses; least recently
+	 *            used entries are evicted beyond it.
+	 * @param offHeap
+	 *            whether to keep responses in direct buffers.
+	 */
+	public ResponseCache(long maxBytes, boolean offHeap) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Negative size " + maxBytes);
+		this.maxBytes = maxBytes;
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * An identity made of the ATR and a serial number or UID read by the
+	 * application (may be null). The ATR alone only identifies the card
+	 * type.
+	 */
+	public static byte[] cardIdentity(ATR atr, byte[] serial) {
+		byte[] atrBytes = atr.getBytes();
+		int serialLength = serial == null ? 0 : serial.length;
+		ByteBuffer b = ByteBuffer.allocate(2 + atrBytes.length + serialLength);
+		b.put((byte) atrBytes.length).put(atrBytes).put((byte) (serial == null ? 0xff : 0));
+		if (serial != null)
+			b.put(serial);
+		return b.array();
+	}
+
+	/** Whether entries are dropped when their card session ends (the default). */
+	public void setInvalidateOnRemoval(boolean invalidateOnRemoval) {
+		this.invalidateOnRemoval = invalidateOnRemoval;
+	}
+
+	/** Wrap channel, whose card has the given identity. */
+	public CachingCardChannel wrap(CardChannel channel, byte[] cardIdentity) {
+		return new CachingCardChannel(channel, cardIdentity.clone());
+	}
+
+	/** Drop all entries of the card. */
+	public void invalidate(byte[] cardIdentity) {
+		synchronized (entries) {
+			Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Key, Entry> e = it.next();
+				if (Arrays.equals(cardIdentity, e.getKey().identity)) {
+					sizeBytes -= e.getValue().length;
+					it.remove();
+				}
+			}
+		}
+	}
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			sizeBytes = 0;
+		}
+	}
+
+	private byte[] get(Key key, Object terminal, long generation) {
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.terminal != null && (entry.terminal != terminal || entry.generation != generation)) {
+				entries.remove(key);
+				sizeBytes -= entry.length;
+				entry = null;
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			return entry.bytes();
+		}
+	}
+	private void put(Key key, byte[] response, Object terminal, long generation) {
+		if (response.length > maxBytes)
+			return;
+		Object stored = response;
+		if (offHeap) {
+			ByteBuffer b = ByteBuffer.allocateDirect(response.length);
+			b.put(response).flip();
+			stored = b;
+		}
+		Entry entry = new Entry(stored, response.length, terminal, generation);
+		synchronized (entries) {
+			Entry old = entries.put(key, entry);
+			if (old != null)
+				sizeBytes -= old.length;
+			sizeBytes += entry.length;
+			Iterator<Entry> it = entries.values().iterator();
+			while (sizeBytes > maxBytes && it.hasNext()) {
+				sizeBytes -= it.next().length;
+				it.remove();
+				evictions++;
+			}
+		}
+	}
+
+	public long getHits() {synchronized (entries) {return hits;}}
+	public long getMisses() {synchronized (entries) {return misses;}}
+	public long getEvictions() {synchronized (entries) {return evictions;}}
+	public long getSizeBytes() {synchronized (entries) {return sizeBytes;}}
+	public int getEntryCount() {synchronized (entries) {return entries.size();}}
+	@Override public String toString() {
+		synchronized (entries) {
+			return String.format("%s{entries=%d, sizeBytes=%d, maxBytes=%d, hits=%d, misses=%d}", getClass().getSimpleName(), entries.size(), sizeBytes, maxBytes, hits, misses);
+		}
+	}
+
+	/**
+	 * A channel whose {@link #transmitCached(CommandAPDU)} goes through the
+	 * cache. Everything else goes straight to the wrapped channel.
+	 */
+	public class CachingCardChannel extends CardChannel {
+		private final CardChannel channel;
+		private final byte[] identity;
+		CachingCardChannel(CardChannel channel, byte[] identity) {
+			this.channel = channel;
+			this.identity = identity;
+		}
+		/**
+		 * Transmit a command that the caller declares idempotent, answering
+		 * from the cache if it was sent to this card before.
+		 */
+		public ResponseAPDU transmitCached(CommandAPDU command) throws CardException {
+			Key key = new Key(identity, command.getBytes());
+			Object terminal = null;
+			long generation = 0;
+			Card card = channel.getCard();
+			if (invalidateOnRemoval && card instanceof JnaCard) {
+				JnaCard jnaCard = (JnaCard) card;
+				if (!jnaCard.isSessionCurrent()) {
+					// The card is gone; let the channel report it.
+					return channel.transmit(command);
+				}
+				terminal = jnaCard.getTerminal();
+				generation = jnaCard.getCardGeneration();
+			}
+			byte[] cached = get(key, terminal, generation);
+			if (cached != null)
+				return new ResponseAPDU(cached);
+			ResponseAPDU response = channel.transmit(command);
+			if (response.getSW() == 0x9000)
+				put(key, response.getBytes(), terminal, generation);
+			return response;
+		}
+		@Override public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			return channel.transmit(command);
+		}
+		@Override public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			return channel.transmit(command, response);
+		}
+		@Override public Card getCard() {return channel.getCard();}
+		@Override public int getChannelNumber() {return channel.getChannelNumber();}
+		@Override public void close() throws CardException {channel.close();}
+		@Override public String toString() {return String.format("%s{channel=%s}", getClass().getSimpleName(), channel);}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * A response APDU that is read directly from the buffer the card's response
+ * was received into, returned by
+ * {@link Smartcardio.JnaCardChannel#transmitView(javax.smartcardio.CommandAPDU)}.
+ *
+ * <p>
+ * Unlike {@link ResponseAPDU}, nothing is copied: {@link #getData()} is a
+ * read-only view of the buffer. Call {@link #release()} when done, which
+ * returns the buffer to the {@link BufferPool}; after that, the view
+ * and any buffers obtained from it must not be used. A view that is never
+ * released is simply garbage collected.
+ *
+ * <p>
+ * Not thread-safe.
+ */
+public final class ResponseView {
+	private final BufferPool pool;
+	private ByteBuffer buffer;
+	private final int length;
+
+	/** The buffer, from the pool, holds the response in [0, length). */
+	ResponseView(BufferPool pool, ByteBuffer buffer, int length) {
+		if (length < 2)
+			throw new IllegalArgumentException("Response must have at least 2 bytes, got " + length);
+		this.pool = pool;
+		this.buffer = buffer;
+		this.length = length;
+	}
+
+	ByteBuffer buffer() {
+		if (buffer == null)
+			throw new IllegalStateException("ResponseView was released");
+		return buffer;
+	}
+	/** Length of the response, including SW1 and SW2. */
+	public int length() {
+		buffer();
+		return length;
+	}
+	/** Number of data bytes (not counting SW1 and SW2). */
+	public int getNr() {
+		buffer();
+		return length - 2;
+	}
+	public int getSW1() {
+		return buffer().get(length - 2) & 0xff;
+	}
+	public int getSW2() {
+		return buffer().get(length - 1) & 0xff;
+	}
+	public int getSW() {
+		return (getSW1() << 8) | getSW2();
+	}
+	/** The data bytes, as a read-only buffer valid until {@link #release()}. */
+	public ByteBuffer getData() {
+		ByteBuffer b = buffer().duplicate();
+		b.position(0);
+		b.limit(length - 2);
+		return b.slice().asReadOnlyBuffer();
+	}
+	/** Copy the data bytes into dst, which must have room for {@link #getNr()} bytes. */
+	public void getData(ByteBuffer dst) {
+		dst.put(getData());
+	}
+	/** A copy of the whole response, including SW1 and SW2. */
+	public byte[] getBytes() {
+		byte[] r = new byte[length];
+		ByteBuffer b = buffer().duplicate();
+		b.position(0);
+		b.get(r);
+		return r;
+	}
+	/** Copy into a standard ResponseAPDU, e.g. to keep it after release. */
+	public ResponseAPDU toResponseAPDU() {
+		return new ResponseAPDU(getBytes());
+	}
+	/**
+	 * Return the buffer to the pool.
+	 *
+	 * @throws IllegalStateException
+	 *             if already released.
+	 */
+	public void release() {
+		ByteBuffer b = buffer();
+		buffer = null;
+		pool.release(b);
+	}
+	@Override public String toString() {
+		if (buffer == null)
+			return "ResponseView{released}";
+		return String.format("ResponseView{%d bytes, SW=%04X}", length, getSW());
+	}
+}
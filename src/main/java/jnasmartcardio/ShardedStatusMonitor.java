@@ -0,0 +1,631 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.CardException;
+
+import jnasmartcardio.Smartcardio.CardHolder;
+import jnasmartcardio.Smartcardio.EstablishContextException;
+import jnasmartcardio.Smartcardio.JnaCard;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+import jnasmartcardio.Smartcardio.WaitCancellation;
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.SCardReaderState;
+
+import com.sun.jna.Structure;
+
+/**
+ * Watches any number of readers for cards being inserted and removed,
+ * beyond the number of reader states that one SCardGetStatusChange call
+ * accepts (PCSCLITE_MAX_READERS_CONTEXTS in pcsc-lite, usually 16), which
+ * limits {@link JnaCardTerminals#waitForChange(long)}.
+ *
+ * <p>
+ * The readers are split into shards of at most readersPerShard. Each shard
+ * has its own context and thread blocked in SCardGetStatusChange, so that it
+ * can be woken to add or drop a reader without disturbing the other shards.
+ * One more context watches the PnP notification for readers being plugged
+ * in and unplugged; without PnP support, the readers are listed every
+ * {@link #POLL_MILLIS}. The factory must therefore not use
+ * {@link JnaTerminalFactorySpi#SHARED_CONTEXT}.
+ *
+ * <p>
+ * Every thread appends to one queue of {@link Event}s, read with
+ * {@link #poll(long, TimeUnit)} or {@link #take()}. Events are numbered in
+ * queue order. The events of one reader are in the order they happened: its
+ * READER_ADDED comes first, and its READER_REMOVED last (after a
+ * CARD_REMOVED if it held a card). When the monitor starts, every reader is
+ * reported as added, and every card as inserted. The queue is unbounded, so
+ * it must be drained.
+ *
+ * <p>
+ * Contactless readers report a card moving in the field as rapid removals
+ * and insertions. {@link #setHoldOff(String, long)} holds back the
+ * CARD_REMOVED of matching readers: if the same card is back within the
+ * hold-off, neither event is reported. The event counter in the reader state
+ * reveals a removal and insertion even when they happened between two
+ * observations, but not whether the card is the same. Contactless ATRs are
+ * made up from the card type (PC/SC part 3), so two cards of one model have
+ * the same ATR; to tell them apart, {@link #setIdentifier(CardIdentifier)}
+ * with e.g. {@link #UID}. Without an identity, a card with the same ATR is
+ * taken to be the same card. A card with another identity or ATR is a swap
+ * and is reported at once; so is a held-back removal when its reader is
+ * unplugged.
+ *
+ * <p>
+ * If a call fails, e.g. because the daemon stopped, the monitor stops, and
+ * poll and take throw the error once the queue is drained. Use a
+ * {@link DaemonSupervisor} to know when to start a new one.
+ */
+public class ShardedStatusMonitor implements Closeable {
+	/** How often readers are listed if the daemon has no PnP notification. */
+	static final long POLL_MILLIS = 1000;
+
+	/** A change of one reader. */
+	public static final class Event {
+		public enum Kind {READER_ADDED, READER_REMOVED, CARD_INSERTED, CARD_REMOVED}
+		private final long sequence;
+		private final Kind kind;
+		private final String readerName;
+		private final ATR atr;
+		private final int eventCount;
+		private final long nanoTime;
+		Event(long sequence, Kind kind, String readerName, ATR atr, int eventCount) {
+			this.sequence = sequence;
+			this.kind = kind;
+			this.readerName = readerName;
+			this.atr = atr;
+			this.eventCount = eventCount;
+			this.nanoTime = System.nanoTime();
+		}
+		/** Position in the queue, starting at 1. */
+		public long getSequence() {return sequence;}
+		/** {@link System#nanoTime()} when the event was queued. */
+		public long getNanoTime() {return nanoTime;}
+		public Kind getKind() {return kind;}
+		public String getReaderName() {return readerName;}
+		/** The ATR of the inserted card for CARD_INSERTED, else null. */
+		public ATR getAtr() {return atr;}
+		/**
+		 * The reader's event counter (the upper 16 bits of its event state)
+		 * when the event was queued. If {@link ShardedStatusMonitor#getEventCount(String)}
+		 * still returns it, no card has been inserted or removed since.
+		 */
+		public int getEventCount() {return eventCount;}
+		@Override public String toString() {return String.format("%s{sequence=%d, kind=%s, readerName=%s}", getClass().getSimpleName(), sequence, kind, readerName);}
+	}
+
+	/** Tells cards apart, beyond their ATR. */
+	public interface CardIdentifier {
+		/**
+		 * Called on the monitor's threads for each card inserted into a reader
+		 * with a hold-off, with that thread's terminals.
+		 *
+		 * @return bytes that differ between cards, or null if unknown (e.g.
+		 *         the card is already gone).
+		 */
+		byte[] identify(JnaCardTerminals terminals, String readerName, ATR atr);
+	}
+	/**
+	 * Identifies contactless cards by the UID that the reader returns for
+	 * the pseudo-APDU FF CA 00 00 00. Connects in shared mode.
+	 */
+	public static final CardIdentifier UID = new CardIdentifier() {
+		@Override public byte[] identify(JnaCardTerminals terminals, String readerName, ATR atr) {
+			CardHolder holder = new CardHolder();
+			if (terminals.terminal(readerName).tryConnect("*", atr, holder) != WinscardConstants.SCARD_S_SUCCESS)
+				return null;
+			try {
+				ByteBuffer response = ByteBuffer.allocate(258);
+				if (holder.card.getBasicChannel().tryTransmit(ByteBuffer.wrap(TapPipeline.GET_UID), response) != WinscardConstants.SCARD_S_SUCCESS)
+					return null;
+				int n = response.position();
+				if (n <= 2 || response.get(n - 2) != (byte) 0x90 || response.get(n - 1) != 0)
+					return null;
+				return Arrays.copyOf(response.array(), n - 2);
+			} finally {
+				holder.card.tryDisconnect(JnaCard.SCARD_LEAVE_CARD);
+			}
+		}
+		@Override public String toString() {return "UID";}
+	};
+
+	/** One reader. Guarded by lock. */
+	private static class Slot {
+		final String name;
+		final Shard shard;
+		/** The last event state, or 0 (unaware) before the first. */
+		int state;
+		/** Whether a card was reported (CARD_INSERTED and no CARD_REMOVED yet), its ATR and identity. */
+		boolean reported;
+		ATR reportedAtr;
+		byte[] reportedIdentity;
+		/** When a held-back CARD_REMOVED is due, if it is in pendingRemovals. */
+		long removalDueNanos;
+		Slot(String name, Shard shard) {
+			this.name = name;
+			this.shard = shard;
+		}
+		boolean isPresent() {
+			return ShardedStatusMonitor.isPresent(state);
+		}
+	}
+
+	private final JnaTerminalFactorySpi factory;
+	private final int readersPerShard;
+	/** Guards everything below, and is notified when an event is queued. */
+	private final Object lock = new Object();
+	private final Map<String, Slot> slots = new LinkedHashMap<String, Slot>();
+	private final List<Shard> shards = new ArrayList<Shard>();
+	private final ArrayDeque<Event> events = new ArrayDeque<Event>();
+	/** Removal hold-offs in milliseconds, by reader name substring, in the order set. */
+	private final Map<String, Long> holdOffs = new LinkedHashMap<String, Long>();
+	/** Slots whose CARD_REMOVED is held back. */
+	private final List<Slot> pendingRemovals = new ArrayList<Slot>();
+	private long suppressedCount;
+	private CardIdentifier identifier;
+	private long nextSequence = 1;
+	private JnaPCSCException failure;
+	private boolean closed;
+	/** The PnP wait in progress, if any. */
+	private WaitCancellation pnpCancellation;
+	private final Thread thread;
+
+	/**
+	 * @param readersPerShard
+	 *            the most readers to wait on in one call; at most
+	 *            PCSCLITE_MAX_READERS_CONTEXTS with pcsc-lite.
+	 */
+	public ShardedStatusMonitor(JnaTerminalFactorySpi factory, int readersPerShard) {
+		if (readersPerShard < 1)
+			throw new IllegalArgumentException("readersPerShard " + readersPerShard);
+		this.factory = factory;
+		this.readersPerShard = readersPerShard;
+		this.thread = new Thread(new Runnable() {
+			@Override public void run() {watchReaders();}
+		}, "jnasmartcardio-status-monitor");
+		this.thread.setDaemon(true);
+	}
+	public ShardedStatusMonitor(JnaTerminalFactorySpi factory) {
+		this(factory, PcscLiteSocketLibrary.PCSCLITE_MAX_READERS_CONTEXTS);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Hold back CARD_REMOVED events of readers whose name contains
+	 * readerNameContains (e.g. "Contactless", or "" for every reader) for
+	 * millis, and drop them if the same card is back in the meantime. Cards
+	 * are compared by identity if there is an identifier (see
+	 * {@link #setIdentifier(CardIdentifier)}), else by ATR. The first
+	 * matching setting applies; millis 0 turns it off. May be called while
+	 * the monitor runs.
+	 */
+	public void setHoldOff(String readerNameContains, long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("millis " + millis);
+		synchronized (lock) {
+			holdOffs.put(readerNameContains, millis);
+		}
+	}
+	/**
+	 * Identify each card inserted into a reader with a hold-off, so that
+	 * another card with the same ATR is not taken for the one held back.
+	 * Null (the default) compares ATRs only.
+	 */
+	public void setIdentifier(CardIdentifier identifier) {
+		synchronized (lock) {
+			this.identifier = identifier;
+		}
+	}
+	/** How many removal and insertion pairs were dropped by the hold-off. */
+	public long getSuppressedCount() {
+		synchronized (lock) {
+			return suppressedCount;
+		}
+	}
+
+	/**
+	 * The next event, waiting up to timeout for one.
+	 *
+	 * @return null on timeout, or once the queue is drained after
+	 *         {@link #close()}.
+	 * @throws JnaPCSCException
+	 *             if the monitor stopped because of an error.
+	 */
+	public Event poll(long timeout, TimeUnit unit) throws JnaPCSCException, InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (lock) {
+			while (true) {
+				long dueNanos = releaseDueRemovals();
+				if (!events.isEmpty())
+					return events.removeFirst();
+				if (failure != null)
+					throw new JnaPCSCException(failure.code, "Status monitor stopped", failure);
+				long remainingNanos = deadline - System.nanoTime();
+				if (closed || remainingNanos <= 0)
+					return null;
+				TimeUnit.NANOSECONDS.timedWait(lock, Math.min(remainingNanos, dueNanos));
+			}
+		}
+	}
+	/** Like {@link #poll(long, TimeUnit)} without a timeout. */
+	public Event take() throws JnaPCSCException, InterruptedException {
+		synchronized (lock) {
+			while (true) {
+				long dueNanos = releaseDueRemovals();
+				if (!events.isEmpty())
+					return events.removeFirst();
+				if (failure != null)
+					throw new JnaPCSCException(failure.code, "Status monitor stopped", failure);
+				if (closed)
+					return null;
+				if (dueNanos == Long.MAX_VALUE)
+					lock.wait();
+				else
+					TimeUnit.NANOSECONDS.timedWait(lock, dueNanos);
+			}
+		}
+	}
+
+	public int getReaderCount() {
+		synchronized (lock) {
+			return slots.size();
+		}
+	}
+	/**
+	 * The event counter of the reader as last seen by the monitor, or -1 if
+	 * the reader is not watched.
+	 */
+	public int getEventCount(String readerName) {
+		synchronized (lock) {
+			Slot slot = slots.get(readerName);
+			return slot == null ? -1 : slot.state >>> 16;
+		}
+	}
+	public int getShardCount() {
+		synchronized (lock) {
+			return shards.size();
+		}
+	}
+
+	/** Stop every thread; they release their contexts as they exit. */
+	@Override public void close() {
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+			if (pnpCancellation != null)
+				pnpCancellation.cancel();
+			for (Shard shard: shards)
+				shard.wake();
+			lock.notifyAll();
+		}
+	}
+	/** Wait for the threads to exit after {@link #close()}. */
+	public void join(long millis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(thread);
+		synchronized (lock) {
+			for (Shard shard: shards)
+				threads.add(shard.thread);
+		}
+		for (Thread t: threads)
+			t.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+	}
+
+	private void fail(JnaPCSCException e) {
+		synchronized (lock) {
+			if (closed)
+				return;
+			failure = e;
+		}
+		close();
+	}
+	/** Queue an event; call with lock held. */
+	private void emit(Event.Kind kind, Slot slot, ATR atr) {
+		events.addLast(new Event(nextSequence++, kind, slot.name, atr, slot.state >>> 16));
+		lock.notifyAll();
+	}
+	private long holdOffMillis(String readerName) {
+		for (Map.Entry<String, Long> e: holdOffs.entrySet())
+			if (readerName.contains(e.getKey()))
+				return e.getValue();
+		return 0;
+	}
+	private void reportInserted(Slot slot, ATR atr, byte[] identity) {
+		slot.reported = true;
+		slot.reportedAtr = atr;
+		slot.reportedIdentity = identity;
+		emit(Event.Kind.CARD_INSERTED, slot, atr);
+	}
+	private void reportRemoved(Slot slot) {
+		if (pendingRemovals.remove(slot))
+			slot.removalDueNanos = 0;
+		slot.reported = false;
+		slot.reportedAtr = null;
+		slot.reportedIdentity = null;
+		emit(Event.Kind.CARD_REMOVED, slot, null);
+	}
+	/**
+	 * Queue the held-back removals that are due; call with lock held.
+	 *
+	 * @return nanoseconds until the next one is due, or Long.MAX_VALUE.
+	 */
+	private long releaseDueRemovals() {
+		if (pendingRemovals.isEmpty())
+			return Long.MAX_VALUE;
+		long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+		for (Slot slot: pendingRemovals.toArray(new Slot[pendingRemovals.size()])) {
+			long remaining = slot.removalDueNanos - now;
+			if (remaining <= 0)
+				reportRemoved(slot);
+			else
+				next = Math.min(next, remaining);
+		}
+		return next;
+	}
+
+	private void watchReaders() {
+		JnaCardTerminals terminals;
+		try {
+			terminals = (JnaCardTerminals) factory.engineTerminals();
+		} catch (EstablishContextException e) {
+			fail(e.getCause());
+			return;
+		}
+		try {
+			SCardReaderState[] pnp = new SCardReaderState[1];
+			new SCardReaderState().toArray((Structure[]) pnp);
+			pnp[0].szReader = WinscardConstants.PNP_READER_ID;
+			boolean usePnp = true;
+			while (true) {
+				WaitCancellation cancellation = new WaitCancellation();
+				synchronized (lock) {
+					if (closed)
+						return;
+					pnpCancellation = cancellation;
+				}
+				// The first call returns at once. Readers are listed after each
+				// wait, so one plugged in after the listing wakes the next wait.
+				try {
+					terminals.getStatusChange(terminals.new Wait(usePnp ? 0 : POLL_MILLIS, cancellation), pnp);
+				} catch (JnaPCSCException e) {
+					if (!cancellation.isCancelled())
+						throw e;
+					return;  // closed
+				}
+				pnp[0].dwCurrentState = pnp[0].dwEventState;
+				if (0 != (pnp[0].dwEventState.intValue() & WinscardConstants.SCARD_STATE_UNKNOWN))
+					usePnp = false;
+				updateReaders(terminals.listReaderNames());
+			}
+		} catch (CardException e) {
+			fail(e instanceof JnaPCSCException ? (JnaPCSCException) e : new JnaPCSCException(e));
+		} finally {
+			close(terminals);
+		}
+	}
+	private static void close(JnaCardTerminals terminals) {
+		try {
+			terminals.close();
+		} catch (JnaPCSCException e) {
+			// the context is usually already dead
+		}
+	}
+	private void updateReaders(List<String> readerNames) throws JnaPCSCException {
+		synchronized (lock) {
+			if (closed)
+				return;
+			Set<String> current = new HashSet<String>(readerNames);
+			for (Iterator<Slot> it = slots.values().iterator(); it.hasNext();) {
+				Slot slot = it.next();
+				if (current.contains(slot.name))
+					continue;
+				it.remove();
+				slot.shard.slots.remove(slot);
+				slot.shard.wake();
+				if (slot.reported)
+					reportRemoved(slot);
+				emit(Event.Kind.READER_REMOVED, slot, null);
+			}
+			for (String name: readerNames) {
+				if (slots.containsKey(name))
+					continue;
+				Shard shard = shardWithRoom();
+				Slot slot = new Slot(name, shard);
+				slots.put(name, slot);
+				shard.slots.add(slot);
+				shard.wake();
+				emit(Event.Kind.READER_ADDED, slot, null);
+			}
+		}
+	}
+	/** The fullest shard with room for a reader, or a new one; call with lock held. */
+	private Shard shardWithRoom() throws JnaPCSCException {
+		Shard best = null;
+		for (Shard shard: shards)
+			if (shard.slots.size() < readersPerShard && (best == null || shard.slots.size() > best.slots.size()))
+				best = shard;
+		if (best != null)
+			return best;
+		JnaCardTerminals terminals;
+		try {
+			terminals = (JnaCardTerminals) factory.engineTerminals();
+		} catch (EstablishContextException e) {
+			throw e.getCause();
+		}
+		Shard shard = new Shard(shards.size(), terminals);
+		shards.add(shard);
+		shard.thread.start();
+		return shard;
+	}
+
+	/** A context and thread waiting on up to readersPerShard readers. */
+	private class Shard implements Runnable {
+		final JnaCardTerminals terminals;
+		final Thread thread;
+		/** Guarded by lock, like the field below. */
+		final List<Slot> slots = new ArrayList<Slot>();
+		/** The wait in progress, if any. */
+		WaitCancellation cancellation;
+		Shard(int index, JnaCardTerminals terminals) {
+			this.terminals = terminals;
+			this.thread = new Thread(this, "jnasmartcardio-status-shard-" + index);
+			this.thread.setDaemon(true);
+		}
+		/** Make the thread pick up a change of its readers; call with lock held. */
+		void wake() {
+			if (cancellation != null)
+				cancellation.cancel();
+		}
+		@Override public void run() {
+			try {
+				while (waitOnce()) {}
+			} catch (JnaPCSCException e) {
+				fail(e);
+			} catch (InterruptedException e) {
+				// closed
+			} finally {
+				close(terminals);
+			}
+		}
+		/** @return false once the monitor is closed. */
+		private boolean waitOnce() throws JnaPCSCException, InterruptedException {
+			Slot[] watched;
+			WaitCancellation cancellation = new WaitCancellation();
+			synchronized (lock) {
+				while (slots.isEmpty() && !closed)
+					lock.wait();
+				if (closed)
+					return false;
+				watched = slots.toArray(new Slot[slots.size()]);
+				this.cancellation = cancellation;
+			}
+			SCardReaderState[] states = new SCardReaderState[watched.length];
+			new SCardReaderState().toArray((Structure[]) states);
+			for (int i = 0; i < watched.length; i++) {
+				states[i].szReader = watched[i].name;
+				states[i].dwCurrentState = new Dword(watched[i].state);
+			}
+			try {
+				terminals.getStatusChange(terminals.new Wait(0, cancellation), states);
+			} catch (JnaPCSCException e) {
+				if (!cancellation.isCancelled())
+					throw e;
+				return true;  // the readers changed, or the monitor was closed
+			}
+			byte[][] identities = identify(watched, states);
+			synchronized (lock) {
+				this.cancellation = null;
+				for (int i = 0; i < watched.length; i++)
+					if (slots.contains(watched[i]))
+						update(watched[i], states[i], identities[i]);
+			}
+			return true;
+		}
+		/** Identify the cards inserted into readers with a hold-off, outside the lock. */
+		private byte[][] identify(Slot[] watched, SCardReaderState[] states) {
+			byte[][] identities = new byte[watched.length][];
+			CardIdentifier identifier;
+			boolean[] inserted = new boolean[watched.length];
+			synchronized (lock) {
+				identifier = ShardedStatusMonitor.this.identifier;
+				if (identifier == null)
+					return identities;
+				for (int i = 0; i < watched.length; i++)
+					inserted[i] = holdOffMillis(watched[i].name) != 0 && isInsertion(watched[i].state, states[i].dwEventState.intValue());
+			}
+			for (int i = 0; i < watched.length; i++) {
+				if (!inserted[i])
+					continue;
+				try {
+					identities[i] = identifier.identify(terminals, watched[i].name, atr(states[i]));
+				} catch (RuntimeException e) {
+					// compare by ATR instead
+				}
+			}
+			return identities;
+		}
+	}
+	private static boolean isPresent(int state) {
+		return 0 != (state & WinscardConstants.SCARD_STATE_PRESENT) && 0 == (state & (WinscardConstants.SCARD_STATE_UNKNOWN | WinscardConstants.SCARD_STATE_IGNORE));
+	}
+	/** Whether going from state to newState inserts a card, by itself or in a swap. */
+	private static boolean isInsertion(int state, int newState) {
+		return isPresent(newState) && (!isPresent(state) || state >>> 16 != newState >>> 16);
+	}
+	private static ATR atr(SCardReaderState state) {
+		int atrLength = Math.min(state.cbAtr.intValue(), state.rgbAtr.length);
+		return atrLength == 0 ? null : new ATR(Arrays.copyOf(state.rgbAtr, atrLength));
+	}
+	/** Queue the events between the slot's state and the new one; call with lock held. */
+	private void update(Slot slot, SCardReaderState state, byte[] identity) {
+		boolean wasPresent = slot.isPresent();
+		int oldCounter = slot.state >>> 16;
+		slot.state = state.dwEventState.intValue();
+		boolean present = slot.isPresent();
+		// Both present but a different event counter: the card was swapped.
+		boolean swapped = wasPresent && present && oldCounter != slot.state >>> 16;
+		if (wasPresent && (!present || swapped) && slot.reported && !pendingRemovals.contains(slot)) {
+			long holdOffMillis = holdOffMillis(slot.name);
+			if (holdOffMillis == 0) {
+				reportRemoved(slot);
+			} else {
+				slot.removalDueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(holdOffMillis);
+				pendingRemovals.add(slot);
+				lock.notifyAll();
+			}
+		}
+		if (present && (!wasPresent || swapped)) {
+			ATR atr = atr(state);
+			if (pendingRemovals.contains(slot) && isSameCard(slot, atr, identity)) {
+				// The same card is back within the hold-off: jitter.
+				pendingRemovals.remove(slot);
+				slot.removalDueNanos = 0;
+				suppressedCount++;
+			} else {
+				if (slot.reported)
+					reportRemoved(slot);
+				reportInserted(slot, atr, identity);
+			}
+		}
+	}
+	/**
+	 * Compare identities if both cards have one; otherwise only the ATRs,
+	 * which cannot tell apart two cards of the same model.
+	 */
+	private static boolean isSameCard(Slot slot, ATR atr, byte[] identity) {
+		if (identity != null && slot.reportedIdentity != null)
+			return Arrays.equals(identity, slot.reportedIdentity);
+		return atr == null ? slot.reportedAtr == null : atr.equals(slot.reportedAtr);
+	}
+
+	@Override public String toString() {
+		synchronized (lock) {
+			return String.format("%s{readers=%d, shards=%d, queued=%d, closed=%s}", getClass().getSimpleName(), slots.size(), shards.size(), events.size(), closed);
+		}
+	}
+}
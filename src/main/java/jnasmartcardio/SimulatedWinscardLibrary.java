@@ -0,0 +1,287 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminal;
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.DwordByReference;
+import jnasmartcardio.Winscard.SCardContext;
+import jnasmartcardio.Winscard.SCardContextByReference;
+import jnasmartcardio.Winscard.SCardHandle;
+import jnasmartcardio.Winscard.SCardHandleByReference;
+import jnasmartcardio.Winscard.SCardReaderState;
+import jnasmartcardio.Winscard.ScardIoRequest;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+import jnasmartcardio.Winscard.WinscardLibrary;
+
+import com.sun.jna.Pointer;
+
+/**
+ * A PC/SC library implemented in Java with a fixed set of readers, each
+ * holding a card that answers every command, for load tests and benchmarks
+ * without hardware.
+ *
+ * <p>
+ * Each reader handles one command at a time, like a real reader, and takes
+ * the configured latency per command. A command with Le gets Le zero bytes
+ * (256 for Le 00) and SW 9000; others get just 9000. The readers and cards
+ * never change, so SCardGetStatusChange only returns when it times out or
+ * is cancelled.
+ *
+ * <pre>
+ * SimulatedWinscardLibrary lib = new SimulatedWinscardLibrary(8, 2000);
+ * CardTerminals terminals = new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+ * </pre>
+ */
+public class SimulatedWinscardLibrary implements WinscardLibrary {
+	private static final byte[] ATR = {0x3b, (byte) 0x80, (byte) 0x80, 0x01, 0x01};
+
+	private static class Reader {
+		final String name;
+		/** Held while a command is processed. */
+		final Object lock = new Object();
+		Reader(String name) {this.name = name;}
+	}
+
+	private final Map<String, Reader> readers = new LinkedHashMap<String, Reader>();
+	private final long latencyNanos;
+	private final AtomicLong nextHandle = new AtomicLong(0x1000);
+	private final ConcurrentMap<Long, Boolean> contexts = new ConcurrentHashMap<Long, Boolean>();
+	private final ConcurrentMap<Long, Reader> handles = new ConcurrentHashMap<Long, Reader>();
+	private final AtomicLong transmits = new AtomicLong();
+	/** Notified by SCardCancel; guarded by itself. */
+	private final Object cancelLock = new Object();
+	private long cancelCount;
+
+	/**
+	 * @param readerCount
+	 *            number of readers, named "Simulated Reader 0" and so on.
+	 * @param latencyMicros
+	 *            time each reader takes per command.
+	 */
+	public SimulatedWinscardLibrary(int readerCount, long latencyMicros) {
+		if (readerCount < 1 || latencyMicros < 0)
+			throw new IllegalArgumentException(String.format("readerCount=%d latencyMicros=%d", readerCount, latencyMicros));
+		for (int i = 0; i < readerCount; i++) {
+			String name = "Simulated Reader " + i;
+			readers.put(name, new Reader(name));
+		}
+		this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+	}
+
+	/** A WinscardLibInfo for this library, for JnaTerminalFactorySpi. */
+	public WinscardLibInfo libInfo() {
+		return Winscard.libInfo(this);
+	}
+	/** Number of SCardTransmit calls so far. */
+	public long getTransmitCount() {return transmits.get();}
+
+	private static Dword dword(long value) {return new Dword(value);}
+	private boolean isValid(SCardContext context) {
+		return contexts.containsKey(context.longValue());
+	}
+	private int readerState() {
+		return WinscardConstants.SCARD_STATE_PRESENT | (1 << 16);
+	}
+
+	@Override public Dword SCardEstablishContext(Dword dwScope, Pointer pvReserved1, Pointer pvReserved2, SCardContextByReference phContext) {
+		long context = nextHandle.getAndIncrement();
+		contexts.put(context, Boolean.TRUE);
+		phContext.setValue(new SCardContext(context));
+		return dword(0);
+	}
+	@Override public Dword SCardReleaseContext(SCardContext hContext) {
+		return dword(contexts.remove(hContext.longValue()) == null ? WinscardConstants.SCARD_E_INVALID_HANDLE : 0);
+	}
+	@Override public Dword SCardIsValidContext(SCardContext hContext) {
+		return dword(isValid(hContext) ? 0 : WinscardConstants.SCARD_E_INVALID_HANDLE);
+	}
+	@Override public Dword SCardConnect(SCardContext hContext, String szReader, Dword dwSharMode, Dword dwPreferredProtocols, SCardHandleByReference phCard, DwordByReference pdwActiveProtocol) {
+		if (!isValid(hContext)) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		Reader reader = readers.get(szReader);
+		if (reader == null) return dword(WinscardConstants.SCARD_E_UNKNOWN_READER);
+		long handle = nextHandle.getAndIncrement();
+		handles.put(handle, reader);
+		phCard.setValue(new SCardHandle(handle));
+		int preferred = dwPreferredProtocols.intValue();
+		pdwActiveProtocol.setValue(dword(0 != (preferred & JnaCardTerminal.SCARD_PROTOCOL_T1) ? JnaCardTerminal.SCARD_PROTOCOL_T1 : preferred));
+		return dword(0);
+	}
+	@Override public Dword SCardReconnect(SCardHandle hCard, Dword dwShareMode, Dword dwPreferredProtocols, Dword dwInitialization, DwordByReference pdwActiveProtocol) {
+		if (!handles.containsKey(hCard.longValue())) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		pdwActiveProtocol.setValue(dword(JnaCardTerminal.SCARD_PROTOCOL_T1));
+		return dword(0);
+	}
+	@Override public Dword SCardDisconnect(SCardHandle hCard, Dword dwDisposition) {
+		return dword(handles.remove(hCard.longValue()) == null ? WinscardConstants.SCARD_E_INVALID_HANDLE : 0);
+	}
+	@Override public Dword SCardBeginTransaction(SCardHandle hCard) {
+		return dword(handles.containsKey(hCard.longValue()) ? 0 : WinscardConstants.SCARD_E_INVALID_HANDLE);
+	}
+	@Override public Dword SCardEndTransaction(SCardHandle hCard, Dword dwDisposition) {
+		return dword(handles.containsKey(hCard.longValue()) ? 0 : WinscardConstants.SCARD_E_INVALID_HANDLE);
+	}
+	@Override public Dword SCardStatus(SCardHandle hCard, ByteBuffer mszReaderName, DwordByReference pcchReaderLen, DwordByReference pdwState, DwordByReference pdwProtocol, ByteBuffer pbAtr, DwordByReference pcbAtrLen) {
+		Reader reader = handles.get(hCard.longValue());
+		if (reader == null) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		byte[] name = (reader.name + "\0\0").getBytes(Charset.forName("ascii"));
+		if (mszReaderName != null)
+			mszReaderName.duplicate().put(name, 0, Math.min(name.length, mszReaderName.remaining()));
+		if (pcchReaderLen != null)
+			pcchReaderLen.setValue(dword(name.length));
+		pdwState.setValue(dword(0x34));
+		pdwProtocol.setValue(dword(JnaCardTerminal.SCARD_PROTOCOL_T1));
+		if (pbAtr != null)
+			pbAtr.duplicate().put(ATR, 0, Math.min(ATR.length, pbAtr.remaining()));
+		pcbAtrLen.setValue(dword(ATR.length));
+		return dword(0);
+	}
+	@Override public Dword SCardGetStatusChange(SCardContext hContext, Dword dwTimeout, SCardReaderState[] rgReaderStates, Dword cReaders) {
+		if (!isValid(hContext)) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		boolean changed = false;
+		for (int i = 0; i < cReaders.intValue(); i++) {
+			SCardReaderState state = rgReaderStates[i];
+			int event;
+			if (WinscardConstants.PNP_READER_ID.equals(state.szReader)) {
+				event = 0;
+			} else if (readers.containsKey(state.szReader)) {
+				event = readerState();
+				state.cbAtr = dword(ATR.length);
+				Arrays.fill(state.rgbAtr, (byte) 0);
+				System.arraycopy(ATR, 0, state.rgbAtr, 0, ATR.length);
+			} else {
+				event = WinscardConstants.SCARD_STATE_UNKNOWN;
+			}
+			int current = state.dwCurrentState.intValue();
+			if (current == WinscardConstants.SCARD_STATE_UNAWARE || (current & ~WinscardConstants.SCARD_STATE_CHANGED) != event) {
+				event |= WinscardConstants.SCARD_STATE_CHANGED;
+				changed = true;
+			}
+			state.dwEventState = dword(event);
+		}
+		if (changed)
+			return dword(0);
+		long timeoutMillis = 0xffffffffL & dwTimeout.longValue();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis == 0xffffffffL ? Long.MAX_VALUE / 2000000 : timeoutMillis);
+		synchronized (cancelLock) {
+			long cancels = cancelCount;
+			while (cancels == cancelCount) {
+				long remainingNanos = deadline - System.nanoTime();
+				if (remainingNanos <= 0)
+					return dword(WinscardConstants.SCARD_E_TIMEOUT);
+				try {
+					TimeUnit.NANOSECONDS.timedWait(cancelLock, remainingNanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return dword(WinscardConstants.SCARD_E_CANCELLED);
+				}
+			}
+		}
+		return dword(WinscardConstants.SCARD_E_CANCELLED);
+	}
+	@Override public Dword SCardControl(SCardHandle hCard, Dword dwControlCode, ByteBuffer pbSendBuffer, Dword cbSendLength, ByteBuffer pbRecvBuffer, Dword cbRecvLength, DwordByReference lpBytesReturned) {
+		if (!handles.containsKey(hCard.longValue())) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		lpBytesReturned.setValue(dword(0));
+		return dword(0);
+	}
+	@Override public Dword SCardGetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, DwordByReference pcbAttrLen) {
+		return dword(WinscardConstants.SCARD_E_UNSUPPORTED_FEATURE);
+	}
+	@Override public Dword SCardSetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, Dword cbAttrLen) {
+		return dword(WinscardConstants.SCARD_E_UNSUPPORTED_FEATURE);
+	}
+	@Override public Dword SCardTransmit(SCardHandle hCard, ScardIoRequest pioSendPci, ByteBuffer pbSendBuffer, Dword cbSendLength, ScardIoRequest pioRecvPci, ByteBuffer pbRecvBuffer, DwordByReference pcbRecvLength) {
+		Reader reader = handles.get(hCard.longValue());
+		if (reader == null) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		int commandLength = cbSendLength.intValue();
+		if (commandLength < 4) return dword(WinscardConstants.SCARD_E_INVALID_PARAMETER);
+		int le = expectedLength(pbSendBuffer, commandLength);
+		if (le + 2 > pcbRecvLength.getValue().intValue())
+			return dword(WinscardConstants.SCARD_E_INSUFFICIENT_BUFFER);
+		synchronized (reader.lock) {
+			transmits.incrementAndGet();
+			// Thread.sleep rounds up to milliseconds on some JDKs.
+			long deadline = System.nanoTime() + latencyNanos;
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > 0)
+				LockSupport.parkNanos(remaining);
+			ByteBuffer out = pbRecvBuffer.duplicate();
+			for (int i = 0; i < le; i++)
+				out.put((byte) 0);
+			out.put((byte) 0x90).put((byte) 0);
+		}
+		pcbRecvLength.setValue(dword(le + 2));
+		return dword(0);
+	}
+	/** Ne of a short or extended command, or 0 if it has no Le. */
+	private static int expectedLength(ByteBuffer command, int length) {
+		int p = command.position();
+		if (length == 5) {
+			int le = command.get(p + 4) & 0xff;
+			return le == 0 ? 256 : le;
+		}
+		int lc = command.get(p + 4) & 0xff;
+		if (lc != 0) {
+			// short case 3 or 4
+			if (length == 5 + lc + 1) {
+				int le = command.get(p + length - 1) & 0xff;
+				return le == 0 ? 256 : le;
+			}
+			return 0;
+		}
+		if (length == 7) {
+			int le = (command.get(p + 5) & 0xff) << 8 | (command.get(p + 6) & 0xff);
+			return le == 0 ? 65536 : le;
+		}
+		if (length > 7) {
+			int extendedLc = (command.get(p + 5) & 0xff) << 8 | (command.get(p + 6) & 0xff);
+			if (length == 7 + extendedLc + 2) {
+				int le = (command.get(p + length - 2) & 0xff) << 8 | (command.get(p + length - 1) & 0xff);
+				return le == 0 ? 65536 : le;
+			}
+		}
+		return 0;
+	}
+	@Override public Dword SCardListReaders(SCardContext hContext, ByteBuffer mszGroups, ByteBuffer mszReaders, DwordByReference pcchReaders) {
+		if (!isValid(hContext)) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		StringBuilder sb = new StringBuilder();
+		for (String name: readers.keySet())
+			sb.append(name).append('\0');
+		sb.append('\0');
+		byte[] bytes = sb.toString().getBytes(Charset.forName("ascii"));
+		if (mszReaders != null) {
+			if (mszReaders.remaining() < bytes.length)
+				return dword(WinscardConstants.SCARD_E_INSUFFICIENT_BUFFER);
+			mszReaders.duplicate().put(bytes);
+		}
+		pcchReaders.setValue(dword(bytes.length));
+		return dword(0);
+	}
+	@Override public Dword SCardFreeMemory(SCardContext hContext, Pointer pvMem) {
+		return dword(0);
+	}
+	@Override public Dword SCardListReaderGroups(SCardContext hContext, ByteBuffer mszGroups, DwordByReference pcchGroups) {
+		return dword(WinscardConstants.SCARD_E_UNSUPPORTED_FEATURE);
+	}
+	@Override public Dword SCardCancel(SCardContext hContext) {
+		synchronized (cancelLock) {
+			cancelCount++;
+			cancelLock.notifyAll();
+		}
+		return dword(0);
+	}
+	@Override public String toString() {return String.format("%s{readers=%d, latencyNanos=%d}", getClass().getSimpleName(), readers.size(), latencyNanos);}
+}
@@ -5,12 +5,28 @@
 package jnasmartcardio;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.spi.AbstractInterruptibleChannel;
 import java.nio.charset.Charset;
 import java.security.Provider;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.smartcardio.ATR;
 import javax.smartcardio.Card;
@@ -42,20 +58,55 @@ public class Smartcardio extends Provider {
 	public Smartcardio() {
 		super(PROVIDER_NAME, 0.2d, "JNA-to-PCSC Provider");
 		put("TerminalFactory.PC/SC", JnaTerminalFactorySpi.class.getName());
+		put("TerminalFactory.Remote", RemoteSmartcardio.RemoteTerminalFactorySpi.class.getName());
 	}
 	
 	public static class JnaTerminalFactorySpi extends TerminalFactorySpi {
 		public static final int SCARD_SCOPE_USER = 0;
 		public static final int SCARD_SCOPE_TERMINAL = 1;
 		public static final int SCARD_SCOPE_SYSTEM = 2;
+		/**
+		 * TerminalFactory.getInstance parameter that makes every
+		 * {@link #engineTerminals()} share one context. pcsc-lite serializes
+		 * the calls of one context, so the sharers wait for each other's
+		 * calls. And SCardCancel cancels every wait of the context, so
+		 * {@link JnaCardTerminals#cancelWait()} or a {@link WaitCancellation}
+		 * of one sharer also wakes the waits of the others, which then wait
+		 * again.
+		 */
+		public static final String SHARED_CONTEXT = "sharedContext";
+		/** Null until first use if the shared native library is to be used. */
 		private final Winscard.WinscardLibInfo libInfo;
+		private final boolean sharedContext;
 
+		/**
+		 * @param parameter
+		 *            the parameter given to TerminalFactory.getInstance. It
+		 *            may be a {@link Winscard.WinscardLibInfo} to use instead
+		 *            of the native library (e.g. an instrumented one), or
+		 *            {@link #SHARED_CONTEXT}; otherwise it is ignored.
+		 */
 		public JnaTerminalFactorySpi(Object parameter) {
-			this(Winscard.openLib());
+			this(parameter instanceof Winscard.WinscardLibInfo ? (Winscard.WinscardLibInfo) parameter : null, SHARED_CONTEXT.equals(parameter));
 		}
 		
 		public JnaTerminalFactorySpi(Winscard.WinscardLibInfo libInfo) {
+			this(libInfo, false);
+		}
+		/**
+		 * @param libInfo
+		 *            the library, or null to load the native library (once per
+		 *            process) when it is first needed.
+		 * @param sharedContext
+		 *            if true, every {@link #engineTerminals()} shares one
+		 *            reference-counted context per library, which is released
+		 *            when the last JnaCardTerminals is closed. This saves a
+		 *            round trip to the daemon for each terminals() call, at
+		 *            the costs listed at {@link #SHARED_CONTEXT}.
+		 */
+		public JnaTerminalFactorySpi(Winscard.WinscardLibInfo libInfo, boolean sharedContext) {
 			this.libInfo = libInfo;
+			this.sharedContext = sharedContext;
 		}
 		/**
 		 * Likely exceptions
@@ -71,9 +122,28 @@ public class Smartcardio extends Provider {
 		 * running (OS X). On OS X (pcscd 1.4), the daemon is shut down when
 		 * there are no readers plugged in, and the library gives this error.
 		 * Can also happen on Windows when you don't have permission.
+		 * <li>EstablishContextException(JnaPCSCException(
+		 * {@link WinscardConstants#SCARD_E_NO_SERVICE})) with an
+		 * UnsatisfiedLinkError as its cause: the PC/SC library could not be
+		 * loaded. The next call tries to load it again.
 		 * </ul>
 		 */
 		@Override public CardTerminals engineTerminals() throws EstablishContextException {
+			Winscard.WinscardLibInfo libInfo = this.libInfo;
+			if (libInfo == null) {
+				try {
+					libInfo = Winscard.sharedLib();
+				} catch (UnsatisfiedLinkError e) {
+					throw new EstablishContextException(new JnaPCSCException(WinscardConstants.SCARD_E_NO_SERVICE, "Could not load the PC/SC library", e));
+				}
+			}
+			if (sharedContext) {
+				try {
+					return new JnaCardTerminals(libInfo, SharedContext.acquire(libInfo, SCARD_SCOPE_SYSTEM));
+				} catch (JnaPCSCException e) {
+					throw new EstablishContextException(e);
+				}
+			}
 			Winscard.SCardContextByReference phContext = new Winscard.SCardContextByReference();
 			try {
 				check("SCardEstablishContext", libInfo.lib.SCardEstablishContext(new Dword(SCARD_SCOPE_SYSTEM), null, null, phContext));
@@ -85,9 +155,80 @@ public class Smartcardio extends Provider {
 		}
 	}
 
+	/**
+	 * A context shared by several JnaCardTerminals, released when the last of
+	 * them is closed. A context found dead (e.g. after pcscd restarted) is
+	 * not handed out again; its holders keep it until they close.
+	 */
+	static class SharedContext {
+		private static final List<SharedContext> ALL = new ArrayList<SharedContext>();
+		final Winscard.WinscardLibInfo libInfo;
+		final int scope;
+		final Winscard.SCardContext scardContext;
+		private int refCount;
+		private SharedContext(Winscard.WinscardLibInfo libInfo, int scope, Winscard.SCardContext scardContext) {
+			this.libInfo = libInfo;
+			this.scope = scope;
+			this.scardContext = scardContext;
+		}
+		static SharedContext acquire(Winscard.WinscardLibInfo libInfo, int scope) throws JnaPCSCException {
+			synchronized (ALL) {
+				for (Iterator<SharedContext> it = ALL.iterator(); it.hasNext();) {
+					SharedContext shared = it.next();
+					if (shared.libInfo != libInfo || shared.scope != scope)
+						continue;
+					if (SCARD_S_SUCCESS != libInfo.lib.SCardIsValidContext(shared.scardContext).intValue()) {
+						it.remove();
+						continue;
+					}
+					shared.refCount++;
+					return shared;
+				}
+				Winscard.SCardContextByReference phContext = new Winscard.SCardContextByReference();
+				check("SCardEstablishContext", libInfo.lib.SCardEstablishContext(new Dword(scope), null, null, phContext));
+				SharedContext shared = new SharedContext(libInfo, scope, phContext.getValue());
+				shared.refCount = 1;
+				ALL.add(shared);
+				return shared;
+			}
+		}
+		/** Decrement the reference count, releasing the context at 0. */
+		long release() {
+			synchronized (ALL) {
+				if (--refCount > 0)
+					return SCARD_S_SUCCESS;
+				ALL.remove(this);
+			}
+			return libInfo.lib.SCardReleaseContext(scardContext).longValue();
+		}
+	}
+
+	/**
+	 * Note on recovery: normally, once the daemon restarts or the service
+	 * stops, the context is dead and every later call fails. After
+	 * {@link #setRecoveryTimeout(long)}, calls that fail with
+	 * {@link WinscardConstants#SCARD_E_NO_SERVICE},
+	 * {@link WinscardConstants#SCARD_E_SERVICE_STOPPED} or
+	 * {@link WinscardConstants#SCARD_E_INVALID_HANDLE} check the context with
+	 * SCardIsValidContext; if it is dead, a new context is established (with
+	 * backoff while the daemon is down) and the call is retried once. The
+	 * next {@link #waitForChange(long)} returns immediately so that callers
+	 * resynchronize with the readers. Cards that were connected through the
+	 * old context are not recovered; they must be connected again.
+	 */
 	public static class JnaCardTerminals extends CardTerminals {
-		private final Winscard.SCardContext scardContext;
+		private static final long RECOVERY_INITIAL_BACKOFF_MILLIS = 100;
+		private static final long RECOVERY_MAX_BACKOFF_MILLIS = 5000;
+		private volatile Winscard.SCardContext scardContext;
 		private final Winscard.WinscardLibInfo libInfo;
+		/** Non-null if the context is shared with other JnaCardTerminals. */
+		private final SharedContext sharedContext;
+		private final Object recoveryLock = new Object();
+		private volatile long recoveryTimeoutMillis;
+		/** Incremented each time the context is re-established. */
+		private volatile int contextGeneration;
+		/** The contextGeneration that {@link #knownReaders} reflects. */
+		private int knownReadersGeneration;
 		/**
 		 * The readers that waitForChange observed in its last invocation, plus
 		 * the PNP reader if {@link #usePnp}. This must have a contiguous native
@@ -106,14 +247,112 @@ public class Smartcardio extends Provider {
 		 * service exits and gives errors when there are no readers.
 		 */
 		private final boolean usePnp = true;
-		private boolean isClosed;
+		private volatile boolean isClosed;
+		/** The canonical JnaCardTerminal of each reader name. */
+		private final ConcurrentMap<String, JnaCardTerminal> terminalsByName = new ConcurrentHashMap<String, JnaCardTerminal>();
+		/** Guards publishing {@link #snapshot}; no native call is made under it. */
+		private final Object snapshotLock = new Object();
+		private volatile Snapshot snapshot;
+		/** Guarded by snapshotLock. */
+		private long snapshotVersion;
+		/** Arrays for checking the snapshot, so that concurrent checks share no state. */
+		private final ConcurrentLinkedQueue<SCardReaderState[]> spareStates = new ConcurrentLinkedQueue<SCardReaderState[]>();
+		/** Cached {@link ReaderCapabilities}, dropped when the reader goes away. */
+		private final ConcurrentMap<String, ReaderCapabilities> capabilitiesByName = new ConcurrentHashMap<String, ReaderCapabilities>();
+		/**
+		 * Incremented by {@link #cancelWait()}, so that a wait woken by
+		 * SCardCancel can tell whether it was meant: the call cancels every
+		 * wait on the context.
+		 */
+		private final AtomicInteger cancelWaitCount = new AtomicInteger();
+		/** Waits inside SCardGetStatusChange, see {@link #wakeCancelledWaits()}. */
+		private final Set<Wait> activeWaits = Collections.newSetFromMap(new ConcurrentHashMap<Wait, Boolean>());
 		public JnaCardTerminals(Winscard.WinscardLibInfo libInfo, Winscard.SCardContext scardContext) {
+			this(libInfo, scardContext, null);
+		}
+		JnaCardTerminals(Winscard.WinscardLibInfo libInfo, SharedContext sharedContext) {
+			this(libInfo, sharedContext.scardContext, sharedContext);
+		}
+		private JnaCardTerminals(Winscard.WinscardLibInfo libInfo, Winscard.SCardContext scardContext, SharedContext sharedContext) {
 			this.libInfo = libInfo;
 			this.scardContext = scardContext;
+			this.sharedContext = sharedContext;
 			this.knownReaders = createScardReaderStates(Collections.<String>emptyList(), usePnp, new SCardReaderState[0]);
 			this.zombieReaders = new ArrayList<SCardReaderState>();
 		}
 
+		/**
+		 * Enable recovery of the context (see the class documentation).
+		 *
+		 * @param timeoutMillis
+		 *            how long a call may wait for the daemon to come back
+		 *            before failing; 0 disables recovery (the default).
+		 */
+		public void setRecoveryTimeout(long timeoutMillis) {
+			if (timeoutMillis < 0)
+				throw new IllegalArgumentException("Negative timeout " + timeoutMillis);
+			this.recoveryTimeoutMillis = timeoutMillis;
+		}
+		/** Number of times the context has been re-established. */
+		public int getRecoveryCount() {return contextGeneration;}
+
+		private static boolean isContextLost(long code) {
+			switch ((int)code) {
+			case WinscardConstants.SCARD_E_NO_SERVICE:
+			case WinscardConstants.SCARD_E_SERVICE_STOPPED:
+			case WinscardConstants.SCARD_E_INVALID_HANDLE:
+				return true;
+			default:
+				return false;
+			}
+		}
+		/**
+		 * Called when a call using failedContext threw e. If recovery is
+		 * enabled and the context is dead, establish a new one, retrying with
+		 * backoff until the recovery timeout.
+		 *
+		 * @return true if the caller should retry with the new context; false
+		 *         if it should throw e.
+		 */
+		boolean recover(Winscard.SCardContext failedContext, JnaPCSCException e) throws JnaPCSCException {
+			long timeoutMillis = recoveryTimeoutMillis;
+			if (timeoutMillis == 0 || !isContextLost(e.code))
+				return false;
+			synchronized (recoveryLock) {
+				if (isClosed)
+					return false;
+				if (scardContext != failedContext)
+					return true;  // another thread already recovered
+				// SCARD_E_INVALID_HANDLE may be about a card handle instead.
+				if (SCARD_S_SUCCESS == libInfo.lib.SCardIsValidContext(failedContext).intValue())
+					return false;
+				if (sharedContext == null || failedContext != sharedContext.scardContext)
+					libInfo.lib.SCardReleaseContext(failedContext);
+				Backoff backoff = new Backoff(RECOVERY_INITIAL_BACKOFF_MILLIS, RECOVERY_MAX_BACKOFF_MILLIS);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+				Winscard.SCardContextByReference phContext = new Winscard.SCardContextByReference();
+				while (true) {
+					long err = libInfo.lib.SCardEstablishContext(new Dword(JnaTerminalFactorySpi.SCARD_SCOPE_SYSTEM), null, null, phContext).longValue();
+					if (err == SCARD_S_SUCCESS) {
+						scardContext = phContext.getValue();
+						contextGeneration++;
+						// Readers may have been swapped while the daemon was down.
+						capabilitiesByName.clear();
+						return true;
+					}
+					long delayMillis = Math.min(backoff.nextDelayMillis(), TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+					if (delayMillis <= 0 || isClosed)
+						throw new JnaPCSCException(err, String.format("Could not re-establish the context within %d ms", timeoutMillis), e);
+					try {
+						Thread.sleep(delayMillis);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw e;
+					}
+				}
+			}
+		}
+
 		/**
 		 * With {@link State#ALL}, {@link State#CARD_PRESENT}, or
 		 * {@link State#CARD_ABSENT}, returns the current list of terminals
@@ -129,8 +368,27 @@ public class Smartcardio extends Provider {
 		 * if there was no prior {@link #waitForChange(long)} instead of
 		 * returning a list that is possibly inconsistent with the internal
 		 * waitForChange state.
+		 *
+		 * <p>
+		 * With ALL, CARD_PRESENT and CARD_ABSENT, the result is an immutable
+		 * {@link JnaTerminalList}. The same list instance is returned until a
+		 * reader or card change is observed, which costs one non-blocking
+		 * SCardGetStatusChange per call, made without holding a lock so that
+		 * concurrent calls do not wait for each other. Each reader name always
+		 * maps to the same JnaCardTerminal instance for the lifetime of this
+		 * object, so terminals can be used as map keys.
 		 */
 		@Override public List<CardTerminal> list(State state) throws CardException {
+			Winscard.SCardContext context = scardContext;
+			try {
+				return listOnce(state);
+			} catch (JnaPCSCException e) {
+				if (!recover(context, e))
+					throw e;
+				return listOnce(state);
+			}
+		}
+		private List<CardTerminal> listOnce(State state) throws CardException {
 			if (null == state)
 				throw new NullPointerException("State must be non-null. To get all terminals, call list() or list(State.ALL).");
 			if (state == State.CARD_REMOVAL || state == State.CARD_INSERTION) {
@@ -152,50 +410,174 @@ public class Smartcardio extends Provider {
 					boolean shouldAdd = state == State.CARD_INSERTION && cardInserted ||
 							state == State.CARD_REMOVAL && cardRemoved;
 					if (shouldAdd)
-						r.add(new JnaCardTerminal(libInfo, this, readerState.szReader));
+						r.add(terminal(readerState.szReader));
 				}
 				if (state == State.CARD_REMOVAL) {
 					for (int i = 0; i < zombieReaders.size(); i++) {
 						SCardReaderState readerState = zombieReaders.get(i);
 						boolean wasPresent = 0 != (readerState.dwCurrentState.intValue() & WinscardConstants.SCARD_STATE_PRESENT);
 						if (wasPresent)
-							r.add(new JnaCardTerminal(libInfo, this, readerState.szReader));
+							r.add(terminal(readerState.szReader));
 					}
 				}
 				return r;
 			}
 
-			List<String> readerNames = listReaderNames();
-			if (readerNames.isEmpty())
-				return Collections.emptyList();
-			List<String> filteredReaderNames;
-			if (state == State.ALL) {
-				filteredReaderNames = readerNames;
-			} else {
-				SCardReaderState[] readers = new SCardReaderState[readerNames.size()];
-				new SCardReaderState().toArray((Structure[])readers);
-				for (int i = 0; i < readers.length; i++) {
-					readers[i].szReader = readerNames.get(i);
+			Snapshot snap = snapshot;
+			if (snap != null && snap.reusable && snap.generation == contextGeneration) {
+				Snapshot current = checkSnapshot(snap);
+				if (current != null)
+					return current.list(state);
+			}
+			return takeSnapshot(snap).list(state);
+		}
+
+		ReaderCapabilities cacheCapabilities(ReaderCapabilities capabilities) {
+			ReaderCapabilities existing = capabilitiesByName.putIfAbsent(capabilities.getReaderName(), capabilities);
+			return existing != null ? existing : capabilities;
+		}
+
+		/** The canonical terminal for the reader name. */
+		JnaCardTerminal terminal(String name) {
+			JnaCardTerminal terminal = terminalsByName.get(name);
+			if (terminal == null) {
+				JnaCardTerminal newTerminal = new JnaCardTerminal(libInfo, this, name);
+				terminal = terminalsByName.putIfAbsent(name, newTerminal);
+				if (terminal == null)
+					terminal = newTerminal;
+			}
+			return terminal;
+		}
+
+		/**
+		 * The readers and their states at one observation, with the lists
+		 * for State.ALL, CARD_PRESENT and CARD_ABSENT. Immutable.
+		 */
+		private static class Snapshot {
+			/** The PNP reader first, then the readers. */
+			final String[] readers;
+			final int[] eventStates;
+			final int generation;
+			/** False without PNP notifications: added readers would go unnoticed. */
+			final boolean reusable;
+			final JnaTerminalList all, present, absent;
+			Snapshot(SCardReaderState[] states, int generation, boolean reusable, JnaTerminalList all, JnaTerminalList present, JnaTerminalList absent) {
+				readers = new String[states.length];
+				eventStates = new int[states.length];
+				for (int i = 0; i < states.length; i++) {
+					readers[i] = states[i].szReader;
+					eventStates[i] = states[i].dwEventState.intValue();
 				}
-				check("SCardGetStatusChange", libInfo.lib.SCardGetStatusChange(scardContext, new Dword(0), readers, new Dword(readers.length)));
-				filteredReaderNames = new ArrayList<String>();
-				boolean wantPresent = state == State.CARD_PRESENT;
-				for (int i = 0; i < readers.length; i++) {
-					boolean isPresent = 0 != (WinscardConstants.SCARD_STATE_PRESENT & readers[i].dwEventState.intValue());
-					if (wantPresent == isPresent)
-						filteredReaderNames.add(readers[i].szReader);
+				this.generation = generation;
+				this.reusable = reusable;
+				this.all = all;
+				this.present = present;
+				this.absent = absent;
+			}
+			JnaTerminalList list(State state) {
+				return state == State.ALL ? all : state == State.CARD_PRESENT ? present : absent;
+			}
+		}
+
+		/**
+		 * Check with a single non-blocking SCardGetStatusChange whether any
+		 * reader was added or removed, or any card state changed, since the
+		 * snapshot was taken. If only card states changed, publish a snapshot
+		 * from the result.
+		 *
+		 * @return the current snapshot, or null if the readers changed.
+		 */
+		private Snapshot checkSnapshot(Snapshot snap) throws JnaPCSCException {
+			SCardReaderState[] states = borrowStates(snap);
+			try {
+				for (int i = 0; i < states.length; i++) {
+					states[i].dwCurrentState = new Dword(snap.eventStates[i]);
+					states[i].dwEventState = new Dword(0);
 				}
+				Dword err = libInfo.lib.SCardGetStatusChange(scardContext, new Dword(0), states, new Dword(states.length));
+				if (WinscardConstants.SCARD_E_TIMEOUT == err.intValue())
+					return snap;
+				if (SCARD_S_SUCCESS != err.intValue())
+					return null;
+				for (SCardReaderState reader: states) {
+					// A reader was added (PNP) or removed (UNKNOWN).
+					int event = reader.dwEventState.intValue();
+					boolean changed = 0 != (event & WinscardConstants.SCARD_STATE_CHANGED);
+					if (changed && (WinscardConstants.PNP_READER_ID.equals(reader.szReader) || 0 != (event & WinscardConstants.SCARD_STATE_UNKNOWN)))
+						return null;
+				}
+				return publishSnapshot(snap, states, snap.generation, true);
+			} finally {
+				spareStates.offer(states);
 			}
-			CardTerminal[] cardTerminals = new CardTerminal[filteredReaderNames.size()];
-			for (int i = 0; i < filteredReaderNames.size(); i++) {
-				String name = filteredReaderNames.get(i);
-				cardTerminals[i] = new JnaCardTerminal(libInfo, this, name);
+		}
+		/** A spare array with the snapshot's readers, or a new one. */
+		private SCardReaderState[] borrowStates(Snapshot snap) {
+			SCardReaderState[] states;
+			while ((states = spareStates.poll()) != null) {
+				boolean same = states.length == snap.readers.length;
+				for (int i = 0; same && i < states.length; i++)
+					same = snap.readers[i].equals(states[i].szReader);
+				if (same)
+					return states;
+				// for readers of an older snapshot; drop it
+			}
+			states = new SCardReaderState[snap.readers.length];
+			new SCardReaderState().toArray((Structure[])states);
+			for (int i = 0; i < states.length; i++)
+				states[i].szReader = snap.readers[i];
+			return states;
+		}
+		private Snapshot takeSnapshot(Snapshot previous) throws JnaPCSCException {
+			List<String> readerNames = listReaderNames();
+			SCardReaderState[] states = new SCardReaderState[readerNames.size() + 1];
+			new SCardReaderState().toArray((Structure[])states);
+			states[0].szReader = WinscardConstants.PNP_READER_ID;
+			for (int i = 0; i < readerNames.size(); i++)
+				states[i + 1].szReader = readerNames.get(i);
+			int generation = contextGeneration;
+			check("SCardGetStatusChange", libInfo.lib.SCardGetStatusChange(scardContext, new Dword(0), states, new Dword(states.length)));
+			boolean reusable = 0 == (states[0].dwEventState.intValue() & WinscardConstants.SCARD_STATE_UNKNOWN);
+			Snapshot snap = publishSnapshot(previous, states, generation, reusable);
+			if (reusable)
+				spareStates.offer(states);
+			return snap;
+		}
+		/**
+		 * Publish a snapshot of states, unless another thread published one
+		 * since previous was read; then return that one, which is as recent.
+		 */
+		private Snapshot publishSnapshot(Snapshot previous, SCardReaderState[] states, int generation, boolean reusable) {
+			synchronized (snapshotLock) {
+				Snapshot current = snapshot;
+				if (current != previous)
+					return current;
+				long version = ++snapshotVersion;
+				List<CardTerminal> all = new ArrayList<CardTerminal>(states.length - 1);
+				List<CardTerminal> present = new ArrayList<CardTerminal>();
+				List<CardTerminal> absent = new ArrayList<CardTerminal>();
+				if (!capabilitiesByName.isEmpty()) {
+					List<String> names = new ArrayList<String>(states.length - 1);
+					for (int i = 1; i < states.length; i++)
+						names.add(states[i].szReader);
+					capabilitiesByName.keySet().retainAll(names);
+				}
+				for (int i = 1; i < states.length; i++) {
+					JnaCardTerminal terminal = terminal(states[i].szReader);
+					terminal.noteEventState(states[i].dwEventState.intValue());
+					all.add(terminal);
+					if (0 != (WinscardConstants.SCARD_STATE_PRESENT & states[i].dwEventState.intValue()))
+						present.add(terminal);
+					else
+						absent.add(terminal);
+				}
+				snapshot = new Snapshot(states, generation, reusable, new JnaTerminalList(all, version), new JnaTerminalList(present, version), new JnaTerminalList(absent, version));
+				return snapshot;
 			}
-			return Collections.unmodifiableList(Arrays.asList(cardTerminals));
 		}
 
 		/** Simple wrapper around SCardListReaders. */
-		private List<String> listReaderNames() throws JnaPCSCException {
+		List<String> listReaderNames() throws JnaPCSCException {
 			DwordByReference pcchReaders = new DwordByReference();
 			byte[] mszReaders = null;
 			long err;
@@ -282,6 +664,7 @@ public class Smartcardio extends Provider {
 					if (!currentReaderNames.contains(oldReader.szReader)) {
 						isReaderAddedOrRemoved = true;
 						zombieReaders.add(oldReader);
+						capabilitiesByName.remove(oldReader.szReader);
 					}
 				}
 			}
@@ -330,10 +713,36 @@ public class Smartcardio extends Provider {
 		 * </ul>
 		 */
 		@Override public boolean waitForChange(long timeoutMs) throws CardException {
-			if (timeoutMs < 0)
-				throw new IllegalArgumentException("Negative timeout " + timeoutMs);
-			else if (timeoutMs == 0)
-				timeoutMs = WinscardConstants.INFINITE;
+			return waitForChange(timeoutMs, null);
+		}
+		/**
+		 * Like {@link #waitForChange(long)}, but the wait can also be ended by
+		 * cancellation (may be null) or by interrupting the thread. Either
+		 * throws JnaPCSCException({@link WinscardConstants#SCARD_E_CANCELLED})
+		 * promptly; after an interruption, the thread stays interrupted.
+		 */
+		public boolean waitForChange(long timeoutMs, WaitCancellation cancellation) throws CardException {
+			Wait wait = new Wait(timeoutMs, cancellation);
+			Winscard.SCardContext context = scardContext;
+			try {
+				return waitForChangeOnce(wait);
+			} catch (JnaPCSCException e) {
+				if (!recover(context, e))
+					throw e;
+				return waitForChangeOnce(wait);
+			}
+		}
+		private boolean waitForChangeOnce(Wait wait) throws CardException {
+			wait.check();
+			int generation = contextGeneration;
+			if (knownReadersGeneration != generation) {
+				// The daemon restarted, so its state and event counters are
+				// unrelated to ours. Become unaware so that the wait below
+				// returns immediately with the current state.
+				for (SCardReaderState reader: knownReaders)
+					reader.dwEventState = new Dword(WinscardConstants.SCARD_STATE_UNAWARE);
+				knownReadersGeneration = generation;
+			}
 
 			zombieReaders.clear();
 			// On Linux pcsclite 1.7.4, and Mac OSX 10.10, the PNP reader does
@@ -357,10 +766,11 @@ public class Smartcardio extends Provider {
 			} else {
 				readers = knownReaders;
 			}
-			Dword statusError = libInfo.lib.SCardGetStatusChange(scardContext, new Dword(timeoutMs), readers, new Dword(readers.length));
-			if (WinscardConstants.SCARD_E_TIMEOUT == statusError.intValue())
+			if (!getStatusChange(wait, readers))
 				return false;
-			else check("SCardGetStatusChange", statusError);
+			for (SCardReaderState reader: knownReaders)
+				if (!WinscardConstants.PNP_READER_ID.equals(reader.szReader))
+					terminal(reader.szReader).noteEventState(reader.dwEventState.intValue());
 
 			if (usePnp) {
 				SCardReaderState pnpReader = knownReaders[0];
@@ -370,19 +780,283 @@ public class Smartcardio extends Provider {
 			}
 			return true;
 		}
+		/**
+		 * Make a {@link #waitForChange(long)}, or a wait for a card of one of
+		 * these terminals, that is blocked in another thread throw
+		 * JnaPCSCException( {@link WinscardConstants#SCARD_E_CANCELLED}). To
+		 * end a single wait, use a {@link WaitCancellation} instead.
+		 */
+		public void cancelWait() throws JnaPCSCException {
+			cancelWaitCount.incrementAndGet();
+			check("SCardCancel", wakeCancelledWaits());
+		}
+
+		/** The deadline and cancellation of one wait, kept across calls and recovery. */
+		class Wait {
+			private final boolean infinite;
+			/** System.nanoTime() deadline, unless infinite. */
+			private final long deadline;
+			private final WaitCancellation cancellation;
+			private final int cancelWaits = cancelWaitCount.get();
+			/** The waiting thread, set before the wait becomes active. */
+			private volatile Thread thread;
+			Wait(long timeoutMs, WaitCancellation cancellation) {
+				if (timeoutMs < 0)
+					throw new IllegalArgumentException("Negative timeout " + timeoutMs);
+				this.infinite = timeoutMs == 0;
+				this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+				this.cancellation = cancellation;
+			}
+			/** Throw if the wait was cancelled or the thread interrupted. */
+			void check() throws JnaPCSCException {
+				if (Thread.currentThread().isInterrupted())
+					throw new JnaPCSCException(WinscardConstants.SCARD_E_CANCELLED, "Interrupted");
+				if (cancellation != null && cancellation.isCancelled())
+					throw new JnaPCSCException(WinscardConstants.SCARD_E_CANCELLED, "Cancelled");
+				if (cancelWaitCount.get() != cancelWaits)
+					throw new JnaPCSCException(WinscardConstants.SCARD_E_CANCELLED, "Cancelled by cancelWait()");
+			}
+			/** Like check(), from any thread. */
+			boolean isCancelled() {
+				Thread t = thread;
+				return t != null && t.isInterrupted()
+					|| cancellation != null && cancellation.isCancelled()
+					|| cancelWaitCount.get() != cancelWaits;
+			}
+			/** Timeout of the next call, rounded up so that it ends after the deadline. */
+			int timeoutMillis() {
+				if (infinite)
+					return WinscardConstants.INFINITE;
+				long remainingNanos = Math.max(0, deadline - System.nanoTime());
+				return (int) Math.min(Integer.MAX_VALUE, (remainingNanos + 999999) / 1000000);
+			}
+			boolean isOver() {
+				return !infinite && deadline - System.nanoTime() <= 0;
+			}
+		}
+		/**
+		 * SCardGetStatusChange with the deadline and cancellation of wait. The
+		 * call is cancelled with SCardCancel if the thread is interrupted.
+		 *
+		 * @return false on timeout, true if the states changed.
+		 * @throws JnaPCSCException
+		 *             SCARD_E_CANCELLED if the wait was cancelled.
+		 */
+		boolean getStatusChange(Wait wait, SCardReaderState[] readers) throws JnaPCSCException {
+			while (true) {
+				wait.check();
+				int timeoutMillis = wait.timeoutMillis();
+				Winscard.SCardContext context = scardContext;
+				CancelOnInterrupt interruptor = new CancelOnInterrupt(this);
+				Dword err = null;
+				wait.thread = Thread.currentThread();
+				activeWaits.add(wait);
+				interruptor.enter();
+				try {
+					if (wait.cancellation == null || wait.cancellation.register(this)) {
+						try {
+							// Checked after activeWaits.add, so that a cancel
+							// either is seen here or waits for this call to end.
+							if (!wait.isCancelled())
+								err = libInfo.lib.SCardGetStatusChange(context, new Dword(timeoutMillis), readers, new Dword(readers.length));
+						} finally {
+							if (wait.cancellation != null)
+								wait.cancellation.unregister(this);
+						}
+					}
+				} finally {
+					interruptor.exit();
+					activeWaits.remove(wait);
+				}
+				if (err == null)
+					continue;  // check() throws
+				switch (err.intValue()) {
+				case SCARD_S_SUCCESS:
+					return true;
+				case WinscardConstants.SCARD_E_TIMEOUT:
+					if (wait.isOver())
+						return false;
+					break;
+				case WinscardConstants.SCARD_E_CANCELLED:
+					// Unless check() throws, another wait on the context was
+					// cancelled; carry on.
+					break;
+				default:
+					check("SCardGetStatusChange", err);
+				}
+			}
+		}
+		/**
+		 * Wake every wait on the context with SCardCancel, until no cancelled
+		 * wait is left in SCardGetStatusChange. An SCardCancel that reaches
+		 * the daemon just before a wait does is lost, so it is repeated, with
+		 * growing pauses, for as long as a cancelled wait has not returned.
+		 * Waits that were not cancelled carry on.
+		 */
+		Dword wakeCancelledWaits() {
+			Dword err = libInfo.lib.SCardCancel(scardContext);
+			long pauseMillis = 1;
+			while (err.intValue() == SCARD_S_SUCCESS && hasCancelledWait()) {
+				try {
+					Thread.sleep(pauseMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (!hasCancelledWait())
+					break;
+				err = libInfo.lib.SCardCancel(scardContext);
+				pauseMillis = Math.min(2 * pauseMillis, 100);
+			}
+			return err;
+		}
+		/**
+		 * wakeCancelledWaits() on another thread, for Thread.interrupt(),
+		 * which must not block: the interrupted wait cannot return until it
+		 * does.
+		 */
+		void wakeCancelledWaitsLater() {
+			WaitCanceller.EXECUTOR.execute(new Runnable() {
+				@Override public void run() {wakeCancelledWaits();}
+			});
+		}
+		/** Lazily-started daemon thread for {@link #wakeCancelledWaitsLater()}. */
+		private static class WaitCanceller {
+			static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jnasmartcardio wait canceller");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		private boolean hasCancelledWait() {
+			for (Wait wait: activeWaits)
+				if (wait.thread != Thread.currentThread() && wait.isCancelled())
+					return true;
+			return false;
+		}
 		@Override public String toString() {return String.format("%s{scardContext=%s}", getClass().getSimpleName(), scardContext);}
 		public void close() throws JnaPCSCException {
 			synchronized (this) {
 				if (isClosed) return;
 				else isClosed = true;
 			}
-			check("SCardReleaseContext", libInfo.lib.SCardReleaseContext(scardContext));
+			Winscard.SCardContext context;
+			synchronized (recoveryLock) {
+				context = scardContext;
+			}
+			if (sharedContext == null) {
+				check("SCardReleaseContext", libInfo.lib.SCardReleaseContext(context));
+				return;
+			}
+			long sharedErr = sharedContext.release();
+			if (context != sharedContext.scardContext)
+				check("SCardReleaseContext", libInfo.lib.SCardReleaseContext(context));  // recovered
+			else
+				check("SCardReleaseContext", sharedErr);
 		}
 		@Override public void finalize() throws JnaPCSCException {
 			close();
 		}
 	}
 
+	/**
+	 * Immutable list of terminals returned by
+	 * {@link JnaCardTerminals#list(State)}. Lists with the same version were
+	 * taken from the same observation of the readers.
+	 */
+	public static class JnaTerminalList extends AbstractList<CardTerminal> implements RandomAccess {
+		private final CardTerminal[] terminals;
+		private final long version;
+		JnaTerminalList(List<CardTerminal> terminals, long version) {
+			this.terminals = terminals.toArray(new CardTerminal[terminals.size()]);
+			this.version = version;
+		}
+		@Override public CardTerminal get(int index) {return terminals[index];}
+		@Override public int size() {return terminals.length;}
+		/** Incremented each time a change to the readers is observed. */
+		public long getVersion() {return version;}
+	}
+
+	/**
+	 * Ends the waits it is passed to, e.g.
+	 * {@link JnaCardTerminals#waitForChange(long, WaitCancellation)}, from
+	 * any thread: they throw JnaPCSCException(
+	 * {@link WinscardConstants#SCARD_E_CANCELLED}). A cancellation is final;
+	 * later waits with it fail immediately. Other waits on the same context
+	 * are woken too, but resume waiting.
+	 */
+	public static class WaitCancellation {
+		private volatile boolean cancelled;
+		/** Terminals with a wait in progress; guarded by this. */
+		private final List<JnaCardTerminals> waiting = new ArrayList<JnaCardTerminals>();
+		public void cancel() {
+			List<JnaCardTerminals> toWake;
+			synchronized (this) {
+				if (cancelled)
+					return;
+				cancelled = true;
+				toWake = new ArrayList<JnaCardTerminals>(waiting);
+			}
+			for (JnaCardTerminals terminals: toWake)
+				terminals.wakeCancelledWaits();
+		}
+		public boolean isCancelled() {return cancelled;}
+		/** @return false if already cancelled. */
+		synchronized boolean register(JnaCardTerminals terminals) {
+			if (cancelled)
+				return false;
+			waiting.add(terminals);
+			return true;
+		}
+		synchronized void unregister(JnaCardTerminals terminals) {
+			waiting.remove(terminals);
+		}
+		@Override public String toString() {return String.format("%s{cancelled=%s}", getClass().getSimpleName(), cancelled);}
+	}
+
+	/**
+	 * Wakes the waits of a JnaCardTerminals if the thread is interrupted between
+	 * {@link #enter()} and {@link #exit()}. AbstractInterruptibleChannel is
+	 * the only public way to hook into Thread.interrupt(); one instance
+	 * serves one call, because it is closed by the interruption.
+	 */
+	private static class CancelOnInterrupt extends AbstractInterruptibleChannel {
+		private final JnaCardTerminals terminals;
+		CancelOnInterrupt(JnaCardTerminals terminals) {
+			this.terminals = terminals;
+		}
+		void enter() {
+			begin();
+		}
+		void exit() {
+			try {
+				end(true);
+			} catch (AsynchronousCloseException e) {
+				// Interrupted; the thread stays interrupted, which the caller checks.
+			}
+		}
+		@Override protected void implCloseChannel() {
+			terminals.wakeCancelledWaitsLater();
+		}
+	}
+
+	/** Filled in by {@link JnaCardTerminal#tryConnect(String, CardHolder)}. */
+	public static class CardHolder {
+		public JnaCard card;
+	}
+
+	/** Filled in by {@link JnaCardTerminal#pollStatus(ReaderStatus)}. */
+	public static class ReaderStatus {
+		/** The dwEventState of the reader, SCARD_STATE_* flags with the event counter in the upper 16 bits. */
+		public int state;
+		public final byte[] atr = new byte[MAX_ATR_SIZE];
+		public int atrLength;
+		public boolean isCardPresent() {return 0 != (state & WinscardConstants.SCARD_STATE_PRESENT);}
+		public int getEventCount() {return (state >>> 16) & 0xffff;}
+	}
+
 	public static class JnaCardTerminal extends CardTerminal {
 		private final Winscard.WinscardLibInfo libInfo;
 		private final JnaCardTerminals cardTerminals;
@@ -408,6 +1082,16 @@ public class Smartcardio extends Provider {
 		public static final int SCARD_NEGOTIABLE = 0x20;
 		public static final int SCARD_SPECIFIC = 0x40;
 
+		/** Card event counter (upper 16 bits of the reader state) last observed. */
+		private volatile int lastEventCounter;
+		/** Number of card resets observed through this process's handles. */
+		private final AtomicInteger resetCount = new AtomicInteger();
+		/** The reader state reused by {@link #pollStatus(ReaderStatus)}, allocated on first use. */
+		private SCardReaderState[] pollState;
+		private final Object pollLock = new Object();
+		private static final Dword UNAWARE = new Dword(0);
+		private static final Dword ONE = new Dword(1);
+
 		public JnaCardTerminal(Winscard.WinscardLibInfo libInfo, JnaCardTerminals cardTerminals, String name) {
 			this.libInfo = libInfo;
 			this.cardTerminals = cardTerminals;
@@ -427,6 +1111,45 @@ public class Smartcardio extends Provider {
 		 * </ul>
 		 */
 		@Override public Card connect(String protocol) throws CardException {
+			Winscard.SCardContext context = cardTerminals.scardContext;
+			try {
+				return connectOnce(protocol);
+			} catch (JnaPCSCException e) {
+				if (!cardTerminals.recover(context, e))
+					throw e;
+				return connectOnce(protocol);
+			}
+		}
+		private Card connectOnce(String protocol) throws CardException {
+			CardHolder holder = new CardHolder();
+			int err = tryConnect(protocol, holder);
+			switch (err) {
+			case SCARD_S_SUCCESS:
+				return holder.card;
+			case WinscardConstants.SCARD_W_REMOVED_CARD:
+				throw new JnaCardNotPresentException(err, "Card not present.");
+			default:
+				check("SCardConnect", err);
+				throw new RuntimeException("Should not reach here.");
+			}
+		}
+		/**
+		 * Like {@link #connect(String)}, but return the PC/SC result code
+		 * instead of throwing, and put the card in the holder on
+		 * SCARD_S_SUCCESS. There is no recovery from a restarted daemon.
+		 * A bad protocol string still throws IllegalArgumentException.
+		 */
+		public int tryConnect(String protocol, CardHolder holder) {
+			return tryConnect(protocol, null, holder);
+		}
+		/**
+		 * Like {@link #tryConnect(String, CardHolder)}, but if the ATR is
+		 * already known (e.g. from the reader state that reported the card),
+		 * skip the SCardStatus call that would fetch it. The ATR is not
+		 * checked, so it must not be stale: a card swapped since it was read
+		 * would get the previous card's ATR.
+		 */
+		public int tryConnect(String protocol, ATR knownAtr, CardHolder holder) {
 			int dwPreferredProtocols;
 			int dwShareMode = SCARD_SHARE_SHARED;
 			protocol = protocol.toUpperCase();
@@ -452,81 +1175,210 @@ public class Smartcardio extends Provider {
 			} else {
 				throw new IllegalArgumentException("Protocol should be one of (prepended with EXCLUSIVE;) T=0, T=1, *, DIRECT. Got " + protocol);
 			}
+			holder.card = null;
 			Winscard.SCardHandleByReference phCard = new Winscard.SCardHandleByReference();
 			DwordByReference pdwActiveProtocol = new DwordByReference();
 
-			long err = libInfo.lib.SCardConnect(cardTerminals.scardContext, name, new Dword(dwShareMode), new Dword(dwPreferredProtocols), phCard, pdwActiveProtocol).longValue();
-			switch ((int)err) {
-			case SCARD_S_SUCCESS:
-				Winscard.SCardHandle scardHandle = phCard.getValue();
-				DwordByReference readerLength = new DwordByReference();
-				DwordByReference currentState = new DwordByReference();
-				DwordByReference currentProtocol = new DwordByReference();
-				ByteBuffer atrBuf = ByteBuffer.allocate(Smartcardio.MAX_ATR_SIZE);
-				DwordByReference atrLength = new DwordByReference(new Dword(Smartcardio.MAX_ATR_SIZE));
-				check("SCardStatus", libInfo.lib.SCardStatus(scardHandle, null, readerLength, currentState, currentProtocol, atrBuf, atrLength));
-				int atrLengthInt = atrLength.getValue().intValue();
-				atrBuf.limit(atrLengthInt);
-				byte[] atrBytes = new byte[atrBuf.remaining()];
-				atrBuf.get(atrBytes);
-				ATR atr = new ATR(atrBytes);
-				int currentProtocolInt = currentProtocol.getValue().intValue();
-				return new JnaCard(libInfo, this, scardHandle, atr, currentProtocolInt);
-			case WinscardConstants.SCARD_W_REMOVED_CARD:
-				throw new JnaCardNotPresentException(err, "Card not present.");
-			default:
-				check("SCardConnect", err);
-				throw new RuntimeException("Should not reach here.");
+			int err = libInfo.lib.SCardConnect(cardTerminals.scardContext, name, new Dword(dwShareMode), new Dword(dwPreferredProtocols), phCard, pdwActiveProtocol).intValue();
+			if (err == WinscardConstants.SCARD_E_UNKNOWN_READER)
+				cardTerminals.capabilitiesByName.remove(name);
+			if (err != SCARD_S_SUCCESS)
+				return err;
+			Winscard.SCardHandle scardHandle = phCard.getValue();
+			if (knownAtr != null) {
+				holder.card = new JnaCard(libInfo, this, scardHandle, knownAtr, pdwActiveProtocol.getValue().intValue(), dwShareMode);
+				return SCARD_S_SUCCESS;
+			}
+			DwordByReference readerLength = new DwordByReference();
+			DwordByReference currentState = new DwordByReference();
+			DwordByReference currentProtocol = new DwordByReference();
+			ByteBuffer atrBuf = ByteBuffer.allocate(Smartcardio.MAX_ATR_SIZE);
+			DwordByReference atrLength = new DwordByReference(new Dword(Smartcardio.MAX_ATR_SIZE));
+			int statusErr = libInfo.lib.SCardStatus(scardHandle, null, readerLength, currentState, currentProtocol, atrBuf, atrLength).intValue();
+			if (dwShareMode == SCARD_SHARE_DIRECT && (statusErr == WinscardConstants.SCARD_W_REMOVED_CARD || statusErr == WinscardConstants.SCARD_E_NO_SMARTCARD)) {
+				// A direct connection to an empty reader has no ATR.
+				atrLength.setValue(new Dword(0));
+				currentProtocol.setValue(new Dword(dwPreferredProtocols));
+			} else if (statusErr != SCARD_S_SUCCESS) {
+				libInfo.lib.SCardDisconnect(scardHandle, new Dword(JnaCard.SCARD_LEAVE_CARD));
+				return statusErr;
+			}
+			int atrLengthInt = atrLength.getValue().intValue();
+			atrBuf.limit(atrLengthInt);
+			byte[] atrBytes = new byte[atrBuf.remaining()];
+			atrBuf.get(atrBytes);
+			ATR atr = new ATR(atrBytes);
+			int currentProtocolInt = currentProtocol.getValue().intValue();
+			holder.card = new JnaCard(libInfo, this, scardHandle, atr, currentProtocolInt, dwShareMode);
+			return SCARD_S_SUCCESS;
+		}
+		/**
+		 * What the reader can do. The first call connects with DIRECT (so no
+		 * card is needed) to query the reader; later calls return the cached
+		 * result until the reader is seen to be removed.
+		 */
+		public ReaderCapabilities getCapabilities() throws CardException {
+			ReaderCapabilities capabilities = cardTerminals.capabilitiesByName.get(name);
+			if (capabilities != null)
+				return capabilities;
+			JnaCard card = (JnaCard) connect("DIRECT");
+			try {
+				return cardTerminals.cacheCapabilities(ReaderCapabilities.query(name, card));
+			} finally {
+				card.disconnect(false);
 			}
 		}
 		@Override public boolean isCardPresent() throws CardException {
+			Winscard.SCardContext context = cardTerminals.scardContext;
+			try {
+				return isCardPresentOnce();
+			} catch (JnaPCSCException e) {
+				if (!cardTerminals.recover(context, e))
+					throw e;
+				return isCardPresentOnce();
+			}
+		}
+		/**
+		 * Read the reader state without blocking and without throwing, for
+		 * polling loops. Returns the PC/SC result code and, on
+		 * SCARD_S_SUCCESS, fills in the status. Reuses one native structure
+		 * per terminal, so repeated polls do not allocate.
+		 */
+		public int pollStatus(ReaderStatus status) {
+			synchronized (pollLock) {
+				if (pollState == null) {
+					pollState = new SCardReaderState[1];
+					new SCardReaderState().toArray((Structure[]) pollState);
+					pollState[0].szReader = name;
+				}
+				SCardReaderState readerState = pollState[0];
+				readerState.dwCurrentState = UNAWARE;
+				int err = libInfo.lib.SCardGetStatusChange(cardTerminals.scardContext, UNAWARE, pollState, ONE).intValue();
+				if (err != SCARD_S_SUCCESS)
+					return err;
+				int state = readerState.dwEventState.intValue();
+				noteEventState(state);
+				int atrLength = Math.min(readerState.cbAtr.intValue(), status.atr.length);
+				status.state = state;
+				status.atrLength = atrLength;
+				System.arraycopy(readerState.rgbAtr, 0, status.atr, 0, atrLength);
+				return err;
+			}
+		}
+		private boolean isCardPresentOnce() throws JnaPCSCException {
+			return 0 != (readEventState() & WinscardConstants.SCARD_STATE_PRESENT);
+		}
+		/** The current reader state, from a non-blocking SCardGetStatusChange. */
+		private int readEventState() throws JnaPCSCException {
 			SCardReaderState[] rgReaderStates = new SCardReaderState[1];
 			new SCardReaderState().toArray((Structure[])rgReaderStates);
 			rgReaderStates[0].szReader = name;
 			SCardReaderState readerState = rgReaderStates[0];
 			check("SCardGetStatusChange", libInfo.lib.SCardGetStatusChange(cardTerminals.scardContext, new Dword(0), rgReaderStates, new Dword(rgReaderStates.length)));
-			return 0 != (readerState.dwEventState.intValue() & WinscardConstants.SCARD_STATE_PRESENT);
+			int state = readerState.dwEventState.intValue();
+			noteEventState(state);
+			return state;
+		}
+		void noteEventState(int state) {
+			if (state != 0 && 0 == (state & (WinscardConstants.SCARD_STATE_UNKNOWN | WinscardConstants.SCARD_STATE_IGNORE)))
+				lastEventCounter = (state >>> 16) & 0xffff;
+		}
+		void noteReset() {
+			resetCount.incrementAndGet();
+		}
+		private long generation(int eventCounter) {
+			return ((long) eventCounter << 32) | (resetCount.get() & 0xffffffffL);
+		}
+		/**
+		 * The card-session generation of this reader: a number that changes
+		 * whenever a card is inserted or removed, or a reset is observed
+		 * through any {@link JnaCard} of this reader in this process. Caches
+		 * of card contents can store it and compare it later instead of
+		 * asking the card. This makes one non-blocking SCardGetStatusChange
+		 * call (no APDU); see {@link #getLastCardGeneration()} for a free
+		 * variant.
+		 *
+		 * <p>
+		 * The event counter comes from the upper 16 bits of the reader
+		 * state, which pcsc-lite and Windows maintain; on platforms that
+		 * leave them 0, only resets change the generation.
+		 */
+		public long getCardGeneration() throws CardException {
+			Winscard.SCardContext context = cardTerminals.scardContext;
+			try {
+				readEventState();
+			} catch (JnaPCSCException e) {
+				if (!cardTerminals.recover(context, e))
+					throw e;
+				readEventState();
+			}
+			return getLastCardGeneration();
+		}
+		/**
+		 * The card-session generation as of the last time this reader's state
+		 * was observed by {@link JnaCardTerminals#list()},
+		 * {@link JnaCardTerminals#waitForChange(long)}, or any method of this
+		 * terminal that reads the state. Costs nothing.
+		 */
+		public long getLastCardGeneration() {
+			return generation(lastEventCounter);
 		}
-		private boolean waitHelper(long timeoutMs, boolean cardPresent) throws JnaPCSCException {
-			if (timeoutMs < 0)
-				throw new IllegalArgumentException("Negative timeout " + timeoutMs);
-			if (timeoutMs == 0)
-				timeoutMs = WinscardConstants.INFINITE;
+		private boolean waitHelper(long timeoutMs, boolean cardPresent, WaitCancellation cancellation) throws JnaPCSCException {
+			JnaCardTerminals.Wait wait = cardTerminals.new Wait(timeoutMs, cancellation);
+			Winscard.SCardContext context = cardTerminals.scardContext;
+			try {
+				return waitHelperOnce(wait, cardPresent);
+			} catch (JnaPCSCException e) {
+				if (!cardTerminals.recover(context, e))
+					throw e;
+				return waitHelperOnce(wait, cardPresent);
+			}
+		}
+		private boolean waitHelperOnce(JnaCardTerminals.Wait wait, boolean cardPresent) throws JnaPCSCException {
+			wait.check();
 			SCardReaderState[] rgReaderStates = new SCardReaderState[1];
 			new SCardReaderState().toArray((Structure[])rgReaderStates);
 			SCardReaderState readerState = rgReaderStates[0];
 			readerState.szReader = name;
 			check("SCardGetStatusChange", libInfo.lib.SCardGetStatusChange(cardTerminals.scardContext, new Dword(0), rgReaderStates, new Dword(rgReaderStates.length)));
-			int remainingTimeout = (int)timeoutMs;
+			noteEventState(readerState.dwEventState.intValue());
 			while (cardPresent != (0 != (readerState.dwEventState.intValue() & WinscardConstants.SCARD_STATE_PRESENT))) {
 				readerState.dwCurrentState = readerState.dwEventState;
 				readerState.dwEventState = new Dword(0);
-				long startTime = System.currentTimeMillis();
-				Dword err = libInfo.lib.SCardGetStatusChange(cardTerminals.scardContext, new Dword(remainingTimeout), rgReaderStates, new Dword(rgReaderStates.length));
-				long endTime = System.currentTimeMillis();
-				if (WinscardConstants.SCARD_E_TIMEOUT == err.intValue())
+				if (!cardTerminals.getStatusChange(wait, rgReaderStates))
 					return false;
-				check("SCardGetStatusChange", err);
-				if (remainingTimeout != WinscardConstants.INFINITE) {
-					if (remainingTimeout < endTime - startTime)
-						return false;
-					remainingTimeout -= endTime - startTime;
-				}
+				noteEventState(readerState.dwEventState.intValue());
 			}
 			return true;
 		}
 		@Override public boolean waitForCardAbsent(long timeoutMs) throws CardException {
-			return waitHelper(timeoutMs, false);
+			return waitHelper(timeoutMs, false, null);
 		}
 		@Override public boolean waitForCardPresent(long timeoutMs) throws CardException {
-			return waitHelper(timeoutMs, true);
+			return waitHelper(timeoutMs, true, null);
+		}
+		/**
+		 * Like {@link #waitForCardAbsent(long)}, but the wait can also be
+		 * ended by cancellation (may be null) or by interrupting the thread;
+		 * see {@link JnaCardTerminals#waitForChange(long, WaitCancellation)}.
+		 */
+		public boolean waitForCardAbsent(long timeoutMs, WaitCancellation cancellation) throws CardException {
+			return waitHelper(timeoutMs, false, cancellation);
+		}
+		/**
+		 * Like {@link #waitForCardPresent(long)}, but the wait can also be
+		 * ended by cancellation (may be null) or by interrupting the thread;
+		 * see {@link JnaCardTerminals#waitForChange(long, WaitCancellation)}.
+		 */
+		public boolean waitForCardPresent(long timeoutMs, WaitCancellation cancellation) throws CardException {
+			return waitHelper(timeoutMs, true, cancellation);
 		}
 		@Override public String toString() {return String.format("%s{scardHandle=%s, name=%s}", getClass().getSimpleName(), cardTerminals.scardContext, name);}
 	}
 
 	public static class JnaCard extends Card {
 		private final Winscard.WinscardLibInfo libInfo;
-		@SuppressWarnings("unused")  // prevent context from being finalized.
+		/** Also prevents the context from being finalized. */
 		private final CardTerminal cardTerminal;
 		private final Winscard.SCardHandle scardHandle;
 		private final ATR atr;
@@ -536,32 +1388,439 @@ public class Smartcardio extends Provider {
 		 * {@link JnaCardTerminal#SCARD_PROTOCOL_T1}
 		 */
 		private final int protocol;
+		/**
+		 * The share mode the card was connected with, needed to reconnect
+		 * after the card was reset by somebody else.
+		 */
+		private final int shareMode;
+		/**
+		 * Guards the transaction lease state below. See
+		 * {@link #setTransactionLease(long, int)}.
+		 */
+		private final Object leaseLock = new Object();
+		private long leaseIdleNanos;
+		private int leaseMaxOperations;
+		/** True while SCardBeginTransaction is in effect on the handle. */
+		private boolean leaseHeld;
+		/** True between beginExclusive() and endExclusive(). */
+		private boolean leaseActive;
+		/**
+		 * True while the owner is in SCardBeginTransaction, which is called
+		 * without holding leaseLock since it blocks while another process
+		 * has the card. leaseActive is already set, so others wait.
+		 */
+		private boolean leaseAcquiring;
+		private Thread leaseOwner;
+		private int leaseOperations;
+		private int leaseWaiters;
+		private long leaseIdleSince;
+		private boolean leaseExpiryScheduled;
+		/** Reader event counter of the session this handle belongs to, or -1 if not read yet. */
+		private volatile int sessionEventCounter = -1;
+		/**
+		 * The application selected on each channel, or null if SELECT
+		 * elision is off. Guarded by itself.
+		 */
+		private volatile Selection[] selections;
+		private final AtomicLong elidedSelects = new AtomicLong();
+
+		/** A successful SELECT by DF name and its response. */
+		private static class Selection {
+			final byte[] command;
+			final byte[] response;
+			final long generation;
+			Selection(byte[] command, byte[] response, long generation) {
+				this.command = command;
+				this.response = response;
+				this.generation = generation;
+			}
+		}
 		public JnaCard(Winscard.WinscardLibInfo libInfo, JnaCardTerminal cardTerminal, Winscard.SCardHandle scardHandle, ATR atr, int protocol) {
+			this(libInfo, cardTerminal, scardHandle, atr, protocol, JnaCardTerminal.SCARD_SHARE_SHARED);
+		}
+		public JnaCard(Winscard.WinscardLibInfo libInfo, JnaCardTerminal cardTerminal, Winscard.SCardHandle scardHandle, ATR atr, int protocol, int shareMode) {
 			this.libInfo = libInfo;
 			this.cardTerminal = cardTerminal;
 			this.scardHandle = scardHandle;
 			this.atr = atr;
 			this.protocol = protocol;
+			this.shareMode = shareMode;
 			getProtocol();  // make sure it is valid.
 		}
 
+		/**
+		 * Enable or disable transaction lease mode.
+		 *
+		 * <p>
+		 * Normally, {@link #beginExclusive()} and {@link #endExclusive()} each
+		 * make a round trip to the daemon. In lease mode, endExclusive() does
+		 * not end the transaction immediately. Instead, the transaction is kept
+		 * so that the next beginExclusive() from the same thread is free. The
+		 * transaction is really ended when any of these happen:
+		 * <ul>
+		 * <li>No beginExclusive() arrives within idleMillis.
+		 * <li>maxOperations beginExclusive/endExclusive pairs have been served
+		 * by one transaction.
+		 * <li>Another thread of this process calls beginExclusive().
+		 * <li>{@link #releaseTransactionLease()} or disconnect is called.
+		 * </ul>
+		 *
+		 * <p>
+		 * PC/SC does not tell us whether another process is waiting for the
+		 * card, so other processes wait up to idleMillis longer than they
+		 * otherwise would. Keep it short (tens of milliseconds), and stay
+		 * well under the 5 seconds after which Windows resets the card.
+		 *
+		 * @param idleMillis
+		 *            how long an idle transaction is kept; 0 disables lease
+		 *            mode.
+		 * @param maxOperations
+		 *            maximum number of beginExclusive() calls served by one
+		 *            transaction; 0 means no limit.
+		 */
+		public void setTransactionLease(long idleMillis, int maxOperations) throws CardException {
+			if (idleMillis < 0)
+				throw new IllegalArgumentException("Negative idle time " + idleMillis);
+			if (maxOperations < 0)
+				throw new IllegalArgumentException("Negative operation count " + maxOperations);
+			synchronized (leaseLock) {
+				this.leaseIdleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+				this.leaseMaxOperations = maxOperations;
+				if (idleMillis == 0 && leaseHeld && !leaseActive)
+					endLease();
+			}
+		}
+
+		/**
+		 * End the transaction kept by lease mode, if there is an idle one.
+		 * Does nothing if the caller is between beginExclusive() and
+		 * endExclusive().
+		 */
+		public void releaseTransactionLease() throws CardException {
+			synchronized (leaseLock) {
+				if (leaseHeld && !leaseActive)
+					endLease();
+			}
+		}
+
 		@Override public void beginExclusive() throws CardException {
-			check("SCardBeginTransaction", libInfo.lib.SCardBeginTransaction(scardHandle));
+			if (!isLeaseMode()) {
+				check("SCardBeginTransaction", libInfo.lib.SCardBeginTransaction(scardHandle));
+				return;
+			}
+			synchronized (leaseLock) {
+				Thread currentThread = Thread.currentThread();
+				if (leaseActive && leaseOwner != currentThread) {
+					leaseWaiters++;
+					try {
+						while (leaseActive) {
+							try {
+								leaseLock.wait();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new JnaPCSCException(WinscardConstants.SCARD_E_CANCELLED, "Interrupted while waiting for transaction", e);
+							}
+						}
+					} finally {
+						leaseWaiters--;
+					}
+				}
+				if (leaseHeld && leaseOwner != currentThread) {
+					// another owner wants the card; don't hand the lease over.
+					endLease();
+				}
+				leaseOwner = currentThread;
+				leaseActive = true;
+				if (leaseHeld) {
+					leaseOperations++;
+					return;
+				}
+				leaseAcquiring = true;
+			}
+			Dword err = libInfo.lib.SCardBeginTransaction(scardHandle);
+			synchronized (leaseLock) {
+				// Cleared if the card was disconnected meanwhile.
+				boolean acquired = leaseAcquiring && err.intValue() == SCARD_S_SUCCESS;
+				if (acquired) {
+					leaseHeld = true;
+					leaseOperations = 1;
+				} else if (leaseAcquiring) {
+					leaseActive = false;
+					leaseOwner = null;
+					leaseLock.notifyAll();
+				}
+				leaseAcquiring = false;
+			}
+			check("SCardBeginTransaction", err);
 		}
 		public static final int SCARD_LEAVE_CARD = 0;
 		public static final int SCARD_RESET_CARD = 1;
 		public static final int SCARD_UNPOWER_CARD = 2;
 		public static final int SCARD_EJECT_CARD = 3;
 		@Override public void endExclusive() throws CardException {
-			check("SCardEndTransaction", libInfo.lib.SCardEndTransaction(scardHandle, new Dword(SCARD_LEAVE_CARD)));
-			// TODO: handle error SCARD_W_RESET_CARD esp. in Windows
+			if (!isLeaseMode()) {
+				endTransaction();
+				return;
+			}
+			synchronized (leaseLock) {
+				if (!leaseHeld) {
+					endTransaction();
+					return;
+				}
+				leaseActive = false;
+				leaseLock.notifyAll();
+				boolean exhausted = leaseMaxOperations != 0 && leaseOperations >= leaseMaxOperations;
+				if (leaseIdleNanos == 0 || exhausted || leaseWaiters != 0) {
+					endLease();
+					return;
+				}
+				leaseIdleSince = System.nanoTime();
+				if (!leaseExpiryScheduled) {
+					leaseExpiryScheduled = true;
+					scheduleLeaseExpiry(leaseIdleNanos);
+				}
+			}
+		}
+
+		private boolean isLeaseMode() {
+			synchronized (leaseLock) {
+				return leaseIdleNanos != 0 || leaseHeld;
+			}
+		}
+
+		/** Call SCardEndTransaction. The caller must hold {@link #leaseLock}. */
+		private void endLease() throws CardException {
+			leaseHeld = false;
+			leaseOwner = null;
+			leaseOperations = 0;
+			endTransaction();
+		}
+
+		/**
+		 * SCardEndTransaction, recovering from SCARD_W_RESET_CARD. If another
+		 * connection reset the card (e.g. Windows resets a card whose
+		 * transaction is held for more than 5 seconds), the transaction is
+		 * already over, but every call on this handle fails until the handle
+		 * is reconnected. So reconnect it without further resetting the card.
+		 */
+		private void endTransaction() throws CardException {
+			Dword err = libInfo.lib.SCardEndTransaction(scardHandle, new Dword(SCARD_LEAVE_CARD));
+			if (WinscardConstants.SCARD_W_RESET_CARD == err.intValue()) {
+				((JnaCardTerminal) cardTerminal).noteReset();
+				reconnect(SCARD_LEAVE_CARD);
+				return;
+			}
+			check("SCardEndTransaction", err);
+		}
+
+		/** Call SCardReconnect with the same share mode and protocol. */
+		private void reconnect(int initialization) throws JnaPCSCException {
+			DwordByReference pdwActiveProtocol = new DwordByReference();
+			check("SCardReconnect", libInfo.lib.SCardReconnect(scardHandle, new Dword(shareMode), new Dword(protocol), new Dword(initialization), pdwActiveProtocol));
+		}
+
+		private void scheduleLeaseExpiry(long delayNanos) {
+			LeaseTimer.EXECUTOR.schedule(new Runnable() {
+				@Override public void run() {
+					synchronized (leaseLock) {
+						leaseExpiryScheduled = false;
+						if (!leaseHeld || leaseActive)
+							return;
+						long idleNanos = System.nanoTime() - leaseIdleSince;
+						if (idleNanos < leaseIdleNanos) {
+							leaseExpiryScheduled = true;
+							scheduleLeaseExpiry(leaseIdleNanos - idleNanos);
+							return;
+						}
+						try {
+							endLease();
+						} catch (CardException e) {
+							// Nobody to report to; the card is probably gone, and
+							// the next call on this card will fail anyway.
+						}
+					}
+				}
+			}, delayNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/** Lazily-started daemon thread that ends idle transaction leases. */
+		private static class LeaseTimer {
+			static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jnasmartcardio transaction lease");
+					t.setDaemon(true);
+					return t;
+				}
+			});
 		}
 
 		@Override public void disconnect(boolean reset) throws CardException {
-			int dwDisposition = reset ? SCARD_RESET_CARD : SCARD_LEAVE_CARD;
-			check("SCardDisconnect", libInfo.lib.SCardDisconnect(scardHandle, new Dword(dwDisposition)));
+			check("SCardDisconnect", tryDisconnect(reset ? SCARD_RESET_CARD : SCARD_LEAVE_CARD));
+		}
+		/**
+		 * Disconnect with any disposition: {@link #SCARD_LEAVE_CARD},
+		 * {@link #SCARD_RESET_CARD}, {@link #SCARD_UNPOWER_CARD} or
+		 * {@link #SCARD_EJECT_CARD}. Returns the PC/SC result code instead of
+		 * throwing.
+		 */
+		public int tryDisconnect(int disposition) {
+			synchronized (leaseLock) {
+				// SCardDisconnect ends the transaction anyway.
+				leaseHeld = leaseActive = leaseAcquiring = false;
+				leaseOwner = null;
+				leaseLock.notifyAll();
+			}
+			return libInfo.lib.SCardDisconnect(scardHandle, new Dword(disposition)).intValue();
 		}
 
+		/**
+		 * The card-session generation of the card this handle is connected
+		 * to (see {@link JnaCardTerminal#getCardGeneration()}). It changes when
+		 * a reset of the card is observed through any handle of this process.
+		 * If the card is swapped, it stays the same, but the terminal's
+		 * generation moves on and calls on this handle fail.
+		 *
+		 * <p>
+		 * The first call makes two non-blocking daemon calls to find the
+		 * session; later calls cost nothing.
+		 */
+		public long getCardGeneration() throws CardException {
+			JnaCardTerminal terminal = (JnaCardTerminal) cardTerminal;
+			int eventCounter = sessionEventCounter;
+			if (eventCounter < 0) {
+				// Read the counter first; if the handle is still valid after
+				// that, the counter belongs to this handle's card.
+				terminal.getCardGeneration();
+				eventCounter = terminal.lastEventCounter;
+				DwordByReference readerLength = new DwordByReference();
+				long err = libInfo.lib.SCardStatus(scardHandle, null, readerLength, new DwordByReference(), new DwordByReference(), null, new DwordByReference()).longValue();
+				switch ((int) err) {
+				case SCARD_S_SUCCESS:
+					break;
+				case WinscardConstants.SCARD_W_REMOVED_CARD:
+					throw new JnaCardNotPresentException(err, "Card not present.");
+				case WinscardConstants.SCARD_W_RESET_CARD:
+					terminal.noteReset();
+					break;
+				default:
+					check("SCardStatus", err);
+				}
+				sessionEventCounter = eventCounter;
+			}
+			return terminal.generation(eventCounter);
+		}
+
+		/**
+		 * Enable or disable SELECT elision. When enabled, the application
+		 * selected on each logical channel by a successful SELECT by DF name
+		 * (CLA 00, INS A4, P1 04, first or only occurrence) is remembered, and
+		 * sending the identical SELECT again on that channel returns the
+		 * remembered response without sending anything to the card.
+		 *
+		 * <p>
+		 * The selection of a channel is forgotten when any other SELECT or a
+		 * command that fails (SW1 other than 90, 61, 62 or 63) is sent on it,
+		 * and for all channels on MANAGE CHANNEL or when the card-session
+		 * generation changes (see {@link #getCardGeneration()}). A card swap
+		 * is noticed once the terminal observes it, e.g. through
+		 * {@link JnaCardTerminals#list()} or waitForChange, and commands on
+		 * the handle fail anyway. Commands sent with
+		 * {@link #transmitControlCommand(int, byte[])} or by other processes
+		 * are not seen, so only enable this if nobody else selects
+		 * applications on this card behind your back.
+		 *
+		 * <p>
+		 * Enabling it finds the card session (see {@link #getCardGeneration()})
+		 * if that is not known yet, so that transmits need no daemon calls
+		 * beyond SCardTransmit.
+		 */
+		public void setSelectElision(boolean enabled) throws CardException {
+			if (enabled)
+				getCardGeneration();
+			selections = enabled ? new Selection[20] : null;
+		}
+		/** Number of SELECT commands answered without sending them. */
+		public long getElidedSelectCount() {return elidedSelects.get();}
+
+		private static boolean isSelectByName(byte[] command) {
+			return command.length >= 5 && command[0] == 0 && command[1] == (byte) 0xa4 && command[2] == 0x04 && (command[3] & 0x03) == 0;
+		}
+		/**
+		 * The remembered response if command (with CLA 00) would select the
+		 * application already selected on channel, or null.
+		 */
+		byte[] selectedResponse(int channel, byte[] command) {
+			Selection[] selections = this.selections;
+			if (selections == null || !isSelectByName(command))
+				return null;
+			synchronized (selections) {
+				Selection selection = selections[channel];
+				if (selection == null || !Arrays.equals(selection.command, command))
+					return null;
+				JnaCardTerminal terminal = (JnaCardTerminal) cardTerminal;
+				if (terminal.lastEventCounter != sessionEventCounter || selection.generation != terminal.generation(sessionEventCounter)) {
+					Arrays.fill(selections, null);
+					return null;
+				}
+				elidedSelects.incrementAndGet();
+				return selection.response;
+			}
+		}
+		/**
+		 * Update the selection of channel after command (with CLA 00) got
+		 * response. Makes no daemon calls: a selection is only remembered if
+		 * the session is known and the terminal has seen no card event since.
+		 */
+		void noteResponse(int channel, byte[] command, byte[] response) {
+			Selection[] selections = this.selections;
+			if (selections == null || command.length < 4)
+				return;
+			int sw1 = response[response.length - 2] & 0xff;
+			boolean ok = sw1 == 0x90 || sw1 == 0x61 || sw1 == 0x62 || sw1 == 0x63;
+			Selection selection = null;
+			JnaCardTerminal terminal = (JnaCardTerminal) cardTerminal;
+			int eventCounter = sessionEventCounter;
+			if (ok && isSelectByName(command) && sw1 == 0x90 && response[response.length - 1] == 0 && eventCounter >= 0 && eventCounter == terminal.lastEventCounter)
+				selection = new Selection(command, response, terminal.generation(eventCounter));
+			synchronized (selections) {
+				if (command[1] == 0x70)  // MANAGE CHANNEL
+					Arrays.fill(selections, null);
+				else if (selection != null)
+					selections[channel] = selection;
+				else if (!ok || command[1] == (byte) 0xa4)
+					selections[channel] = null;
+			}
+		}
+		/** Forget the selection of channel, e.g. because it was closed. */
+		void forgetSelection(int channel) {
+			Selection[] selections = this.selections;
+			if (selections == null)
+				return;
+			synchronized (selections) {
+				selections[channel] = null;
+			}
+		}
+		/** Forget the selections of all channels. */
+		void forgetSelections() {
+			Selection[] selections = this.selections;
+			if (selections == null)
+				return;
+			synchronized (selections) {
+				Arrays.fill(selections, null);
+			}
+		}
+
+		/**
+		 * Whether no card event has been observed on the reader since this
+		 * handle's session began, i.e. the terminal's last observed
+		 * generation is still {@link #getCardGeneration()}. Costs nothing
+		 * after the first call.
+		 */
+		public boolean isSessionCurrent() throws CardException {
+			return getCardGeneration() == ((JnaCardTerminal) cardTerminal).getLastCardGeneration();
+		}
+		JnaCardTerminal getTerminal() {return (JnaCardTerminal) cardTerminal;}
+
 		@Override public ATR getATR() {return atr;}
 		@Override public String getProtocol() {
 			switch (protocol) {
@@ -614,15 +1873,53 @@ public class Smartcardio extends Provider {
 		public byte[] transmitControlCommand(int controlCode, byte[] arg1) throws CardException {
 			// there's no way from the API to know how big a receive buffer to use.
 			// Sun uses 8192 bytes, so we'll do the same.
-			ByteBuffer receiveBuf = ByteBuffer.allocate(8192);
-			DwordByReference lpBytesReturned = new DwordByReference();
-			ByteBuffer arg1Wrapped = ByteBuffer.wrap(arg1);
-			check("SCardControl", libInfo.lib.SCardControl(scardHandle, new Dword(controlCode), arg1Wrapped, new Dword(arg1.length), receiveBuf, new Dword(receiveBuf.remaining()), lpBytesReturned));
-			int bytesReturned = lpBytesReturned.getValue().intValue();
-			receiveBuf.limit(bytesReturned);
-			byte[] r = new byte[bytesReturned];
-			receiveBuf.get(r);
-			return r;
+			BufferPool pool = BufferPool.getDefault();
+			ByteBuffer receiveBuf = pool.acquire(BufferPool.MEDIUM);
+			ByteBuffer arg1Buf = pool.acquire(arg1.length);
+			try {
+				arg1Buf.put(arg1).flip();
+				DwordByReference lpBytesReturned = new DwordByReference();
+				check("SCardControl", libInfo.lib.SCardControl(scardHandle, new Dword(controlCode), arg1Buf, new Dword(arg1.length), receiveBuf, new Dword(receiveBuf.remaining()), lpBytesReturned));
+				int bytesReturned = lpBytesReturned.getValue().intValue();
+				receiveBuf.limit(bytesReturned);
+				byte[] r = new byte[bytesReturned];
+				receiveBuf.get(r);
+				return r;
+			} finally {
+				pool.release(arg1Buf);
+				pool.release(receiveBuf);
+			}
+		}
+		/**
+		 * Read a reader attribute with SCardGetAttrib.
+		 *
+		 * @param attrId
+		 *            one of the SCARD_ATTR_* constants from reader.h, e.g.
+		 *            {@link WinscardConstants#SCARD_ATTR_VENDOR_NAME}
+		 */
+		public byte[] getAttrib(int attrId) throws CardException {
+			BufferPool pool = BufferPool.getDefault();
+			ByteBuffer attr = pool.acquire(ReaderCapabilities.ATTRIB_BUFFER_SIZE);
+			try {
+				DwordByReference pcbAttrLen = new DwordByReference(new Dword(attr.remaining()));
+				check("SCardGetAttrib", libInfo.lib.SCardGetAttrib(scardHandle, new Dword(attrId), attr, pcbAttrLen));
+				byte[] r = new byte[pcbAttrLen.getValue().intValue()];
+				attr.get(r);
+				return r;
+			} finally {
+				pool.release(attr);
+			}
+		}
+		/**
+		 * What the reader can do, queried using this card's handle if it has
+		 * not been cached yet. See {@link JnaCardTerminal#getCapabilities()}.
+		 */
+		public ReaderCapabilities getReaderCapabilities() throws CardException {
+			JnaCardTerminal terminal = (JnaCardTerminal) cardTerminal;
+			ReaderCapabilities capabilities = terminal.cardTerminals.capabilitiesByName.get(terminal.name);
+			if (capabilities != null)
+				return capabilities;
+			return terminal.cardTerminals.cacheCapabilities(ReaderCapabilities.query(terminal.name, this));
 		}
 		@Override public String toString() {return String.format("%s{scardHandle=%s}", getClass().getSimpleName(), scardHandle);}
 	}
@@ -640,6 +1937,7 @@ public class Smartcardio extends Provider {
 			if (isClosed)
 				return;
 			isClosed = true;
+			card.forgetSelection(channel);
 			if (channel != 0) {
 				// manage channel: close
 				ByteBuffer command = ByteBuffer.wrap(new CommandAPDU(0, 0x70, 0x80, channel).getBytes());
@@ -685,10 +1983,37 @@ public class Smartcardio extends Provider {
 				throw new IllegalArgumentException("command is null");
 			}
 			byte[] commandCopy = command.getBytes();
-			ByteBuffer response = transmitImpl(commandCopy, null);
+			BufferPool pool = BufferPool.getDefault();
+			ByteBuffer response = pool.acquire(receiveSize(commandCopy));
+			try {
+				transmitImpl(commandCopy, response);
+				return convertResponse(response);
+			} finally {
+				pool.release(response);
+			}
+		}
 
-			ResponseAPDU responseApdu = convertResponse(response);
-			return responseApdu;
+		/**
+		 * Like {@link #transmit(CommandAPDU)}, but return a view of the
+		 * response in a pooled buffer instead of copying it into a
+		 * ResponseAPDU. Call {@link ResponseView#release()} when done with it.
+		 */
+		public ResponseView transmitView(CommandAPDU command) throws CardException {
+			if (command == null) {
+				throw new IllegalArgumentException("command is null");
+			}
+			byte[] commandCopy = command.getBytes();
+			BufferPool pool = BufferPool.getDefault();
+			ByteBuffer response = pool.acquire(receiveSize(commandCopy));
+			boolean ok = false;
+			try {
+				transmitImpl(commandCopy, response);
+				ok = true;
+				return new ResponseView(pool, response, response.position());
+			} finally {
+				if (!ok)
+					pool.release(response);
+			}
 		}
 
 		/**
@@ -732,6 +2057,10 @@ public class Smartcardio extends Provider {
 		private boolean isExtendedApdu(byte[] commandApdu) {
 			return commandApdu.length >= 7 && commandApdu[4] == 0;
 		}
+		/** Size of the receive buffer to use when the caller gives none. */
+		private int receiveSize(byte[] commandApdu) {
+			return isExtendedApdu(commandApdu) ? BufferPool.LARGE : BufferPool.MEDIUM;
+		}
 
 		/**
 		 * Set the CLA byte, transmit the command, send Get Response commands as
@@ -788,45 +2117,71 @@ public class Smartcardio extends Provider {
 			// Mimic SUN with self-defense 
 			if (card.protocol == JnaCardTerminal.SCARD_PROTOCOL_T0 && isExtendedApdu(command))
 				throw new CardException("Extended APDU requires T=1");
+
+			byte[] originalCommand = null;
+			int startPosition = response.position();
+			if (card.selections != null) {
+				originalCommand = command.clone();
+				byte[] selected = card.selectedResponse(channel, originalCommand);
+				if (selected != null && selected.length <= response.remaining()) {
+					response.put(selected);
+					return response;
+				}
+			}
 			
 			command[0] = getClassByte(command[0], getChannelNumber());
-			ByteBuffer commandBuffer = ByteBuffer.wrap(command);
-	
-			// Allocate memory if not given: 8K
-			if (response == null)
-				response = ByteBuffer.allocate(8192);
-
-			// TODO: implement compatibility with SUN properties
-			// Don't loop forever.
-			for (int i=0; i<8; i++) {
-				int posBeforeTransmit = response.position();
-				transmitRaw(commandBuffer, response);
-
-				// Roll back to read SW
-				response.position(response.position() - 2);
-				byte sw1 = response.get();
-				byte sw2 = response.get();
-				if (0x6c == sw1) {
-					command[command.length - 1] = sw2;
-					response.position(posBeforeTransmit);
-					commandBuffer.rewind();
-				} else if (0x61 == sw1) {
-					// send Get Response command.
-					// Don't touch CLA as per 7816-4
-					command[1] = (byte) 0xc0;
-					command[2] = (byte) 0x00;
-					command[3] = (byte) 0x00;
-					command[4] = sw2;
-					commandBuffer.position(0);
-					commandBuffer.limit(5);
-					// concatenate new response to the same buffer.
-					// Roll back to overwrite current SW.
+			// A direct buffer, so that JNA need not copy the command.
+			BufferPool pool = BufferPool.getDefault();
+			ByteBuffer commandBuffer = pool.acquire(command.length);
+			try {
+				commandBuffer.put(command).flip();
+
+				// TODO: implement compatibility with SUN properties
+				// Don't loop forever.
+				for (int i=0; i<8; i++) {
+					int posBeforeTransmit = response.position();
+					transmitRaw(commandBuffer, response);
+
+					// Roll back to read SW
 					response.position(response.position() - 2);
-				} else {
-					break;
+					byte sw1 = response.get();
+					byte sw2 = response.get();
+					if (0x6c == sw1) {
+						command[command.length - 1] = sw2;
+						response.position(posBeforeTransmit);
+						copyCommand(command, commandBuffer, commandBuffer.limit());
+					} else if (0x61 == sw1) {
+						// send Get Response command.
+						// Don't touch CLA as per 7816-4
+						command[1] = (byte) 0xc0;
+						command[2] = (byte) 0x00;
+						command[3] = (byte) 0x00;
+						command[4] = sw2;
+						copyCommand(command, commandBuffer, 5);
+						// concatenate new response to the same buffer.
+						// Roll back to overwrite current SW.
+						response.position(response.position() - 2);
+					} else {
+						break;
+					}
 				}
+				if (originalCommand != null) {
+					byte[] r = new byte[response.position() - startPosition];
+					ByteBuffer b = response.duplicate();
+					b.position(startPosition);
+					b.get(r);
+					card.noteResponse(channel, originalCommand, r);
+				}
+				return response;
+			} finally {
+				pool.release(commandBuffer);
 			}
-			return response;
+		}
+		/** Make commandBuffer hold the first length bytes of command again. */
+		private static void copyCommand(byte[] command, ByteBuffer commandBuffer, int length) {
+			commandBuffer.clear();
+			commandBuffer.put(command, 0, length);
+			commandBuffer.flip();
 		}
 
 		/**
@@ -868,19 +2223,45 @@ public class Smartcardio extends Provider {
 		 * bytes received from the card.
 		 */
 		private int transmitRaw(ByteBuffer command, ByteBuffer response) throws JnaPCSCException {
+			int startPosition = response.position();
+			check("SCardTransmit", tryTransmit(command, response));
+			return response.position() - startPosition;
+		}
+		/**
+		 * Send the command exactly as given and return the PC/SC result code
+		 * instead of throwing: no CLA rewriting, no 61xx/6Cxx handling, and no
+		 * recovery. For polling loops where failures such as
+		 * SCARD_W_REMOVED_CARD are expected and exceptions are too slow.
+		 * On SCARD_S_SUCCESS, the command buffer is advanced to its limit and
+		 * the response buffer by the number of bytes received; otherwise
+		 * neither is moved.
+		 */
+		public int tryTransmit(ByteBuffer command, ByteBuffer response) {
 			Winscard.ScardIoRequest pioSendPci = new Winscard.ScardIoRequest();
 			pioSendPci.dwProtocol = new Dword(card.protocol);
 			pioSendPci.cbPciLength = new Dword(pioSendPci.size());
 
 			DwordByReference recvLength = new DwordByReference(new Dword(response.remaining()));
-			check("SCardTransmit", card.libInfo.lib.SCardTransmit(card.scardHandle, pioSendPci, command, new Dword(command.remaining()), null, response, recvLength));
+			ApduTrace trace = ApduTrace.getDefault();
+			long startNanos = trace == null ? 0 : System.nanoTime();
+			int err = card.libInfo.lib.SCardTransmit(card.scardHandle, pioSendPci, command, new Dword(command.remaining()), null, response, recvLength).intValue();
+			if (trace != null) {
+				long latencyNanos = System.nanoTime() - startNanos;
+				int traceRecvLength = err == SCARD_S_SUCCESS ? recvLength.getValue().intValue() : 0;
+				trace.record(card.cardTerminal.getName(), channel, command, command.position(), command.remaining(), response, response.position(), traceRecvLength, latencyNanos, err);
+			}
+			if (WinscardConstants.SCARD_W_RESET_CARD == err)
+				((JnaCardTerminal) card.cardTerminal).noteReset();
+			if (SCARD_S_SUCCESS != err) {
+				card.forgetSelections();
+				return err;
+			}
 			int recvLengthInt = recvLength.getValue().intValue();
 			assert recvLengthInt >= 0;
 
 			command.position(command.limit());
-			int newPosition = response.position() + recvLengthInt;
-			response.position(newPosition);
-			return recvLengthInt;
+			response.position(response.position() + recvLengthInt);
+			return err;
 		}
 		@Override public String toString() {return String.format("%s{card=%s, channel=%d}", getClass().getSimpleName(), this.card, this.channel);}
 	}
@@ -954,9 +2335,59 @@ public class Smartcardio extends Provider {
 	private static void check(String message, long code) throws JnaPCSCException {
 		if (code == 0)
 			return;
-		int icode = (int)code;
-		String codeName = WinscardConstants.ERROR_TO_VARIABLE_NAME.get(icode);
-		String codeDescription = WinscardConstants.ERROR_TO_DESCRIPTION.get(icode);
-		throw new JnaPCSCException(code, String.format("%s got response 0x%x (%s: %s)", message, icode, codeName, codeDescription));
+		if (!STACK_TRACES && isExpected((int) code))
+			throw new QuietPCSCException(message, code);
+		throw new LazyPCSCException(message, code);
+	}
+
+	/**
+	 * Whether failures that are part of normal operation (timeouts, card
+	 * removal, cancellation) get a stack trace anyway; set the system property
+	 * jnasmartcardio.stackTraces=true when debugging.
+	 */
+	private static final boolean STACK_TRACES = Boolean.getBoolean("jnasmartcardio.stackTraces");
+
+	/** Codes that pollers see all the time, and that do not indicate a bug. */
+	static boolean isExpected(int code) {
+		switch (code) {
+		case WinscardConstants.SCARD_E_TIMEOUT:
+		case WinscardConstants.SCARD_E_CANCELLED:
+		case WinscardConstants.SCARD_W_REMOVED_CARD:
+		case WinscardConstants.SCARD_W_RESET_CARD:
+		case WinscardConstants.SCARD_E_NO_SMARTCARD:
+		case WinscardConstants.SCARD_E_SHARING_VIOLATION:
+		case WinscardConstants.SCARD_E_NO_READERS_AVAILABLE:
+		case WinscardConstants.SCARD_E_READER_UNAVAILABLE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * The exception thrown by {@link #check(String, long)}. The message is only
+	 * formatted if someone asks for it.
+	 */
+	static class LazyPCSCException extends JnaPCSCException {
+		private static final long serialVersionUID = 1L;
+		private final String function;
+		private String message;
+		LazyPCSCException(String function, long code) {super(code, null); this.function = function;}
+		@Override public synchronized String getMessage() {
+			if (message == null) {
+				int icode = (int) code;
+				String codeName = WinscardConstants.ERROR_TO_VARIABLE_NAME.get(icode);
+				String codeDescription = WinscardConstants.ERROR_TO_DESCRIPTION.get(icode);
+				message = String.format("%s got response 0x%x (%s: %s)", function, icode, codeName, codeDescription);
+			}
+			return message;
+		}
+	}
+
+	/** A {@link LazyPCSCException} for an expected code, without a stack trace. */
+	static class QuietPCSCException extends LazyPCSCException {
+		private static final long serialVersionUID = 1L;
+		QuietPCSCException(String function, long code) {super(function, code);}
+		@Override public Throwable fillInStackTrace() {return this;}
 	}
 }
@@ -0,0 +1,399 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.ATR;
+
+import jnasmartcardio.ShardedStatusMonitor.Event;
+import jnasmartcardio.Smartcardio.CardHolder;
+import jnasmartcardio.Smartcardio.EstablishContextException;
+import jnasmartcardio.Smartcardio.JnaCard;
+import jnasmartcardio.Smartcardio.JnaCardChannel;
+import jnasmartcardio.Smartcardio.JnaCardTerminal;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+/**
+ * Processes taps of contactless cards: when a card is presented, connect,
+ * read its UID with the PC/SC pseudo-APDU FF CA 00 00 00, send a short
+ * script of commands, disconnect with the configured disposition, and hand
+ * a {@link Tap} with the responses and the time spent in each
+ * {@link Stage} to the listener.
+ *
+ * <p>
+ * Cards are detected by a {@link ShardedStatusMonitor}; see
+ * {@link #getMonitor()} to hold back removals of flapping readers. A fixed
+ * number of workers process the taps, each with its own context, terminals
+ * and direct buffers. They use
+ * {@link JnaCardTerminal#tryConnect(String, ATR, CardHolder)} with the ATR
+ * from the reader state, so there is no SCardStatus call unless the reader's
+ * event counter shows that the card may have been swapped since, and
+ * {@link JnaCardChannel#tryTransmit(ByteBuffer, ByteBuffer)}, so failures
+ * do not throw. Script commands are therefore sent as they are, without
+ * 61xx or 6Cxx handling.
+ *
+ * <p>
+ * The taps of one reader are processed one at a time. A tap whose card is
+ * removed before a worker gets to it is reported at once as missed, with
+ * SCARD_W_REMOVED_CARD, and the reader is not touched.
+ */
+public class TapPipeline implements Closeable {
+	/** The pseudo-APDU that asks the reader for the UID of a contactless card. */
+	static final byte[] GET_UID = {(byte) 0xff, (byte) 0xca, 0, 0, 0};
+
+	public enum Stage {
+		/** From the card being detected to a worker starting on it. */
+		QUEUE,
+		CONNECT,
+		UID,
+		SCRIPT,
+		/** SCardDisconnect. */
+		RELEASE
+	}
+
+	public interface Listener {
+		/** Called from the pipeline's threads, so it should return quickly. */
+		void tap(Tap tap);
+	}
+
+	/** The outcome of one tap. */
+	public static final class Tap {
+		private final String readerName;
+		private ATR atr;
+		private final long[] stageNanos = new long[Stage.values().length];
+		private final List<byte[]> responses = new ArrayList<byte[]>();
+		private int result;
+		private Stage failedStage;
+		private byte[] uid;
+		Tap(String readerName, ATR atr) {
+			this.readerName = readerName;
+			this.atr = atr;
+		}
+		public String getReaderName() {return readerName;}
+		/** The ATR of the card connected to, or of the card reported if the connect failed. */
+		public ATR getAtr() {return atr;}
+		/** SCARD_S_SUCCESS, or the PC/SC code of the first call that failed. */
+		public int getResult() {return result;}
+		/** The stage whose call failed, or null. */
+		public Stage getFailedStage() {return failedStage;}
+		/** The UID, or null if the reader did not answer 9000. */
+		public byte[] getUid() {return uid == null ? null : uid.clone();}
+		/** The responses, with SW1-SW2, of the script commands that were sent. */
+		public List<byte[]> getResponses() {return Collections.unmodifiableList(responses);}
+		public long getNanos(Stage stage) {return stageNanos[stage.ordinal()];}
+		public long getTotalNanos() {
+			long total = 0;
+			for (long nanos: stageNanos)
+				total += nanos;
+			return total;
+		}
+		private Tap fail(Stage stage, int code) {
+			if (failedStage == null) {
+				failedStage = stage;
+				result = code;
+			}
+			return this;
+		}
+		@Override public String toString() {
+			return String.format("%s{readerName=%s, result=0x%x, failedStage=%s, totalMicros=%d}", getClass().getSimpleName(), readerName, result, failedStage, TimeUnit.NANOSECONDS.toMicros(getTotalNanos()));
+		}
+	}
+
+	/** The taps of one reader. Guarded by lock. */
+	private static class Lane {
+		/** The card inserted and not yet processed, if any. */
+		Event pending;
+		/** Whether the lane is in the ready queue or being processed. */
+		boolean busy;
+	}
+
+	private final JnaTerminalFactorySpi factory;
+	private final ShardedStatusMonitor monitor;
+	private final Listener listener;
+	private final Thread dispatcher;
+	private final Worker[] workers;
+	private String protocol = "*";
+	private byte[][] script = new byte[0][];
+	private int disposition = JnaCard.SCARD_LEAVE_CARD;
+	/** Guards everything below, and is notified when a lane is ready. */
+	private final Object lock = new Object();
+	private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+	private final ArrayDeque<Lane> ready = new ArrayDeque<Lane>();
+	private JnaPCSCException failure;
+	private boolean closed;
+
+	/**
+	 * @param factory
+	 *            not using {@link JnaTerminalFactorySpi#SHARED_CONTEXT}, as
+	 *            the monitor and every worker need their own context.
+	 */
+	public TapPipeline(JnaTerminalFactorySpi factory, int workers, Listener listener) {
+		if (workers < 1)
+			throw new IllegalArgumentException("workers " + workers);
+		this.factory = factory;
+		this.monitor = new ShardedStatusMonitor(factory);
+		this.listener = listener;
+		this.dispatcher = new Thread(new Runnable() {
+			@Override public void run() {dispatch();}
+		}, "jnasmartcardio-tap-dispatcher");
+		this.dispatcher.setDaemon(true);
+		this.workers = new Worker[workers];
+		for (int i = 0; i < workers; i++)
+			this.workers[i] = new Worker(i);
+	}
+
+	/**
+	 * The monitor that detects cards, e.g. to call
+	 * {@link ShardedStatusMonitor#setHoldOff(String, long)}. With a hold-off,
+	 * also set {@link ShardedStatusMonitor#UID} as identifier, or a tap of
+	 * another card of the same model within the hold-off is dropped.
+	 */
+	public ShardedStatusMonitor getMonitor() {return monitor;}
+	/** The protocol to connect with, as for {@link JnaCardTerminal#connect(String)}; "*" by default. Call before {@link #start()}. */
+	public void setProtocol(String protocol) {this.protocol = protocol;}
+	/** The commands to send after reading the UID, as full APDUs. Call before {@link #start()}. */
+	public void setScript(byte[]... commands) {
+		byte[][] copy = new byte[commands.length][];
+		for (int i = 0; i < commands.length; i++)
+			copy[i] = commands[i].clone();
+		this.script = copy;
+	}
+	/** How to leave the card, one of JnaCard.SCARD_*_CARD; SCARD_LEAVE_CARD by default. Call before {@link #start()}. */
+	public void setDisposition(int disposition) {this.disposition = disposition;}
+
+	public void start() {
+		monitor.start();
+		dispatcher.start();
+		for (Worker worker: workers)
+			worker.thread.start();
+	}
+	/** The error that stopped the pipeline, or null. */
+	public JnaPCSCException getFailure() {
+		synchronized (lock) {
+			return failure;
+		}
+	}
+	@Override public void close() {
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+			lock.notifyAll();
+		}
+		monitor.close();
+	}
+	/** Wait for the threads to exit after {@link #close()}. */
+	public void join(long millis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		monitor.join(millis);
+		dispatcher.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+		for (Worker worker: workers)
+			worker.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+	}
+
+	private void fail(JnaPCSCException e) {
+		synchronized (lock) {
+			if (closed)
+				return;
+			failure = e;
+		}
+		close();
+	}
+
+	private void dispatch() {
+		try {
+			Event event;
+			while ((event = monitor.take()) != null) {
+				Event missed = null;
+				synchronized (lock) {
+					if (closed)
+						return;
+					Lane lane = lanes.get(event.getReaderName());
+					if (lane == null)
+						lanes.put(event.getReaderName(), lane = new Lane());
+					switch (event.getKind()) {
+					case CARD_INSERTED:
+						lane.pending = event;
+						if (!lane.busy) {
+							lane.busy = true;
+							ready.addLast(lane);
+							lock.notifyAll();
+						}
+						break;
+					case CARD_REMOVED:
+						missed = lane.pending;
+						lane.pending = null;
+						break;
+					case READER_REMOVED:
+						if (!lane.busy)
+							lanes.remove(event.getReaderName());
+						break;
+					default:
+						break;
+					}
+				}
+				if (missed != null) {
+					Tap tap = new Tap(missed.getReaderName(), missed.getAtr());
+					tap.stageNanos[Stage.QUEUE.ordinal()] = System.nanoTime() - missed.getNanoTime();
+					listener.tap(tap.fail(Stage.QUEUE, WinscardConstants.SCARD_W_REMOVED_CARD));
+				}
+			}
+		} catch (JnaPCSCException e) {
+			fail(e);
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	/** A thread with its own context and buffers. */
+	private class Worker implements Runnable {
+		final Thread thread;
+		private JnaCardTerminals terminals;
+		private final CardHolder holder = new CardHolder();
+		private ByteBuffer command;
+		private ByteBuffer response;
+		Worker(int index) {
+			this.thread = new Thread(this, "jnasmartcardio-tap-worker-" + index);
+			this.thread.setDaemon(true);
+		}
+		@Override public void run() {
+			try {
+				terminals = (JnaCardTerminals) factory.engineTerminals();
+			} catch (EstablishContextException e) {
+				fail(e.getCause());
+				return;
+			}
+			int commandSize = GET_UID.length;
+			for (byte[] c: script)
+				commandSize = Math.max(commandSize, c.length);
+			command = ByteBuffer.allocateDirect(commandSize);
+			response = ByteBuffer.allocateDirect(BufferPool.LARGE);
+			try {
+				while (true) {
+					Lane lane;
+					Event event;
+					synchronized (lock) {
+						while (ready.isEmpty() && !closed)
+							lock.wait();
+						if (closed)
+							return;
+						lane = ready.removeFirst();
+						event = lane.pending;
+						lane.pending = null;
+					}
+					if (event != null)
+						listener.tap(process(event));
+					synchronized (lock) {
+						if (lane.pending != null) {
+							ready.addLast(lane);
+							lock.notifyAll();
+						} else {
+							lane.busy = false;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				// closed
+			} finally {
+				try {
+					terminals.close();
+				} catch (JnaPCSCException e) {
+					// the context is usually already dead
+				}
+			}
+		}
+		private Tap process(Event event) {
+			Tap tap = new Tap(event.getReaderName(), event.getAtr());
+			long start = System.nanoTime();
+			tap.stageNanos[Stage.QUEUE.ordinal()] = start - event.getNanoTime();
+
+			int err = connect(event);
+			long connected = System.nanoTime();
+			tap.stageNanos[Stage.CONNECT.ordinal()] = connected - start;
+			if (err != WinscardConstants.SCARD_S_SUCCESS)
+				return tap.fail(Stage.CONNECT, err);
+			JnaCard card = holder.card;
+			holder.card = null;
+			tap.atr = card.getATR();
+			JnaCardChannel channel = card.getBasicChannel();
+
+			err = transmit(channel, GET_UID);
+			if (err != WinscardConstants.SCARD_S_SUCCESS) {
+				tap.fail(Stage.UID, err);
+			} else {
+				byte[] uidResponse = responseBytes();
+				int n = uidResponse.length;
+				if (n >= 2 && uidResponse[n - 2] == (byte) 0x90 && uidResponse[n - 1] == 0)
+					tap.uid = Arrays.copyOf(uidResponse, n - 2);
+			}
+			long uidRead = System.nanoTime();
+			tap.stageNanos[Stage.UID.ordinal()] = uidRead - connected;
+
+			for (int i = 0; i < script.length && tap.failedStage == null; i++) {
+				err = transmit(channel, script[i]);
+				if (err != WinscardConstants.SCARD_S_SUCCESS)
+					tap.fail(Stage.SCRIPT, err);
+				else
+					tap.responses.add(responseBytes());
+			}
+			long scripted = System.nanoTime();
+			tap.stageNanos[Stage.SCRIPT.ordinal()] = scripted - uidRead;
+
+			err = card.tryDisconnect(disposition);
+			tap.stageNanos[Stage.RELEASE.ordinal()] = System.nanoTime() - scripted;
+			if (err != WinscardConstants.SCARD_S_SUCCESS)
+				tap.fail(Stage.RELEASE, err);
+			return tap;
+		}
+		/**
+		 * Connect to the event's reader. The event's ATR is used only while
+		 * the monitor has seen no insertion or removal since the event;
+		 * otherwise another card may be in the reader, and SCardStatus
+		 * fetches its ATR.
+		 */
+		private int connect(Event event) {
+			String readerName = event.getReaderName();
+			JnaCardTerminal terminal = terminals.terminal(readerName);
+			boolean current = monitor.getEventCount(readerName) == event.getEventCount();
+			int err = terminal.tryConnect(protocol, current ? event.getAtr() : null, holder);
+			if (err != WinscardConstants.SCARD_S_SUCCESS || !current || monitor.getEventCount(readerName) == event.getEventCount())
+				return err;
+			// The card changed while connecting, so the handle may be to the new card.
+			holder.card.tryDisconnect(JnaCard.SCARD_LEAVE_CARD);
+			return terminal.tryConnect(protocol, null, holder);
+		}
+		private int transmit(JnaCardChannel channel, byte[] apdu) {
+			command.clear();
+			command.put(apdu);
+			command.flip();
+			response.clear();
+			return channel.tryTransmit(command, response);
+		}
+		private byte[] responseBytes() {
+			response.flip();
+			byte[] bytes = new byte[response.remaining()];
+			response.get(bytes);
+			return bytes;
+		}
+	}
+
+	@Override public String toString() {
+		synchronized (lock) {
+			return String.format("%s{workers=%d, readers=%d, ready=%d, closed=%s}", getClass().getSimpleName(), workers.length, lanes.size(), ready.size(), closed);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cursor over BER-TLV data (ISO 7816-4 / X.690 tags and lengths) in a
+ * ByteBuffer, e.g. an FCI, a PIV data object or an EMV record.
+ *
+ * <p>
+ * The reader does not copy or allocate: {@link #next()} decodes the next
+ * tag and length in place, and the value is read through accessors such as
+ * {@link #getValueInt()} or {@link #copyValue(byte[], int)}. Constructed
+ * values are walked with {@link #enter()} and {@link #exit()}. A reader can
+ * be reused for the next response with {@link #reset(ByteBuffer)}.
+ *
+ * <p>
+ * Tags are returned as ints made of their bytes, e.g. 0x9F7F or 0x5F2D.
+ * Padding bytes 00 and FF between objects are skipped. The buffer's
+ * position and limit are not changed.
+ *
+ * <pre>
+ * TlvReader r = new TlvReader(view);
+ * if (r.find(0x6F) &amp;&amp; r.enter().find(0x84))
+ *     aidLength = r.copyValue(aid, 0);
+ * </pre>
+ *
+ * <p>
+ * Not thread-safe.
+ */
+public final class TlvReader {
+	private ByteBuffer buffer;
+	/** Offset of the next object and end of the current level. */
+	private int position;
+	private int end;
+	/** The current object, valid after next() returned true. */
+	private int tag;
+	private int tagOffset;
+	private int valueOffset;
+	private int valueLength;
+	private boolean hasCurrent;
+	/** For each enclosing level: its end, and the offset after the constructed object. */
+	private int[] stack = new int[16];
+	private int depth;
+
+	public TlvReader(ByteBuffer buffer) {
+		reset(buffer);
+	}
+	/** Read the data of a response view (without SW1 SW2). */
+	public TlvReader(ResponseView view) {
+		reset(view);
+	}
+
+	/** Start over on the remaining bytes of buffer. */
+	public TlvReader reset(ByteBuffer buffer) {
+		return reset(buffer, buffer.position(), buffer.remaining());
+	}
+	/** Start over on the data of a response view (without SW1 SW2). */
+	public TlvReader reset(ResponseView view) {
+		return reset(view.buffer(), 0, view.getNr());
+	}
+	/** Start over on length bytes of buffer at the absolute offset. */
+	public TlvReader reset(ByteBuffer buffer, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > buffer.limit())
+			throw new IndexOutOfBoundsException(String.format("offset=%d length=%d limit=%d", offset, length, buffer.limit()));
+		this.buffer = buffer;
+		this.position = offset;
+		this.end = offset + length;
+		this.depth = 0;
+		this.hasCurrent = false;
+		return this;
+	}
+
+	private static IllegalArgumentException malformed(String what, int offset) {
+		return new IllegalArgumentException(String.format("Malformed TLV: %s at offset %d", what, offset));
+	}
+
+	/**
+	 * Move to the next object at the current level.
+	 *
+	 * @return false if there are no more objects at this level.
+	 * @throws IllegalArgumentException
+	 *             if the data is not valid BER-TLV.
+	 */
+	public boolean next() {
+		int p = position;
+		while (p < end && (buffer.get(p) == 0 || buffer.get(p) == (byte) 0xff))
+			p++;
+		if (p >= end) {
+			position = end;
+			hasCurrent = false;
+			return false;
+		}
+		int start = p;
+		int t = buffer.get(p++) & 0xff;
+		if ((t & 0x1f) == 0x1f) {
+			int b;
+			do {
+				if (p >= end)
+					throw malformed("truncated tag", start);
+				if (p - start >= 4)
+					throw malformed("tag longer than 4 bytes", start);
+				b = buffer.get(p++) & 0xff;
+				t = (t << 8) | b;
+			} while ((b & 0x80) != 0);
+		}
+		if (p >= end)
+			throw malformed("missing length", start);
+		int length = buffer.get(p++) & 0xff;
+		if (length > 0x80) {
+			int n = length & 0x7f;
+			if (n > 3)
+				throw malformed("length of more than 3 bytes", start);
+			if (p + n > end)
+				throw malformed("truncated length", start);
+			length = 0;
+			for (int i = 0; i < n; i++)
+				length = (length << 8) | (buffer.get(p++) & 0xff);
+		} else if (length == 0x80) {
+			throw malformed("indefinite length", start);
+		}
+		if (length > end - p)
+			throw malformed("value longer than the enclosing data", start);
+		tag = t;
+		tagOffset = start;
+		valueOffset = p;
+		valueLength = length;
+		position = p + length;
+		hasCurrent = true;
+		return true;
+	}
+	/**
+	 * Move to the next object at the current level with the given tag,
+	 * skipping others.
+	 *
+	 * @return false if there is none.
+	 */
+	public boolean find(int tag) {
+		while (next())
+			if (this.tag == tag)
+				return true;
+		return false;
+	}
+	/**
+	 * Descend into the value of the current object, reading it as TLV. This
+	 * is usually a constructed object, but some primitive ones also hold
+	 * TLV, e.g. the PIV data object container 53.
+	 */
+	public TlvReader enter() {
+		current();
+		if (depth + 2 > stack.length) {
+			int[] newStack = new int[stack.length * 2];
+			System.arraycopy(stack, 0, newStack, 0, stack.length);
+			stack = newStack;
+		}
+		stack[depth++] = end;
+		stack[depth++] = position;
+		end = valueOffset + valueLength;
+		position = valueOffset;
+		hasCurrent = false;
+		return this;
+	}
+	/** Return to the enclosing level, after the object that was entered. */
+	public TlvReader exit() {
+		if (depth == 0)
+			throw new IllegalStateException("Not inside a constructed object");
+		position = stack[--depth];
+		end = stack[--depth];
+		hasCurrent = false;
+		return this;
+	}
+	/** Number of {@link #enter()} calls not matched by {@link #exit()}. */
+	public int getDepth() {return depth / 2;}
+
+	private void current() {
+		if (!hasCurrent)
+			throw new IllegalStateException("No current object; call next() first");
+	}
+	public int getTag() {
+		current();
+		return tag;
+	}
+	/** Whether bit 6 of the first tag byte is set. */
+	public boolean isConstructed() {
+		current();
+		return (buffer.get(tagOffset) & 0x20) != 0;
+	}
+	public int getLength() {
+		current();
+		return valueLength;
+	}
+	/** Absolute offset of the value in the buffer. */
+	public int getValueOffset() {
+		current();
+		return valueOffset;
+	}
+	/** Byte i of the value. */
+	public byte getValueByte(int i) {
+		current();
+		if (i < 0 || i >= valueLength)
+			throw new IndexOutOfBoundsException(String.format("index=%d length=%d", i, valueLength));
+		return buffer.get(valueOffset + i);
+	}
+	/** The value as an unsigned big-endian number of at most 4 bytes. */
+	public int getValueInt() {
+		current();
+		if (valueLength > 4)
+			throw new IllegalStateException(String.format("Value of tag %X has %d bytes", tag, valueLength));
+		int r = 0;
+		for (int i = 0; i < valueLength; i++)
+			r = (r << 8) | (buffer.get(valueOffset + i) & 0xff);
+		return r;
+	}
+	/**
+	 * Copy the value into dst at offset.
+	 *
+	 * @return the number of bytes copied, i.e. {@link #getLength()}.
+	 */
+	public int copyValue(byte[] dst, int offset) {
+		current();
+		if (offset < 0 || offset + valueLength > dst.length)
+			throw new IndexOutOfBoundsException(String.format("offset=%d length=%d dst.length=%d", offset, valueLength, dst.length));
+		for (int i = 0; i < valueLength; i++)
+			dst[offset + i] = buffer.get(valueOffset + i);
+		return valueLength;
+	}
+	/** Copy the value into dst at its position, advancing it. */
+	public void copyValue(ByteBuffer dst) {
+		current();
+		for (int i = 0; i < valueLength; i++)
+			dst.put(buffer.get(valueOffset + i));
+	}
+	/** Whether the value equals expected, e.g. an AID. */
+	public boolean valueEquals(byte[] expected) {
+		current();
+		if (expected.length != valueLength)
+			return false;
+		for (int i = 0; i < valueLength; i++)
+			if (expected[i] != buffer.get(valueOffset + i))
+				return false;
+		return true;
+	}
+	/** A copy of the value; allocates. */
+	public byte[] getValue() {
+		byte[] r = new byte[getLength()];
+		copyValue(r, 0);
+		return r;
+	}
+	@Override public String toString() {
+		if (!hasCurrent)
+			return String.format("%s{depth=%d, no current object}", getClass().getSimpleName(), getDepth());
+		return String.format("%s{depth=%d, tag=%X, length=%d}", getClass().getSimpleName(), getDepth(), tag, valueLength);
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes BER-TLV into a caller-supplied ByteBuffer, e.g. to build the data
+ * field of a command. The counterpart of {@link TlvReader}; tags are ints
+ * made of their bytes, e.g. 0x5C or 0x9F7F.
+ *
+ * <p>
+ * Constructed objects are written with {@link #start(int)} and
+ * {@link #end()}; their length is filled in by end(), moving the contents
+ * if the length needs more than one byte. Nothing is allocated.
+ *
+ * <pre>
+ * new TlvWriter(data).start(0x5C).put(0x5C, objectId).end();
+ * </pre>
+ *
+ * <p>
+ * Not thread-safe.
+ */
+public final class TlvWriter {
+	private final ByteBuffer buffer;
+	/** Offsets of the one-byte length placeholders of open objects. */
+	private int[] stack = new int[8];
+	private int depth;
+
+	/** Write at the position of buffer, advancing it. */
+	public TlvWriter(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/** Number of bytes the tag takes. */
+	static int tagSize(int tag) {
+		if (tag == 0)
+			throw new IllegalArgumentException("Tag 0 is not valid");
+		return (tag & 0xff000000) != 0 ? 4 : (tag & 0xff0000) != 0 ? 3 : (tag & 0xff00) != 0 ? 2 : 1;
+	}
+	/** Number of bytes the length takes. */
+	static int lengthSize(int length) {
+		if (length < 0)
+			throw new IllegalArgumentException("Negative length " + length);
+		return length < 0x80 ? 1 : length <= 0xff ? 2 : length <= 0xffff ? 3 : 4;
+	}
+	private void putTag(int tag) {
+		for (int i = tagSize(tag) - 1; i >= 0; i--)
+			buffer.put((byte) (tag >>> (8 * i)));
+	}
+	private void putLength(int length) {
+		int n = lengthSize(length) - 1;
+		if (n > 0)
+			buffer.put((byte) (0x80 | n));
+		for (int i = n == 0 ? 0 : n - 1; i >= 0; i--)
+			buffer.put((byte) (length >>> (8 * i)));
+	}
+
+	/** Write a primitive object. */
+	public TlvWriter put(int tag, byte[] value) {
+		return put(tag, value, 0, value.length);
+	}
+	public TlvWriter put(int tag, byte[] value, int offset, int length) {
+		putTag(tag);
+		putLength(length);
+		buffer.put(value, offset, length);
+		return this;
+	}
+	/** Write a primitive object whose value is the remaining bytes of value, which are consumed. */
+	public TlvWriter put(int tag, ByteBuffer value) {
+		putTag(tag);
+		putLength(value.remaining());
+		buffer.put(value);
+		return this;
+	}
+	/** Write a primitive object whose value is the single byte b. */
+	public TlvWriter putByte(int tag, int b) {
+		putTag(tag);
+		buffer.put((byte) 1);
+		buffer.put((byte) b);
+		return this;
+	}
+	/** Write a primitive object whose value is the unsigned number in the fewest bytes (at least 1). */
+	public TlvWriter putInt(int tag, int value) {
+		int n = (value & 0xff000000) != 0 ? 4 : (value & 0xff0000) != 0 ? 3 : (value & 0xff00) != 0 ? 2 : 1;
+		putTag(tag);
+		buffer.put((byte) n);
+		for (int i = n - 1; i >= 0; i--)
+			buffer.put((byte) (value >>> (8 * i)));
+		return this;
+	}
+
+	/** Begin a constructed object; its contents follow until {@link #end()}. */
+	public TlvWriter start(int tag) {
+		putTag(tag);
+		if (depth == stack.length) {
+			int[] newStack = new int[stack.length * 2];
+			System.arraycopy(stack, 0, newStack, 0, stack.length);
+			stack = newStack;
+		}
+		stack[depth++] = buffer.position();
+		buffer.put((byte) 0);
+		return this;
+	}
+	/** Finish the innermost object begun by {@link #start(int)}. */
+	public TlvWriter end() {
+		if (depth == 0)
+			throw new IllegalStateException("No constructed object to end");
+		int lengthOffset = stack[--depth];
+		int contentOffset = lengthOffset + 1;
+		int contentLength = buffer.position() - contentOffset;
+		int extra = lengthSize(contentLength) - 1;
+		if (extra > 0) {
+			if (buffer.remaining() < extra)
+				throw new BufferOverflowException();
+			// Move the contents up to make room for the long length form.
+			for (int i = contentLength - 1; i >= 0; i--)
+				buffer.put(contentOffset + extra + i, buffer.get(contentOffset + i));
+		}
+		int end = contentOffset + extra + contentLength;
+		buffer.position(lengthOffset);
+		putLength(contentLength);
+		buffer.position(end);
+		return this;
+	}
+	/** Number of {@link #start(int)} calls not matched by {@link #end()}. */
+	public int getDepth() {return depth;}
+	public ByteBuffer getBuffer() {return buffer;}
+	@Override public String toString() {return String.format("%s{position=%d, depth=%d}", getClass().getSimpleName(), buffer.position(), depth);}
+}
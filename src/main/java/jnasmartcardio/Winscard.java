@@ -27,8 +27,13 @@ import com.sun.jna.ptr.ByReference;
 /**
  * Wrapper for the PC/SC (aka WinSCard) API. Abstracts over differences in the
  * ABIs among the implementations on Windows, OS X, and Linux.
+ *
+ * <p>
+ * This is public so that a {@link WinscardLibInfo} can be wrapped (e.g. by
+ * {@link InstrumentedWinscardLibrary}) and given to
+ * {@link Smartcardio.JnaTerminalFactorySpi}.
  */
-class Winscard {
+public class Winscard {
 	/**
 	 * The DWORD type used by WinSCard.h, used wherever an integer is needed in
 	 * SCard functions. On Windows and OS X, this is always typedef'd to a
@@ -238,6 +243,24 @@ class Winscard {
 		}
 	}
 
+	/**
+	 * Create a WinscardLibInfo for a library implemented in Java (e.g.
+	 * {@link ReplayWinscardLibrary}), which has no SCARD_PCI_* globals to
+	 * read, so they are allocated here instead.
+	 */
+	public static WinscardLibInfo libInfo(WinscardLibrary lib) {
+		int rawProtocol = Platform.isWindows() ? 0x10000 : 4;
+		return new WinscardLibInfo(lib, newPci(1), newPci(2), newPci(rawProtocol));
+	}
+	private static ScardIoRequest newPci(int protocol) {
+		ScardIoRequest r = new ScardIoRequest();
+		r.dwProtocol = new Dword(protocol);
+		r.cbPciLength = new Dword(r.size());
+		r.write();
+		r.setAutoSynch(false);
+		return r;
+	}
+
 	/**
 	 * FunctionMapper from identifier in WinSCard.h to the symbol in the
 	 * WinSCard.dll shared library on Windows that implements it.
@@ -280,6 +303,34 @@ class Winscard {
 			return name;
 		}
 	}
+	/** Set by {@link #sharedLib()} once the library has loaded; a failed load is not kept, so that it can be retried. */
+	private static volatile WinscardLibInfo sharedLib;
+	/**
+	 * The native library, loaded once per process on the first call. Prefer
+	 * this to {@link #openLib()}, which loads the library and reads the
+	 * SCARD_PCI_* globals again on every call.
+	 *
+	 * <p>
+	 * On Java 22+ (using the multi-release jar), the library is bound with
+	 * the Foreign Function &amp; Memory API instead of JNA, unless the system
+	 * property jnasmartcardio.ffm is false.
+	 *
+	 * @throws UnsatisfiedLinkError
+	 *             if the library cannot be loaded. The next call tries
+	 *             again, e.g. after pcsc-lite is installed.
+	 */
+	public static WinscardLibInfo sharedLib() {
+		WinscardLibInfo libInfo = sharedLib;
+		if (libInfo != null)
+			return libInfo;
+		synchronized (Winscard.class) {
+			if (sharedLib == null) {
+				WinscardLibInfo ffm = FfmWinscard.openLib();
+				sharedLib = ffm != null ? ffm : openLib();
+			}
+			return sharedLib;
+		}
+	}
 	public static WinscardLibInfo openLib() {
 		String libraryName = Platform.isWindows() ? WINDOWS_PATH : Platform.isMac() ? MAC_PATH : PCSC_PATH;
 		HashMap<String, Object> options = new HashMap<String, Object>();
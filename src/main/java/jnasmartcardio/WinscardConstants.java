@@ -183,4 +183,11 @@ class WinscardConstants {
 	public static final int INFINITE = 0xffffffff;
 	public static final int MAX_ATR_SIZE = 33;
 	public static final String PNP_READER_ID = "\\\\?PnP?\\Notification";
+
+	// Attribute ids for SCardGetAttrib: SCARD_ATTR_VALUE(class, tag) from reader.h
+	public static final int SCARD_ATTR_VENDOR_NAME = 0x00010100;
+	public static final int SCARD_ATTR_VENDOR_IFD_TYPE = 0x00010101;
+	public static final int SCARD_ATTR_VENDOR_IFD_VERSION = 0x00010102;
+	public static final int SCARD_ATTR_VENDOR_IFD_SERIAL_NO = 0x00010103;
+	public static final int SCARD_ATTR_MAX_IFSD = 0x00030125;
 }
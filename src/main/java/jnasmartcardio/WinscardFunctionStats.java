@@ -0,0 +1,120 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call count, error codes and latency histogram of one PC/SC function.
+ *
+ * <p>
+ * Recording is lock-free and allocation-free: counters are atomics, the
+ * latency histogram has one bucket per power of two nanoseconds, and error
+ * codes are counted by their low byte (all SCARD_E_* and SCARD_W_* codes
+ * are 0x801000xx).
+ */
+public class WinscardFunctionStats implements WinscardFunctionStatsMBean {
+	private static final int LATENCY_BUCKETS = 64;
+	private static final int ERROR_SLOTS = 256;
+	private final String function;
+	private final String reader;
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	/** Bucket i counts latencies in [2^(i-1), 2^i) nanoseconds. */
+	private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKETS);
+	/** Slot i counts error 0x80100000 | i; the last slot counts other errors. */
+	private final AtomicLongArray errorCounts = new AtomicLongArray(ERROR_SLOTS + 1);
+
+	public WinscardFunctionStats(String function, String reader) {
+		this.function = function;
+		this.reader = reader;
+	}
+
+	/** Record one call that took the given time and returned the given code. */
+	public void record(long nanos, int code) {
+		calls.incrementAndGet();
+		if (nanos < 0)
+			nanos = 0;
+		totalNanos.addAndGet(nanos);
+		latencyBuckets.incrementAndGet(LATENCY_BUCKETS - Long.numberOfLeadingZeros(nanos));
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {}
+		if (code != WinscardConstants.SCARD_S_SUCCESS) {
+			errors.incrementAndGet();
+			int slot = (code & 0xffffff00) == 0x80100000 ? code & 0xff : ERROR_SLOTS;
+			errorCounts.incrementAndGet(slot);
+		}
+	}
+
+	@Override public String getFunction() {return function;}
+	@Override public String getReader() {return reader;}
+	@Override public long getCalls() {return calls.get();}
+	@Override public long getErrors() {return errors.get();}
+	@Override public Map<String, Long> getErrorCounts() {
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for (int i = 0; i <= ERROR_SLOTS; i++) {
+			long n = errorCounts.get(i);
+			if (n == 0)
+				continue;
+			String name = i == ERROR_SLOTS ? null : WinscardConstants.ERROR_TO_VARIABLE_NAME.get(0x80100000 | i);
+			if (name == null)
+				name = i == ERROR_SLOTS ? "other" : String.format("0x%x", 0x80100000 | i);
+			r.put(name, n);
+		}
+		return r;
+	}
+	@Override public long getTotalLatencyMicros() {return TimeUnit.NANOSECONDS.toMicros(totalNanos.get());}
+	@Override public long getMeanLatencyMicros() {
+		long n = calls.get();
+		return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.get() / n);
+	}
+	@Override public long getMaxLatencyMicros() {return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());}
+	@Override public long getP50LatencyMicros() {return getLatencyPercentileMicros(50);}
+	@Override public long getP90LatencyMicros() {return getLatencyPercentileMicros(90);}
+	@Override public long getP99LatencyMicros() {return getLatencyPercentileMicros(99);}
+	@Override public long getP999LatencyMicros() {return getLatencyPercentileMicros(99.9);}
+
+	/**
+	 * Upper bound of the histogram bucket containing the given percentile,
+	 * so the result is accurate to within a factor of 2.
+	 */
+	public long getLatencyPercentileMicros(double percentile) {
+		long[] counts = new long[LATENCY_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++)
+			total += counts[i] = latencyBuckets.get(i);
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(percentile / 100 * total);
+		long seen = 0;
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return TimeUnit.NANOSECONDS.toMicros(Math.min(1L << i, maxNanos.get()));
+		}
+		return getMaxLatencyMicros();
+	}
+
+	@Override public void reset() {
+		calls.set(0);
+		errors.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+		for (int i = 0; i < LATENCY_BUCKETS; i++)
+			latencyBuckets.set(i, 0);
+		for (int i = 0; i <= ERROR_SLOTS; i++)
+			errorCounts.set(i, 0);
+	}
+
+	@Override public String toString() {
+		return String.format("%s{function=%s, reader=%s, calls=%d, errors=%d, meanMicros=%d, p99Micros=%d}", getClass().getSimpleName(), function, reader, getCalls(), getErrors(), getMeanLatencyMicros(), getP99LatencyMicros());
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.util.Map;
+
+/**
+ * JMX view of the statistics of one PC/SC function, either over all readers
+ * or for one reader. See {@link WinscardMetrics}.
+ */
+public interface WinscardFunctionStatsMBean {
+	/** The PC/SC function name, e.g. SCardTransmit. */
+	String getFunction();
+	/** The reader name, or null for the statistics over all readers. */
+	String getReader();
+	long getCalls();
+	/** Number of calls that returned anything other than SCARD_S_SUCCESS. */
+	long getErrors();
+	/** Number of calls by returned error name (e.g. SCARD_E_TIMEOUT). */
+	Map<String, Long> getErrorCounts();
+	long getTotalLatencyMicros();
+	long getMeanLatencyMicros();
+	long getMaxLatencyMicros();
+	long getP50LatencyMicros();
+	long getP90LatencyMicros();
+	long getP99LatencyMicros();
+	long getP999LatencyMicros();
+	void reset();
+}
@@ -0,0 +1,174 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-function and per-reader statistics recorded by
+ * {@link InstrumentedWinscardLibrary}, published as JMX MBeans named
+ * <code>jnasmartcardio:type=WinscardFunction,name=SCardTransmit</code> (all
+ * readers) and
+ * <code>jnasmartcardio:type=WinscardFunction,reader="...",name=SCardTransmit</code>
+ * (one reader).
+ */
+public class WinscardMetrics {
+	public static final String DOMAIN = "jnasmartcardio";
+	/** The functions of {@link Winscard.WinscardLibrary}, indexed by the constants below. */
+	static final String[] FUNCTIONS = {
+		"SCardEstablishContext",
+		"SCardReleaseContext",
+		"SCardConnect",
+		"SCardReconnect",
+		"SCardDisconnect",
+		"SCardBeginTransaction",
+		"SCardEndTransaction",
+		"SCardStatus",
+		"SCardGetStatusChange",
+		"SCardControl",
+		"SCardGetAttrib",
+		"SCardSetAttrib",
+		"SCardTransmit",
+		"SCardListReaders",
+		"SCardFreeMemory",
+		"SCardListReaderGroups",
+		"SCardCancel",
+		"SCardIsValidContext",
+	};
+	static final int ESTABLISH_CONTEXT = 0;
+	static final int RELEASE_CONTEXT = 1;
+	static final int CONNECT = 2;
+	static final int RECONNECT = 3;
+	static final int DISCONNECT = 4;
+	static final int BEGIN_TRANSACTION = 5;
+	static final int END_TRANSACTION = 6;
+	static final int STATUS = 7;
+	static final int GET_STATUS_CHANGE = 8;
+	static final int CONTROL = 9;
+	static final int GET_ATTRIB = 10;
+	static final int SET_ATTRIB = 11;
+	static final int TRANSMIT = 12;
+	static final int LIST_READERS = 13;
+	static final int FREE_MEMORY = 14;
+	static final int LIST_READER_GROUPS = 15;
+	static final int CANCEL = 16;
+	static final int IS_VALID_CONTEXT = 17;
+
+	private final WinscardFunctionStats[] total;
+	private final ConcurrentMap<String, WinscardFunctionStats[]> byReader = new ConcurrentHashMap<String, WinscardFunctionStats[]>();
+	private MBeanServer mbeanServer;
+	private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+	public WinscardMetrics() {
+		total = newStats(null);
+	}
+	private static WinscardFunctionStats[] newStats(String reader) {
+		WinscardFunctionStats[] r = new WinscardFunctionStats[FUNCTIONS.length];
+		for (int i = 0; i < r.length; i++)
+			r[i] = new WinscardFunctionStats(FUNCTIONS[i], reader);
+		return r;
+	}
+
+	/**
+	 * Record one call. reader may be null if the call is not about one
+	 * particular reader. Does not allocate unless this is the first call
+	 * about the reader.
+	 */
+	void record(int function, String reader, long nanos, int code) {
+		total[function].record(nanos, code);
+		if (reader == null)
+			return;
+		WinscardFunctionStats[] readerStats = byReader.get(reader);
+		if (readerStats == null)
+			readerStats = addReader(reader);
+		readerStats[function].record(nanos, code);
+	}
+	private WinscardFunctionStats[] addReader(String reader) {
+		WinscardFunctionStats[] readerStats = newStats(reader);
+		WinscardFunctionStats[] old = byReader.putIfAbsent(reader, readerStats);
+		if (old != null)
+			return old;
+		synchronized (this) {
+			if (mbeanServer != null)
+				register(readerStats);
+		}
+		return readerStats;
+	}
+
+	/** The statistics of the given function over all readers. */
+	public WinscardFunctionStats get(String function) {
+		return total[indexOf(function)];
+	}
+	/**
+	 * The statistics of the given function for one reader, or null if no
+	 * call about that reader has been recorded.
+	 */
+	public WinscardFunctionStats get(String function, String reader) {
+		WinscardFunctionStats[] readerStats = byReader.get(reader);
+		return readerStats == null ? null : readerStats[indexOf(function)];
+	}
+	private static int indexOf(String function) {
+		for (int i = 0; i < FUNCTIONS.length; i++)
+			if (FUNCTIONS[i].equals(function))
+				return i;
+		throw new IllegalArgumentException("Unknown function " + function);
+	}
+
+	/** Register the MBeans with the platform MBeanServer. */
+	public void registerMBeans() throws JMException {
+		registerMBeans(ManagementFactory.getPlatformMBeanServer());
+	}
+	/**
+	 * Register the MBeans with the given MBeanServer. MBeans for readers seen
+	 * later are registered as they appear.
+	 */
+	public synchronized void registerMBeans(MBeanServer server) throws JMException {
+		if (mbeanServer != null)
+			throw new IllegalStateException("Already registered");
+		mbeanServer = server;
+		register(total);
+		for (WinscardFunctionStats[] readerStats: byReader.values())
+			register(readerStats);
+	}
+	public synchronized void unregisterMBeans() throws JMException {
+		if (mbeanServer == null)
+			return;
+		try {
+			for (ObjectName name: registeredNames)
+				if (mbeanServer.isRegistered(name))
+					mbeanServer.unregisterMBean(name);
+		} finally {
+			registeredNames.clear();
+			mbeanServer = null;
+		}
+	}
+	private void register(WinscardFunctionStats[] stats) {
+		for (WinscardFunctionStats s: stats) {
+			try {
+				ObjectName name = objectName(s.getFunction(), s.getReader());
+				mbeanServer.registerMBean(s, name);
+				registeredNames.add(name);
+			} catch (JMException e) {
+				// e.g. another WinscardMetrics has already registered this
+				// name. Metrics are best-effort; keep recording.
+			}
+		}
+	}
+	static ObjectName objectName(String function, String reader) throws JMException {
+		StringBuilder sb = new StringBuilder(DOMAIN).append(":type=WinscardFunction");
+		if (reader != null)
+			sb.append(",reader=").append(ObjectName.quote(reader));
+		sb.append(",name=").append(function);
+		return new ObjectName(sb.toString());
+	}
+}
@@ -0,0 +1,411 @@
+package jnasmartcardio.tools;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CardTerminals.State;
+import javax.smartcardio.TerminalFactory;
+
+import jnasmartcardio.BufferPool;
+import jnasmartcardio.SimulatedWinscardLibrary;
+import jnasmartcardio.Smartcardio;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+/**
+ * Sends a weighted mix of APDUs to the cards in some readers from
+ * concurrent workers, and reports throughput, latency percentiles per reader
+ * and per INS, GC, and allocation, to qualify readers and library versions.
+ *
+ * <p>
+ * Each worker has its own connection to one reader; workers are spread over
+ * the readers round robin. After the warm-up, every transmit is measured
+ * until the duration is over. A summary goes to stderr, and the results as
+ * JSON to the --out file, or stdout.
+ */
+public class ApduLoadTest {
+	private static final String USAGE = "Usage: ApduLoadTest [options]\n"
+			+ "  --apdu HEX[:WEIGHT]  command to send, e.g. 0084000008:3 (repeatable; default 0084000008)\n"
+			+ "  --reader TEXT        use readers whose name contains TEXT (repeatable; default all with a card)\n"
+			+ "  --workers N          concurrent workers (default one per reader)\n"
+			+ "  --duration SECONDS   measured time (default 10)\n"
+			+ "  --warmup SECONDS     unmeasured time before it (default 2)\n"
+			+ "  --simulate READERS   use SimulatedWinscardLibrary instead of PC/SC\n"
+			+ "  --latency-us MICROS  command latency of the simulated readers (default 1000)\n"
+			+ "  --out FILE           write the JSON results to FILE instead of stdout";
+
+	private static class Apdu {
+		final byte[] bytes;
+		final int weight;
+		Apdu(byte[] bytes, int weight) {
+			this.bytes = bytes;
+			this.weight = weight;
+		}
+		int ins() {return bytes[1] & 0xff;}
+	}
+
+	private static class Worker implements Runnable {
+		final CardTerminal terminal;
+		final Apdu[] apdus;
+		final int totalWeight;
+		final Thread thread;
+		final LatencyHistogram all = new LatencyHistogram();
+		final Map<Integer, LatencyHistogram> byIns = new TreeMap<Integer, LatencyHistogram>();
+		long errors;
+		long unexpectedSw;
+		long allocatedBytes = -1;
+		String failure;
+		volatile boolean recording;
+		volatile boolean stopped;
+		Worker(CardTerminal terminal, Apdu[] apdus, int index) {
+			this.terminal = terminal;
+			this.apdus = apdus;
+			int w = 0;
+			for (Apdu apdu: apdus)
+				w += apdu.weight;
+			this.totalWeight = w;
+			for (Apdu apdu: apdus)
+				byIns.put(apdu.ins(), new LatencyHistogram());
+			this.thread = new Thread(this, "load-worker-" + index);
+		}
+		@Override public void run() {
+			Card card;
+			try {
+				card = terminal.connect("*");
+			} catch (CardException e) {
+				failure = e.toString();
+				return;
+			}
+			try {
+				CardChannel channel = card.getBasicChannel();
+				ByteBuffer[] commands = new ByteBuffer[apdus.length];
+				LatencyHistogram[] histograms = new LatencyHistogram[apdus.length];
+				for (int i = 0; i < apdus.length; i++) {
+					commands[i] = ByteBuffer.wrap(apdus[i].bytes);
+					histograms[i] = byIns.get(apdus[i].ins());
+				}
+				ByteBuffer response = ByteBuffer.allocate(65538);
+				Random random = new Random();
+				boolean measuring = false;
+				long allocatedAtStart = 0;
+				while (!stopped) {
+					if (!measuring && recording) {
+						measuring = true;
+						allocatedAtStart = allocatedBytes();
+					}
+					int i = pick(random.nextInt(totalWeight));
+					commands[i].clear();
+					response.clear();
+					long start = System.nanoTime();
+					int length;
+					try {
+						length = channel.transmit(commands[i], response);
+					} catch (CardException e) {
+						if (measuring)
+							errors++;
+						failure = e.toString();
+						sleep(10);
+						continue;
+					}
+					long latency = System.nanoTime() - start;
+					if (!measuring)
+						continue;
+					all.record(latency);
+					histograms[i].record(latency);
+					int sw1 = length >= 2 ? response.get(length - 2) & 0xff : 0;
+					if (sw1 != 0x90 && sw1 != 0x61)
+						unexpectedSw++;
+				}
+				if (measuring && allocatedAtStart >= 0)
+					allocatedBytes = allocatedBytes() - allocatedAtStart;
+			} finally {
+				try {
+					card.disconnect(false);
+				} catch (CardException e) {
+					// ignore
+				}
+			}
+		}
+		private int pick(int r) {
+			for (int i = 0; i < apdus.length; i++) {
+				r -= apdus[i].weight;
+				if (r < 0)
+					return i;
+			}
+			return apdus.length - 1;
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Method threadAllocatedBytes;
+	static {
+		try {
+			// com.sun.management.ThreadMXBean, which HotSpot implements.
+			Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			m.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+			threadAllocatedBytes = m;
+		} catch (Exception e) {
+			// not HotSpot; allocation is not reported
+		}
+	}
+	/** Bytes allocated so far by the current thread, or -1 if unknown. */
+	private static long allocatedBytes() {
+		if (threadAllocatedBytes == null)
+			return -1;
+		try {
+			return (Long) threadAllocatedBytes.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+	private static long[] gcTotals() {
+		long count = 0, millis = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return new long[] {count, millis};
+	}
+
+	private static byte[] parseHex(String s) {
+		if (s.length() % 2 != 0 || s.length() < 8)
+			throw new IllegalArgumentException("Bad APDU " + s);
+		byte[] r = new byte[s.length() / 2];
+		for (int i = 0; i < r.length; i++)
+			r[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		return r;
+	}
+	private static void usage(String message) {
+		if (message != null)
+			System.err.println(message);
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<Apdu> apduList = new ArrayList<Apdu>();
+		List<String> readerFilters = new ArrayList<String>();
+		int workerCount = 0;
+		double durationSeconds = 10, warmupSeconds = 2;
+		int simulatedReaders = 0;
+		long latencyMicros = 1000;
+		String out = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (i + 1 >= args.length)
+					usage("Missing value for " + arg);
+				String value = args[++i];
+				if ("--apdu".equals(arg)) {
+					int colon = value.indexOf(':');
+					int weight = colon < 0 ? 1 : Integer.parseInt(value.substring(colon + 1));
+					if (weight < 1)
+						usage("Weight must be positive: " + value);
+					apduList.add(new Apdu(parseHex(colon < 0 ? value : value.substring(0, colon)), weight));
+				} else if ("--reader".equals(arg)) {
+					readerFilters.add(value);
+				} else if ("--workers".equals(arg)) {
+					workerCount = Integer.parseInt(value);
+				} else if ("--duration".equals(arg)) {
+					durationSeconds = Double.parseDouble(value);
+				} else if ("--warmup".equals(arg)) {
+					warmupSeconds = Double.parseDouble(value);
+				} else if ("--simulate".equals(arg)) {
+					simulatedReaders = Integer.parseInt(value);
+				} else if ("--latency-us".equals(arg)) {
+					latencyMicros = Long.parseLong(value);
+				} else if ("--out".equals(arg)) {
+					out = value;
+				} else {
+					usage("Unknown option " + arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			usage(e.getMessage());
+		}
+		if (apduList.isEmpty())
+			apduList.add(new Apdu(parseHex("0084000008"), 1));
+		Apdu[] apdus = apduList.toArray(new Apdu[apduList.size()]);
+
+		CardTerminals terminals;
+		String library;
+		if (simulatedReaders > 0) {
+			SimulatedWinscardLibrary lib = new SimulatedWinscardLibrary(simulatedReaders, latencyMicros);
+			terminals = new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+			library = lib.toString();
+		} else {
+			terminals = TerminalFactory.getInstance("PC/SC", null, new Smartcardio()).terminals();
+			library = "PC/SC";
+		}
+		List<CardTerminal> readers = new ArrayList<CardTerminal>();
+		for (CardTerminal terminal: terminals.list(State.CARD_PRESENT)) {
+			boolean match = readerFilters.isEmpty();
+			for (String filter: readerFilters)
+				match |= terminal.getName().contains(filter);
+			if (match)
+				readers.add(terminal);
+		}
+		if (readers.isEmpty())
+			usage("No reader with a card matches");
+		if (workerCount <= 0)
+			workerCount = readers.size();
+
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < workerCount; i++)
+			workers.add(new Worker(readers.get(i % readers.size()), apdus, i));
+		for (Worker worker: workers)
+			worker.thread.start();
+		Thread.sleep((long) (warmupSeconds * 1000));
+		long[] gcBefore = gcTotals();
+		long poolAllocatedBefore = BufferPool.getDefault().getAllocated();
+		long start = System.nanoTime();
+		for (Worker worker: workers)
+			worker.recording = true;
+		Thread.sleep((long) (durationSeconds * 1000));
+		for (Worker worker: workers)
+			worker.stopped = true;
+		long elapsedNanos = System.nanoTime() - start;
+		for (Worker worker: workers)
+			worker.thread.join();
+		long[] gcAfter = gcTotals();
+		long poolAllocated = BufferPool.getDefault().getAllocated() - poolAllocatedBefore;
+
+		// Merge per reader, per INS and overall.
+		LatencyHistogram all = new LatencyHistogram();
+		Map<String, LatencyHistogram> byReader = new LinkedHashMap<String, LatencyHistogram>();
+		Map<Integer, LatencyHistogram> byIns = new TreeMap<Integer, LatencyHistogram>();
+		long errors = 0, unexpectedSw = 0, allocated = 0;
+		boolean allocationKnown = true;
+		List<String> failures = new ArrayList<String>();
+		for (Worker worker: workers) {
+			all.add(worker.all);
+			LatencyHistogram r = byReader.get(worker.terminal.getName());
+			if (r == null)
+				byReader.put(worker.terminal.getName(), r = new LatencyHistogram());
+			r.add(worker.all);
+			for (Map.Entry<Integer, LatencyHistogram> e: worker.byIns.entrySet()) {
+				LatencyHistogram h = byIns.get(e.getKey());
+				if (h == null)
+					byIns.put(e.getKey(), h = new LatencyHistogram());
+				h.add(e.getValue());
+			}
+			errors += worker.errors;
+			unexpectedSw += worker.unexpectedSw;
+			if (worker.allocatedBytes < 0)
+				allocationKnown = false;
+			else
+				allocated += worker.allocatedBytes;
+			if (worker.failure != null)
+				failures.add(worker.terminal.getName() + ": " + worker.failure);
+		}
+		double seconds = elapsedNanos / 1e9;
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"library\": ").append(quote(library));
+		json.append(",\n  \"workers\": ").append(workerCount);
+		json.append(",\n  \"durationSeconds\": ").append(format(seconds));
+		json.append(",\n  \"apdus\": [");
+		for (int i = 0; i < apdus.length; i++) {
+			json.append(i == 0 ? "" : ", ").append("{\"command\": ").append(quote(hex(apdus[i].bytes))).append(", \"weight\": ").append(apdus[i].weight).append('}');
+		}
+		json.append("],\n  \"total\": ");
+		appendStats(json, all, seconds);
+		json.append(",\n  \"errors\": ").append(errors);
+		json.append(",\n  \"unexpectedSw\": ").append(unexpectedSw);
+		json.append(",\n  \"readers\": {");
+		String separator = "\n    ";
+		for (Map.Entry<String, LatencyHistogram> e: byReader.entrySet()) {
+			json.append(separator).append(quote(e.getKey())).append(": ");
+			appendStats(json, e.getValue(), seconds);
+			separator = ",\n    ";
+		}
+		json.append("\n  },\n  \"instructions\": {");
+		separator = "\n    ";
+		for (Map.Entry<Integer, LatencyHistogram> e: byIns.entrySet()) {
+			json.append(separator).append(quote(String.format("%02X", e.getKey()))).append(": ");
+			appendStats(json, e.getValue(), seconds);
+			separator = ",\n    ";
+		}
+		json.append("\n  },\n  \"gc\": {\"collections\": ").append(gcAfter[0] - gcBefore[0]).append(", \"timeMillis\": ").append(gcAfter[1] - gcBefore[1]).append('}');
+		json.append(",\n  \"allocation\": {\"bytes\": ").append(allocationKnown ? allocated : -1);
+		json.append(", \"bytesPerOperation\": ").append(allocationKnown && all.getCount() > 0 ? format((double) allocated / all.getCount()) : "null");
+		json.append(", \"bufferPoolAllocations\": ").append(poolAllocated).append('}');
+		json.append(",\n  \"failures\": [");
+		for (int i = 0; i < failures.size(); i++)
+			json.append(i == 0 ? "" : ", ").append(quote(failures.get(i)));
+		json.append("]\n}\n");
+
+		PrintStream err = System.err;
+		err.format("%d operations in %.1f s: %.1f/s, %d errors, %d unexpected SW%n", all.getCount(), seconds, all.getCount() / seconds, errors, unexpectedSw);
+		err.format("latency us: p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n", all.getValueAtPercentile(50) / 1e3, all.getValueAtPercentile(90) / 1e3, all.getValueAtPercentile(99) / 1e3, all.getValueAtPercentile(99.9) / 1e3, all.getMax() / 1e3);
+		err.format("gc: %d collections, %d ms; allocated %s bytes per operation%n", gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], allocationKnown && all.getCount() > 0 ? format((double) allocated / all.getCount()) : "?");
+		if (out == null) {
+			System.out.print(json);
+		} else {
+			Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+			try {
+				w.write(json.toString());
+			} finally {
+				w.close();
+			}
+		}
+	}
+
+	private static void appendStats(StringBuilder json, LatencyHistogram h, double seconds) {
+		json.append("{\"operations\": ").append(h.getCount());
+		json.append(", \"throughputPerSecond\": ").append(format(h.getCount() / seconds));
+		json.append(", \"latencyMicros\": {\"min\": ").append(format(h.getMin() / 1e3));
+		json.append(", \"mean\": ").append(format(h.getMean() / 1e3));
+		json.append(", \"p50\": ").append(format(h.getValueAtPercentile(50) / 1e3));
+		json.append(", \"p90\": ").append(format(h.getValueAtPercentile(90) / 1e3));
+		json.append(", \"p99\": ").append(format(h.getValueAtPercentile(99) / 1e3));
+		json.append(", \"p999\": ").append(format(h.getValueAtPercentile(99.9) / 1e3));
+		json.append(", \"max\": ").append(format(h.getMax() / 1e3)).append("}}");
+	}
+	private static String format(double d) {
+		return String.format(Locale.ROOT, "%.3f", d);
+	}
+	private static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b: bytes)
+			sb.append(String.format("%02X", b & 0xff));
+		return sb.toString();
+	}
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -0,0 +1,42 @@
+package jnasmartcardio.tools;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import jnasmartcardio.ApduTrace;
+
+/**
+ * Print the exchanges in a dump written by {@link ApduTrace#dump(File)}, one
+ * per line, oldest first.
+ */
+public class DecodeApduTrace {
+	private static String hex(byte[] bytes, int fullLength) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2 + 4);
+		for (byte b: bytes)
+			sb.append(String.format("%02x", b & 0xff));
+		if (fullLength > bytes.length)
+			sb.append("...");
+		return sb.toString();
+	}
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println("Usage: DecodeApduTrace <dump file>");
+			System.exit(2);
+		}
+		List<ApduTrace.Entry> entries = ApduTrace.readDump(new File(args[0]));
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+		for (ApduTrace.Entry e: entries) {
+			System.out.format("%d %s reader=%s channel=%d latency=%dus code=0x%x command=%s response=%s%n",
+					e.sequence,
+					dateFormat.format(new Date(e.timeMillis)),
+					e.reader,
+					e.channel,
+					e.latencyNanos / 1000,
+					e.code,
+					hex(e.command, e.commandLength),
+					hex(e.response, e.responseLength));
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package jnasmartcardio.tools;
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets, like
+ * HdrHistogram: values below 128 are exact, and larger values fall in one
+ * of 64 buckets per power of two, so percentiles are within 1.6% of the
+ * recorded values. Records without allocating. Not thread-safe; give each
+ * thread its own and {@link #add(LatencyHistogram)} them afterwards.
+ */
+class LatencyHistogram {
+	private static final int EXACT = 128;
+	private static final int SUB_BUCKETS = 64;
+	private final long[] counts = new long[EXACT + 57 * SUB_BUCKETS];
+	private long count;
+	private long min = Long.MAX_VALUE;
+	private long max;
+	private double sum;
+
+	static int index(long value) {
+		if (value < EXACT)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+		return EXACT + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+	/** The largest value that falls in the bucket. */
+	static long highestValue(int index) {
+		if (index < EXACT)
+			return index;
+		int shift = (index - EXACT) / SUB_BUCKETS + 1;
+		long sub = (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts[index(nanos)]++;
+		count++;
+		sum += nanos;
+		if (nanos < min)
+			min = nanos;
+		if (nanos > max)
+			max = nanos;
+	}
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	long getCount() {return count;}
+	long getMin() {return count == 0 ? 0 : min;}
+	long getMax() {return max;}
+	double getMean() {return count == 0 ? 0 : sum / count;}
+	/** The value below which percentile % of the recorded values are, e.g. 99.9. */
+	long getValueAtPercentile(double percentile) {
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highestValue(i), max);
+		}
+		return max;
+	}
+}
@@ -0,0 +1,27 @@
+package jnasmartcardio.tools;
+
+import java.net.InetSocketAddress;
+
+import javax.smartcardio.TerminalFactory;
+
+import jnasmartcardio.ReaderGateway;
+import jnasmartcardio.Smartcardio;
+
+/**
+ * Serve this host's readers with a {@link ReaderGateway} until killed.
+ */
+public class ServeReaders {
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1 && args.length != 2) {
+			System.err.println("Usage: ServeReaders [bind address] <port>");
+			System.exit(2);
+		}
+		InetSocketAddress address = args.length == 2
+			? new InetSocketAddress(args[0], Integer.parseInt(args[1]))
+			: new InetSocketAddress(Integer.parseInt(args[0]));
+		TerminalFactory factory = TerminalFactory.getInstance("PC/SC", null, new Smartcardio());
+		ReaderGateway gateway = new ReaderGateway(factory, address).start();
+		System.err.println("Serving readers on " + gateway.getLocalAddress());
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.DwordByReference;
+import jnasmartcardio.Winscard.Handle;
+import jnasmartcardio.Winscard.SCardContext;
+import jnasmartcardio.Winscard.SCardContextByReference;
+import jnasmartcardio.Winscard.SCardHandle;
+import jnasmartcardio.Winscard.SCardHandleByReference;
+import jnasmartcardio.Winscard.SCardReaderState;
+import jnasmartcardio.Winscard.ScardIoRequest;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+import jnasmartcardio.Winscard.WinscardLibrary;
+
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.ptr.ByReference;
+
+/**
+ * Binding of the PC/SC library using the Foreign Function &amp; Memory API
+ * (Java 22+), which calls through downcall method handles instead of JNA's
+ * reflective libffi dispatch.
+ *
+ * <p>
+ * It implements the same {@link WinscardLibrary} interface as the JNA
+ * binding, so the rest of the library is unchanged. Arguments that are
+ * already in native memory (the JNA by-reference types, reader state arrays,
+ * the SCARD_PCI_* globals and direct buffers) are passed by address, with
+ * structures written before and read after the call as JNA would; heap
+ * buffers and strings are copied into a confined arena for the duration of
+ * the call. Every DWORD and handle is widened to long, and every pointer is
+ * a MemorySegment, so that each function can be invoked with invokeExact
+ * regardless of the platform's type sizes.
+ *
+ * <p>
+ * Selected by {@link Winscard#sharedLib()} when the multi-release jar runs
+ * on Java 22+, unless the system property {@value #DISABLE_PROPERTY} is
+ * false. Run with --enable-native-access=ALL-UNNAMED to avoid the JDK's
+ * restricted method warning.
+ */
+final class FfmWinscard implements WinscardLibrary {
+	static final String DISABLE_PROPERTY = "jnasmartcardio.ffm";
+
+	private static final ValueLayout DWORD = Dword.SIZE == 4 ? ValueLayout.JAVA_INT : ValueLayout.JAVA_LONG;
+	private static final ValueLayout HANDLE = Handle.SIZE == 4 ? ValueLayout.JAVA_INT : ValueLayout.JAVA_LONG;
+
+	private final MethodHandle establishContext;
+	private final MethodHandle releaseContext;
+	private final MethodHandle connect;
+	private final MethodHandle reconnect;
+	private final MethodHandle disconnect;
+	private final MethodHandle beginTransaction;
+	private final MethodHandle endTransaction;
+	private final MethodHandle status;
+	private final MethodHandle getStatusChange;
+	private final MethodHandle control;
+	private final MethodHandle getAttrib;
+	private final MethodHandle setAttrib;
+	private final MethodHandle transmit;
+	private final MethodHandle listReaders;
+	private final MethodHandle freeMemory;
+	private final MethodHandle listReaderGroups;
+	private final MethodHandle cancel;
+	private final MethodHandle isValidContext;
+
+	private FfmWinscard(SymbolLookup lookup) {
+		establishContext = bind(lookup, "SCardEstablishContext", "dppp");
+		releaseContext = bind(lookup, "SCardReleaseContext", "h");
+		connect = bind(lookup, Platform.isWindows() ? "SCardConnectA" : "SCardConnect", "hpddpp");
+		reconnect = bind(lookup, "SCardReconnect", "hdddp");
+		disconnect = bind(lookup, "SCardDisconnect", "hd");
+		beginTransaction = bind(lookup, "SCardBeginTransaction", "h");
+		endTransaction = bind(lookup, "SCardEndTransaction", "hd");
+		status = bind(lookup, Platform.isWindows() ? "SCardStatusA" : "SCardStatus", "hpppppp");
+		getStatusChange = bind(lookup, Platform.isWindows() ? "SCardGetStatusChangeA" : "SCardGetStatusChange", "hdpd");
+		control = bind(lookup, Platform.isMac() ? "SCardControl132" : "SCardControl", "hdpdpdp");
+		getAttrib = bind(lookup, "SCardGetAttrib", "hdpp");
+		setAttrib = bind(lookup, "SCardSetAttrib", "hdpd");
+		transmit = bind(lookup, "SCardTransmit", "hppdppp");
+		listReaders = bind(lookup, Platform.isWindows() ? "SCardListReadersA" : "SCardListReaders", "hppp");
+		freeMemory = bind(lookup, "SCardFreeMemory", "hp");
+		listReaderGroups = bind(lookup, Platform.isWindows() ? "SCardListReaderGroupsA" : "SCardListReaderGroups", "hpp");
+		cancel = bind(lookup, "SCardCancel", "h");
+		isValidContext = bind(lookup, "SCardIsValidContext", "h");
+	}
+
+	/**
+	 * Load the library and bind every function.
+	 *
+	 * @return null if the library or a function could not be found, or FFM
+	 *         is disabled.
+	 */
+	static WinscardLibInfo openLib() {
+		if ("false".equals(System.getProperty(DISABLE_PROPERTY)))
+			return null;
+		String libraryName = Platform.isWindows() ? Winscard.WINDOWS_PATH : Platform.isMac() ? Winscard.MAC_PATH : Winscard.PCSC_PATH;
+		try {
+			SymbolLookup lookup = SymbolLookup.libraryLookup(libraryName, Arena.global());
+			FfmWinscard lib = new FfmWinscard(lookup);
+			return new WinscardLibInfo(lib, pci(lookup, "g_rgSCardT0Pci"), pci(lookup, "g_rgSCardT1Pci"), pci(lookup, "g_rgSCardRawPci"));
+		} catch (IllegalArgumentException e) {
+			return null;  // library or symbol not found
+		} catch (IllegalCallerException e) {
+			return null;  // native access denied
+		}
+	}
+	private static ScardIoRequest pci(SymbolLookup lookup, String name) {
+		MemorySegment symbol = lookup.find(name).orElseThrow(() -> new IllegalArgumentException("No symbol " + name));
+		ScardIoRequest r = new ScardIoRequest(new Pointer(symbol.address()));
+		r.read();
+		r.setAutoSynch(false);
+		return r;
+	}
+
+	/**
+	 * Bind a function returning LONG whose parameters are given by signature:
+	 * d for DWORD, h for SCARDCONTEXT/SCARDHANDLE, p for a pointer. The
+	 * handle is adapted to take long for d and h and to return long.
+	 */
+	private static MethodHandle bind(SymbolLookup lookup, String name, String signature) {
+		MemorySegment symbol = lookup.find(name).orElseThrow(() -> new IllegalArgumentException("No symbol " + name));
+		MemoryLayout[] argLayouts = new MemoryLayout[signature.length()];
+		Class<?>[] argTypes = new Class<?>[signature.length()];
+		for (int i = 0; i < signature.length(); i++) {
+			switch (signature.charAt(i)) {
+			case 'd': argLayouts[i] = DWORD; argTypes[i] = long.class; break;
+			case 'h': argLayouts[i] = HANDLE; argTypes[i] = long.class; break;
+			case 'p': argLayouts[i] = ValueLayout.ADDRESS; argTypes[i] = MemorySegment.class; break;
+			default: throw new IllegalArgumentException(signature);
+			}
+		}
+		MethodHandle handle = Linker.nativeLinker().downcallHandle(symbol, FunctionDescriptor.of(DWORD, argLayouts));
+		return MethodHandles.explicitCastArguments(handle, MethodType.methodType(long.class, argTypes));
+	}
+
+	private static Dword result(long code) {
+		return new Dword(code);
+	}
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException r)
+			return r;
+		if (t instanceof Error e)
+			throw e;
+		return new IllegalStateException(t);
+	}
+	private static MemorySegment address(ByReference ref) {
+		return ref == null ? MemorySegment.NULL : MemorySegment.ofAddress(Pointer.nativeValue(ref.getPointer()));
+	}
+	/**
+	 * The native memory of the structure, after writing its fields to it
+	 * unless auto-write is off, as JNA does for a Structure argument.
+	 */
+	private static MemorySegment address(Structure s) {
+		if (s == null)
+			return MemorySegment.NULL;
+		if (s.getAutoWrite())
+			s.write();
+		return MemorySegment.ofAddress(Pointer.nativeValue(s.getPointer()));
+	}
+	/** Read back what the call wrote to the structure unless auto-read is off, as JNA does. */
+	private static void readBack(Structure s) {
+		if (s != null && s.getAutoRead())
+			s.read();
+	}
+	private static MemorySegment string(Arena arena, String s) {
+		if (s == null)
+			return MemorySegment.NULL;
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		MemorySegment segment = arena.allocate(bytes.length + 1);
+		MemorySegment.copy(bytes, 0, segment, ValueLayout.JAVA_BYTE, 0, bytes.length);
+		segment.set(ValueLayout.JAVA_BYTE, bytes.length, (byte) 0);
+		return segment;
+	}
+	/**
+	 * The native memory for the buffer's remaining bytes. Direct buffers are
+	 * used in place; heap buffers are copied into the arena.
+	 */
+	private static MemorySegment buffer(Arena arena, ByteBuffer buffer) {
+		if (buffer == null)
+			return MemorySegment.NULL;
+		if (buffer.isDirect())
+			return MemorySegment.ofBuffer(buffer);
+		MemorySegment segment = arena.allocate(Math.max(1, buffer.remaining()));
+		MemorySegment.copy(MemorySegment.ofBuffer(buffer), 0, segment, 0, buffer.remaining());
+		return segment;
+	}
+	/** Copy the output of the call back to a heap buffer, like JNA does. */
+	private static void copyBack(MemorySegment segment, ByteBuffer buffer) {
+		if (buffer == null || buffer.isDirect())
+			return;
+		MemorySegment.copy(segment, 0, MemorySegment.ofBuffer(buffer), 0, buffer.remaining());
+	}
+	/**
+	 * A contiguous native array for the first count reader states. Arrays
+	 * created with {@link Structure#toArray(Structure[])} are passed in
+	 * place; others are copied into a new contiguous array.
+	 */
+	private static SCardReaderState[] contiguous(SCardReaderState[] states, int count) {
+		long size = states[0].size();
+		long base = Pointer.nativeValue(states[0].getPointer());
+		boolean isContiguous = true;
+		for (int i = 1; i < count && isContiguous; i++)
+			isContiguous = Pointer.nativeValue(states[i].getPointer()) == base + i * size;
+		if (isContiguous)
+			return states;
+		SCardReaderState[] copy = (SCardReaderState[]) new SCardReaderState().toArray(count);
+		for (int i = 0; i < count; i++) {
+			copy[i].szReader = states[i].szReader;
+			copy[i].pvUserData = states[i].pvUserData;
+			copy[i].dwCurrentState = states[i].dwCurrentState;
+			copy[i].dwEventState = states[i].dwEventState;
+			copy[i].cbAtr = states[i].cbAtr;
+			System.arraycopy(states[i].rgbAtr, 0, copy[i].rgbAtr, 0, copy[i].rgbAtr.length);
+		}
+		return copy;
+	}
+
+	@Override public Dword SCardEstablishContext(Dword dwScope, Pointer pvReserved1, Pointer pvReserved2, SCardContextByReference phContext) {
+		try {
+			return result((long) establishContext.invokeExact(dwScope.longValue(),
+					MemorySegment.ofAddress(Pointer.nativeValue(pvReserved1)),
+					MemorySegment.ofAddress(Pointer.nativeValue(pvReserved2)),
+					address(phContext)));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardReleaseContext(SCardContext hContext) {
+		try {
+			return result((long) releaseContext.invokeExact(hContext.longValue()));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardConnect(SCardContext hContext, String szReader, Dword dwSharMode, Dword dwPreferredProtocols, SCardHandleByReference phCard, DwordByReference pdwActiveProtocol) {
+		try (Arena arena = Arena.ofConfined()) {
+			return result((long) connect.invokeExact(hContext.longValue(), string(arena, szReader), dwSharMode.longValue(), dwPreferredProtocols.longValue(), address(phCard), address(pdwActiveProtocol)));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardReconnect(SCardHandle hCard, Dword dwShareMode, Dword dwPreferredProtocols, Dword dwInitialization, DwordByReference pdwActiveProtocol) {
+		try {
+			return result((long) reconnect.invokeExact(hCard.longValue(), dwShareMode.longValue(), dwPreferredProtocols.longValue(), dwInitialization.longValue(), address(pdwActiveProtocol)));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardDisconnect(SCardHandle hCard, Dword dwDisposition) {
+		try {
+			return result((long) disconnect.invokeExact(hCard.longValue(), dwDisposition.longValue()));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardBeginTransaction(SCardHandle hCard) {
+		try {
+			return result((long) beginTransaction.invokeExact(hCard.longValue()));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardEndTransaction(SCardHandle hCard, Dword dwDisposition) {
+		try {
+			return result((long) endTransaction.invokeExact(hCard.longValue(), dwDisposition.longValue()));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardStatus(SCardHandle hCard, ByteBuffer mszReaderName, DwordByReference pcchReaderLen, DwordByReference pdwState, DwordByReference pdwProtocol, ByteBuffer pbAtr, DwordByReference pcbAtrLen) {
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment readerName = buffer(arena, mszReaderName);
+			MemorySegment atr = buffer(arena, pbAtr);
+			long r = (long) status.invokeExact(hCard.longValue(), readerName, address(pcchReaderLen), address(pdwState), address(pdwProtocol), atr, address(pcbAtrLen));
+			copyBack(readerName, mszReaderName);
+			copyBack(atr, pbAtr);
+			return result(r);
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardGetStatusChange(SCardContext hContext, Dword dwTimeout, SCardReaderState[] rgReaderStates, Dword cReaders) {
+		int count = cReaders.intValue();
+		if (count == 0 || rgReaderStates == null || rgReaderStates[0] == null) {
+			try {
+				return result((long) getStatusChange.invokeExact(hContext.longValue(), dwTimeout.longValue(), MemorySegment.NULL, cReaders.longValue()));
+			} catch (Throwable t) {throw rethrow(t);}
+		}
+		SCardReaderState[] states = contiguous(rgReaderStates, count);
+		for (int i = 0; i < count; i++)
+			states[i].write();
+		long r;
+		try {
+			r = (long) getStatusChange.invokeExact(hContext.longValue(), dwTimeout.longValue(), MemorySegment.ofAddress(Pointer.nativeValue(states[0].getPointer())), cReaders.longValue());
+		} catch (Throwable t) {throw rethrow(t);}
+		for (int i = 0; i < count; i++) {
+			states[i].read();
+			if (states != rgReaderStates) {
+				rgReaderStates[i].dwEventState = states[i].dwEventState;
+				rgReaderStates[i].cbAtr = states[i].cbAtr;
+				System.arraycopy(states[i].rgbAtr, 0, rgReaderStates[i].rgbAtr, 0, states[i].rgbAtr.length);
+			}
+		}
+		return result(r);
+	}
+	@Override public Dword SCardControl(SCardHandle hCard, Dword dwControlCode, ByteBuffer pbSendBuffer, Dword cbSendLength, ByteBuffer pbRecvBuffer, Dword cbRecvLength, DwordByReference lpBytesReturned) {
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment recv = buffer(arena, pbRecvBuffer);
+			long r = (long) control.invokeExact(hCard.longValue(), dwControlCode.longValue(), buffer(arena, pbSendBuffer), cbSendLength.longValue(), recv, cbRecvLength.longValue(), address(lpBytesReturned));
+			copyBack(recv, pbRecvBuffer);
+			return result(r);
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardGetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, DwordByReference pcbAttrLen) {
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment attr = buffer(arena, pbAttr);
+			long r = (long) getAttrib.invokeExact(hCard.longValue(), dwAttrId.longValue(), attr, address(pcbAttrLen));
+			copyBack(attr, pbAttr);
+			return result(r);
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardSetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, Dword cbAttrLen) {
+		try (Arena arena = Arena.ofConfined()) {
+			return result((long) setAttrib.invokeExact(hCard.longValue(), dwAttrId.longValue(), buffer(arena, pbAttr), cbAttrLen.longValue()));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardTransmit(SCardHandle hCard, ScardIoRequest pioSendPci, ByteBuffer pbSendBuffer, Dword cbSendLength, ScardIoRequest pioRecvPci, ByteBuffer pbRecvBuffer, DwordByReference pcbRecvLength) {
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment recv = buffer(arena, pbRecvBuffer);
+			long r = (long) transmit.invokeExact(hCard.longValue(), address(pioSendPci), buffer(arena, pbSendBuffer), cbSendLength.longValue(), address(pioRecvPci), recv, address(pcbRecvLength));
+			readBack(pioRecvPci);
+			copyBack(recv, pbRecvBuffer);
+			return result(r);
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardListReaders(SCardContext hContext, ByteBuffer mszGroups, ByteBuffer mszReaders, DwordByReference pcchReaders) {
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment readers = buffer(arena, mszReaders);
+			long r = (long) listReaders.invokeExact(hContext.longValue(), buffer(arena, mszGroups), readers, address(pcchReaders));
+			copyBack(readers, mszReaders);
+			return result(r);
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardFreeMemory(SCardContext hContext, Pointer pvMem) {
+		try {
+			return result((long) freeMemory.invokeExact(hContext.longValue(), MemorySegment.ofAddress(Pointer.nativeValue(pvMem))));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardListReaderGroups(SCardContext hContext, ByteBuffer mszGroups, DwordByReference pcchGroups) {
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment groups = buffer(arena, mszGroups);
+			long r = (long) listReaderGroups.invokeExact(hContext.longValue(), groups, address(pcchGroups));
+			copyBack(groups, mszGroups);
+			return result(r);
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardCancel(SCardContext hContext) {
+		try {
+			return result((long) cancel.invokeExact(hContext.longValue()));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+	@Override public Dword SCardIsValidContext(SCardContext hContext) {
+		try {
+			return result((long) isValidContext.invokeExact(hContext.longValue()));
+		} catch (Throwable t) {throw rethrow(t);}
+	}
+}
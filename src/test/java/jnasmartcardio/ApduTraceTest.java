@@ -0,0 +1,136 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ApduTraceTest {
+	@After public void tearDown() {
+		ApduTrace.setDefault(null);
+	}
+	@Test public void testDefaultTraceIsOnUnlessZeroSlots() {
+		String old = System.getProperty("jnasmartcardio.apduTrace.slots");
+		try {
+			System.clearProperty("jnasmartcardio.apduTrace.slots");
+			assertEquals(ApduTrace.DEFAULT_SLOTS, ApduTrace.createDefault().getSlotCount());
+			System.setProperty("jnasmartcardio.apduTrace.slots", "0");
+			assertNull(ApduTrace.createDefault());
+		} finally {
+			if (old == null)
+				System.clearProperty("jnasmartcardio.apduTrace.slots");
+			else
+				System.setProperty("jnasmartcardio.apduTrace.slots", old);
+		}
+	}
+	@Test public void testRingKeepsMostRecent() throws Exception {
+		ApduTrace trace = new ApduTrace(4, 8);
+		ByteBuffer response = ByteBuffer.wrap(new byte[] {(byte)0x90, 0});
+		for (int i = 0; i < 6; i++) {
+			ByteBuffer command = ByteBuffer.wrap(new byte[] {0, (byte)0xb0, 0, (byte)i});
+			trace.record("Reader 0", 0, command, 0, 4, response, 0, 2, 1000, 0);
+		}
+		File file = File.createTempFile("apdutrace", ".bin");
+		try {
+			trace.dump(file);
+			List<ApduTrace.Entry> entries = ApduTrace.readDump(file);
+			assertEquals(4, entries.size());
+			for (int i = 0; i < 4; i++) {
+				ApduTrace.Entry e = entries.get(i);
+				assertEquals(i + 2, e.sequence);
+				assertEquals("Reader 0", e.reader);
+				assertEquals(i + 2, e.command[3]);
+				assertTrue(Arrays.equals(new byte[] {(byte)0x90, 0}, e.response));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	@Test public void testTruncatesLongApdus() throws Exception {
+		ApduTrace trace = new ApduTrace(2, 4);
+		byte[] command = new byte[10];
+		trace.record("Reader 0", 1, ByteBuffer.wrap(command), 0, command.length, ByteBuffer.allocate(0), 0, 0, 0, WinscardConstants.SCARD_W_REMOVED_CARD);
+		File file = File.createTempFile("apdutrace", ".bin");
+		try {
+			trace.dump(file);
+			ApduTrace.Entry e = ApduTrace.readDump(file).get(0);
+			assertEquals(10, e.commandLength);
+			assertEquals(4, e.command.length);
+			assertEquals(1, e.channel);
+			assertEquals(WinscardConstants.SCARD_W_REMOVED_CARD, e.code);
+		} finally {
+			file.delete();
+		}
+	}
+	@Test public void testConcurrentWritersNeverPublishTornRecords() throws Exception {
+		final ApduTrace trace = new ApduTrace(4, 8);
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			final byte id = (byte) t;
+			writers[t] = new Thread() {
+				@Override public void run() {
+					byte[] bytes = new byte[8];
+					Arrays.fill(bytes, id);
+					for (int i = 0; i < 20000; i++)
+						trace.record("Reader 0", id, ByteBuffer.wrap(bytes), 0, 8, ByteBuffer.wrap(bytes), 0, 8, id, id);
+				}
+			};
+			writers[t].start();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while (writers[0].isAlive()) {
+			out.reset();
+			trace.dump(Channels.newChannel(out));
+			for (ApduTrace.Entry e: ApduTrace.readDump(ByteBuffer.wrap(out.toByteArray()))) {
+				// Every field of a record comes from the same writer.
+				assertEquals(e.channel, e.code);
+				assertEquals(e.channel, e.latencyNanos);
+				for (int i = 0; i < 8; i++) {
+					assertEquals(e.channel, e.command[i]);
+					assertEquals(e.channel, e.response[i]);
+				}
+			}
+		}
+		for (Thread writer: writers)
+			writer.join();
+	}
+	@Test(expected = IllegalArgumentException.class) public void testRejectsOversizedRing() {
+		new ApduTrace(Integer.MAX_VALUE / 64, 64);
+	}
+	@Test public void testChannelRecordsToDefaultTrace() throws Exception {
+		FakeWinscardLibrary lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		JnaCardTerminals terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		ApduTrace trace = new ApduTrace(16, 261);
+		ApduTrace.setDefault(trace);
+		CardChannel channel = terminals.getTerminal("Reader 0").connect("*").getBasicChannel();
+		channel.transmit(new CommandAPDU(0, 0xca, 0x9f, 0x7f));
+		File file = File.createTempFile("apdutrace", ".bin");
+		try {
+			trace.dump(file);
+			List<ApduTrace.Entry> entries = ApduTrace.readDump(file);
+			assertEquals(1, entries.size());
+			assertTrue(Arrays.equals(new byte[] {0, (byte)0xca, (byte)0x9f, 0x7f}, entries.get(0).command));
+			assertEquals("Reader 0", entries.get(0).reader);
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+	@Test public void testReuseOnSameThread() {
+		BufferPool pool = new BufferPool(4, false);
+		ByteBuffer a = pool.acquire(100);
+		assertTrue(a.isDirect());
+		assertEquals(0, a.position());
+		assertEquals(100, a.limit());
+		assertEquals(BufferPool.SMALL, a.capacity());
+		a.put((byte) 1);
+		pool.release(a);
+		ByteBuffer b = pool.acquire(200);
+		assertSame(a, b);
+		assertEquals(0, b.position());
+		assertEquals(200, b.limit());
+		assertEquals(2, pool.getAcquired());
+		assertEquals(1, pool.getAllocated());
+		assertEquals(1, pool.getOutstanding());
+		pool.release(b);
+		assertEquals(0, pool.getOutstanding());
+		assertEquals(BufferPool.SMALL, pool.getPooledBytes());
+	}
+	@Test public void testSizeClasses() {
+		BufferPool pool = new BufferPool(1, false);
+		assertEquals(BufferPool.MEDIUM, pool.acquire(BufferPool.SMALL + 1).capacity());
+		assertEquals(BufferPool.LARGE, pool.acquire(BufferPool.MEDIUM + 1).capacity());
+		ByteBuffer huge = pool.acquire(BufferPool.LARGE + 1);
+		assertEquals(BufferPool.LARGE + 1, huge.capacity());
+		pool.release(huge);
+		assertEquals(1, pool.getDropped());
+		assertEquals(0, pool.getPooledBytes());
+		pool.release(ByteBuffer.allocate(BufferPool.SMALL));
+		assertEquals(2, pool.getDropped());
+	}
+	@Test public void testLeakIsDetected() throws Exception {
+		BufferPool pool = new BufferPool(1, true);
+		assertTrue(pool.isDebug());
+		final List<Throwable> sites = new ArrayList<Throwable>();
+		pool.setLeakHandler(new BufferPool.LeakHandler() {
+			@Override public void leaked(Throwable site) {sites.add(site);}
+		});
+		pool.release(pool.acquire(10));
+		pool.acquire(10);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (pool.getLeaks() == 0 && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(1, pool.getLeaks());
+		assertEquals(1, sites.size());
+		boolean fromTest = false;
+		for (StackTraceElement e: sites.get(0).getStackTrace())
+			fromTest |= "testLeakIsDetected".equals(e.getMethodName());
+		assertTrue(fromTest);
+	}
+}
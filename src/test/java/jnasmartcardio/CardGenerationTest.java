@@ -0,0 +1,65 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import javax.smartcardio.CommandAPDU;
+
+import jnasmartcardio.Smartcardio.JnaCard;
+import jnasmartcardio.Smartcardio.JnaCardTerminal;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CardGenerationTest {
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminals terminals;
+	private JnaCardTerminal terminal;
+
+	@Before public void setUp() {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		terminal = (JnaCardTerminal) terminals.getTerminal("Reader 0");
+	}
+
+	@Test public void testSwapChangesGeneration() throws Exception {
+		long first = terminal.getCardGeneration();
+		assertEquals(first, terminal.getCardGeneration());
+		JnaCard card = (JnaCard) terminal.connect("*");
+		assertEquals(first, card.getCardGeneration());
+
+		lib.removeCard("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x01});
+		assertEquals(first, terminal.getLastCardGeneration());
+		terminals.list();
+		long second = terminal.getLastCardGeneration();
+		assertTrue(second != first);
+		assertEquals(second, terminal.getCardGeneration());
+		assertEquals(first, card.getCardGeneration());
+		assertEquals(second, ((JnaCard) terminal.connect("*")).getCardGeneration());
+	}
+	@Test public void testResetChangesGeneration() throws Exception {
+		JnaCard card = (JnaCard) terminal.connect("*");
+		JnaCard other = (JnaCard) terminal.connect("*");
+		long first = card.getCardGeneration();
+		assertEquals(first, other.getCardGeneration());
+		lib.injectError("SCardTransmit", WinscardConstants.SCARD_W_RESET_CARD);
+		try {
+			card.getBasicChannel().transmit(new CommandAPDU(0, 0xb0, 0, 0, 1));
+			fail("Expected JnaPCSCException");
+		} catch (JnaPCSCException e) {
+			assertEquals(WinscardConstants.SCARD_W_RESET_CARD, (int) e.code);
+		}
+		long second = card.getCardGeneration();
+		assertTrue(second != first);
+		assertEquals(second, other.getCardGeneration());
+		assertEquals(second, terminal.getCardGeneration());
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CommandAPDU;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CardPoolTest {
+	private static final byte[] ATR_BYTES = {0x3b, 0x00};
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminals terminals;
+	private CardPool pool;
+	private final ConcurrentMap<String, AtomicInteger> served = new ConcurrentHashMap<String, AtomicInteger>();
+	private final CardPool.Operation<String> operation = new CardPool.Operation<String>() {
+		@Override public String run(Card card) throws CardException {
+			card.getBasicChannel().transmit(new CommandAPDU(0, 0x2a, 0x9e, 0x9a, new byte[] {1}));
+			return null;
+		}
+	};
+
+	@Before public void setUp() {
+		lib = new FakeWinscardLibrary();
+		for (int i = 0; i < 3; i++) {
+			lib.addReader("Reader " + i);
+			lib.insertCard("Reader " + i, ATR_BYTES);
+			served.put("Reader " + i, new AtomicInteger());
+		}
+		lib.addReader("Other");
+		lib.insertCard("Other", new byte[] {0x3b, 0x01});
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				served.get(reader).incrementAndGet();
+				try {
+					Thread.sleep(reader.equals("Reader 0") ? 40 : 2);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new byte[] {(byte) 0x90, 0x00};
+			}
+		};
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		pool = new CardPool(terminals, CardPool.atrMatcher(new ATR(ATR_BYTES)), "*");
+	}
+	@After public void tearDown() {
+		pool.close();
+	}
+
+	@Test public void testSlowCardGetsLessWork() throws Exception {
+		pool.refresh();
+		assertEquals(3, pool.size());
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 120; i++) {
+				futures.add(executor.submit(new Callable<String>() {
+					@Override public String call() throws Exception {return pool.execute(operation);}
+				}));
+			}
+			for (Future<String> f: futures)
+				f.get();
+		} finally {
+			executor.shutdown();
+		}
+		int slow = served.get("Reader 0").get();
+		int fast = served.get("Reader 1").get() + served.get("Reader 2").get();
+		assertEquals(120, slow + fast);
+		assertTrue("slow=" + slow + " fast=" + fast, slow * 4 < fast);
+	}
+	@Test public void testRemovedCardIsDroppedAndRetried() throws Exception {
+		pool.refresh();
+		lib.removeCard("Reader 0");
+		lib.removeCard("Reader 1");
+		for (int i = 0; i < 5; i++)
+			pool.execute(operation);
+		assertEquals(1, pool.size());
+		assertEquals(5, served.get("Reader 2").get());
+
+		lib.removeCard("Reader 2");
+		try {
+			pool.execute(operation);
+			fail("Expected CardNotPresentException");
+		} catch (CardNotPresentException e) {
+			// expected
+		}
+		int connects = lib.calls("SCardConnect");
+		lib.insertCard("Reader 1", ATR_BYTES);
+		pool.refresh();
+		assertEquals("only the inserted card is connected", connects + 1, lib.calls("SCardConnect"));
+		assertEquals(1, pool.size());
+		assertEquals("Reader 1", pool.getMembers().get(0).getTerminal().getName());
+	}
+	@Test public void testWatcherFollowsInsertions() throws Exception {
+		pool.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.size() != 3 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(3, pool.size());
+		lib.removeCard("Reader 2");
+		while (pool.size() != 2 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(2, pool.size());
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Test;
+
+public class DaemonSupervisorTest {
+	private static class RecordingListener implements DaemonSupervisor.Listener {
+		final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+		@Override public void daemonAvailable(JnaCardTerminals terminals) {events.add("available");}
+		@Override public void terminalsChanged(JnaCardTerminals terminals) {events.add("changed");}
+		@Override public void daemonUnavailable(JnaPCSCException cause) {events.add("unavailable " + Integer.toHexString((int) cause.code));}
+		String next() throws InterruptedException {
+			String event = events.poll(5, TimeUnit.SECONDS);
+			assertNotNull("Timed out waiting for event", event);
+			return event;
+		}
+	}
+
+	@Test public void testPollsUntilDaemonStartsAndAfterItStops() throws Exception {
+		FakeWinscardLibrary lib = new FakeWinscardLibrary();
+		for (int i = 0; i < 3; i++)
+			lib.injectError("SCardEstablishContext", WinscardConstants.SCARD_E_NO_SERVICE);
+		RecordingListener listener = new RecordingListener();
+		DaemonSupervisor supervisor = new DaemonSupervisor(new JnaTerminalFactorySpi(lib.libInfo()), listener);
+		supervisor.setBackoff(1, 10);
+		supervisor.start();
+		try {
+			assertEquals("unavailable 8010001d", listener.next());
+			assertEquals("available", listener.next());
+			assertEquals(4, lib.calls("SCardEstablishContext"));
+			assertEquals("changed", listener.next());  // the first waitForChange returns immediately
+
+			lib.addReader("Reader 0");
+			assertEquals("changed", listener.next());
+
+			lib.injectError("SCardEstablishContext", WinscardConstants.SCARD_E_NO_READERS_AVAILABLE);
+			lib.restartDaemon();
+			// SCARD_E_NO_SERVICE or SCARD_E_INVALID_HANDLE, depending on the call
+			assertTrue(listener.next().startsWith("unavailable "));
+			assertEquals("available", listener.next());
+			assertNotNull(supervisor.getTerminals());
+		} finally {
+			supervisor.close();
+			supervisor.join(5000);
+		}
+		assertNull(supervisor.getTerminals());
+	}
+}
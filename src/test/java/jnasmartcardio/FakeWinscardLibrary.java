@@ -0,0 +1,385 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminal;
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.DwordByReference;
+import jnasmartcardio.Winscard.SCardContext;
+import jnasmartcardio.Winscard.SCardContextByReference;
+import jnasmartcardio.Winscard.SCardHandle;
+import jnasmartcardio.Winscard.SCardHandleByReference;
+import jnasmartcardio.Winscard.SCardReaderState;
+import jnasmartcardio.Winscard.ScardIoRequest;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+import jnasmartcardio.Winscard.WinscardLibrary;
+
+import com.sun.jna.Pointer;
+
+/**
+ * In-memory stand-in for the PC/SC library so that tests can run without a
+ * reader or a daemon. Readers and cards are added and removed by the test;
+ * every call is counted by function name.
+ */
+class FakeWinscardLibrary implements WinscardLibrary {
+	/** Produces the response APDU (including SW) for a command APDU. */
+	interface Responder {
+		byte[] respond(String reader, byte[] command);
+	}
+	static class FakeReader {
+		final String name;
+		byte[] atr;
+		int eventCounter;
+		/** SCardGetAttrib values by attribute id. */
+		final Map<Integer, byte[]> attributes = new HashMap<Integer, byte[]>();
+		/** SCardControl responses by control code; others are unsupported. */
+		final Map<Integer, byte[]> controlResponses = new HashMap<Integer, byte[]>();
+		FakeReader(String name) {this.name = name;}
+	}
+
+	final Map<String, FakeReader> readers = new LinkedHashMap<String, FakeReader>();
+	private final Map<String, Integer> callCounts = new HashMap<String, Integer>();
+	private final Map<Long, String> handleToReader = new HashMap<Long, String>();
+	private final List<Long> validContexts = new ArrayList<Long>();
+	/** Error codes returned once by the named function, in order. */
+	private final Map<String, List<Integer>> injectedErrors = new HashMap<String, List<Integer>>();
+	private long nextHandle = 0x100;
+	private int pnpCounter;
+	/** Incremented by SCardCancel, which wakes every wait in progress, but not later ones. */
+	private int cancelCount;
+	/** Maximum number of reader states per SCardGetStatusChange, like PCSCLITE_MAX_READERS_CONTEXTS. */
+	int maxReaderStates = Integer.MAX_VALUE;
+	/** If set, SCardBeginTransaction blocks until it opens, as if another process had the card. */
+	volatile CountDownLatch transactionGate;
+	/** If set, SCardConnect blocks until it opens, and counts down connectArrivals first if that is set. */
+	volatile CountDownLatch connectGate;
+	volatile CountDownLatch connectArrivals;
+	/**
+	 * If set, a blocking SCardGetStatusChange pauses until it opens before
+	 * it starts waiting, so that an SCardCancel meanwhile is lost, as it can
+	 * be with a real daemon.
+	 */
+	volatile CountDownLatch statusChangeGate;
+	Responder responder = new Responder() {
+		@Override public byte[] respond(String reader, byte[] command) {return new byte[] {(byte)0x90, 0x00};}
+	};
+
+	WinscardLibInfo libInfo() {
+		return Winscard.libInfo(this);
+	}
+
+	synchronized void addReader(String name) {
+		readers.put(name, new FakeReader(name));
+		pnpCounter++;
+		notifyAll();
+	}
+	synchronized void removeReader(String name) {
+		readers.remove(name);
+		pnpCounter++;
+		notifyAll();
+	}
+	synchronized void insertCard(String reader, byte[] atr) {
+		FakeReader r = readers.get(reader);
+		r.atr = atr.clone();
+		r.eventCounter++;
+		notifyAll();
+	}
+	synchronized void removeCard(String reader) {
+		FakeReader r = readers.get(reader);
+		r.atr = null;
+		r.eventCounter++;
+		notifyAll();
+	}
+	/** Make the next call to the given function fail with the given code. */
+	synchronized void injectError(String function, int code) {
+		List<Integer> errors = injectedErrors.get(function);
+		if (errors == null)
+			injectedErrors.put(function, errors = new ArrayList<Integer>());
+		errors.add(code);
+	}
+	/** Forget every context, as if the daemon had been restarted. */
+	synchronized void restartDaemon() {
+		validContexts.clear();
+		handleToReader.clear();
+		notifyAll();
+	}
+	synchronized int calls(String function) {
+		Integer n = callCounts.get(function);
+		return n == null ? 0 : n;
+	}
+
+	private int enter(String function) {
+		Integer n = callCounts.get(function);
+		callCounts.put(function, n == null ? 1 : n + 1);
+		List<Integer> errors = injectedErrors.get(function);
+		if (errors != null && !errors.isEmpty())
+			return errors.remove(0);
+		return 0;
+	}
+	private static Dword dword(long value) {return new Dword(value);}
+	private int readerState(FakeReader reader) {
+		int state = reader.atr != null ? WinscardConstants.SCARD_STATE_PRESENT : WinscardConstants.SCARD_STATE_EMPTY;
+		return state | ((reader.eventCounter & 0xffff) << 16);
+	}
+	private FakeReader handleReader(SCardHandle hCard) {
+		String name = handleToReader.get(hCard.longValue());
+		return name == null ? null : readers.get(name);
+	}
+	private boolean isValid(SCardContext context) {
+		return validContexts.contains(context.longValue());
+	}
+
+	@Override public synchronized Dword SCardEstablishContext(Dword dwScope, Pointer pvReserved1, Pointer pvReserved2, SCardContextByReference phContext) {
+		int err = enter("SCardEstablishContext");
+		if (err != 0) return dword(err);
+		long context = nextHandle++;
+		validContexts.add(context);
+		phContext.setValue(new SCardContext(context));
+		return dword(0);
+	}
+	@Override public synchronized Dword SCardReleaseContext(SCardContext hContext) {
+		int err = enter("SCardReleaseContext");
+		if (err != 0) return dword(err);
+		if (!validContexts.remove(hContext.longValue()))
+			return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		return dword(0);
+	}
+	@Override public synchronized Dword SCardIsValidContext(SCardContext hContext) {
+		int err = enter("SCardIsValidContext");
+		if (err != 0) return dword(err);
+		return dword(isValid(hContext) ? 0 : WinscardConstants.SCARD_E_INVALID_HANDLE);
+	}
+	@Override public Dword SCardConnect(SCardContext hContext, String szReader, Dword dwSharMode, Dword dwPreferredProtocols, SCardHandleByReference phCard, DwordByReference pdwActiveProtocol) {
+		CountDownLatch arrivals = connectArrivals;
+		if (arrivals != null)
+			arrivals.countDown();
+		CountDownLatch gate = connectGate;
+		if (gate != null) {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			return connect(hContext, szReader, dwSharMode, dwPreferredProtocols, phCard, pdwActiveProtocol);
+		}
+	}
+	private Dword connect(SCardContext hContext, String szReader, Dword dwSharMode, Dword dwPreferredProtocols, SCardHandleByReference phCard, DwordByReference pdwActiveProtocol) {
+		int err = enter("SCardConnect");
+		if (err != 0) return dword(err);
+		if (!isValid(hContext)) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		FakeReader reader = readers.get(szReader);
+		if (reader == null) return dword(WinscardConstants.SCARD_E_UNKNOWN_READER);
+		if (reader.atr == null && dwSharMode.intValue() != JnaCardTerminal.SCARD_SHARE_DIRECT) return dword(WinscardConstants.SCARD_E_NO_SMARTCARD);
+		long handle = nextHandle++;
+		handleToReader.put(handle, szReader);
+		phCard.setValue(new SCardHandle(handle));
+		int preferred = dwPreferredProtocols.intValue();
+		pdwActiveProtocol.setValue(dword(0 != (preferred & JnaCardTerminal.SCARD_PROTOCOL_T1) ? JnaCardTerminal.SCARD_PROTOCOL_T1 : preferred));
+		return dword(0);
+	}
+	@Override public synchronized Dword SCardReconnect(SCardHandle hCard, Dword dwShareMode, Dword dwPreferredProtocols, Dword dwInitialization, DwordByReference pdwActiveProtocol) {
+		int err = enter("SCardReconnect");
+		if (err != 0) return dword(err);
+		if (!handleToReader.containsKey(hCard.longValue())) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		pdwActiveProtocol.setValue(dwPreferredProtocols);
+		return dword(0);
+	}
+	@Override public synchronized Dword SCardDisconnect(SCardHandle hCard, Dword dwDisposition) {
+		int err = enter("SCardDisconnect");
+		if (err != 0) return dword(err);
+		return dword(handleToReader.remove(hCard.longValue()) == null ? WinscardConstants.SCARD_E_INVALID_HANDLE : 0);
+	}
+	@Override public Dword SCardBeginTransaction(SCardHandle hCard) {
+		CountDownLatch gate = transactionGate;
+		if (gate != null) {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			return dword(enter("SCardBeginTransaction"));
+		}
+	}
+	@Override public synchronized Dword SCardEndTransaction(SCardHandle hCard, Dword dwDisposition) {
+		return dword(enter("SCardEndTransaction"));
+	}
+	@Override public synchronized Dword SCardStatus(SCardHandle hCard, ByteBuffer mszReaderName, DwordByReference pcchReaderLen, DwordByReference pdwState, DwordByReference pdwProtocol, ByteBuffer pbAtr, DwordByReference pcbAtrLen) {
+		int err = enter("SCardStatus");
+		if (err != 0) return dword(err);
+		String name = handleToReader.get(hCard.longValue());
+		if (name == null) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		FakeReader reader = readers.get(name);
+		if (reader == null || reader.atr == null) return dword(WinscardConstants.SCARD_W_REMOVED_CARD);
+		pdwState.setValue(dword(0x34));
+		pdwProtocol.setValue(dword(JnaCardTerminal.SCARD_PROTOCOL_T1));
+		if (pbAtr != null)
+			pbAtr.duplicate().put(reader.atr, 0, Math.min(reader.atr.length, pbAtr.remaining()));
+		pcbAtrLen.setValue(dword(reader.atr.length));
+		return dword(0);
+	}
+	@Override public Dword SCardGetStatusChange(SCardContext hContext, Dword dwTimeout, SCardReaderState[] rgReaderStates, Dword cReaders) {
+		// Like a native call, ignore Thread.interrupt(); only SCardCancel wakes
+		// the wait. The interrupt is restored outside the lock, because
+		// interrupting may call SCardCancel through an interruptible channel.
+		boolean[] interrupted = new boolean[1];
+		CountDownLatch gate = statusChangeGate;
+		while (gate != null && dwTimeout.intValue() != 0) {
+			try {
+				gate.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted[0] = true;
+			}
+		}
+		Dword r = getStatusChange(hContext, dwTimeout, rgReaderStates, cReaders, interrupted);
+		if (interrupted[0])
+			Thread.currentThread().interrupt();
+		return r;
+	}
+	private synchronized Dword getStatusChange(SCardContext hContext, Dword dwTimeout, SCardReaderState[] rgReaderStates, Dword cReaders, boolean[] interrupted) {
+		int err = enter("SCardGetStatusChange");
+		if (err != 0) return dword(err);
+		if (!isValid(hContext)) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		int count = cReaders.intValue();
+		if (count > maxReaderStates) return dword(WinscardConstants.SCARD_E_INVALID_VALUE);
+		long timeout = 0xffffffffL & dwTimeout.longValue();
+		long deadline = timeout == 0xffffffffL ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+		int cancels = cancelCount;
+		while (true) {
+			boolean changed = false;
+			for (int i = 0; i < count; i++) {
+				SCardReaderState state = rgReaderStates[i];
+				int current = state.dwCurrentState.intValue();
+				int event;
+				if (WinscardConstants.PNP_READER_ID.equals(state.szReader)) {
+					event = (pnpCounter & 0xffff) << 16;
+				} else {
+					FakeReader reader = readers.get(state.szReader);
+					if (reader == null) {
+						event = WinscardConstants.SCARD_STATE_UNKNOWN;
+					} else {
+						event = readerState(reader);
+						state.cbAtr = dword(reader.atr == null ? 0 : reader.atr.length);
+						Arrays.fill(state.rgbAtr, (byte)0);
+						if (reader.atr != null)
+							System.arraycopy(reader.atr, 0, state.rgbAtr, 0, reader.atr.length);
+					}
+				}
+				int ignoredBits = WinscardConstants.SCARD_STATE_CHANGED;
+				if (current == WinscardConstants.SCARD_STATE_UNAWARE || (current & ~ignoredBits) != event) {
+					event |= WinscardConstants.SCARD_STATE_CHANGED;
+					changed = true;
+				}
+				state.dwEventState = dword(event);
+			}
+			if (changed)
+				return dword(0);
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return dword(WinscardConstants.SCARD_E_TIMEOUT);
+			try {
+				wait(Math.min(remaining, 1000));
+			} catch (InterruptedException e) {
+				interrupted[0] = true;
+			}
+			if (cancelCount != cancels)
+				return dword(WinscardConstants.SCARD_E_CANCELLED);
+			if (!isValid(hContext))
+				return dword(WinscardConstants.SCARD_E_NO_SERVICE);
+		}
+	}
+	@Override public synchronized Dword SCardControl(SCardHandle hCard, Dword dwControlCode, ByteBuffer pbSendBuffer, Dword cbSendLength, ByteBuffer pbRecvBuffer, Dword cbRecvLength, DwordByReference lpBytesReturned) {
+		int err = enter("SCardControl");
+		if (err != 0) return dword(err);
+		FakeReader reader = handleReader(hCard);
+		if (reader == null) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		byte[] response = reader.controlResponses.get(dwControlCode.intValue());
+		if (response == null && !reader.controlResponses.isEmpty()) return dword(WinscardConstants.SCARD_E_UNSUPPORTED_FEATURE);
+		if (response == null) response = new byte[0];
+		pbRecvBuffer.duplicate().put(response);
+		lpBytesReturned.setValue(dword(response.length));
+		return dword(0);
+	}
+	@Override public synchronized Dword SCardGetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, DwordByReference pcbAttrLen) {
+		int err = enter("SCardGetAttrib");
+		if (err != 0) return dword(err);
+		FakeReader reader = handleReader(hCard);
+		if (reader == null) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		byte[] value = reader.attributes.get(dwAttrId.intValue());
+		if (value == null) return dword(WinscardConstants.SCARD_E_UNSUPPORTED_FEATURE);
+		if (value.length > pcbAttrLen.getValue().intValue()) return dword(WinscardConstants.SCARD_E_INSUFFICIENT_BUFFER);
+		pbAttr.duplicate().put(value);
+		pcbAttrLen.setValue(dword(value.length));
+		return dword(0);
+	}
+	@Override public synchronized Dword SCardSetAttrib(SCardHandle hCard, Dword dwAttrId, ByteBuffer pbAttr, Dword cbAttrLen) {
+		int err = enter("SCardSetAttrib");
+		if (err != 0) return dword(err);
+		return dword(WinscardConstants.SCARD_E_UNSUPPORTED_FEATURE);
+	}
+	@Override public Dword SCardTransmit(SCardHandle hCard, ScardIoRequest pioSendPci, ByteBuffer pbSendBuffer, Dword cbSendLength, ScardIoRequest pioRecvPci, ByteBuffer pbRecvBuffer, DwordByReference pcbRecvLength) {
+		String reader;
+		synchronized (this) {
+			int err = enter("SCardTransmit");
+			if (err != 0) return dword(err);
+			reader = handleToReader.get(hCard.longValue());
+			if (reader == null) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+			FakeReader r = readers.get(reader);
+			if (r == null || r.atr == null) return dword(WinscardConstants.SCARD_W_REMOVED_CARD);
+		}
+		byte[] command = new byte[cbSendLength.intValue()];
+		pbSendBuffer.duplicate().get(command);
+		byte[] response = responder.respond(reader, command);
+		if (response.length > pcbRecvLength.getValue().intValue())
+			return dword(WinscardConstants.SCARD_E_INSUFFICIENT_BUFFER);
+		pbRecvBuffer.duplicate().put(response);
+		pcbRecvLength.setValue(dword(response.length));
+		return dword(0);
+	}
+	@Override public synchronized Dword SCardListReaders(SCardContext hContext, ByteBuffer mszGroups, ByteBuffer mszReaders, DwordByReference pcchReaders) {
+		int err = enter("SCardListReaders");
+		if (err != 0) return dword(err);
+		if (!isValid(hContext)) return dword(WinscardConstants.SCARD_E_INVALID_HANDLE);
+		if (readers.isEmpty()) return dword(WinscardConstants.SCARD_E_NO_READERS_AVAILABLE);
+		StringBuilder sb = new StringBuilder();
+		for (String name: readers.keySet())
+			sb.append(name).append('\0');
+		sb.append('\0');
+		byte[] bytes = sb.toString().getBytes();
+		if (mszReaders != null) {
+			if (mszReaders.remaining() < bytes.length)
+				return dword(WinscardConstants.SCARD_E_INSUFFICIENT_BUFFER);
+			mszReaders.duplicate().put(bytes);
+		}
+		pcchReaders.setValue(dword(bytes.length));
+		return dword(0);
+	}
+	@Override public synchronized Dword SCardFreeMemory(SCardContext hContext, Pointer pvMem) {
+		return dword(enter("SCardFreeMemory"));
+	}
+	@Override public synchronized Dword SCardListReaderGroups(SCardContext hContext, ByteBuffer mszGroups, DwordByReference pcchGroups) {
+		return dword(enter("SCardListReaderGroups"));
+	}
+	@Override public synchronized Dword SCardCancel(SCardContext hContext) {
+		int err = enter("SCardCancel");
+		if (err != 0) return dword(err);
+		cancelCount++;
+		notifyAll();
+		return dword(0);
+	}
+}
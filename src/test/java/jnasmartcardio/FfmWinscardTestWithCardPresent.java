@@ -0,0 +1,46 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Plug your card terminal in and insert your card before running this test,
+ * on Java 22+ with the multi-release jar on the classpath (the FFM binding
+ * is not in target/classes). Skipped where the FFM binding is unavailable.
+ */
+public class FfmWinscardTestWithCardPresent {
+	private static final CommandAPDU SELECT_MF = new CommandAPDU(0x00, 0xa4, 0x00, 0x00, 0);
+
+	private static ResponseAPDU transmit(WinscardLibInfo libInfo) throws CardException {
+		CardTerminal terminal = new JnaTerminalFactorySpi(libInfo).engineTerminals().list().get(0);
+		Card card = terminal.connect("*");
+		try {
+			return card.getBasicChannel().transmit(SELECT_MF);
+		} finally {
+			card.disconnect(false);
+		}
+	}
+
+	/** The FFM binding must pass the protocol control information, or the transmit fails. */
+	@Test public void testTransmitMatchesJna() throws CardException {
+		WinscardLibInfo ffm = FfmWinscard.openLib();
+		Assume.assumeNotNull(ffm);
+		ResponseAPDU viaFfm = transmit(ffm);
+		ResponseAPDU viaJna = transmit(Winscard.openLib());
+		assertEquals(String.format("FFM got 0x%04x, JNA got 0x%04x", viaFfm.getSW(), viaJna.getSW()), viaJna.getSW(), viaFfm.getSW());
+	}
+}
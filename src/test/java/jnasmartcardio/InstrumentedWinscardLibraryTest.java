@@ -0,0 +1,66 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+
+import jnasmartcardio.Smartcardio.JnaCard;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentedWinscardLibraryTest {
+	private FakeWinscardLibrary lib;
+	private WinscardMetrics metrics;
+	private JnaCardTerminals terminals;
+	@Before public void setUp() throws Exception {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		metrics = new WinscardMetrics();
+		Object parameter = InstrumentedWinscardLibrary.wrap(lib.libInfo(), metrics);
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(parameter).engineTerminals();
+	}
+	@Test public void testCountsCallsPerFunctionAndReader() throws Exception {
+		JnaCard card = (JnaCard) terminals.getTerminal("Reader 0").connect("*");
+		CardChannel channel = card.getBasicChannel();
+		for (int i = 0; i < 3; i++)
+			channel.transmit(new CommandAPDU(0, 0xa4, 4, 0));
+		assertEquals(1, metrics.get("SCardEstablishContext").getCalls());
+		assertEquals(3, metrics.get("SCardTransmit").getCalls());
+		assertEquals(3, metrics.get("SCardTransmit", "Reader 0").getCalls());
+		assertEquals(1, metrics.get("SCardConnect", "Reader 0").getCalls());
+		assertTrue(metrics.get("SCardTransmit").getMaxLatencyMicros() >= metrics.get("SCardTransmit").getP50LatencyMicros());
+	}
+	@Test public void testCountsErrors() throws Exception {
+		JnaCard card = (JnaCard) terminals.getTerminal("Reader 0").connect("*");
+		lib.injectError("SCardTransmit", WinscardConstants.SCARD_W_REMOVED_CARD);
+		try {
+			card.getBasicChannel().transmit(new CommandAPDU(0, 0xa4, 4, 0));
+			fail();
+		} catch (JnaPCSCException e) {
+			assertEquals(WinscardConstants.SCARD_W_REMOVED_CARD, (int) e.code);
+		}
+		WinscardFunctionStats stats = metrics.get("SCardTransmit", "Reader 0");
+		assertEquals(1, stats.getErrors());
+		assertEquals(Long.valueOf(1), stats.getErrorCounts().get("SCARD_W_REMOVED_CARD"));
+	}
+	@Test public void testPublishesMBeans() throws Exception {
+		MBeanServer server = MBeanServerFactory.newMBeanServer();
+		metrics.registerMBeans(server);
+		terminals.getTerminal("Reader 0").connect("*");
+		assertEquals(Long.valueOf(1), server.getAttribute(WinscardMetrics.objectName("SCardConnect", null), "Calls"));
+		assertEquals(Long.valueOf(1), server.getAttribute(WinscardMetrics.objectName("SCardConnect", "Reader 0"), "Calls"));
+		metrics.unregisterMBeans();
+		assertFalse(server.isRegistered(WinscardMetrics.objectName("SCardConnect", null)));
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals.State;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class JnaCardTerminalsRecoveryTest {
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminals terminals;
+
+	@Before public void setUp() {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+	}
+
+	@Test public void testContextLossIsFatalByDefault() throws Exception {
+		lib.restartDaemon();
+		try {
+			terminals.list();
+			fail("Expected JnaPCSCException");
+		} catch (JnaPCSCException e) {
+			assertEquals(WinscardConstants.SCARD_E_INVALID_HANDLE, (int) e.code);
+		}
+	}
+	@Test public void testRecoversAfterRestart() throws Exception {
+		terminals.setRecoveryTimeout(5000);
+		lib.restartDaemon();
+		lib.injectError("SCardEstablishContext", WinscardConstants.SCARD_E_NO_SERVICE);
+		lib.injectError("SCardEstablishContext", WinscardConstants.SCARD_E_NO_SERVICE);
+		assertEquals(1, terminals.list().size());
+		assertEquals(1, terminals.getRecoveryCount());
+		assertEquals(4, lib.calls("SCardEstablishContext"));
+		assertTrue(terminals.getTerminal("Reader 0").connect("*") != null);
+	}
+	@Test public void testGivesUpAfterTimeout() throws Exception {
+		terminals.setRecoveryTimeout(50);
+		lib.restartDaemon();
+		for (int i = 0; i < 100; i++)
+			lib.injectError("SCardEstablishContext", WinscardConstants.SCARD_E_NO_SERVICE);
+		try {
+			terminals.list();
+			fail("Expected JnaPCSCException");
+		} catch (JnaPCSCException e) {
+			assertEquals(WinscardConstants.SCARD_E_NO_SERVICE, (int) e.code);
+		}
+	}
+	@Test public void testWaitForChangeResynchronizes() throws Exception {
+		terminals.setRecoveryTimeout(5000);
+		assertTrue(terminals.waitForChange(0));  // the first call returns immediately
+		assertFalse(terminals.waitForChange(10));
+		new Thread() {
+			@Override public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				lib.restartDaemon();
+			}
+		}.start();
+		assertTrue(terminals.waitForChange(5000));
+		List<CardTerminal> inserted = terminals.list(State.CARD_INSERTION);
+		assertEquals(1, inserted.size());
+		assertEquals("Reader 0", inserted.get(0).getName());
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import jnasmartcardio.Smartcardio.JnaCard;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JnaCardTransactionLeaseTest {
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminals terminals;
+	private JnaCard card;
+	@Before public void setUp() throws Exception {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		card = (JnaCard) terminals.getTerminal("Reader 0").connect("*");
+	}
+	@After public void tearDown() throws Exception {
+		terminals.close();
+	}
+	@Test public void testWithoutLeaseEveryCallGoesToDaemon() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			card.beginExclusive();
+			card.endExclusive();
+		}
+		assertEquals(3, lib.calls("SCardBeginTransaction"));
+		assertEquals(3, lib.calls("SCardEndTransaction"));
+	}
+	@Test public void testLeaseCoalescesTransactions() throws Exception {
+		card.setTransactionLease(10000, 0);
+		for (int i = 0; i < 5; i++) {
+			card.beginExclusive();
+			card.endExclusive();
+		}
+		assertEquals(1, lib.calls("SCardBeginTransaction"));
+		assertEquals(0, lib.calls("SCardEndTransaction"));
+		card.releaseTransactionLease();
+		assertEquals(1, lib.calls("SCardEndTransaction"));
+	}
+	@Test public void testLeaseOperationLimit() throws Exception {
+		card.setTransactionLease(10000, 2);
+		for (int i = 0; i < 4; i++) {
+			card.beginExclusive();
+			card.endExclusive();
+		}
+		assertEquals(2, lib.calls("SCardBeginTransaction"));
+		assertEquals(2, lib.calls("SCardEndTransaction"));
+	}
+	@Test public void testLeaseExpiresWhenIdle() throws Exception {
+		card.setTransactionLease(20, 0);
+		card.beginExclusive();
+		card.endExclusive();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (lib.calls("SCardEndTransaction") == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(1, lib.calls("SCardEndTransaction"));
+	}
+	@Test public void testLeaseReleasedForOtherThread() throws Exception {
+		card.setTransactionLease(10000, 0);
+		card.beginExclusive();
+		card.endExclusive();
+		Thread other = new Thread() {
+			@Override public void run() {
+				try {
+					card.beginExclusive();
+					card.endExclusive();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		other.start();
+		other.join();
+		assertEquals(2, lib.calls("SCardBeginTransaction"));
+		assertEquals(1, lib.calls("SCardEndTransaction"));
+	}
+	@Test public void testBlockedBeginDoesNotHoldLeaseLock() throws Exception {
+		card.setTransactionLease(10000, 0);
+		lib.transactionGate = new CountDownLatch(1);
+		Thread blocked = new Thread() {
+			@Override public void run() {
+				try {
+					card.beginExclusive();
+					card.endExclusive();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		blocked.start();
+		while (blocked.getState() != Thread.State.WAITING)
+			Thread.sleep(1);
+		// Would wait for the blocked SCardBeginTransaction if it held the lock.
+		Thread release = new Thread() {
+			@Override public void run() {
+				try {
+					card.releaseTransactionLease();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		release.start();
+		release.join(2000);
+		assertFalse(release.isAlive());
+		lib.transactionGate.countDown();
+		blocked.join(2000);
+		assertFalse(blocked.isAlive());
+		assertEquals(1, lib.calls("SCardBeginTransaction"));
+		card.releaseTransactionLease();
+		assertEquals(1, lib.calls("SCardEndTransaction"));
+	}
+	@Test public void testEndExclusiveReconnectsAfterReset() throws Exception {
+		lib.injectError("SCardEndTransaction", WinscardConstants.SCARD_W_RESET_CARD);
+		card.beginExclusive();
+		card.endExclusive();
+		assertEquals(1, lib.calls("SCardReconnect"));
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.SCardContext;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+
+/**
+ * Compares the per-call overhead of the JNA binding with the FFM binding
+ * (which needs Java 22+ and the multi-release jar on the classpath). It calls
+ * SCardIsValidContext on an invalid context, which both pcsc-lite and
+ * WinSCard answer without talking to the daemon, so that the time measured
+ * is mostly the binding's.
+ */
+public class NativeCallBenchmark {
+	private static final int WARMUP = 200000;
+	private static final int ITERATIONS = 2000000;
+
+	private static double nanosPerCall(WinscardLibInfo libInfo, int iterations) {
+		SCardContext context = new SCardContext(0);
+		long start = System.nanoTime();
+		long sum = 0;
+		for (int i = 0; i < iterations; i++) {
+			Dword r = libInfo.lib.SCardIsValidContext(context);
+			sum += r.longValue();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (sum == 0)
+			throw new IllegalStateException("SCardIsValidContext(0) succeeded");
+		return (double) elapsed / iterations;
+	}
+
+	public static void main(String[] args) {
+		WinscardLibInfo jna = Winscard.openLib();
+		WinscardLibInfo ffm = FfmWinscard.openLib();
+		nanosPerCall(jna, WARMUP);
+		System.out.format("JNA: %6.1f ns/call%n", nanosPerCall(jna, ITERATIONS));
+		if (ffm == null) {
+			System.out.println("FFM: not available (needs Java 22+ and the multi-release jar)");
+			return;
+		}
+		nanosPerCall(ffm, WARMUP);
+		System.out.format("FFM: %6.1f ns/call%n", nanosPerCall(ffm, ITERATIONS));
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PcscLiteSocketLibraryTest {
+	private FakeWinscardLibrary lib;
+	private PcscLiteStandInServer server;
+	private JnaCardTerminals terminals;
+
+	@Before public void setUp() throws Exception {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				byte[] r = Arrays.copyOf(command, command.length + 2);
+				r[command.length] = (byte)0x90;
+				return r;
+			}
+		};
+		server = new PcscLiteStandInServer(lib);
+		PcscLiteSocketLibrary socketLib = new PcscLiteSocketLibrary(server.connector());
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(Winscard.libInfo(socketLib)).engineTerminals();
+	}
+	@After public void tearDown() throws Exception {
+		terminals.close();
+		server.close();
+	}
+
+	@Test public void testListConnectTransmit() throws Exception {
+		List<CardTerminal> list = terminals.list();
+		assertEquals(1, list.size());
+		assertEquals("Reader 0", list.get(0).getName());
+		assertTrue(list.get(0).isCardPresent());
+		Card card = list.get(0).connect("*");
+		assertTrue(Arrays.equals(new byte[] {0x3b, 0x00}, card.getATR().getBytes()));
+		ResponseAPDU response = card.getBasicChannel().transmit(new CommandAPDU(0, 0xca, 0x9f, 0x7f));
+		assertEquals(0x9000, response.getSW());
+		assertEquals(4, response.getData().length);
+		card.disconnect(false);
+		assertEquals(1, lib.calls("SCardTransmit"));
+	}
+	@Test public void testInsertionWakesWaitForChange() throws Exception {
+		lib.removeCard("Reader 0");
+		terminals.list();
+		terminals.waitForChange(1);  // learn the current states
+		final CardTerminal terminal = terminals.getTerminal("Reader 0");
+		assertFalse(terminal.isCardPresent());
+		Thread inserter = new Thread() {
+			@Override public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+			}
+		};
+		inserter.start();
+		assertTrue(terminal.waitForCardPresent(10000));
+		inserter.join();
+		assertTrue(terminals.waitForChange(50));
+		assertFalse(terminals.waitForChange(50));
+	}
+	@Test public void testConcurrentTransmitsArePipelined() throws Exception {
+		final CardChannel channel = terminals.getTerminal("Reader 0").connect("*").getBasicChannel();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override public void run() {
+					try {
+						for (int i = 0; i < 50; i++) {
+							ResponseAPDU r = channel.transmit(new CommandAPDU(0, 0xca, id, i, 1));
+							if (r.getData().length != 5 || r.getData()[2] != id || r.getData()[3] != i)
+								throw new AssertionError("Response of another command: " + r);
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t: threads)
+			t.join();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertEquals(400, lib.calls("SCardTransmit"));
+	}
+	@Test public void testSlowCardDoesNotDelayAnotherCard() throws Exception {
+		lib.addReader("Reader 1");
+		lib.insertCard("Reader 1", new byte[] {0x3b, 0x00});
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final FakeWinscardLibrary.Responder echo = lib.responder;
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				if ("Reader 0".equals(reader)) {
+					slowStarted.countDown();
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return echo.respond(reader, command);
+			}
+		};
+		final CardChannel slow = terminals.getTerminal("Reader 0").connect("*").getBasicChannel();
+		CardChannel fast = terminals.getTerminal("Reader 1").connect("*").getBasicChannel();
+		Thread slowThread = new Thread() {
+			@Override public void run() {
+				try {
+					slow.transmit(new CommandAPDU(0, 0xca, 0, 0, 1));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		slowThread.start();
+		assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+		long start = System.nanoTime();
+		assertEquals(0x9000, fast.transmit(new CommandAPDU(0, 0xca, 0, 0, 1)).getSW());
+		assertTrue(System.nanoTime() - start < 500000000L);
+		slowThread.join();
+	}
+	@Test public void testDisconnectedCardConnectionIsReused() throws Exception {
+		CardTerminal terminal = terminals.getTerminal("Reader 0");
+		terminal.connect("*").disconnect(false);
+		int established = server.requests[PcscLiteSocketLibrary.SCARD_ESTABLISH_CONTEXT];
+		Card card = terminal.connect("*");
+		assertEquals(0x9000, card.getBasicChannel().transmit(new CommandAPDU(0, 0xca, 0, 0, 1)).getSW());
+		card.disconnect(false);
+		assertEquals(established, server.requests[PcscLiteSocketLibrary.SCARD_ESTABLISH_CONTEXT]);
+	}
+	@Test public void testCancelWait() throws Exception {
+		terminals.waitForChange(1);
+		Thread canceller = new Thread() {
+			@Override public void run() {
+				try {
+					Thread.sleep(100);
+					terminals.cancelWait();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		canceller.start();
+		long start = System.nanoTime();
+		try {
+			terminals.waitForChange(10000);
+			fail("Expected JnaPCSCException");
+		} catch (JnaPCSCException e) {
+			assertEquals(WinscardConstants.SCARD_E_CANCELLED, (int) e.code);
+		}
+		assertTrue(System.nanoTime() - start < 5000000000L);
+		canceller.join();
+		assertFalse(terminals.waitForChange(50));
+		assertEquals(0, server.requests[PcscLiteSocketLibrary.SCARD_CANCEL]);
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+import jnasmartcardio.Winscard.Dword;
+import jnasmartcardio.Winscard.DwordByReference;
+import jnasmartcardio.Winscard.SCardContext;
+import jnasmartcardio.Winscard.SCardContextByReference;
+import jnasmartcardio.Winscard.SCardHandle;
+import jnasmartcardio.Winscard.SCardHandleByReference;
+import jnasmartcardio.Winscard.SCardReaderState;
+import jnasmartcardio.Winscard.ScardIoRequest;
+
+/**
+ * Serves pcscd's socket protocol on a localhost TCP port, on top of a
+ * {@link FakeWinscardLibrary}, so that {@link PcscLiteSocketLibrary} can be
+ * tested without pcscd.
+ */
+class PcscLiteStandInServer implements Closeable {
+	private static class Client {
+		final SocketChannel channel;
+		volatile boolean waiting;
+		Client(SocketChannel channel) {this.channel = channel;}
+		void write(ByteBuffer b) throws IOException {
+			synchronized (this) {
+				while (b.hasRemaining())
+					channel.write(b);
+			}
+		}
+	}
+
+	private final FakeWinscardLibrary lib;
+	private final ServerSocketChannel server;
+	private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+	private final SCardContext eventContext;
+	private volatile boolean closed;
+	/** Number of requests received, by command. */
+	final int[] requests = new int[0x20];
+
+	PcscLiteStandInServer(FakeWinscardLibrary lib) throws IOException {
+		this.lib = lib;
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		SCardContextByReference phContext = new SCardContextByReference();
+		lib.SCardEstablishContext(new Dword(JnaTerminalFactorySpi.SCARD_SCOPE_SYSTEM), null, null, phContext);
+		eventContext = phContext.getValue();
+		start(new Runnable() {@Override public void run() {acceptLoop();}}, "accept");
+		start(new Runnable() {@Override public void run() {eventLoop();}}, "events");
+	}
+	PcscLiteSocketLibrary.Connector connector() {
+		return PcscLiteSocketLibrary.tcp((InetSocketAddress) server.socket().getLocalSocketAddress());
+	}
+	private void start(Runnable r, String name) {
+		Thread t = new Thread(r, "pcsclite-stand-in-" + name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void acceptLoop() {
+		while (!closed) {
+			final Client client;
+			try {
+				client = new Client(server.accept());
+			} catch (IOException e) {
+				return;
+			}
+			clients.add(client);
+			start(new Runnable() {@Override public void run() {serve(client);}}, "client");
+		}
+	}
+
+	/** Wake waiting clients whenever a reader or card changes. */
+	private void eventLoop() {
+		List<SCardReaderState> states = new ArrayList<SCardReaderState>();
+		states.add(new SCardReaderState(WinscardConstants.PNP_READER_ID));
+		while (!closed) {
+			SCardReaderState[] array = states.toArray(new SCardReaderState[states.size()]);
+			int rv = lib.SCardGetStatusChange(eventContext, new Dword(WinscardConstants.INFINITE), array, new Dword(array.length)).intValue();
+			if (closed || rv != WinscardConstants.SCARD_S_SUCCESS && rv != WinscardConstants.SCARD_E_TIMEOUT)
+				return;
+			List<SCardReaderState> next = new ArrayList<SCardReaderState>();
+			for (SCardReaderState s: array) {
+				s.dwCurrentState = s.dwEventState;
+				next.add(s);
+			}
+			synchronized (lib) {
+				for (String name: lib.readers.keySet()) {
+					boolean known = false;
+					for (SCardReaderState s: array)
+						known |= name.equals(s.szReader);
+					if (!known)
+						next.add(new SCardReaderState(name));
+				}
+			}
+			states = next;
+			ByteBuffer notification = PcscLiteSocketLibrary.Connection.allocate(8);
+			for (Client client: clients) {
+				if (!client.waiting)
+					continue;
+				client.waiting = false;
+				try {
+					notification.clear();
+					client.write(notification);
+				} catch (IOException e) {
+					// the client thread notices
+				}
+			}
+		}
+	}
+
+	private void serve(Client client) {
+		try {
+			while (true) {
+				ByteBuffer header = read(client.channel, 8);
+				int size = header.getInt();
+				int command = header.getInt();
+				ByteBuffer b = read(client.channel, size);
+				requests[command]++;
+				// Hold the lock so that no notification gets between the
+				// registration and the reply to CMD_WAIT_READER_STATE_CHANGE.
+				synchronized (client) {
+					ByteBuffer reply = handle(client, command, b);
+					reply.rewind();
+					client.write(reply);
+				}
+			}
+		} catch (IOException e) {
+			// client went away
+		} finally {
+			clients.remove(client);
+			try {
+				client.channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	private static ByteBuffer read(SocketChannel channel, int size) throws IOException {
+		ByteBuffer b = PcscLiteSocketLibrary.Connection.allocate(size);
+		while (b.hasRemaining())
+			if (channel.read(b) < 0)
+				throw new EOFException();
+		b.flip();
+		return b;
+	}
+	/** The first length bytes of b, as a new buffer. */
+	private static ByteBuffer head(ByteBuffer b, int length) {
+		ByteBuffer head = b.duplicate();
+		head.position(0);
+		head.limit(length);
+		return head;
+	}
+
+	private ByteBuffer handle(Client client, int command, ByteBuffer b) throws IOException {
+		switch (command) {
+		case PcscLiteSocketLibrary.CMD_VERSION:
+			b.putInt(8, WinscardConstants.SCARD_S_SUCCESS);
+			return b;
+		case PcscLiteSocketLibrary.SCARD_ESTABLISH_CONTEXT: {
+			SCardContextByReference phContext = new SCardContextByReference();
+			int rv = lib.SCardEstablishContext(new Dword(b.getInt(0)), null, null, phContext).intValue();
+			if (rv == WinscardConstants.SCARD_S_SUCCESS)
+				b.putInt(4, phContext.getValue().intValue());
+			return b.putInt(8, rv);
+		}
+		case PcscLiteSocketLibrary.SCARD_RELEASE_CONTEXT:
+			return b.putInt(4, lib.SCardReleaseContext(new SCardContext(b.getInt(0))).intValue());
+		case PcscLiteSocketLibrary.SCARD_CONNECT: {
+			byte[] name = new byte[PcscLiteSocketLibrary.MAX_READERNAME];
+			b.position(4);
+			b.get(name);
+			int length = 0;
+			while (name[length] != 0)
+				length++;
+			int offset = 4 + PcscLiteSocketLibrary.MAX_READERNAME;
+			SCardHandleByReference phCard = new SCardHandleByReference();
+			DwordByReference pdwActiveProtocol = new DwordByReference();
+			int rv = lib.SCardConnect(new SCardContext(b.getInt(0)), new String(name, 0, length, "UTF-8"), new Dword(b.getInt(offset)), new Dword(b.getInt(offset + 4)), phCard, pdwActiveProtocol).intValue();
+			if (rv == WinscardConstants.SCARD_S_SUCCESS) {
+				b.putInt(offset + 8, phCard.getValue().intValue());
+				b.putInt(offset + 12, pdwActiveProtocol.getValue().intValue());
+			}
+			return b.putInt(offset + 16, rv);
+		}
+		case PcscLiteSocketLibrary.SCARD_RECONNECT: {
+			DwordByReference pdwActiveProtocol = new DwordByReference();
+			int rv = lib.SCardReconnect(new SCardHandle(b.getInt(0)), new Dword(b.getInt(4)), new Dword(b.getInt(8)), new Dword(b.getInt(12)), pdwActiveProtocol).intValue();
+			if (rv == WinscardConstants.SCARD_S_SUCCESS)
+				b.putInt(16, pdwActiveProtocol.getValue().intValue());
+			return b.putInt(20, rv);
+		}
+		case PcscLiteSocketLibrary.SCARD_DISCONNECT:
+			return b.putInt(8, lib.SCardDisconnect(new SCardHandle(b.getInt(0)), new Dword(b.getInt(4))).intValue());
+		case PcscLiteSocketLibrary.SCARD_BEGIN_TRANSACTION:
+			return b.putInt(4, lib.SCardBeginTransaction(new SCardHandle(b.getInt(0))).intValue());
+		case PcscLiteSocketLibrary.SCARD_END_TRANSACTION:
+			return b.putInt(8, lib.SCardEndTransaction(new SCardHandle(b.getInt(0)), new Dword(b.getInt(4))).intValue());
+		case PcscLiteSocketLibrary.SCARD_STATUS: {
+			DwordByReference length = new DwordByReference(new Dword(WinscardConstants.MAX_ATR_SIZE));
+			int rv = lib.SCardStatus(new SCardHandle(b.getInt(0)), null, new DwordByReference(), new DwordByReference(), new DwordByReference(), ByteBuffer.allocate(WinscardConstants.MAX_ATR_SIZE), length).intValue();
+			return b.putInt(4, rv);
+		}
+		case PcscLiteSocketLibrary.SCARD_TRANSMIT: {
+			ScardIoRequest sendPci = new ScardIoRequest();
+			sendPci.dwProtocol = new Dword(b.getInt(4));
+			sendPci.cbPciLength = new Dword(b.getInt(8));
+			int sendLength = b.getInt(12);
+			int recvLength = b.getInt(24);
+			b.position(32);
+			ByteBuffer send = b.slice();
+			ByteBuffer recv = ByteBuffer.allocate(recvLength);
+			DwordByReference pcbRecvLength = new DwordByReference(new Dword(recvLength));
+			int rv = lib.SCardTransmit(new SCardHandle(b.getInt(0)), sendPci, send, new Dword(sendLength), null, recv, pcbRecvLength).intValue();
+			int received = rv == WinscardConstants.SCARD_S_SUCCESS ? pcbRecvLength.getValue().intValue() : 0;
+			ByteBuffer reply = PcscLiteSocketLibrary.Connection.allocate(32 + received);
+			reply.put(head(b, 32));
+			reply.putInt(24, received).putInt(28, rv);
+			recv.limit(received);
+			reply.put(recv);
+			return reply;
+		}
+		case PcscLiteSocketLibrary.SCARD_CONTROL: {
+			ByteBuffer recv = ByteBuffer.allocate(b.getInt(12));
+			DwordByReference returned = new DwordByReference(new Dword(0));
+			b.position(24);
+			int rv = lib.SCardControl(new SCardHandle(b.getInt(0)), new Dword(b.getInt(4)), b.slice(), new Dword(b.getInt(8)), recv, new Dword(recv.capacity()), returned).intValue();
+			int length = rv == WinscardConstants.SCARD_S_SUCCESS ? returned.getValue().intValue() : 0;
+			ByteBuffer reply = PcscLiteSocketLibrary.Connection.allocate(24 + length);
+			reply.put(head(b, 24));
+			reply.putInt(16, length).putInt(20, rv);
+			recv.limit(length);
+			reply.put(recv);
+			return reply;
+		}
+		case PcscLiteSocketLibrary.SCARD_GET_ATTRIB:
+		case PcscLiteSocketLibrary.SCARD_SET_ATTRIB:
+			return b.putInt(8 + PcscLiteSocketLibrary.MAX_BUFFER_SIZE + 4, WinscardConstants.SCARD_E_UNSUPPORTED_FEATURE);
+		case PcscLiteSocketLibrary.SCARD_CANCEL:
+			return b.putInt(4, WinscardConstants.SCARD_S_SUCCESS);
+		case PcscLiteSocketLibrary.CMD_GET_READERS_STATE:
+			return readersState();
+		case PcscLiteSocketLibrary.CMD_WAIT_READER_STATE_CHANGE:
+			client.waiting = true;
+			return readersState();
+		case PcscLiteSocketLibrary.CMD_STOP_WAITING_READER_STATE_CHANGE: {
+			int rv = client.waiting ? WinscardConstants.SCARD_S_SUCCESS : WinscardConstants.SCARD_F_INTERNAL_ERROR;
+			client.waiting = false;
+			return b.putInt(4, rv);
+		}
+		default:
+			throw new IOException("Unsupported command " + command);
+		}
+	}
+	private ByteBuffer readersState() throws IOException {
+		ByteBuffer b = PcscLiteSocketLibrary.Connection.allocate(PcscLiteSocketLibrary.PCSCLITE_MAX_READERS_CONTEXTS * PcscLiteSocketLibrary.READER_STATE_SIZE);
+		synchronized (lib) {
+			int i = 0;
+			for (FakeWinscardLibrary.FakeReader reader: lib.readers.values()) {
+				int offset = i++ * PcscLiteSocketLibrary.READER_STATE_SIZE;
+				b.position(offset);
+				b.put(reader.name.getBytes("UTF-8"));
+				b.putInt(offset + PcscLiteSocketLibrary.READER_STATE_EVENT_COUNTER, reader.eventCounter);
+				b.putInt(offset + PcscLiteSocketLibrary.READER_STATE_STATE, reader.atr != null ? PcscLiteSocketLibrary.SCARD_PRESENT : PcscLiteSocketLibrary.SCARD_ABSENT);
+				if (reader.atr != null) {
+					b.position(offset + PcscLiteSocketLibrary.READER_STATE_ATR);
+					b.put(reader.atr);
+					b.putInt(offset + PcscLiteSocketLibrary.READER_STATE_ATR_LENGTH, reader.atr.length);
+					b.putInt(offset + PcscLiteSocketLibrary.READER_STATE_PROTOCOL, Smartcardio.JnaCardTerminal.SCARD_PROTOCOL_T1);
+				}
+			}
+		}
+		b.clear();
+		return b;
+	}
+
+	@Override public void close() throws IOException {
+		closed = true;
+		server.close();
+		for (Client client: clients)
+			client.channel.close();
+		lib.SCardCancel(eventContext);
+		lib.SCardReleaseContext(eventContext);
+	}
+}
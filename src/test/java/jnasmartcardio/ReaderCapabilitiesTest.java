@@ -0,0 +1,82 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jnasmartcardio.Smartcardio.JnaCard;
+import jnasmartcardio.Smartcardio.JnaCardTerminal;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReaderCapabilitiesTest {
+	private static final int VERIFY_PIN_CODE = 0x42330006;
+	private static final int TLV_PROPERTIES_CODE = 0x42330012;
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminals terminals;
+
+	@Before public void setUp() {
+		lib = new FakeWinscardLibrary();
+		addPinPadReader("Reader 0", "ACME");
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+	}
+	private void addPinPadReader(String name, String vendor) {
+		lib.addReader(name);
+		FakeWinscardLibrary.FakeReader reader = lib.readers.get(name);
+		reader.attributes.put(WinscardConstants.SCARD_ATTR_VENDOR_NAME, (vendor + "\0").getBytes());
+		reader.attributes.put(WinscardConstants.SCARD_ATTR_VENDOR_IFD_VERSION, ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(0x01020003).array());
+		reader.controlResponses.put(ReaderCapabilities.IOCTL_GET_FEATURE_REQUEST, new byte[] {
+			ReaderCapabilities.FEATURE_VERIFY_PIN_DIRECT, 4, 0x42, 0x33, 0x00, 0x06,
+			ReaderCapabilities.FEATURE_GET_TLV_PROPERTIES, 4, 0x42, 0x33, 0x00, 0x12});
+		reader.controlResponses.put(TLV_PROPERTIES_CODE, new byte[] {
+			ReaderCapabilities.PROPERTY_wIdVendor, 2, (byte) 0xe6, 0x08,
+			ReaderCapabilities.PROPERTY_sFirmwareID, 3, 'v', '1', '0'});
+	}
+
+	@Test public void testQueryWithoutCard() throws Exception {
+		ReaderCapabilities capabilities = ((JnaCardTerminal) terminals.getTerminal("Reader 0")).getCapabilities();
+		assertEquals("Reader 0", capabilities.getReaderName());
+		assertEquals("ACME", capabilities.getVendorName());
+		assertEquals(Integer.valueOf(0x01020003), capabilities.getIfdVersion());
+		assertNull(capabilities.getMaxIfsd());
+		assertTrue(capabilities.canVerifyPin());
+		assertFalse(capabilities.canModifyPin());
+		assertEquals(Integer.valueOf(VERIFY_PIN_CODE), capabilities.getFeatureControlCode(ReaderCapabilities.FEATURE_VERIFY_PIN_DIRECT));
+		assertEquals(Integer.valueOf(0x08e6), capabilities.getTlvPropertyInt(ReaderCapabilities.PROPERTY_wIdVendor));
+		assertEquals("v10", capabilities.getFirmwareId());
+		assertEquals(1, lib.calls("SCardDisconnect"));
+	}
+	@Test public void testCachedUntilReaderRemoved() throws Exception {
+		JnaCardTerminal terminal = (JnaCardTerminal) terminals.getTerminal("Reader 0");
+		ReaderCapabilities first = terminal.getCapabilities();
+		int controlCalls = lib.calls("SCardControl");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		JnaCard card = (JnaCard) terminal.connect("*");
+		assertSame(first, card.getReaderCapabilities());
+		assertSame(first, terminal.getCapabilities());
+		assertEquals(controlCalls, lib.calls("SCardControl"));
+
+		terminals.list();
+		lib.removeReader("Reader 0");
+		terminals.list();
+		addPinPadReader("Reader 0", "Other");
+		ReaderCapabilities second = terminal.getCapabilities();
+		assertEquals("Other", second.getVendorName());
+	}
+	@Test public void testReaderWithoutFeatures() throws Exception {
+		lib.addReader("Reader 1");
+		ReaderCapabilities capabilities = ((JnaCardTerminal) terminals.getTerminal("Reader 1")).getCapabilities();
+		assertNull(capabilities.getVendorName());
+		assertNull(capabilities.getIfdVersion());
+		assertTrue(capabilities.getFeatures().isEmpty());
+		assertFalse(capabilities.canVerifyPin());
+		assertNull(capabilities.getTlvProperty(ReaderCapabilities.PROPERTY_wIdVendor));
+	}
+}
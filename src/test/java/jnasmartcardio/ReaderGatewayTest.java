@@ -0,0 +1,137 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+
+import jnasmartcardio.RemoteSmartcardio.RemoteCardChannel;
+import jnasmartcardio.RemoteSmartcardio.RemoteCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReaderGatewayTest {
+	private FakeWinscardLibrary lib;
+	private ReaderGateway gateway;
+	private RemoteCardTerminals remote;
+
+	@Before public void setUp() throws Exception {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				if (command[1] == 0x00)
+					return new byte[] {0x6d, 0x00};
+				byte[] r = Arrays.copyOf(command, command.length + 2);
+				r[command.length] = (byte)0x90;
+				return r;
+			}
+		};
+		TerminalFactory local = TerminalFactory.getInstance("PC/SC", lib.libInfo(), new Smartcardio());
+		gateway = new ReaderGateway(local, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).start();
+		TerminalFactory factory = TerminalFactory.getInstance("Remote", gateway.getLocalAddress(), new Smartcardio());
+		remote = (RemoteCardTerminals) factory.terminals();
+	}
+	@After public void tearDown() throws Exception {
+		remote.close();
+		gateway.close();
+	}
+
+	@Test public void testListConnectTransmit() throws Exception {
+		List<CardTerminal> list = remote.list();
+		assertEquals(1, list.size());
+		CardTerminal terminal = list.get(0);
+		assertEquals("Reader 0", terminal.getName());
+		assertTrue(terminal.isCardPresent());
+		assertEquals(0, remote.list(CardTerminals.State.CARD_ABSENT).size());
+		Card card = terminal.connect("*");
+		assertTrue(Arrays.equals(new byte[] {0x3b, 0x00}, card.getATR().getBytes()));
+		assertEquals("T=1", card.getProtocol());
+		ResponseAPDU response = card.getBasicChannel().transmit(new CommandAPDU(0, 0xca, 0x9f, 0x7f));
+		assertEquals(0x9000, response.getSW());
+		card.disconnect(false);
+		assertEquals(1, lib.calls("SCardDisconnect"));
+	}
+	@Test public void testAsyncAndBatchKeepOrder() throws Exception {
+		RemoteCardChannel channel = (RemoteCardChannel) remote.getTerminal("Reader 0").connect("*").getBasicChannel();
+		List<Future<ResponseAPDU>> futures = new ArrayList<Future<ResponseAPDU>>();
+		List<CommandAPDU> batch = new ArrayList<CommandAPDU>();
+		for (int i = 0; i < 20; i++) {
+			futures.add(channel.transmitAsync(new CommandAPDU(0, 0xb0, 0, i, 1)));
+			batch.add(new CommandAPDU(0, 0xb0, 1, i, 1));
+		}
+		List<ResponseAPDU> responses = channel.transmitBatch(batch);
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i, futures.get(i).get().getData()[3]);
+			assertEquals(1, responses.get(i).getData()[2]);
+			assertEquals(i, responses.get(i).getData()[3]);
+		}
+		assertEquals(40, lib.calls("SCardTransmit"));
+	}
+	@Test public void testErrorsAreForwarded() throws Exception {
+		lib.injectError("SCardConnect", WinscardConstants.SCARD_E_SHARING_VIOLATION);
+		try {
+			remote.getTerminal("Reader 0").connect("*");
+			fail("Expected JnaPCSCException");
+		} catch (JnaPCSCException e) {
+			assertEquals(WinscardConstants.SCARD_E_SHARING_VIOLATION, (int) e.code);
+		}
+		try {
+			remote.getTerminal("Reader 0").connect("T=5");
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	@Test public void testClientsDoNotShareWaitState() throws Exception {
+		RemoteCardTerminals other = (RemoteCardTerminals) TerminalFactory.getInstance("Remote", gateway.getLocalAddress(), new Smartcardio()).terminals();
+		try {
+			lib.removeCard("Reader 0");
+			// learn the current states
+			remote.waitForChange(1);
+			assertFalse(remote.waitForChange(50));
+			other.waitForChange(1);
+			assertFalse(other.waitForChange(50));
+			lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+			assertTrue(remote.waitForChange(5000));
+			assertEquals(1, remote.list(CardTerminals.State.CARD_INSERTION).size());
+			assertEquals(0, other.list(CardTerminals.State.CARD_INSERTION).size());
+			assertTrue(other.waitForChange(5000));
+			assertEquals(1, other.list(CardTerminals.State.CARD_INSERTION).size());
+		} finally {
+			other.close();
+		}
+	}
+	@Test public void testClosingClientDisconnectsCards() throws Exception {
+		remote.getTerminal("Reader 0").connect("*");
+		remote.close();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (lib.calls("SCardDisconnect") == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(1, lib.calls("SCardDisconnect"));
+		try {
+			remote.list();
+			fail("Expected JnaPCSCException");
+		} catch (JnaPCSCException e) {
+			assertEquals(WinscardConstants.SCARD_E_NO_SERVICE, (int) e.code);
+		}
+	}
+}
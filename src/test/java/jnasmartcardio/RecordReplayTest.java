@@ -0,0 +1,70 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import jnasmartcardio.ReplayWinscardLibrary.ReplayDivergedException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+
+import org.junit.Test;
+
+public class RecordReplayTest {
+	private static final byte[] ATR = {0x3b, (byte)0x8f, (byte)0x80, 0x01};
+	private static final CommandAPDU GET_DATA = new CommandAPDU(0, 0xca, 0x9f, 0x7f);
+
+	private static ResponseAPDU session(WinscardLibInfo libInfo) throws Exception {
+		CardTerminals terminals = new JnaTerminalFactorySpi(libInfo).engineTerminals();
+		assertEquals("Reader 0", terminals.list().get(0).getName());
+		Card card = terminals.getTerminal("Reader 0").connect("*");
+		assertTrue(Arrays.equals(ATR, card.getATR().getBytes()));
+		ResponseAPDU response = card.getBasicChannel().transmit(GET_DATA);
+		card.disconnect(false);
+		return response;
+	}
+	private static byte[] record() throws Exception {
+		FakeWinscardLibrary fake = new FakeWinscardLibrary();
+		fake.addReader("Reader 0");
+		fake.insertCard("Reader 0", ATR);
+		fake.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				return new byte[] {0x01, 0x02, (byte)0x90, 0x00};
+			}
+		};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RecordingWinscardLibrary recorder = new RecordingWinscardLibrary(fake, bytes);
+		ResponseAPDU response = session(Winscard.libInfo(recorder));
+		assertEquals(0x9000, response.getSW());
+		recorder.close();
+		return bytes.toByteArray();
+	}
+
+	@Test public void testReplayReproducesSession() throws Exception {
+		ReplayWinscardLibrary replay = new ReplayWinscardLibrary(new ByteArrayInputStream(record()));
+		ResponseAPDU response = session(replay.libInfo());
+		assertTrue(Arrays.equals(new byte[] {0x01, 0x02}, response.getData()));
+		assertEquals(0x9000, response.getSW());
+		assertTrue(replay.isFinished());
+	}
+	@Test public void testDivergentCallIsDetected() throws Exception {
+		ReplayWinscardLibrary replay = new ReplayWinscardLibrary(new ByteArrayInputStream(record()));
+		CardTerminals terminals = new JnaTerminalFactorySpi(replay.libInfo()).engineTerminals();
+		try {
+			terminals.getTerminal("Reader 0").connect("*");
+			fail("Expected ReplayDivergedException");
+		} catch (ReplayDivergedException e) {
+			// expected: the recording lists the readers before connecting
+		}
+	}
+}
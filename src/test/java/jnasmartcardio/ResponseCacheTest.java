@@ -0,0 +1,112 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import jnasmartcardio.ResponseCache.CachingCardChannel;
+import jnasmartcardio.Smartcardio.JnaCard;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminals terminals;
+
+	@Before public void setUp() {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				// READ BINARY returns 100 bytes of P2; anything else fails.
+				if (command[1] != (byte) 0xb0)
+					return new byte[] {0x6d, 0x00};
+				byte[] r = new byte[102];
+				Arrays.fill(r, command[3]);
+				r[100] = (byte) 0x90;
+				r[101] = 0x00;
+				return r;
+			}
+		};
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+	}
+	private CachingCardChannel connect(ResponseCache cache) throws Exception {
+		JnaCard card = (JnaCard) terminals.getTerminal("Reader 0").connect("*");
+		return cache.wrap(card.getBasicChannel(), ResponseCache.cardIdentity(card.getATR(), new byte[] {1, 2, 3, 4}));
+	}
+	private static CommandAPDU read(int offset) {
+		return new CommandAPDU(0, 0xb0, 0, offset, 100);
+	}
+
+	@Test public void testHitAndLruEviction() throws Exception {
+		ResponseCache cache = new ResponseCache(250, false);
+		CachingCardChannel channel = connect(cache);
+		int transmits = lib.calls("SCardTransmit");
+		ResponseAPDU first = channel.transmitCached(read(1));
+		assertEquals(first, channel.transmitCached(read(1)));
+		assertEquals(transmits + 1, lib.calls("SCardTransmit"));
+		assertEquals(1, cache.getHits());
+
+		channel.transmitCached(read(2));
+		channel.transmitCached(read(1));
+		channel.transmitCached(read(3));  // evicts 2, the least recently used
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(204, cache.getSizeBytes());
+		transmits = lib.calls("SCardTransmit");
+		channel.transmitCached(read(1));
+		assertEquals(transmits, lib.calls("SCardTransmit"));
+		channel.transmitCached(read(2));
+		assertEquals(transmits + 1, lib.calls("SCardTransmit"));
+	}
+	@Test public void testErrorsAndUncachedCommandsPassThrough() throws Exception {
+		ResponseCache cache = new ResponseCache(1000, true);
+		CachingCardChannel channel = connect(cache);
+		CommandAPDU getData = new CommandAPDU(0, 0xca, 0x9f, 0x7f, 256);
+		assertEquals(0x6d00, channel.transmitCached(getData).getSW());
+		assertEquals(0, cache.getEntryCount());
+		int transmits = lib.calls("SCardTransmit");
+		channel.transmit(read(1));
+		channel.transmit(read(1));
+		assertEquals(transmits + 2, lib.calls("SCardTransmit"));
+		assertEquals(0, cache.getEntryCount());
+		ResponseAPDU response = channel.transmitCached(read(7));
+		assertEquals(response, channel.transmitCached(read(7)));
+	}
+	@Test public void testRemovalInvalidates() throws Exception {
+		ResponseCache cache = new ResponseCache(1000, false);
+		connect(cache).transmitCached(read(1));
+		lib.removeCard("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		terminals.list();
+		CachingCardChannel channel = connect(cache);
+		int transmits = lib.calls("SCardTransmit");
+		channel.transmitCached(read(1));
+		assertEquals(transmits + 1, lib.calls("SCardTransmit"));
+		assertEquals(0, cache.getHits());
+	}
+	@Test public void testIdentityOutlivesSessionWhenAsked() throws Exception {
+		ResponseCache cache = new ResponseCache(1000, false);
+		cache.setInvalidateOnRemoval(false);
+		connect(cache).transmitCached(read(1));
+		lib.removeCard("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		terminals.list();
+		CachingCardChannel channel = connect(cache);
+		int transmits = lib.calls("SCardTransmit");
+		channel.transmitCached(read(1));
+		assertEquals(transmits, lib.calls("SCardTransmit"));
+		cache.invalidate(ResponseCache.cardIdentity(channel.getCard().getATR(), new byte[] {1, 2, 3, 4}));
+		assertEquals(0, cache.getEntryCount());
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.CommandAPDU;
+
+import jnasmartcardio.Smartcardio.JnaCardChannel;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseViewTest {
+	private JnaCardChannel channel;
+
+	@Before public void setUp() throws Exception {
+		FakeWinscardLibrary lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				return new byte[] {1, 2, 3, (byte)0x90, 0x00};
+			}
+		};
+		JnaCardTerminals terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		channel = (JnaCardChannel) terminals.getTerminal("Reader 0").connect("*").getBasicChannel();
+	}
+
+	@Test public void testView() throws Exception {
+		ResponseView view = channel.transmitView(new CommandAPDU(0, 0xca, 0x9f, 0x7f, 3));
+		assertEquals(0x90, view.getSW1());
+		assertEquals(0x00, view.getSW2());
+		assertEquals(0x9000, view.getSW());
+		assertEquals(3, view.getNr());
+		ByteBuffer data = view.getData();
+		assertTrue(data.isReadOnly());
+		assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), data);
+		assertEquals(view.toResponseAPDU(), channel.transmit(new CommandAPDU(0, 0xca, 0x9f, 0x7f, 3)));
+		view.release();
+		try {
+			view.getSW();
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			view.release();
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	@Test public void testReleaseReturnsBufferToPool() throws Exception {
+		BufferPool pool = BufferPool.getDefault();
+		long outstanding = pool.getOutstanding();
+		ResponseView view = channel.transmitView(new CommandAPDU(0, 0xca, 0x9f, 0x7f, 3));
+		assertEquals(outstanding + 1, pool.getOutstanding());
+		view.release();
+		assertEquals(outstanding, pool.getOutstanding());
+		long allocated = pool.getAllocated();
+		channel.transmitView(new CommandAPDU(0, 0xca, 0x9f, 0x7f, 3)).release();
+		assertEquals(allocated, pool.getAllocated());
+	}
+}
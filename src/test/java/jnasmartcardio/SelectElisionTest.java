@@ -0,0 +1,116 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import jnasmartcardio.Smartcardio.JnaCard;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SelectElisionTest {
+	private static final byte[] AID_A = {(byte) 0xa0, 0, 0, 0, 0x03, 0x10, 0x10};
+	private static final byte[] AID_B = {(byte) 0xa0, 0, 0, 0, 0x04, 0x10, 0x10};
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminals terminals;
+	private JnaCard card;
+	private CardChannel channel;
+	/** SW of the next non-SELECT response. */
+	private volatile int nextSw = 0x9000;
+
+	@Before public void setUp() throws Exception {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				if (command[1] == (byte) 0xa4)
+					return new byte[] {0x6f, 0x01, command[command.length - 2], (byte) 0x90, 0x00};
+				if (command[1] == 0x70)
+					return new byte[] {0x01, (byte) 0x90, 0x00};
+				return new byte[] {(byte) (nextSw >> 8), (byte) nextSw};
+			}
+		};
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		card = (JnaCard) terminals.getTerminal("Reader 0").connect("*");
+		card.setSelectElision(true);
+		channel = card.getBasicChannel();
+	}
+	private ResponseAPDU select(CardChannel channel, byte[] aid) throws Exception {
+		return channel.transmit(new CommandAPDU(0x00, 0xa4, 0x04, 0x00, aid, 256));
+	}
+
+	@Test public void testRepeatedSelectIsElided() throws Exception {
+		ResponseAPDU first = select(channel, AID_A);
+		assertEquals(0x9000, first.getSW());
+		int transmits = lib.calls("SCardTransmit");
+		ResponseAPDU second = select(card.getBasicChannel(), AID_A);
+		assertTrue(Arrays.equals(first.getBytes(), second.getBytes()));
+		assertEquals(transmits, lib.calls("SCardTransmit"));
+		assertEquals(1, card.getElidedSelectCount());
+
+		select(channel, AID_B);
+		select(channel, AID_A);
+		assertEquals(transmits + 2, lib.calls("SCardTransmit"));
+	}
+	@Test public void testSelectMakesNoStatusCalls() throws Exception {
+		int statusCalls = lib.calls("SCardStatus") + lib.calls("SCardGetStatusChange");
+		select(channel, AID_A);
+		select(channel, AID_A);
+		assertEquals(1, card.getElidedSelectCount());
+		assertEquals(statusCalls, lib.calls("SCardStatus") + lib.calls("SCardGetStatusChange"));
+	}
+	@Test public void testErrorSwInvalidates() throws Exception {
+		select(channel, AID_A);
+		channel.transmit(new CommandAPDU(0, 0xb0, 0, 0, 1));
+		select(channel, AID_A);
+		assertEquals(1, card.getElidedSelectCount());
+		nextSw = 0x6982;
+		channel.transmit(new CommandAPDU(0, 0xb0, 0, 0, 1));
+		select(channel, AID_A);
+		assertEquals(1, card.getElidedSelectCount());
+	}
+	@Test public void testResetAndManageChannelInvalidate() throws Exception {
+		select(channel, AID_A);
+		lib.injectError("SCardTransmit", WinscardConstants.SCARD_W_RESET_CARD);
+		try {
+			channel.transmit(new CommandAPDU(0, 0xb0, 0, 0, 1));
+			fail("Expected JnaPCSCException");
+		} catch (JnaPCSCException e) {
+			// expected
+		}
+		select(channel, AID_A);
+		assertEquals(0, card.getElidedSelectCount());
+
+		card.openLogicalChannel();
+		select(channel, AID_A);
+		assertEquals(0, card.getElidedSelectCount());
+		select(channel, AID_A);
+		assertEquals(1, card.getElidedSelectCount());
+	}
+	@Test public void testCardSwapInvalidates() throws Exception {
+		select(channel, AID_A);
+		lib.removeCard("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		terminals.list();
+		select(channel, AID_A);
+		assertEquals(0, card.getElidedSelectCount());
+	}
+	@Test public void testOffByDefault() throws Exception {
+		card.setSelectElision(false);
+		select(channel, AID_A);
+		select(channel, AID_A);
+		assertEquals(0, card.getElidedSelectCount());
+	}
+}
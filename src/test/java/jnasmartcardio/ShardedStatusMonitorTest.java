@@ -0,0 +1,222 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jnasmartcardio.ShardedStatusMonitor.Event;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedStatusMonitorTest {
+	private static final int READERS = 300;
+	private static final int READERS_PER_SHARD = 16;
+	private FakeWinscardLibrary lib;
+	private ShardedStatusMonitor monitor;
+	/** The last sequence number seen, and the last event kind of each reader. */
+	private long lastSequence;
+	private final Map<String, Event.Kind> lastKinds = new HashMap<String, Event.Kind>();
+
+	@Before public void setUp() {
+		lib = new FakeWinscardLibrary();
+		lib.maxReaderStates = READERS_PER_SHARD;
+		for (int i = 0; i < READERS; i++)
+			lib.addReader("Reader " + i);
+		for (int i = 0; i < READERS; i += 10)
+			lib.insertCard("Reader " + i, new byte[] {0x3b, 0x00});
+		monitor = new ShardedStatusMonitor(new JnaTerminalFactorySpi(lib.libInfo()), READERS_PER_SHARD);
+		monitor.start();
+	}
+	@After public void tearDown() throws InterruptedException {
+		monitor.close();
+		monitor.join(5000);
+	}
+
+	/** Take the next event and check that it follows the previous ones. */
+	private Event next() throws Exception {
+		Event event = monitor.poll(5, TimeUnit.SECONDS);
+		assertNotNull("no event", event);
+		assertEquals(lastSequence + 1, event.getSequence());
+		lastSequence = event.getSequence();
+		Event.Kind last = lastKinds.get(event.getReaderName());
+		switch (event.getKind()) {
+		case READER_ADDED:
+			assertTrue(event.toString(), last == null || last == Event.Kind.READER_REMOVED);
+			break;
+		case CARD_INSERTED:
+			assertTrue(event.toString(), last == Event.Kind.READER_ADDED || last == Event.Kind.CARD_REMOVED);
+			break;
+		case CARD_REMOVED:
+			assertEquals(event.toString(), Event.Kind.CARD_INSERTED, last);
+			break;
+		case READER_REMOVED:
+			assertTrue(event.toString(), last == Event.Kind.READER_ADDED || last == Event.Kind.CARD_REMOVED);
+			break;
+		}
+		lastKinds.put(event.getReaderName(), event.getKind());
+		return event;
+	}
+	private void assertNoEvent() throws Exception {
+		Event event = monitor.poll(50, TimeUnit.MILLISECONDS);
+		assertNull(String.valueOf(event), event);
+	}
+	private void drainInitialEvents() throws Exception {
+		for (int i = 0; i < READERS + READERS / 10; i++)
+			next();
+		assertNoEvent();
+	}
+
+	@Test public void testInitialEventsCoverEveryReader() throws Exception {
+		int added = 0, inserted = 0;
+		for (int i = 0; i < READERS + READERS / 10; i++) {
+			Event event = next();
+			if (event.getKind() == Event.Kind.READER_ADDED)
+				added++;
+			else if (event.getKind() == Event.Kind.CARD_INSERTED) {
+				inserted++;
+				assertTrue(Arrays.equals(new byte[] {0x3b, 0x00}, event.getAtr().getBytes()));
+			}
+		}
+		assertEquals(READERS, added);
+		assertEquals(READERS / 10, inserted);
+		assertNoEvent();
+		assertEquals(READERS, monitor.getReaderCount());
+		assertEquals((READERS + READERS_PER_SHARD - 1) / READERS_PER_SHARD, monitor.getShardCount());
+	}
+	@Test public void testCardEventsAcrossShards() throws Exception {
+		drainInitialEvents();
+		lib.insertCard("Reader 1", new byte[] {0x3b, 0x01});
+		lib.insertCard("Reader 299", new byte[] {0x3b, 0x02});
+		lib.removeCard("Reader 150");
+		Map<String, Event.Kind> seen = new HashMap<String, Event.Kind>();
+		for (int i = 0; i < 3; i++) {
+			Event event = next();
+			seen.put(event.getReaderName(), event.getKind());
+		}
+		assertEquals(Event.Kind.CARD_INSERTED, seen.get("Reader 1"));
+		assertEquals(Event.Kind.CARD_INSERTED, seen.get("Reader 299"));
+		assertEquals(Event.Kind.CARD_REMOVED, seen.get("Reader 150"));
+		assertNoEvent();
+	}
+	@Test public void testSwapIsRemovalThenInsertion() throws Exception {
+		drainInitialEvents();
+		synchronized (lib) {
+			lib.removeCard("Reader 20");
+			lib.insertCard("Reader 20", new byte[] {0x3b, 0x03});
+		}
+		assertEquals(Event.Kind.CARD_REMOVED, next().getKind());
+		Event inserted = next();
+		assertEquals(Event.Kind.CARD_INSERTED, inserted.getKind());
+		assertTrue(Arrays.equals(new byte[] {0x3b, 0x03}, inserted.getAtr().getBytes()));
+	}
+	@Test public void testReadersPluggedAndUnplugged() throws Exception {
+		drainInitialEvents();
+		lib.removeReader("Reader 30");
+		assertEquals(Event.Kind.CARD_REMOVED, next().getKind());
+		assertEquals(Event.Kind.READER_REMOVED, next().getKind());
+		lib.addReader("Reader new");
+		Event added = next();
+		assertEquals(Event.Kind.READER_ADDED, added.getKind());
+		assertEquals("Reader new", added.getReaderName());
+		assertNoEvent();
+		assertEquals(READERS, monitor.getReaderCount());
+		lib.insertCard("Reader new", new byte[] {0x3b, 0x00});
+		assertEquals(Event.Kind.CARD_INSERTED, next().getKind());
+	}
+	@Test public void testHoldOffDropsJitter() throws Exception {
+		drainInitialEvents();
+		monitor.setHoldOff("Reader 20", 500);
+		lib.removeCard("Reader 20");
+		Thread.sleep(50);
+		lib.insertCard("Reader 20", new byte[] {0x3b, 0x00});
+		Thread.sleep(50);
+		// Removed and back between two observations: only the event counter shows it.
+		synchronized (lib) {
+			lib.removeCard("Reader 20");
+			lib.insertCard("Reader 20", new byte[] {0x3b, 0x00});
+		}
+		assertNull(monitor.poll(800, TimeUnit.MILLISECONDS));
+		assertEquals(2, monitor.getSuppressedCount());
+	}
+	@Test public void testHoldOffTellsCardsOfOneModelApart() throws Exception {
+		drainInitialEvents();
+		final byte[] uid = {0x04, 0x01};
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				synchronized (uid) {
+					return new byte[] {uid[0], uid[1], (byte) 0x90, 0x00};
+				}
+			}
+		};
+		monitor.setHoldOff("Reader 21", 500);
+		monitor.setIdentifier(ShardedStatusMonitor.UID);
+		lib.insertCard("Reader 21", new byte[] {0x3b, 0x00});
+		assertEquals(Event.Kind.CARD_INSERTED, next().getKind());
+		lib.removeCard("Reader 21");
+		Thread.sleep(50);
+		synchronized (uid) {
+			uid[1] = 0x02;
+		}
+		lib.insertCard("Reader 21", new byte[] {0x3b, 0x00});
+		// Same ATR, another card: a swap, reported at once.
+		long start = System.nanoTime();
+		assertEquals(Event.Kind.CARD_REMOVED, next().getKind());
+		assertEquals(Event.Kind.CARD_INSERTED, next().getKind());
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+		assertEquals(0, monitor.getSuppressedCount());
+		lib.removeCard("Reader 21");
+		Thread.sleep(50);
+		lib.insertCard("Reader 21", new byte[] {0x3b, 0x00});
+		assertNull(monitor.poll(800, TimeUnit.MILLISECONDS));
+		assertEquals(1, monitor.getSuppressedCount());
+	}
+	@Test public void testHoldOffDelaysRealRemoval() throws Exception {
+		drainInitialEvents();
+		monitor.setHoldOff("Reader 2", 300);
+		long start = System.nanoTime();
+		lib.removeCard("Reader 20");
+		lib.removeCard("Reader 30");
+		Event removed = next();
+		assertEquals("Reader 30", removed.getReaderName());
+		removed = next();
+		assertEquals("Reader 20", removed.getReaderName());
+		assertEquals(Event.Kind.CARD_REMOVED, removed.getKind());
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+		assertNoEvent();
+	}
+	@Test public void testHoldOffReportsSwapAtOnce() throws Exception {
+		drainInitialEvents();
+		monitor.setHoldOff("", 5000);
+		synchronized (lib) {
+			lib.removeCard("Reader 40");
+			lib.insertCard("Reader 40", new byte[] {0x3b, 0x04});
+		}
+		assertEquals(Event.Kind.CARD_REMOVED, next().getKind());
+		Event inserted = next();
+		assertEquals(Event.Kind.CARD_INSERTED, inserted.getKind());
+		assertTrue(Arrays.equals(new byte[] {0x3b, 0x04}, inserted.getAtr().getBytes()));
+		lib.removeCard("Reader 50");
+		lib.removeReader("Reader 50");
+		assertEquals(Event.Kind.CARD_REMOVED, next().getKind());
+		assertEquals(Event.Kind.READER_REMOVED, next().getKind());
+	}
+	@Test public void testDaemonFailureStopsMonitor() throws Exception {
+		drainInitialEvents();
+		lib.restartDaemon();
+		try {
+			monitor.poll(5, TimeUnit.SECONDS);
+			fail();
+		} catch (Smartcardio.JnaPCSCException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Test;
+
+public class SharedContextTest {
+	@Test public void testContextIsSharedAndReleasedByLastClose() throws Exception {
+		FakeWinscardLibrary lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		JnaTerminalFactorySpi factory = new JnaTerminalFactorySpi(lib.libInfo(), true);
+		JnaCardTerminals a = (JnaCardTerminals) factory.engineTerminals();
+		JnaCardTerminals b = (JnaCardTerminals) factory.engineTerminals();
+		assertEquals(1, lib.calls("SCardEstablishContext"));
+		a.close();
+		a.close();  // closing twice must not release b's reference
+		assertEquals(0, lib.calls("SCardReleaseContext"));
+		assertEquals(1, b.list().size());
+		b.close();
+		assertEquals(1, lib.calls("SCardReleaseContext"));
+
+		JnaCardTerminals c = (JnaCardTerminals) factory.engineTerminals();
+		assertEquals(2, lib.calls("SCardEstablishContext"));
+		assertEquals(1, c.list().size());
+		c.close();
+	}
+	@Test public void testDeadContextIsNotSharedAgain() throws Exception {
+		FakeWinscardLibrary lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		JnaTerminalFactorySpi factory = new JnaTerminalFactorySpi(lib.libInfo(), true);
+		JnaCardTerminals a = (JnaCardTerminals) factory.engineTerminals();
+		lib.restartDaemon();
+		JnaCardTerminals b = (JnaCardTerminals) factory.engineTerminals();
+		assertEquals(2, lib.calls("SCardEstablishContext"));
+		assertEquals(1, b.list().size());
+		JnaCardTerminals c = (JnaCardTerminals) factory.engineTerminals();
+		assertEquals(2, lib.calls("SCardEstablishContext"));
+		try {
+			a.close();
+			fail();
+		} catch (Smartcardio.JnaPCSCException e) {
+			// its context is dead
+		}
+		b.close();
+		assertEquals(1, c.list().size());
+		c.close();
+	}
+	@Test public void testUnsharedByDefault() throws Exception {
+		FakeWinscardLibrary lib = new FakeWinscardLibrary();
+		JnaTerminalFactorySpi factory = new JnaTerminalFactorySpi(lib.libInfo());
+		((JnaCardTerminals) factory.engineTerminals()).close();
+		((JnaCardTerminals) factory.engineTerminals()).close();
+		assertEquals(2, lib.calls("SCardEstablishContext"));
+		assertEquals(2, lib.calls("SCardReleaseContext"));
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals.State;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+
+import org.junit.Test;
+
+public class SimulatedWinscardLibraryTest {
+	@Test public void testEveryReaderHasACardThatAnswers() throws Exception {
+		SimulatedWinscardLibrary lib = new SimulatedWinscardLibrary(3, 0);
+		JnaCardTerminals terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		List<CardTerminal> present = terminals.list(State.CARD_PRESENT);
+		assertEquals(3, present.size());
+		assertEquals("Simulated Reader 2", present.get(2).getName());
+		Card card = present.get(1).connect("*");
+		CardChannel channel = card.getBasicChannel();
+		ResponseAPDU response = channel.transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 8));
+		assertEquals(0x9000, response.getSW());
+		assertEquals(8, response.getNr());
+		assertEquals(0, channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, new byte[] {1, 2, 3})).getNr());
+		assertEquals(300, channel.transmit(new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 300)).getNr());
+		assertEquals(3, lib.getTransmitCount());
+		card.disconnect(false);
+		assertTrue(terminals.waitForChange(0));  // the first call returns immediately
+		assertFalse(terminals.waitForChange(20));
+	}
+	@Test public void testLatency() throws Exception {
+		SimulatedWinscardLibrary lib = new SimulatedWinscardLibrary(1, 2000);
+		Card card = new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals().list().get(0).connect("*");
+		long start = System.nanoTime();
+		for (int i = 0; i < 5; i++)
+			card.getBasicChannel().transmit(new CommandAPDU(0x00, 0x84, 0x00, 0x00, 8));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MICROSECONDS.toNanos(5 * 2000));
+	}
+}
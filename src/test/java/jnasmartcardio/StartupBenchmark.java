@@ -0,0 +1,69 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+import jnasmartcardio.Winscard.WinscardLibInfo;
+
+/**
+ * Measures what a short-lived tool pays before its first APDU: loading the
+ * library, and establishing and releasing a context, with and without
+ * sharing. Needs a PC/SC daemon for the context measurements; without one,
+ * only library loading is measured. Run with
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=jnasmartcardio.StartupBenchmark</code>.
+ */
+public class StartupBenchmark {
+	private static final int ITERATIONS = 200;
+
+	private static void report(String name, long startNanos, int iterations) {
+		long elapsed = System.nanoTime() - startNanos;
+		System.out.format("%-40s %10.1f us/op%n", name, elapsed / 1000.0 / iterations);
+	}
+
+	public static void main(String[] args) throws Exception {
+		long start = System.nanoTime();
+		WinscardLibInfo libInfo;
+		try {
+			libInfo = Winscard.sharedLib();
+		} catch (UnsatisfiedLinkError e) {
+			System.out.println("No PC/SC library: " + e.getMessage());
+			return;
+		}
+		report("first sharedLib()", start, 1);
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			Winscard.sharedLib();
+		report("sharedLib()", start, ITERATIONS);
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			Winscard.openLib();
+		report("openLib()", start, ITERATIONS);
+
+		for (boolean shared: new boolean[] {false, true}) {
+			JnaTerminalFactorySpi factory = new JnaTerminalFactorySpi(libInfo, shared);
+			// With a shared context, keep one reference open as a long-lived
+			// application would, so that the others reuse it.
+			JnaCardTerminals keep;
+			try {
+				keep = (JnaCardTerminals) factory.engineTerminals();
+			} catch (Smartcardio.EstablishContextException e) {
+				System.out.println("No PC/SC daemon: " + e.getCause().getMessage());
+				return;
+			}
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				JnaCardTerminals terminals = (JnaCardTerminals) factory.engineTerminals();
+				terminals.list();
+				terminals.close();
+			}
+			report("terminals().list().close() shared=" + shared, start, ITERATIONS);
+			keep.close();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.ATR;
+
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+import jnasmartcardio.TapPipeline.Stage;
+import jnasmartcardio.TapPipeline.Tap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TapPipelineTest {
+	private static final byte[] READ_BINARY = {0, (byte) 0xb0, 0, 0, 4};
+	private FakeWinscardLibrary lib;
+	private TapPipeline pipeline;
+	private final LinkedBlockingQueue<Tap> taps = new LinkedBlockingQueue<Tap>();
+
+	@Before public void setUp() {
+		lib = new FakeWinscardLibrary();
+		for (int i = 0; i < 4; i++)
+			lib.addReader("Contactless Reader " + i);
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {
+				if (Arrays.equals(TapPipeline.GET_UID, command))
+					return new byte[] {0x04, (byte) reader.charAt(reader.length() - 1), 0x22, 0x33, (byte) 0x90, 0x00};
+				if (Arrays.equals(READ_BINARY, command))
+					return new byte[] {1, 2, 3, 4, (byte) 0x90, 0x00};
+				return new byte[] {0x6d, 0x00};
+			}
+		};
+		pipeline = new TapPipeline(new JnaTerminalFactorySpi(lib.libInfo()), 2, new TapPipeline.Listener() {
+			@Override public void tap(Tap tap) {taps.add(tap);}
+		});
+		pipeline.setScript(READ_BINARY);
+		pipeline.setDisposition(Smartcardio.JnaCard.SCARD_UNPOWER_CARD);
+		pipeline.start();
+	}
+	@After public void tearDown() throws InterruptedException {
+		pipeline.close();
+		pipeline.join(5000);
+	}
+
+	@Test public void testTap() throws Exception {
+		lib.insertCard("Contactless Reader 1", new byte[] {0x3b, (byte) 0x8f, (byte) 0x80, 0x01});
+		Tap tap = taps.poll(5, TimeUnit.SECONDS);
+		assertNotNull(tap);
+		assertEquals("Contactless Reader 1", tap.getReaderName());
+		assertEquals(tap.toString(), 0, tap.getResult());
+		assertNull(tap.getFailedStage());
+		assertTrue(Arrays.equals(new byte[] {0x04, '1', 0x22, 0x33}, tap.getUid()));
+		assertEquals(1, tap.getResponses().size());
+		assertTrue(Arrays.equals(new byte[] {1, 2, 3, 4, (byte) 0x90, 0x00}, tap.getResponses().get(0)));
+		assertTrue(tap.getNanos(Stage.CONNECT) > 0);
+		assertTrue(tap.getTotalNanos() >= tap.getNanos(Stage.SCRIPT));
+		// The ATR came from the reader state.
+		assertEquals(0, lib.calls("SCardStatus"));
+		assertEquals(1, lib.calls("SCardDisconnect"));
+	}
+	@Test public void testCardSwappedWhileConnecting() throws Exception {
+		byte[] previous = {0x3b, (byte) 0x8f, (byte) 0x80, 0x01};
+		byte[] next = {0x3b, (byte) 0x88, (byte) 0x80, 0x01};
+		lib.connectArrivals = new CountDownLatch(1);
+		lib.connectGate = new CountDownLatch(1);
+		lib.insertCard("Contactless Reader 1", previous);
+		assertTrue(lib.connectArrivals.await(5, TimeUnit.SECONDS));
+		int eventCount = pipeline.getMonitor().getEventCount("Contactless Reader 1");
+		lib.removeCard("Contactless Reader 1");
+		lib.insertCard("Contactless Reader 1", next);
+		for (int i = 0; i < 500 && pipeline.getMonitor().getEventCount("Contactless Reader 1") == eventCount; i++)
+			Thread.sleep(10);
+		lib.connectGate.countDown();
+		for (int i = 0; i < 2; i++) {
+			Tap tap = taps.poll(5, TimeUnit.SECONDS);
+			assertNotNull(tap);
+			assertEquals(tap.toString(), 0, tap.getResult());
+			assertEquals(new ATR(next), tap.getAtr());
+		}
+		assertTrue(lib.calls("SCardStatus") >= 1);
+	}
+	@Test public void testTapsOnSeveralReaders() throws Exception {
+		for (int i = 0; i < 4; i++)
+			lib.insertCard("Contactless Reader " + i, new byte[] {0x3b, 0x00});
+		boolean[] seen = new boolean[4];
+		for (int i = 0; i < 4; i++) {
+			Tap tap = taps.poll(5, TimeUnit.SECONDS);
+			assertNotNull(tap);
+			assertEquals(tap.toString(), 0, tap.getResult());
+			seen[tap.getUid()[1] - '0'] = true;
+		}
+		assertTrue(Arrays.equals(new boolean[] {true, true, true, true}, seen));
+		lib.removeCard("Contactless Reader 2");
+		lib.insertCard("Contactless Reader 2", new byte[] {0x3b, 0x00});
+		Tap again = taps.poll(5, TimeUnit.SECONDS);
+		assertEquals("Contactless Reader 2", again.getReaderName());
+		assertNull(taps.poll(50, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals.State;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+import jnasmartcardio.Smartcardio.JnaTerminalList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TerminalSnapshotTest {
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminals terminals;
+
+	@Before public void setUp() {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.addReader("Reader 1");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+	}
+
+	@Test public void testSnapshotIsReusedUntilChange() throws Exception {
+		List<CardTerminal> first = terminals.list();
+		int listCalls = lib.calls("SCardListReaders");
+		for (int i = 0; i < 10; i++)
+			assertSame(first, terminals.list());
+		assertEquals(listCalls, lib.calls("SCardListReaders"));
+		assertEquals(1, terminals.list(State.CARD_PRESENT).size());
+
+		lib.insertCard("Reader 1", new byte[] {0x3b, 0x00});
+		List<CardTerminal> second = terminals.list();
+		assertNotSame(first, second);
+		assertTrue(((JnaTerminalList) second).getVersion() > ((JnaTerminalList) first).getVersion());
+		assertEquals(listCalls, lib.calls("SCardListReaders"));
+		assertEquals(2, terminals.list(State.CARD_PRESENT).size());
+		assertEquals(0, terminals.list(State.CARD_ABSENT).size());
+		assertSame(first.get(0), second.get(0));
+		assertSame(first.get(1), second.get(1));
+	}
+	@Test public void testReaderChangesRelist() throws Exception {
+		List<CardTerminal> first = terminals.list();
+		lib.addReader("Reader 2");
+		List<CardTerminal> second = terminals.list();
+		assertEquals(3, second.size());
+		assertSame(first.get(0), second.get(0));
+		assertSame(terminals.getTerminal("Reader 2"), second.get(2));
+
+		lib.removeReader("Reader 0");
+		List<CardTerminal> third = terminals.list();
+		assertEquals(2, third.size());
+		assertSame(first.get(1), third.get(0));
+	}
+	@Test public void testConcurrentListsSeeChanges() throws Exception {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override public void run() {
+					try {
+						long version = 0;
+						for (int i = 0; i < 500; i++) {
+							JnaTerminalList list = (JnaTerminalList) terminals.list(State.CARD_PRESENT);
+							if (list.getVersion() < version)
+								throw new AssertionError("Older snapshot after " + version);
+							version = list.getVersion();
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (int i = 0; i < 50; i++) {
+			lib.insertCard("Reader 1", new byte[] {0x3b, 0x00});
+			lib.removeCard("Reader 1");
+		}
+		for (Thread t: threads)
+			t.join();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertEquals(1, terminals.list(State.CARD_PRESENT).size());
+		lib.insertCard("Reader 1", new byte[] {0x3b, 0x00});
+		assertEquals(2, terminals.list(State.CARD_PRESENT).size());
+	}
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSnapshotIsImmutable() throws Exception {
+		terminals.list().clear();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TlvTest {
+	/** FCI: 6F { 84 AID, A5 { 50 label, BF0C { 9F4D 0B0A } } } */
+	private static final byte[] FCI = {
+		0x6f, 0x19,
+			(byte) 0x84, 0x07, (byte) 0xa0, 0, 0, 0, 0x03, 0x10, 0x10,
+			(byte) 0xa5, 0x0e,
+				0x50, 0x04, 'V', 'I', 'S', 'A',
+				(byte) 0xbf, 0x0c, 0x05,
+					(byte) 0x9f, 0x4d, 0x02, 0x0b, 0x0a,
+		(byte) 0x90, 0x00};
+
+	@Test public void testWalk() {
+		ByteBuffer buffer = ByteBuffer.wrap(FCI);
+		buffer.limit(FCI.length - 2);
+		TlvReader r = new TlvReader(buffer);
+		assertTrue(r.next());
+		assertEquals(0x6f, r.getTag());
+		assertTrue(r.isConstructed());
+		r.enter();
+		assertTrue(r.find(0x84));
+		assertTrue(r.valueEquals(new byte[] {(byte) 0xa0, 0, 0, 0, 0x03, 0x10, 0x10}));
+		assertTrue(r.find(0xa5));
+		r.enter();
+		assertTrue(r.next());
+		assertEquals("VISA", new String(r.getValue(), 0, r.getLength()));
+		assertTrue(r.next());
+		assertEquals(0xbf0c, r.getTag());
+		r.enter();
+		assertTrue(r.next());
+		assertEquals(0x9f4d, r.getTag());
+		assertEquals(0x0b0a, r.getValueInt());
+		assertFalse(r.next());
+		assertEquals(3, r.getDepth());
+		r.exit().exit();
+		assertFalse(r.next());
+		r.exit();
+		assertFalse(r.next());
+		assertEquals(0, buffer.position());
+	}
+	@Test public void testLongLengthAndPadding() {
+		byte[] value = new byte[300];
+		value[299] = 7;
+		ByteBuffer b = ByteBuffer.allocate(400);
+		b.put((byte) 0).put((byte) 0xff);
+		b.put(new byte[] {0x53, (byte) 0x82, 0x01, 0x2c}).put(value).flip();
+		TlvReader r = new TlvReader(b);
+		assertTrue(r.next());
+		assertEquals(0x53, r.getTag());
+		assertEquals(300, r.getLength());
+		assertEquals(7, r.getValueByte(299));
+		assertFalse(r.next());
+	}
+	@Test(expected = IllegalArgumentException.class)
+	public void testTruncatedValue() {
+		TlvReader r = new TlvReader(ByteBuffer.wrap(new byte[] {0x5a, 0x05, 1, 2}));
+		r.next();
+	}
+	@Test public void testWriteReadsBack() {
+		byte[] aid = {(byte) 0xa0, 0, 0, 0, 0x03, 0x10, 0x10};
+		byte[] cert = new byte[200];
+		Arrays.fill(cert, (byte) 0x30);
+		ByteBuffer b = ByteBuffer.allocate(512);
+		TlvWriter w = new TlvWriter(b);
+		w.start(0x6f).put(0x84, aid).start(0xa5).put(0x50, "VISA".getBytes()).start(0xbf0c).putInt(0x9f4d, 0x0b0a).end().end().end();
+		w.start(0x53).put(0x70, cert).putByte(0x71, 0).end();
+		assertEquals(0, w.getDepth());
+		b.flip();
+		assertEquals(ByteBuffer.wrap(FCI, 0, FCI.length - 2), b.duplicate().limit(FCI.length - 2));
+
+		TlvReader r = new TlvReader(b);
+		assertTrue(r.next());
+		assertTrue(r.next());
+		assertEquals(0x53, r.getTag());
+		assertEquals(2 + 1 + 200 + 3, r.getLength());
+		r.enter();
+		assertTrue(r.find(0x70));
+		assertEquals(200, r.getLength());
+		assertTrue(r.find(0x71));
+		assertEquals(0, r.getValueInt());
+	}
+	@Test public void testReadResponseView() throws Exception {
+		FakeWinscardLibrary lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		lib.responder = new FakeWinscardLibrary.Responder() {
+			@Override public byte[] respond(String reader, byte[] command) {return FCI;}
+		};
+		Smartcardio.JnaCardTerminals terminals = (Smartcardio.JnaCardTerminals) new Smartcardio.JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		Smartcardio.JnaCardChannel channel = (Smartcardio.JnaCardChannel) terminals.getTerminal("Reader 0").connect("*").getBasicChannel();
+		ResponseView view = channel.transmitView(new javax.smartcardio.CommandAPDU(0, 0xa4, 4, 0, new byte[] {(byte) 0xa0, 0, 0, 0, 0x03, 0x10, 0x10}, 256));
+		TlvReader r = new TlvReader(view);
+		assertTrue(r.find(0x6f));
+		assertTrue(r.enter().find(0xa5));
+		assertFalse(r.enter().find(0x87));
+		view.release();
+	}
+}
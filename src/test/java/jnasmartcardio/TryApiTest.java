@@ -0,0 +1,91 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import jnasmartcardio.Smartcardio.CardHolder;
+import jnasmartcardio.Smartcardio.JnaCardChannel;
+import jnasmartcardio.Smartcardio.JnaCardTerminal;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+import jnasmartcardio.Smartcardio.ReaderStatus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TryApiTest {
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminal terminal;
+
+	@Before public void setUp() throws Exception {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		JnaCardTerminals terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		terminal = (JnaCardTerminal) terminals.getTerminal("Reader 0");
+	}
+
+	@Test public void testPollStatus() {
+		ReaderStatus status = new ReaderStatus();
+		assertEquals(0, terminal.pollStatus(status));
+		assertFalse(status.isCardPresent());
+		assertEquals(0, status.atrLength);
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x02, 0x14, 0x50});
+		assertEquals(0, terminal.pollStatus(status));
+		assertTrue(status.isCardPresent());
+		assertTrue(Arrays.equals(new byte[] {0x3b, 0x02, 0x14, 0x50}, Arrays.copyOf(status.atr, status.atrLength)));
+		lib.removeReader("Reader 0");
+		assertEquals(0, terminal.pollStatus(status));
+		assertTrue(0 != (status.state & WinscardConstants.SCARD_STATE_UNKNOWN));
+		assertFalse(status.isCardPresent());
+	}
+
+	@Test public void testTryConnectAndTransmit() throws Exception {
+		CardHolder holder = new CardHolder();
+		assertEquals(WinscardConstants.SCARD_E_NO_SMARTCARD, terminal.tryConnect("*", holder));
+		assertNull(holder.card);
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		assertEquals(0, terminal.tryConnect("*", holder));
+		assertNotNull(holder.card);
+		JnaCardChannel channel = holder.card.getBasicChannel();
+		ByteBuffer command = ByteBuffer.wrap(new byte[] {0, (byte) 0xb0, 0, 0, 0});
+		ByteBuffer response = ByteBuffer.allocate(258);
+		assertEquals(0, channel.tryTransmit(command, response));
+		assertEquals(command.limit(), command.position());
+		assertEquals(2, response.position());
+		assertEquals((byte) 0x90, response.get(0));
+
+		lib.removeCard("Reader 0");
+		command.rewind();
+		assertEquals(WinscardConstants.SCARD_W_REMOVED_CARD, channel.tryTransmit(command, response));
+		assertEquals(0, command.position());
+		assertEquals(2, response.position());
+	}
+
+	@Test public void testExpectedFailuresHaveNoStackTrace() throws Exception {
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		JnaCardChannel channel = ((Smartcardio.JnaCard) terminal.connect("*")).getBasicChannel();
+		lib.removeCard("Reader 0");
+		try {
+			channel.transmit(ByteBuffer.wrap(new byte[] {0, (byte) 0xb0, 0, 0, 0}), ByteBuffer.allocate(258));
+			fail();
+		} catch (JnaPCSCException e) {
+			assertEquals(WinscardConstants.SCARD_W_REMOVED_CARD, e.code);
+			assertEquals(0, e.getStackTrace().length);
+			assertTrue(e.getMessage(), e.getMessage().startsWith("SCardTransmit got response 0x80100069 (SCARD_W_REMOVED_CARD"));
+		}
+		lib.injectError("SCardConnect", WinscardConstants.SCARD_E_NO_MEMORY);
+		try {
+			terminal.connect("*");
+			fail();
+		} catch (JnaPCSCException e) {
+			assertTrue(e.getStackTrace().length > 0);
+			assertTrue(e.getMessage(), e.getMessage().contains("SCARD_E_NO_MEMORY"));
+		}
+	}
+}
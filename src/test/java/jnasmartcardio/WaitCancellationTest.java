@@ -0,0 +1,125 @@
+/*
+ * To the extent possible under law, contributors have waived all
+ * copyright and related or neighboring rights to work.
+ */
+package jnasmartcardio;
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jnasmartcardio.Smartcardio.JnaCardTerminal;
+import jnasmartcardio.Smartcardio.JnaCardTerminals;
+import jnasmartcardio.Smartcardio.JnaPCSCException;
+import jnasmartcardio.Smartcardio.JnaTerminalFactorySpi;
+import jnasmartcardio.Smartcardio.WaitCancellation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class WaitCancellationTest {
+	private FakeWinscardLibrary lib;
+	private JnaCardTerminals terminals;
+	private JnaCardTerminal terminal;
+
+	@Before public void setUp() {
+		lib = new FakeWinscardLibrary();
+		lib.addReader("Reader 0");
+		terminals = (JnaCardTerminals) new JnaTerminalFactorySpi(lib.libInfo()).engineTerminals();
+		terminal = (JnaCardTerminal) terminals.getTerminal("Reader 0");
+	}
+
+	/** Waits for a card in another thread; its outcome ends up in the queue. */
+	private Thread startWait(final WaitCancellation cancellation, final BlockingQueue<Object> outcome) {
+		Thread thread = new Thread(new Runnable() {
+			@Override public void run() {
+				try {
+					outcome.add(terminal.waitForCardPresent(0, cancellation));
+				} catch (Exception e) {
+					outcome.add(e);
+				}
+				if (Thread.currentThread().isInterrupted())
+					outcome.add("interrupted");
+			}
+		});
+		thread.start();
+		return thread;
+	}
+	private void awaitBlocked(Thread thread) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+			assertTrue("thread did not block", System.nanoTime() < deadline);
+			Thread.sleep(1);
+		}
+	}
+	private static void assertCancelled(Object outcome) {
+		assertTrue(String.valueOf(outcome), outcome instanceof JnaPCSCException);
+		assertEquals(WinscardConstants.SCARD_E_CANCELLED, ((JnaPCSCException) outcome).code);
+	}
+
+	@Test public void testInterruptWakesWait() throws Exception {
+		BlockingQueue<Object> outcome = new ArrayBlockingQueue<Object>(2);
+		Thread thread = startWait(null, outcome);
+		awaitBlocked(thread);
+		long start = System.nanoTime();
+		thread.interrupt();
+		assertCancelled(outcome.poll(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		assertEquals("interrupted", outcome.poll(5, TimeUnit.SECONDS));
+		assertTrue(lib.calls("SCardCancel") >= 1);
+	}
+	@Test public void testCancellationEndsOnlyItsWait() throws Exception {
+		WaitCancellation cancellation = new WaitCancellation();
+		BlockingQueue<Object> cancelledOutcome = new ArrayBlockingQueue<Object>(2);
+		BlockingQueue<Object> otherOutcome = new ArrayBlockingQueue<Object>(2);
+		Thread cancelled = startWait(cancellation, cancelledOutcome);
+		Thread other = startWait(null, otherOutcome);
+		awaitBlocked(cancelled);
+		awaitBlocked(other);
+		cancellation.cancel();
+		assertCancelled(cancelledOutcome.poll(5, TimeUnit.SECONDS));
+		assertNull(otherOutcome.poll(50, TimeUnit.MILLISECONDS));
+		lib.insertCard("Reader 0", new byte[] {0x3b, 0x00});
+		assertEquals(Boolean.TRUE, otherOutcome.poll(5, TimeUnit.SECONDS));
+		try {
+			terminal.waitForCardAbsent(0, cancellation);
+			fail();
+		} catch (JnaPCSCException e) {
+			assertEquals(WinscardConstants.SCARD_E_CANCELLED, e.code);
+		}
+	}
+	@Test public void testCancelWaitEndsWaitForCard() throws Exception {
+		BlockingQueue<Object> outcome = new ArrayBlockingQueue<Object>(2);
+		Thread thread = startWait(null, outcome);
+		awaitBlocked(thread);
+		terminals.cancelWait();
+		assertCancelled(outcome.poll(5, TimeUnit.SECONDS));
+	}
+	@Test public void testLostCancelIsRepeated() throws Exception {
+		lib.statusChangeGate = new CountDownLatch(1);
+		final WaitCancellation cancellation = new WaitCancellation();
+		BlockingQueue<Object> outcome = new ArrayBlockingQueue<Object>(2);
+		Thread thread = startWait(cancellation, outcome);
+		awaitBlocked(thread);  // at the gate, before the daemon sees the wait
+		Thread canceller = new Thread() {
+			@Override public void run() {cancellation.cancel();}
+		};
+		canceller.start();
+		while (lib.calls("SCardCancel") == 0)
+			Thread.sleep(1);
+		lib.statusChangeGate.countDown();
+		assertCancelled(outcome.poll(5, TimeUnit.SECONDS));
+		canceller.join(5000);
+		assertFalse(canceller.isAlive());
+		assertTrue(lib.calls("SCardCancel") >= 2);
+	}
+	@Test public void testTimeout() throws Exception {
+		long start = System.nanoTime();
+		assertFalse(terminal.waitForCardPresent(30, new WaitCancellation()));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+		assertTrue(terminals.waitForChange(0));  // the first call returns immediately
+		assertFalse(terminals.waitForChange(30, null));
+	}
+}